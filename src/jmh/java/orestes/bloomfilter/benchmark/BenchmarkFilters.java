@@ -0,0 +1,102 @@
+package orestes.bloomfilter.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.cachesketch.ExpiringBloomFilter;
+
+/**
+ * Creates the Bloom filters and keys shared by the benchmarks.
+ */
+final class BenchmarkFilters {
+    /**
+     * The number of distinct keys each benchmark cycles through. Large enough to defeat caching of single keys, small
+     * enough to keep the keys themselves in the CPU caches.
+     */
+    static final int KEYS = 1 << 14;
+
+    private BenchmarkFilters() {
+    }
+
+    /**
+     * Creates a Bloom filter of the given type.
+     *
+     * @param type   one of memory, counting, concurrent, concurrentCounting, blocked, splitBlock and expiring
+     * @param size   the size of the filter in bits
+     * @param hashes the number of hashes, ignored by split block filters which always use 8
+     * @return the Bloom filter
+     */
+    static BloomFilter<String> create(String type, int size, int hashes) {
+        FilterBuilder fb = new FilterBuilder().size(size);
+        if (!type.equals("splitBlock")) {
+            fb.hashes(hashes);
+        }
+        switch (type) {
+            case "memory":
+                return fb.buildBloomFilter();
+            case "counting":
+                return fb.buildCountingBloomFilter();
+            case "concurrent":
+                return fb.concurrent(true).buildBloomFilter();
+            case "concurrentCounting":
+                return fb.concurrent(true).buildCountingBloomFilter();
+            case "blocked":
+                return fb.blocked(true).buildBloomFilter();
+            case "splitBlock":
+                return fb.splitBlock(true).buildBloomFilter();
+            case "expiring":
+                return new ExpiringBloomFilter<>(fb);
+            default:
+                throw new IllegalArgumentException("Unknown filter type " + type);
+        }
+    }
+
+    /**
+     * Generates random alphanumeric keys.
+     *
+     * @param count  the number of keys
+     * @param length the length of each key in characters (and bytes)
+     * @param seed   the seed of the random generator, different seeds give disjoint key sets with high probability
+     * @return the keys
+     */
+    static List<String> keys(int count, int length, long seed) {
+        String alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        Random r = new Random(seed);
+        List<String> keys = new ArrayList<>(count);
+        char[] chars = new char[length];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < length; j++) {
+                chars[j] = alphabet.charAt(r.nextInt(alphabet.length()));
+            }
+            keys.add(new String(chars));
+        }
+        return keys;
+    }
+
+    /**
+     * Adds random keys to the filter without keeping them in memory.
+     *
+     * @param filter the filter to fill
+     * @param count  the number of keys to add
+     * @param length the length of each key
+     * @param seed   the seed of the random generator
+     */
+    static void fill(BloomFilter<String> filter, int count, int length, long seed) {
+        for (int i = 0; i < count; i += KEYS) {
+            for (String key : keys(Math.min(KEYS, count - i), length, seed + i)) {
+                filter.add(key);
+            }
+        }
+    }
+
+    static byte[][] bytes(List<String> keys, BloomFilter<String> filter) {
+        byte[][] bytes = new byte[keys.size()][];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = filter.toBytes(keys.get(i));
+        }
+        return bytes;
+    }
+}
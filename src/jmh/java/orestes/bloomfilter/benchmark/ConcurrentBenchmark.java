@@ -0,0 +1,113 @@
+package orestes.bloomfilter.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.CountingBloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Multi-threaded benchmarks: readers and writers share one filter per group. Compare the synchronized filters (memory,
+ * counting) with the lock-free ones (concurrent, concurrentCounting) and vary the number of groups with
+ * <tt>-tg</tt> to see how they scale.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ConcurrentBenchmark {
+    @Param({"memory", "counting", "concurrent", "concurrentCounting"})
+    public String filter;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"7"})
+    public int hashes;
+
+    private BloomFilter<String> bf;
+    private byte[][] hits;
+    private byte[][] misses;
+
+    @Setup(Level.Trial)
+    public void createFilter() {
+        bf = BenchmarkFilters.create(filter, size, hashes);
+        hits = BenchmarkFilters.bytes(BenchmarkFilters.keys(BenchmarkFilters.KEYS, 16, 1), bf);
+        misses = BenchmarkFilters.bytes(BenchmarkFilters.keys(BenchmarkFilters.KEYS, 16, 2), bf);
+        int n = FilterBuilder.optimalN(bf.getHashes(), bf.getSize());
+        BenchmarkFilters.fill(bf, n - BenchmarkFilters.KEYS, 16, 1_000_000);
+        for (byte[] key : hits) {
+            bf.add(key);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void removeFilter() {
+        bf.remove();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(3)
+    public boolean readHeavyContains(Cursor cursor) {
+        return bf.contains(hits[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public boolean readHeavyAdd(Cursor cursor) {
+        return bf.add(misses[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public boolean writeHeavyContains(Cursor cursor) {
+        return bf.contains(hits[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(3)
+    public boolean writeHeavyAdd(Cursor cursor) {
+        return bf.add(misses[cursor.next()]);
+    }
+
+    /**
+     * Adds and removes the same key, for counting filters only. For the other filters this measures add twice.
+     */
+    @Benchmark
+    @Group("addRemove")
+    @GroupThreads(2)
+    public boolean addRemoveUpdate(Cursor cursor) {
+        byte[] key = misses[cursor.next()];
+        bf.add(key);
+        return bf instanceof CountingBloomFilter ? ((CountingBloomFilter<String>) bf).remove(key) : bf.add(key);
+    }
+
+    @Benchmark
+    @Group("addRemove")
+    @GroupThreads(2)
+    public boolean addRemoveContains(Cursor cursor) {
+        return bf.contains(hits[cursor.next()]);
+    }
+}
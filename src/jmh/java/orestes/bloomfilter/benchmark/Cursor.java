@@ -0,0 +1,16 @@
+package orestes.bloomfilter.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread position in the key arrays, so that threads of a benchmark do not share a contended counter.
+ */
+@State(Scope.Thread)
+public class Cursor {
+    private int next = (int) (Thread.currentThread().getId() * 7919);
+
+    int next() {
+        return next++ & (BenchmarkFilters.KEYS - 1);
+    }
+}
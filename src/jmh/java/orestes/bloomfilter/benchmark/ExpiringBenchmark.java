@@ -0,0 +1,76 @@
+package orestes.bloomfilter.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.cachesketch.ExpiringBloomFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the cache sketch operations of the {@link ExpiringBloomFilter}: reporting reads and writes and checking
+ * for stale entries. With a short TTL the background worker concurrently removes expired elements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpiringBenchmark {
+    @Param({"100000", "10000000"})
+    public int expectedElements;
+
+    @Param({"10", "100000"})
+    public long ttlMillis;
+
+    @Param({"16", "128"})
+    public int keyLength;
+
+    private ExpiringBloomFilter<String> bf;
+    private String[] keys;
+    private long ttl;
+
+    @Setup(Level.Trial)
+    public void createFilter() {
+        bf = new ExpiringBloomFilter<>(new FilterBuilder(expectedElements, 0.01));
+        List<String> list = BenchmarkFilters.keys(BenchmarkFilters.KEYS, keyLength, 1);
+        keys = list.toArray(new String[list.size()]);
+        ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    @TearDown(Level.Trial)
+    public void removeFilter() {
+        bf.remove();
+    }
+
+    @Benchmark
+    public void reportReadAndWrite(Cursor cursor) {
+        String key = keys[cursor.next()];
+        bf.reportRead(key, ttl);
+        bf.reportWrite(key);
+    }
+
+    @Benchmark
+    public boolean isCached(Cursor cursor) {
+        return bf.isCached(keys[cursor.next()]);
+    }
+
+    @Benchmark
+    public boolean contains(Cursor cursor) {
+        return bf.contains(keys[cursor.next()]);
+    }
+}
@@ -0,0 +1,99 @@
+package orestes.bloomfilter.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-threaded benchmarks of the element operations of all in-memory Bloom filters. The filter is filled to its
+ * optimal number of elements once per trial, so that the benchmarks see a realistic bit density. {@link #add(Cursor)}
+ * cycles through a fixed set of keys, which keeps the density stable over all iterations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+    @Param({"memory", "counting", "concurrent", "concurrentCounting", "blocked", "splitBlock", "expiring"})
+    public String filter;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"3", "7"})
+    public int hashes;
+
+    @Param({"16", "128"})
+    public int keyLength;
+
+    private BloomFilter<String> bf;
+    private List<String> batch;
+    private byte[][] hits;
+    private byte[][] misses;
+
+    @Setup(Level.Trial)
+    public void createFilter() {
+        bf = BenchmarkFilters.create(filter, size, hashes);
+        List<String> keys = BenchmarkFilters.keys(BenchmarkFilters.KEYS, keyLength, 1);
+        hits = BenchmarkFilters.bytes(keys, bf);
+        misses = BenchmarkFilters.bytes(BenchmarkFilters.keys(BenchmarkFilters.KEYS, keyLength, 2), bf);
+        batch = keys.subList(0, 100);
+
+        int n = FilterBuilder.optimalN(bf.getHashes(), bf.getSize());
+        BenchmarkFilters.fill(bf, n - BenchmarkFilters.KEYS, keyLength, 1_000_000);
+        for (byte[] key : hits) {
+            bf.add(key);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void removeFilter() {
+        bf.remove();
+    }
+
+    @Benchmark
+    public boolean add(Cursor cursor) {
+        return bf.add(misses[cursor.next()]);
+    }
+
+    @Benchmark
+    public boolean containsHit(Cursor cursor) {
+        return bf.contains(hits[cursor.next()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss(Cursor cursor) {
+        return bf.contains(misses[cursor.next()]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public List<Boolean> addAll() {
+        return bf.addAll(batch);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Double population() {
+        return bf.getEstimatedPopulation();
+    }
+}
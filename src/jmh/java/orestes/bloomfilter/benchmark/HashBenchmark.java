@@ -0,0 +1,77 @@
+package orestes.bloomfilter.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import orestes.bloomfilter.HashProvider.BufferedHashFunction;
+import orestes.bloomfilter.HashProvider.HashFunction;
+import orestes.bloomfilter.HashProvider.HashMethod;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks every {@link HashMethod}, both allocating a new array of positions per call and writing into a reused
+ * buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+    /**
+     * All hash methods, JMH enumerates the constants of the enum.
+     */
+    @Param
+    public HashMethod method;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"3", "7", "10"})
+    public int hashes;
+
+    @Param({"16", "128", "1024"})
+    public int keyLength;
+
+    private HashFunction hf;
+    private byte[][] keys;
+    private int[] positions;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        hf = method.getHashFunction();
+        keys = new byte[BenchmarkFilters.KEYS][];
+        int i = 0;
+        for (String key : BenchmarkFilters.keys(BenchmarkFilters.KEYS, keyLength, 1)) {
+            keys[i++] = key.getBytes("UTF-8");
+        }
+        positions = new int[hashes];
+    }
+
+    @Benchmark
+    public int[] hash(Cursor cursor) {
+        return hf.hash(keys[cursor.next()], size, hashes);
+    }
+
+    @Benchmark
+    public int[] hashBuffered(Cursor cursor) {
+        byte[] key = keys[cursor.next()];
+        if (hf instanceof BufferedHashFunction) {
+            ((BufferedHashFunction) hf).hash(key, size, hashes, positions);
+            return positions;
+        }
+        return hf.hash(key, size, hashes);
+    }
+}
@@ -0,0 +1,62 @@
+package orestes.bloomfilter.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the whole-filter operations union and intersection of the Bloom filters that support them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetOperationBenchmark {
+    @Param({"memory", "concurrent", "blocked", "splitBlock"})
+    public String filter;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"7"})
+    public int hashes;
+
+    private BloomFilter<String> bf;
+    private BloomFilter<String> other;
+
+    @Setup(Level.Trial)
+    public void createFilters() {
+        bf = BenchmarkFilters.create(filter, size, hashes);
+        other = BenchmarkFilters.create(filter, size, hashes);
+        int n = FilterBuilder.optimalN(bf.getHashes(), bf.getSize());
+        BenchmarkFilters.fill(bf, n / 2, 16, 1);
+        BenchmarkFilters.fill(other, n / 2, 16, 2);
+    }
+
+    @Benchmark
+    public boolean union() {
+        return bf.union(other);
+    }
+
+    @Benchmark
+    public boolean intersect() {
+        // Intersecting with a superset leaves the filter unchanged, so all invocations do the same work
+        return other.intersect(bf);
+    }
+}
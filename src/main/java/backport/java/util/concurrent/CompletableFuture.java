@@ -0,0 +1,268 @@
+package backport.java.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import backport.java.util.function.BiConsumer;
+import backport.java.util.function.BiFunction;
+import backport.java.util.function.Consumer;
+import backport.java.util.function.Function;
+
+/**
+ * A {@link Future} that may be explicitly completed and that triggers dependent actions upon its completion. This is
+ * a subset of the Java 8 class of the same name: dependent actions ({@link #thenApply(Function)}, {@link
+ * #thenAccept(Consumer)}, {@link #whenComplete(BiConsumer)}, {@link #handle(BiFunction)} and {@link
+ * #exceptionally(Function)}) are executed by the thread that completes the future, or by the calling thread if the
+ * future is already completed. There are no *Async variants, hence dependent actions should not block.
+ *
+ * @param <T> the result type
+ *
+ * @since 1.8
+ */
+public class CompletableFuture<T> implements Future<T> {
+    private T result;
+    private Throwable exception;
+    private boolean done = false;
+    private List<Runnable> dependents = new ArrayList<>();
+
+    /**
+     * Returns a new CompletableFuture that is already completed with the given value.
+     *
+     * @param value the value
+     * @param <U>   the type of the value
+     * @return the completed CompletableFuture
+     */
+    public static <U> CompletableFuture<U> completedFuture(U value) {
+        CompletableFuture<U> future = new CompletableFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * If not already completed, sets the value returned by {@link #get()} and related methods to the given value.
+     *
+     * @param value the result value
+     * @return {@code true} if this invocation caused this CompletableFuture to transition to a completed state
+     */
+    public boolean complete(T value) {
+        return finish(value, null);
+    }
+
+    /**
+     * If not already completed, causes invocations of {@link #get()} and related methods to throw the given
+     * exception.
+     *
+     * @param ex the exception
+     * @return {@code true} if this invocation caused this CompletableFuture to transition to a completed state
+     */
+    public boolean completeExceptionally(Throwable ex) {
+        if (ex == null) throw new NullPointerException();
+        return finish(null, ex);
+    }
+
+    private boolean finish(T value, Throwable ex) {
+        List<Runnable> actions;
+        synchronized (this) {
+            if (done) return false;
+            result = value;
+            exception = ex;
+            done = true;
+            actions = dependents;
+            dependents = null;
+            notifyAll();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+        return true;
+    }
+
+    private void onCompletion(Runnable action) {
+        synchronized (this) {
+            if (!done) {
+                dependents.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed with the result of the given function applied to the result
+     * of this CompletableFuture, or exceptionally if this CompletableFuture or the function fails.
+     *
+     * @param fn  the function to use to compute the value of the returned CompletableFuture
+     * @param <U> the function's return type
+     * @return the new CompletableFuture
+     */
+    public <U> CompletableFuture<U> thenApply(final Function<? super T, ? extends U> fn) {
+        final CompletableFuture<U> next = new CompletableFuture<>();
+        onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                if (exception != null) {
+                    next.completeExceptionally(exception);
+                    return;
+                }
+                try {
+                    next.complete(fn.apply(result));
+                } catch (Throwable t) {
+                    next.completeExceptionally(t);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed after the given action was performed with the result of this
+     * CompletableFuture, or exceptionally if this CompletableFuture or the action fails.
+     *
+     * @param action the action to perform before completing the returned CompletableFuture
+     * @return the new CompletableFuture
+     */
+    public CompletableFuture<Void> thenAccept(final Consumer<? super T> action) {
+        return thenApply(new Function<T, Void>() {
+            @Override
+            public Void apply(T t) {
+                action.accept(t);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed with the result of the given function applied to the result
+     * or the exception of this CompletableFuture.
+     *
+     * @param fn  the function to use to compute the value of the returned CompletableFuture
+     * @param <U> the function's return type
+     * @return the new CompletableFuture
+     */
+    public <U> CompletableFuture<U> handle(final BiFunction<? super T, Throwable, ? extends U> fn) {
+        final CompletableFuture<U> next = new CompletableFuture<>();
+        onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    next.complete(fn.apply(result, exception));
+                } catch (Throwable t) {
+                    next.completeExceptionally(t);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a new CompletableFuture with the same result or exception as this CompletableFuture, that executes the
+     * given action with the result (or {@code null} if none) and the exception (or {@code null} if none) of this
+     * CompletableFuture when it completes.
+     *
+     * @param action the action to perform
+     * @return the new CompletableFuture
+     */
+    public CompletableFuture<T> whenComplete(final BiConsumer<? super T, ? super Throwable> action) {
+        final CompletableFuture<T> next = new CompletableFuture<>();
+        onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    action.accept(result, exception);
+                } catch (Throwable t) {
+                    next.completeExceptionally(exception != null ? exception : t);
+                    return;
+                }
+                next.finish(result, exception);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed with the result of the given function applied to the exception
+     * of this CompletableFuture if it completes exceptionally, and with the result of this CompletableFuture otherwise.
+     *
+     * @param fn the function to use to compute the value of the returned CompletableFuture if this CompletableFuture
+     *           completed exceptionally
+     * @return the new CompletableFuture
+     */
+    public CompletableFuture<T> exceptionally(final Function<Throwable, ? extends T> fn) {
+        return handle(new BiFunction<T, Throwable, T>() {
+            @Override
+            public T apply(T t, Throwable ex) {
+                return ex == null ? t : fn.apply(ex);
+            }
+        });
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return completeExceptionally(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return exception instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return {@code true} if this CompletableFuture completed exceptionally
+     */
+    public synchronized boolean isCompletedExceptionally() {
+        return exception != null;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return report();
+    }
+
+    /**
+     * Returns the result value (or throws any encountered exception) if completed, else returns the given
+     * valueIfAbsent.
+     *
+     * @param valueIfAbsent the value to return if not completed
+     * @return the result value, if completed, else the given valueIfAbsent
+     * @throws CancellationException if this future was cancelled
+     * @throws CompletionException   if this future completed exceptionally
+     */
+    public synchronized T getNow(T valueIfAbsent) {
+        if (!done) return valueIfAbsent;
+        if (exception instanceof CancellationException) throw (CancellationException) exception;
+        if (exception instanceof CompletionException) throw (CompletionException) exception;
+        if (exception != null) throw new CompletionException(exception);
+        return result;
+    }
+
+    private T report() throws ExecutionException {
+        if (exception instanceof CancellationException) throw (CancellationException) exception;
+        if (exception != null) throw new ExecutionException(exception);
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+package backport.java.util.concurrent;
+
+/**
+ * Exception thrown when an error or other exception is encountered in the course of completing a result or task. This
+ * is the Java 8 class of the same name.
+ *
+ * @since 1.8
+ */
+public class CompletionException extends RuntimeException {
+    private static final long serialVersionUID = 7830266012832686185L;
+
+    /**
+     * Constructs a CompletionException with no detail message.
+     */
+    protected CompletionException() {
+    }
+
+    /**
+     * Constructs a CompletionException with the specified detail message.
+     *
+     * @param message the detail message
+     */
+    protected CompletionException(String message) {
+        super(message);
+    }
+
+    /**
+     * Constructs a CompletionException with the specified detail message and cause.
+     *
+     * @param message the detail message
+     * @param cause   the cause
+     */
+    public CompletionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Constructs a CompletionException with the specified cause.
+     *
+     * @param cause the cause
+     */
+    public CompletionException(Throwable cause) {
+        super(cause);
+    }
+}
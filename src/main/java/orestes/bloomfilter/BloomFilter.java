@@ -6,10 +6,14 @@ import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 
+import orestes.bloomfilter.HashProvider.BufferedHashFunction;
+import orestes.bloomfilter.HashProvider.HashFunction;
+
 /**
  * Represents a Bloom filter and provides default methods for hashing.
  */
 public abstract class BloomFilter<T> implements Cloneable, Serializable {
+    private transient volatile ThreadLocal<int[]> positionBuffer;
 
     /**
      * Adds the passed value to the filter.
@@ -118,7 +122,9 @@ public abstract class BloomFilter<T> implements Cloneable, Serializable {
     @Override
     public BloomFilter<T> clone() {
         try {
-            return (BloomFilter<T>) super.clone();
+            BloomFilter<T> clone = (BloomFilter<T>) super.clone();
+            clone.positionBuffer = null;
+            return clone;
         } catch (CloneNotSupportedException e) {
             throw new RuntimeException(e);
         }
@@ -200,6 +206,46 @@ public abstract class BloomFilter<T> implements Cloneable, Serializable {
         return config().hashFunction().hash(bytes, config().size(), config().hashes());
     }
 
+    /**
+     * Writes the k hash values for an input element in byte array form into the given buffer. If the configured hash
+     * function is a {@link BufferedHashFunction} no array is allocated.
+     *
+     * @param bytes     input element
+     * @param positions buffer of at least length k receiving the hash values
+     * @return the passed buffer
+     */
+    public int[] hash(byte[] bytes, int[] positions) {
+        HashFunction hf = config().hashFunction();
+        if (hf instanceof BufferedHashFunction) {
+            ((BufferedHashFunction) hf).hash(bytes, config().size(), config().hashes(), positions);
+        } else {
+            System.arraycopy(hf.hash(bytes, config().size(), config().hashes()), 0, positions, 0, config().hashes());
+        }
+        return positions;
+    }
+
+    /**
+     * Returns the k hash values for an input element in byte array form using a buffer owned by the calling thread.
+     * The returned array is overwritten by the next call of this method on this filter from the same thread, so it
+     * must be consumed before hashing the next element and must never be handed out.
+     *
+     * @param bytes input element
+     * @return hash values in a reused buffer of length k
+     */
+    protected int[] hashBuffered(byte[] bytes) {
+        ThreadLocal<int[]> buffer = positionBuffer;
+        if (buffer == null) {
+            buffer = new ThreadLocal<int[]>();
+            positionBuffer = buffer;
+        }
+        int[] positions = buffer.get();
+        if (positions == null || positions.length != config().hashes()) {
+            positions = new int[config().hashes()];
+            buffer.set(positions);
+        }
+        return hash(bytes, positions);
+    }
+
     /**
      * Dispatches the hash function for a string value
      * 
@@ -248,7 +294,7 @@ public abstract class BloomFilter<T> implements Cloneable, Serializable {
      * @return probability of a false positive after <i>expectedElements</i> {@link #add(byte[])} operations
      */
     public double getFalsePositiveProbability(double insertedElements) {
-        return FilterBuilder.optimalP(config().hashes(), config().size(), insertedElements);
+        return FilterBuilder.optimalP(config().hashes(), config().longSize(), insertedElements);
     }
 
     /**
@@ -268,7 +314,7 @@ public abstract class BloomFilter<T> implements Cloneable, Serializable {
      * @return The numbers of bits per element
      */
     public double getBitsPerElement(int n) {
-        return config().size() / (double) n;
+        return config().longSize() / (double) n;
     }
 
     /**
@@ -278,7 +324,7 @@ public abstract class BloomFilter<T> implements Cloneable, Serializable {
      * @return probability that a certain bit is zero after <i>expectedElements</i> {@link #add(byte[])} operations
      */
     public double getBitZeroProbability(int n) {
-        return Math.pow(1 - (double) 1 / config().size(), config().hashes() * n);
+        return Math.pow(1 - (double) 1 / config().longSize(), config().hashes() * n);
     }
 
     /**
@@ -292,8 +338,18 @@ public abstract class BloomFilter<T> implements Cloneable, Serializable {
     }
 
     public static Double population(BitSet bitSet, FilterBuilder config) {
-        int oneBits = bitSet.cardinality();
-        return -config.size() / ((double) config.hashes()) * Math.log(1 - oneBits / ((double) config.size()));
+        return population(bitSet.cardinality(), config);
+    }
+
+    /**
+     * Estimates the population of a Bloom filter from the number of bits that are set.
+     *
+     * @param oneBits the number of bits set to one
+     * @param config  the configuration of the Bloom filter
+     * @return the estimated amount of elements in the filter
+     */
+    public static Double population(long oneBits, FilterBuilder config) {
+        return -config.longSize() / ((double) config.hashes()) * Math.log(1 - oneBits / ((double) config.longSize()));
     }
 
     /**
@@ -304,7 +360,7 @@ public abstract class BloomFilter<T> implements Cloneable, Serializable {
     public String asString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Bloom Filter Parameters: ");
-        sb.append("size = " + config().size() + ", ");
+        sb.append("size = " + config().longSize() + ", ");
         sb.append("hashes = " + config().hashes() + ", ");
         sb.append("Bits: " + getBitSet().toString());
         return sb.toString();
@@ -66,6 +66,20 @@ public abstract class CountingBloomFilter<T> extends BloomFilter<T> {
      */
     public abstract long getEstimatedCount(T element);
 
+    /**
+     * Returns the estimated counts of the elements (see {@link #getEstimatedCount(Object)}).
+     *
+     * @param elements elements to query
+     * @return a list of the estimated counts in the order of the elements
+     */
+    public List<Long> getEstimatedCounts(Collection<T> elements) {
+        List<Long> counts = new ArrayList<>(elements.size());
+        for (T element : elements) {
+            counts.add(getEstimatedCount(element));
+        }
+        return counts;
+    }
+
     /**
      * Adds an element and returns its estimated frequency after the insertion (i.e. the number of times the element was
      * added to the filter).
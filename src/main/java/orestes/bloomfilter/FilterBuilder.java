@@ -2,16 +2,28 @@ package orestes.bloomfilter;
 
 import orestes.bloomfilter.HashProvider.HashFunction;
 import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.HashProvider.LongHashFunction;
+import orestes.bloomfilter.memory.BlockedBloomFilterMemory;
+import orestes.bloomfilter.memory.BloomFilterMapped;
 import orestes.bloomfilter.memory.BloomFilterMemory;
+import orestes.bloomfilter.memory.BloomFilterOffHeap;
+import orestes.bloomfilter.memory.ConcurrentBloomFilterMemory;
+import orestes.bloomfilter.memory.ConcurrentCountingBloomFilterMemory;
 import orestes.bloomfilter.memory.CountingBloomFilterMemory;
+import orestes.bloomfilter.memory.ScalableBloomFilter;
+import orestes.bloomfilter.memory.SplitBlockBloomFilterMemory;
 import orestes.bloomfilter.redis.BloomFilterRedis;
 import orestes.bloomfilter.redis.CountingBloomFilterRedis;
+import orestes.bloomfilter.redis.ShardedBloomFilterRedis;
 import orestes.bloomfilter.redis.helper.RedisPool;
 
+import java.io.File;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -20,21 +32,39 @@ import java.util.Set;
  */
 public class FilterBuilder implements Cloneable, Serializable {
     private boolean redisBacked = false;
+    private boolean concurrent = false;
+    private boolean blocked = false;
+    private boolean splitBlock = false;
+    private boolean offHeap = false;
+    private String mappedFile = null;
+    private boolean scalable = false;
+    private int scalableGrowth = 2;
+    private double scalableTightening = 0.8;
     private boolean overwriteIfExists = false;
-    private Integer expectedElements;
-    private Integer size;
+    private Long expectedElements;
+    private Long size;
     private Integer hashes;
     private Integer countingBits = 16;
     private Double falsePositiveProbability;
+    private Long compressedMaxSize = null;
     private String name = "";
     private RedisPool redisPool = null;
     private String redisHost = "localhost";
     private Integer redisPort = 6379;
     private Long redisExpireAt = null;
     private Integer redisConnections = 10;
-    private HashMethod hashMethod = HashMethod.MD5;
-    private HashFunction hashFunction = HashMethod.MD5.getHashFunction();
+    private boolean redisScripts = false;
+    private boolean redisPackedCounters = false;
+    private int redisShards = 1;
+    private Long redisNearCache = null;
+    private int redisAsyncConnections = 2;
+    private int redisBatchOps = 0;
+    private long redisBatchDelayMicros = 0;
+    private List<Entry<String, Integer>> shardNodes = new ArrayList<>();
+    private HashMethod hashMethod = HashMethod.Murmur3x64;
+    private HashFunction hashFunction = HashMethod.Murmur3x64.getHashFunction();
     private Set<Entry<String, Integer>> slaves = new HashSet<>();
+    private Double redisHedgedReads = null;
     private static transient Charset defaultCharset = Charset.forName("UTF-8");
     private boolean done = false;
 
@@ -52,7 +82,7 @@ public class FilterBuilder implements Cloneable, Serializable {
      * @param expectedElements         expected elements in the filter
      * @param falsePositiveProbability tolerable false positive probability
      */
-    public FilterBuilder(int expectedElements, double falsePositiveProbability) {
+    public FilterBuilder(long expectedElements, double falsePositiveProbability) {
         this.expectedElements(expectedElements).falsePositiveProbability(falsePositiveProbability);
     }
 
@@ -63,7 +93,7 @@ public class FilterBuilder implements Cloneable, Serializable {
      * @param size   bit size of the Bloom filter
      * @param hashes number of hash functions to use
      */
-    public FilterBuilder(int size, int hashes) {
+    public FilterBuilder(long size, int hashes) {
         this.size(size).hashes(hashes);
     }
 
@@ -74,18 +104,19 @@ public class FilterBuilder implements Cloneable, Serializable {
      * @param expectedElements number of expected elements.
      * @return the modified FilterBuilder (fluent interface)
      */
-    public FilterBuilder expectedElements(int expectedElements) {
+    public FilterBuilder expectedElements(long expectedElements) {
         this.expectedElements = expectedElements;
         return this;
     }
 
     /**
-     * Sets the size of the filter in bits.
+     * Sets the size of the filter in bits. Only off-heap Bloom filters (see {@link #offHeap(boolean)}) can have more
+     * than {@link Integer#MAX_VALUE} bits.
      *
      * @param size size of the filter in bits
      * @return the modified FilterBuilder (fluent interface)
      */
-    public FilterBuilder size(int size) {
+    public FilterBuilder size(long size) {
         this.size = size;
         return this;
     }
@@ -102,6 +133,22 @@ public class FilterBuilder implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Instructs the FilterBuilder to infer the size and number of hashes from the expected elements and the tolerable
+     * false positive probability so that the compressed filter (see {@link orestes.bloomfilter.binary.GolombRice})
+     * is as small as possible, as proposed by Mitzenmacher in "Compressed Bloom Filters". Fewer hashes and more bits
+     * than the optimum for the uncompressed filter yield a sparser filter with the same false positive probability,
+     * whose compressed size is smaller, at the cost of memory. The size is bounded by the given maximum. Specified
+     * sizes and hashes as well as blocked and split block Bloom filters are not affected.
+     *
+     * @param maxSize the maximum size of the filter in bits, at least the optimal size of the uncompressed filter
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder optimizeCompressedSize(long maxSize) {
+        this.compressedMaxSize = maxSize;
+        return this;
+    }
+
     /**
      * Set the number of hash functions to be used.
      *
@@ -149,6 +196,122 @@ public class FilterBuilder implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Instructs the FilterBuilder to build lock-free in-memory Bloom filters (see {@link ConcurrentBloomFilterMemory}),
+     * which scale with the number of reading and writing threads instead of serializing all operations on a single
+     * lock. Counting Bloom filters are built as {@link ConcurrentCountingBloomFilterMemory}. Has no effect for
+     * Redis-backed Bloom filters. <p><b>Default</b>: <tt>false</tt></p>
+     *
+     * @param concurrent a boolean indicating whether the lock-free in-memory implementation should be used
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder concurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+        return this;
+    }
+
+    /**
+     * Instructs the FilterBuilder to build blocked in-memory Bloom filters (see {@link BlockedBloomFilterMemory}), which
+     * place all bits of an element in one cache line. The size is rounded up to a multiple of the block size and, if
+     * it is inferred from the expected elements, chosen so that the tolerable false positive probability holds despite
+     * the blocking. Blocked Bloom filters are neither available as Redis-backed, lock-free nor as counting Bloom
+     * filters. <p><b>Default</b>: <tt>false</tt></p>
+     *
+     * @param blocked a boolean indicating whether a blocked Bloom filter should be used
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder blocked(boolean blocked) {
+        this.blocked = blocked;
+        return this;
+    }
+
+    /**
+     * Instructs the FilterBuilder to build split block in-memory Bloom filters (see {@link
+     * SplitBlockBloomFilterMemory}), the layout used by Apache Parquet. The number of hashes is fixed to {@link
+     * SplitBlockBloomFilterMemory#WORDS_PER_BLOCK} and the hash method to {@link HashMethod#XXHash64}, the size is
+     * rounded up to a multiple of the block size and, if it is inferred from the expected elements, chosen so that the
+     * tolerable false positive probability holds. Split block Bloom filters are neither available as Redis-backed,
+     * lock-free nor as counting Bloom filters. <p><b>Default</b>: <tt>false</tt></p>
+     *
+     * @param splitBlock a boolean indicating whether a split block Bloom filter should be used
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder splitBlock(boolean splitBlock) {
+        this.splitBlock = splitBlock;
+        return this;
+    }
+
+    /**
+     * Instructs the FilterBuilder to build Bloom filters stored outside of the Java heap (see {@link
+     * BloomFilterOffHeap}). Their bits are addressed by long indexes, so they can exceed {@link Integer#MAX_VALUE} bits,
+     * and they do not burden the garbage collector. They need a hash function producing long positions (see {@link
+     * LongHashFunction}), i.e. {@link HashMethod#Murmur3x64} or {@link HashMethod#XXHash64}. Off-heap Bloom filters
+     * are neither available as Redis-backed, lock-free, blocked nor as counting Bloom filters. <p><b>Default</b>:
+     * <tt>false</tt></p>
+     *
+     * @param offHeap a boolean indicating whether the bits should be stored off-heap
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder offHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    /**
+     * Instructs the FilterBuilder to build persistent Bloom filters whose bits are memory-mapped from the given file
+     * (see {@link BloomFilterMapped}). If the file exists, the filter stored in it is opened without reading its bits:
+     * its size, hashes and hash method have to match the configuration, and the size and hashes are taken from the
+     * file if neither they nor the expected elements are specified. Otherwise the file is created. Like off-heap Bloom
+     * filters, mapped Bloom filters need a hash function producing long positions and are neither available as
+     * Redis-backed, lock-free, blocked nor as counting Bloom filters. <p><b>Default</b>: <tt>null</tt></p>
+     *
+     * @param mappedFile the path of the file or {@code null} to not map the filter from a file
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder mappedFile(String mappedFile) {
+        this.mappedFile = mappedFile;
+        return this;
+    }
+
+    /**
+     * Instructs the FilterBuilder to build scalable Bloom filters (see {@link ScalableBloomFilter}) with a growth factor
+     * of 2 and a tightening ratio of 0.8, which keep the false positive probability below the configured one
+     * regardless of how many more elements than expected are inserted. <p><b>Default</b>: <tt>false</tt></p>
+     *
+     * @param scalable a boolean indicating whether the Bloom filter should grow with its elements
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder scalable(boolean scalable) {
+        this.scalable = scalable;
+        return this;
+    }
+
+    /**
+     * Instructs the FilterBuilder to build scalable Bloom filters (see {@link ScalableBloomFilter}). The stages of the
+     * filter are regular Bloom filters built from this configuration: the capacity of stage <i>i</i> is
+     * <i>expectedElements * growth^i</i> and its false positive probability <i>falsePositiveProbability * (1 -
+     * tightening) * tightening^i</i>, so that the compound false positive probability of all stages stays below
+     * <i>falsePositiveProbability</i>. A growth of 2 suits slowly growing sets, 4 reaches large sets with fewer stages
+     * at the cost of more space; a tightening ratio between 0.8 and 0.9 keeps the stages small. Scalable Bloom filters
+     * can be stored on the heap, off-heap, blocked or split block, but are neither available as Redis-backed, mapped
+     * nor as counting Bloom filters.
+     *
+     * @param growth     the factor by which the capacity of every stage exceeds the capacity of the previous one
+     * @param tightening the factor by which the false positive probability of every stage is lower than the one of the
+     *                   previous stage, between 0 and 1
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder scalable(int growth, double tightening) {
+        if (growth < 1)
+            throw new IllegalArgumentException("The growth factor has to be at least 1.");
+        if (!(tightening > 0 && tightening < 1))
+            throw new IllegalArgumentException("The tightening ratio has to be between 0 and 1.");
+        this.scalable = true;
+        this.scalableGrowth = growth;
+        this.scalableTightening = tightening;
+        return this;
+    }
+
     /**
      * Sets the RedisPool object so that one may create only one for multiple bloom filters
      *
@@ -213,6 +376,132 @@ public class FilterBuilder implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Instructs Redis-backed Bloom filters to execute add and contains as Lua scripts on the Redis server (see {@link
+     * BloomFilterRedis}). Each operation, and each bulk operation on a collection, is then a single EVALSHA command
+     * with one integer reply per element, which reduces the commands and bytes Redis has to process. This pays off
+     * most for the bulk operations {@link BloomFilter#addAll(java.util.Collection)} and {@link
+     * BloomFilter#contains(java.util.Collection)}; for single elements the fixed cost of a script invocation in Redis
+     * can outweigh the savings. Requires Redis 2.6 or later. <p><b>Default</b>: <tt>false</tt></p>
+     *
+     * @param redisScripts a boolean indicating whether server-side scripts should be used
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder redisScripts(boolean redisScripts) {
+        this.redisBacked = true;
+        this.redisScripts = redisScripts;
+        return this;
+    }
+
+    /**
+     * Instructs Redis-backed Counting Bloom filters to pack their counters into a single Redis string as unsigned
+     * integers of {@link #countingBits()} bits (see {@link CountingBloomFilterRedis}) instead of storing one hash field
+     * per counter. This reduces the memory Redis needs for the counters by an order of magnitude. Counters saturate at
+     * their maximum value. The layout is recorded in Redis, so existing filters are always loaded with the layout they
+     * were created with. Requires Redis 3.2 or later and at most 63 counting bits. <p><b>Default</b>:
+     * <tt>false</tt></p>
+     *
+     * @param redisPackedCounters a boolean indicating whether packed counters should be used
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder redisPackedCounters(boolean redisPackedCounters) {
+        this.redisBacked = true;
+        this.redisPackedCounters = redisPackedCounters;
+        return this;
+    }
+
+    /**
+     * Splits the bit vector of a Redis-backed Bloom filter into the given number of segments, each stored in its own
+     * Redis key (see {@link ShardedBloomFilterRedis}). Segments are distributed over the main Redis instance and the
+     * nodes added through {@link #addRedisShardNode(String, int)}. The number of segments is recorded in Redis, so
+     * existing filters are always loaded with the number of segments they were created with. <p><b>Default</b>: 1</p>
+     *
+     * @param shards the number of segments
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder redisShards(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("The number of segments has to be positive.");
+        this.redisBacked = true;
+        this.redisShards = shards;
+        return this;
+    }
+
+    /**
+     * Adds a Redis instance that stores segments of a sharded Redis-backed Bloom filter (see {@link
+     * #redisShards(int)}). Segments are assigned round-robin to the main Redis instance and the shard nodes in the
+     * order they were added, so all clients of a filter have to add the same nodes in the same order.
+     *
+     * @param host host of the Redis instance
+     * @param port port of the Redis instance
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder addRedisShardNode(String host, int port) {
+        this.redisBacked = true;
+        shardNodes.add(new SimpleEntry<>(host, port));
+        return this;
+    }
+
+    /**
+     * Instructs Redis-backed Bloom filters to keep a local copy of their bit array, which answers contains queries
+     * without a round trip to Redis (see {@link orestes.bloomfilter.redis.RedisNearCache}). Adds are applied to the
+     * local copy and published to the near caches of other clients through Redis pub/sub. The copy is additionally
+     * reloaded in the given interval, which bounds its staleness, e.g. for changes of clients without a near cache or
+     * changes published while a near cache was disconnected. Only available for regular, non-sharded Redis-backed
+     * Bloom filters. <p><b>Default</b>: no near cache</p>
+     *
+     * @param refreshMillis the interval in milliseconds in which the local copy is reloaded or 0 to rely on published
+     *                      changes only
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder redisNearCache(long refreshMillis) {
+        if (refreshMillis < 0)
+            throw new IllegalArgumentException("The refresh interval must not be negative.");
+        this.redisBacked = true;
+        this.redisNearCache = refreshMillis;
+        return this;
+    }
+
+    /**
+     * Sets the number of connections used by the asynchronous operations of Redis-backed Bloom filters (e.g. {@link
+     * BloomFilterRedis#containsAsync(Object)}). All operations in flight are multiplexed onto these connections (see
+     * {@link orestes.bloomfilter.redis.helper.RedisDispatcher}), which are taken from the connections set by {@link
+     * #redisConnections(int)}. <p><b>Default</b>: 2</p>
+     *
+     * @param numConnections the number of connections to use for asynchronous operations
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder redisAsyncConnections(int numConnections) {
+        if (numConnections < 1)
+            throw new IllegalArgumentException("At least one connection is required.");
+        this.redisBacked = true;
+        this.redisAsyncConnections = numConnections;
+        return this;
+    }
+
+    /**
+     * Instructs Redis-backed Bloom filters to coalesce the single-element adds and contains queries of concurrent
+     * threads into shared transactions (see {@link orestes.bloomfilter.redis.RedisBatcher}). A batch is sent once it
+     * holds the given number of operations or the given delay has passed since its first operation, whichever comes
+     * first. Every caller still blocks until its own result is available. Only available for regular, non-sharded
+     * Redis-backed Bloom filters. <p><b>Default</b>: no batching</p>
+     *
+     * @param maxOps         the maximum number of operations in one batch
+     * @param maxDelayMicros the maximum time in microseconds an operation waits for further operations to join its
+     *                       batch
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder redisBatching(int maxOps, long maxDelayMicros) {
+        if (maxOps < 1)
+            throw new IllegalArgumentException("A batch must hold at least one operation.");
+        if (maxDelayMicros < 0)
+            throw new IllegalArgumentException("The batch delay must not be negative.");
+        this.redisBacked = true;
+        this.redisBatchOps = maxOps;
+        this.redisBatchDelayMicros = maxDelayMicros;
+        return this;
+    }
+
     /**
      * Sets whether any existing Bloom filter with same name should be overwritten in Redis. <p><b>Default</b>:
      * <tt>false</tt></p>
@@ -241,12 +530,35 @@ public class FilterBuilder implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Enables hedged reads across the read slaves (see {@link #addReadSlave(String, int)}). Reads are always sent to
+     * the replica with the lowest expected latency; if it has not answered after the given percentile of its recent
+     * latencies, the read is also sent to the next best replica (or the master) and the first answer is used. This
+     * bounds the tail latency caused by a single slow replica at the cost of a few duplicate reads. The latencies are
+     * available through {@link orestes.bloomfilter.redis.helper.RedisPool#getReplicaStats()}. <p><b>Default</b>: no
+     * hedging</p>
+     *
+     * @param percentile the percentile of the recent latencies after which a read is hedged, e.g. 0.95
+     * @return the modified FilterBuilder (fluent interface)
+     */
+    public FilterBuilder redisHedgedReads(double percentile) {
+        if (percentile <= 0 || percentile > 1)
+            throw new IllegalArgumentException("The percentile must be in (0, 1].");
+        this.redisBacked = true;
+        this.redisHedgedReads = percentile;
+        return this;
+    }
+
 
     /**
      * Sets the method used to generate hash values. Possible hash methods are documented in the corresponding enum
-     * {@link HashProvider.HashMethod}. <p><b>Default</b>: MD5</p>
+     * {@link HashProvider.HashMethod}. <p><b>Default</b>: Murmur3x64</p>
      * <p>
      * For the generation of hash values the String representation of objects is used.
+     * <p>
+     * Filters that were persisted in Redis or converted to JSON keep the hash method they were created with: loading
+     * them always uses the recorded method, which is {@link HashMethod#MD5} for filters created before the default
+     * was changed.
      *
      * @param hashMethod the method used to generate hash values
      * @return the modified FilterBuilder (fluent interface)
@@ -277,8 +589,34 @@ public class FilterBuilder implements Cloneable, Serializable {
      */
     public <T> BloomFilter<T> buildBloomFilter() {
         complete();
-        if (redisBacked) {
+        if (scalable) {
+            if (redisBacked || mappedFile != null)
+                throw new UnsupportedOperationException("Scalable Bloom filters cannot be Redis-backed or mapped.");
+            return new ScalableBloomFilter<T>(this);
+        } else if (offHeap || mappedFile != null) {
+            if (redisBacked || concurrent || blocked || splitBlock)
+                throw new UnsupportedOperationException("Off-heap Bloom filters are only available as regular Bloom filters.");
+            if (mappedFile != null)
+                return new BloomFilterMapped<T>(this);
+            return new BloomFilterOffHeap<T>(this);
+        } else if (splitBlock) {
+            if (redisBacked || concurrent || blocked)
+                throw new UnsupportedOperationException("Split block Bloom filters are only available as regular in-memory filters.");
+            return new SplitBlockBloomFilterMemory<T>(this);
+        } else if (blocked) {
+            if (redisBacked || concurrent)
+                throw new UnsupportedOperationException("Blocked Bloom filters are only available as regular in-memory filters.");
+            return new BlockedBloomFilterMemory<T>(this);
+        } else if (redisBacked && (redisShards > 1 || !shardNodes.isEmpty())) {
+            if (redisNearCache != null)
+                throw new UnsupportedOperationException("Sharded Redis Bloom filters cannot have a near cache.");
+            if (redisBatchOps > 0)
+                throw new UnsupportedOperationException("Sharded Redis Bloom filters cannot batch operations.");
+            return new ShardedBloomFilterRedis<T>(this);
+        } else if (redisBacked) {
             return new BloomFilterRedis<T>(this);
+        } else if (concurrent) {
+            return new ConcurrentBloomFilterMemory<T>(this);
         } else {
             return new BloomFilterMemory<T>(this);
         }
@@ -293,8 +631,18 @@ public class FilterBuilder implements Cloneable, Serializable {
      */
     public <T> CountingBloomFilter<T> buildCountingBloomFilter() {
         complete();
+        if (blocked || splitBlock || offHeap || mappedFile != null || scalable)
+            throw new UnsupportedOperationException("Blocked, split block, off-heap, mapped and scalable Bloom filters cannot be counting.");
+        if (redisShards > 1 || !shardNodes.isEmpty())
+            throw new UnsupportedOperationException("Sharded Redis Bloom filters cannot be counting.");
+        if (redisNearCache != null)
+            throw new UnsupportedOperationException("Counting Redis Bloom filters cannot have a near cache.");
+        if (redisBatchOps > 0)
+            throw new UnsupportedOperationException("Counting Redis Bloom filters cannot batch operations.");
         if (redisBacked) {
             return new CountingBloomFilterRedis<T>(this);
+        } else if (concurrent) {
+            return new ConcurrentCountingBloomFilterMemory<T>(this);
         } else {
             return new CountingBloomFilterMemory<T>(this);
         }
@@ -307,16 +655,46 @@ public class FilterBuilder implements Cloneable, Serializable {
     public FilterBuilder complete() {
         if (done)
             return this;
+        if (mappedFile != null && size == null && expectedElements == null) {
+            FilterBuilder stored = BloomFilterMapped.readHeader(new File(mappedFile));
+            if (stored != null) {
+                size = stored.longSize();
+                hashes = stored.hashes();
+            }
+        }
+        if (splitBlock) {
+            int words = SplitBlockBloomFilterMemory.WORDS_PER_BLOCK;
+            if (hashes != null && hashes != words)
+                throw new IllegalArgumentException("Split block Bloom filters always use " + words + " hashes.");
+            hashes = words;
+            hashFunction(HashMethod.XXHash64);
+            if (size == null && expectedElements != null && falsePositiveProbability != null)
+                size = (long) optimalMSplitBlock(expectedElements, falsePositiveProbability);
+            if (size != null)
+                size = roundToBlocks(size, SplitBlockBloomFilterMemory.BLOCK_BITS);
+        }
+        if (compressedMaxSize != null && size == null && hashes == null && expectedElements != null
+                && falsePositiveProbability != null && !blocked && !splitBlock) {
+            long[] sizeAndHashes = optimalCompressedMK(expectedElements, falsePositiveProbability, compressedMaxSize);
+            size = sizeAndHashes[0];
+            hashes = (int) sizeAndHashes[1];
+        }
         if (size == null && expectedElements != null && falsePositiveProbability != null)
-            size = optimalM(expectedElements, falsePositiveProbability);
+            size = blocked ? optimalMBlocked(expectedElements, falsePositiveProbability)
+                    : optimalLongM(expectedElements, falsePositiveProbability);
+        if (blocked && size != null)
+            size = roundToBlocks(size, BlockedBloomFilterMemory.BLOCK_BITS);
         if (hashes == null && expectedElements != null && size != null)
             hashes = optimalK(expectedElements, size);
         if (size == null || hashes == null)
             throw new NullPointerException("Neither (expectedElements, falsePositiveProbability) nor (size, hashes) were specified.");
         if (expectedElements == null)
-            expectedElements = optimalN(hashes, size);
+            expectedElements = optimalLongN(hashes, size);
+        if (falsePositiveProbability == null && splitBlock)
+            falsePositiveProbability = optimalPSplitBlock(size, expectedElements);
         if (falsePositiveProbability == null)
-            falsePositiveProbability = optimalP(hashes, size, expectedElements);
+            falsePositiveProbability = blocked ? optimalPBlocked(hashes, size, expectedElements)
+                    : optimalP(hashes, size, expectedElements);
 
         done = true;
         return this;
@@ -334,6 +712,29 @@ public class FilterBuilder implements Cloneable, Serializable {
         return (FilterBuilder) clone;
     }
 
+    /**
+     * Derives the configuration of a stage of a scalable Bloom filter from this configuration (see {@link
+     * #scalable(int, double)}). The size and hashes of the stage are inferred from its capacity and false positive
+     * probability.
+     *
+     * @param stage the index of the stage, starting at 0
+     * @return the completed configuration of the stage
+     */
+    public FilterBuilder scalableStage(int stage) {
+        complete();
+        FilterBuilder config = clone();
+        config.scalable = false;
+        config.size = null;
+        config.hashes = null;
+        config.compressedMaxSize = null;
+        config.done = false;
+        config.expectedElements = (long) Math.min(Long.MAX_VALUE / 2,
+                Math.ceil(expectedElements * Math.pow(scalableGrowth, stage)));
+        config.falsePositiveProbability = falsePositiveProbability * (1 - scalableTightening)
+                * Math.pow(scalableTightening, stage);
+        return config.complete();
+    }
+
 
     /**
      * @return {@code true} if the Bloom Filter will be Redis-backed
@@ -342,20 +743,101 @@ public class FilterBuilder implements Cloneable, Serializable {
         return redisBacked;
     }
 
+    /**
+     * @return {@code true} if the in-memory Bloom filter will be lock-free
+     */
+    public boolean concurrent() {
+        return concurrent;
+    }
+
+    /**
+     * @return {@code true} if the in-memory Bloom filter will be blocked
+     */
+    public boolean blocked() {
+        return blocked;
+    }
+
+    /**
+     * @return {@code true} if the in-memory Bloom filter will be a split block Bloom filter
+     */
+    public boolean splitBlock() {
+        return splitBlock;
+    }
+
+    /**
+     * @return {@code true} if the Bloom filter will be stored off-heap
+     */
+    public boolean offHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return {@code true} if the Bloom filter will be scalable
+     */
+    public boolean scalable() {
+        return scalable;
+    }
+
+    /**
+     * @return the factor by which the capacity of the stages of a scalable Bloom filter grows
+     */
+    public int scalableGrowth() {
+        return scalableGrowth;
+    }
+
+    /**
+     * @return the factor by which the false positive probability of the stages of a scalable Bloom filter decreases
+     */
+    public double scalableTightening() {
+        return scalableTightening;
+    }
+
+    /**
+     * @return the file the bits of the Bloom filter are mapped from or {@code null}
+     */
+    public String mappedFile() {
+        return mappedFile;
+    }
+
     /**
      * @return the number of expected elements for the Bloom filter
+     * @throws UnsupportedOperationException if the number exceeds {@link Integer#MAX_VALUE} (see {@link
+     *                                       #longExpectedElements()})
      */
     public int expectedElements() {
+        return toInt(expectedElements, "expected elements");
+    }
+
+    /**
+     * @return the number of expected elements for the Bloom filter
+     */
+    public long longExpectedElements() {
         return expectedElements;
     }
 
     /**
      * @return the size of the Bloom filter in bits
+     * @throws UnsupportedOperationException if the size exceeds {@link Integer#MAX_VALUE} bits, which only off-heap
+     *                                       Bloom filters support (see {@link #longSize()})
      */
     public int size() {
+        return toInt(size, "size");
+    }
+
+    /**
+     * @return the size of the Bloom filter in bits
+     */
+    public long longSize() {
         return size;
     }
 
+    private static int toInt(long value, String parameter) {
+        if (value > Integer.MAX_VALUE)
+            throw new UnsupportedOperationException("The " + parameter + " of " + value
+                    + " exceeds the int range, use the long accessor or an off-heap Bloom filter.");
+        return (int) value;
+    }
+
     /**
      * @return the number of hashes used by the Bloom filter
      */
@@ -419,6 +901,72 @@ public class FilterBuilder implements Cloneable, Serializable {
         return redisConnections;
     }
 
+    /**
+     * @return {@code true} if Redis-backed Bloom filters execute their operations as server-side Lua scripts
+     */
+    public boolean redisScripts() {
+        return redisScripts;
+    }
+
+    /**
+     * @return {@code true} if Redis-backed Counting Bloom filters pack their counters into a single string
+     */
+    public boolean redisPackedCounters() {
+        return redisPackedCounters;
+    }
+
+    /**
+     * @return the refresh interval in milliseconds of the near cache of a Redis-backed Bloom filter or {@code null} if
+     * it has no near cache
+     */
+    public Long redisNearCache() {
+        return redisNearCache;
+    }
+
+    /**
+     * @return the maximum size in bits of a filter optimized for its compressed size or {@code null} if the size is not
+     * optimized for compression (see {@link #optimizeCompressedSize(long)})
+     */
+    public Long compressedMaxSize() {
+        return compressedMaxSize;
+    }
+
+    /**
+     * @return the number of connections used by the asynchronous operations of Redis-backed Bloom filters
+     */
+    public int redisAsyncConnections() {
+        return redisAsyncConnections;
+    }
+
+    /**
+     * @return the maximum number of operations in one batch of a Redis-backed Bloom filter or 0 if it does not batch
+     * operations
+     */
+    public int redisBatchOps() {
+        return redisBatchOps;
+    }
+
+    /**
+     * @return the maximum time in microseconds an operation of a Redis-backed Bloom filter waits for its batch
+     */
+    public long redisBatchDelayMicros() {
+        return redisBatchDelayMicros;
+    }
+
+    /**
+     * @return the number of segments of a sharded Redis-backed Bloom filter
+     */
+    public int redisShards() {
+        return redisShards;
+    }
+
+    /**
+     * @return the Redis instances storing segments of a sharded Redis-backed Bloom filter besides the main instance
+     */
+    public List<Entry<String, Integer>> getRedisShardNodes() {
+        return shardNodes;
+    }
+
     /**
      * @return The hash method to be used by the Bloom filter
      */
@@ -454,6 +1002,14 @@ public class FilterBuilder implements Cloneable, Serializable {
         return slaves;
     }
 
+    /**
+     * @return the percentile of the recent latencies of a replica after which reads are hedged or {@code null} if
+     * reads are not hedged
+     */
+    public Double redisHedgedReads() {
+        return redisHedgedReads;
+    }
+
     /**
      * Checks wether a configuration is compatible to another configuration based on the size of the Bloom filter and
      * its hash functions.
@@ -462,8 +1018,9 @@ public class FilterBuilder implements Cloneable, Serializable {
      * @return {@code true} if the configurations are compatible
      */
     public boolean isCompatibleTo(FilterBuilder other) {
-        return this.size() == other.size() && this.hashes() == other.hashes()
-                && this.hashMethod() == other.hashMethod();
+        return this.longSize() == other.longSize() && this.hashes() == other.hashes()
+                && this.hashMethod() == other.hashMethod() && this.blocked() == other.blocked()
+                && this.splitBlock() == other.splitBlock();
     }
 
     /**
@@ -478,6 +1035,18 @@ public class FilterBuilder implements Cloneable, Serializable {
         return (int) Math.ceil(-1 * (n * Math.log(p)) / Math.pow(Math.log(2), 2));
     }
 
+    /**
+     * Calculates the optimal size like {@link #optimalM(long, double)} for Bloom filters of more than {@link
+     * Integer#MAX_VALUE} bits.
+     *
+     * @param n Expected number of elements inserted in the bloom filter
+     * @param p Tolerable false positive rate
+     * @return the optimal size <i>size</i> of the bloom filter in bits
+     */
+    public static long optimalLongM(long n, double p) {
+        return (long) Math.ceil(-1 * (n * Math.log(p)) / Math.pow(Math.log(2), 2));
+    }
+
     /**
      * Calculates the optimal <i>hashes</i> (number of hash function) given <i>expectedElements</i> (expected number of
      * elements in bloom filter) and <i>size</i> (size of bloom filter in bits).
@@ -502,6 +1071,18 @@ public class FilterBuilder implements Cloneable, Serializable {
         return (int) Math.ceil((Math.log(2) * m) / k);
     }
 
+    /**
+     * Calculates the amount of elements like {@link #optimalN(long, long)} for Bloom filters of more than {@link
+     * Integer#MAX_VALUE} bits.
+     *
+     * @param k number of hashes
+     * @param m The size of the bloom filter in bits.
+     * @return amount of elements a Bloom filter for which the given configuration of size and hashes is optimal.
+     */
+    public static long optimalLongN(long k, long m) {
+        return (long) Math.ceil((Math.log(2) * m) / k);
+    }
+
     /**
      * Calculates the best-case (uniform hash function) false positive probability.
      *
@@ -514,5 +1095,145 @@ public class FilterBuilder implements Cloneable, Serializable {
         return Math.pow((1 - Math.exp(-k * insertedElements / (double) m)), k);
     }
 
+    /**
+     * Estimates the size of a compressed Bloom filter in bits by the entropy of its bits: after inserting
+     * <i>insertedElements</i> each of the <i>m</i> bits is set with probability <i>q = 1 - e^(-k * n / m)</i>, so the
+     * bits cannot be compressed to less than <i>m * H(q)</i> bits, where <i>H</i> is the binary entropy.
+     *
+     * @param k                number of hashes
+     * @param m                The size of the bloom filter in bits.
+     * @param insertedElements number of elements inserted in the filter
+     * @return the estimated compressed size in bits
+     */
+    public static double optimalCompressedBits(long k, long m, double insertedElements) {
+        double q = -Math.expm1(-k * insertedElements / m);
+        if (q <= 0 || q >= 1)
+            return 0;
+        return m * -(q * Math.log(q) + (1 - q) * Math.log1p(-q)) / Math.log(2);
+    }
+
+    /**
+     * Calculates the size and number of hashes for which a Bloom filter holding <i>n</i> elements with false positive
+     * probability <i>p</i> has the smallest compressed size (see {@link #optimalCompressedBits(long, long, double)}).
+     * For every number of hashes up to the optimum of the uncompressed filter, the size reaching <i>p</i> exactly is
+     * <i>-k * n / ln(1 - p^(1/k))</i>; the smaller the number of hashes, the larger and sparser is the filter.
+     *
+     * @param n       Expected number of elements inserted in the bloom filter
+     * @param p       Tolerable false positive rate
+     * @param maxSize the maximum size of the filter in bits
+     * @return the size in bits and the number of hashes
+     * @throws IllegalArgumentException if even the optimal size of the uncompressed filter exceeds maxSize
+     */
+    public static long[] optimalCompressedMK(long n, double p, long maxSize) {
+        long bestM = optimalLongM(n, p);
+        long bestK = optimalK(n, bestM);
+        if (bestM > maxSize)
+            throw new IllegalArgumentException("A Bloom filter of at most " + maxSize + " bits cannot hold " + n
+                    + " elements with a false positive probability of " + p + ".");
+        double bestBits = optimalCompressedBits(bestK, bestM, n);
+        for (long k = 1; k < bestK; k++) {
+            long m = (long) Math.ceil(-k * n / Math.log1p(-Math.pow(p, 1.0 / k)));
+            if (m > maxSize)
+                continue;
+            double bits = optimalCompressedBits(k, m, n);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestM = m;
+                bestK = k;
+            }
+        }
+        return new long[]{bestM, bestK};
+    }
+
+    /**
+     * Calculates the false positive probability of a blocked Bloom filter (see {@link BlockedBloomFilterMemory}). The
+     * number of elements per block is Poisson distributed with mean <i>insertedElements * B / m</i>, so the probability
+     * is the average of the false positive probabilities of single blocks weighted by their load.
+     *
+     * @param k                number of hashes
+     * @param m                The size of the bloom filter in bits.
+     * @param insertedElements number of elements inserted in the filter
+     * @return the false positive probability of the blocked Bloom filter
+     */
+    public static double optimalPBlocked(long k, long m, double insertedElements) {
+        int b = BlockedBloomFilterMemory.BLOCK_BITS;
+        double lambda = insertedElements * b / m;
+        // Sum the Poisson terms in log space, so that large loads do not underflow
+        double logPoisson = -lambda;
+        double p = 0;
+        int maxLoad = (int) Math.ceil(lambda + 20 * Math.sqrt(lambda) + 20);
+        for (int load = 0; load <= maxLoad; load++) {
+            if (load > 0) logPoisson += Math.log(lambda) - Math.log(load);
+            p += Math.exp(logPoisson) * Math.pow(1 - Math.pow(1 - 1.0 / b, k * load), k);
+        }
+        return p;
+    }
+
+    /**
+     * Calculates the size of a blocked Bloom filter in bits, so that its false positive probability does not exceed
+     * <i>p</i> when using the optimal number of hashes for that size (see {@link #optimalK(long, long)}).
+     *
+     * @param n Expected number of elements inserted in the bloom filter
+     * @param p Tolerable false positive rate
+     * @return the size of the blocked Bloom filter in bits, a multiple of the block size
+     */
+    public static int optimalMBlocked(long n, double p) {
+        int b = BlockedBloomFilterMemory.BLOCK_BITS;
+        int m = roundToBlocks(optimalM(n, p), b);
+        while (optimalPBlocked(optimalK(n, m), m, n) > p) {
+            m = roundToBlocks(m + Math.max(b, m / 50), b);
+        }
+        return m;
+    }
+
+    /**
+     * Calculates the false positive probability of a split block Bloom filter (see {@link
+     * SplitBlockBloomFilterMemory}). Each element sets one bit in each of the eight 32 bit words of its block, so a
+     * block holding <i>l</i> elements yields a false positive with probability <i>(1 - (1 - 1/32)^l)^8</i>. As for
+     * blocked Bloom filters the load of a block is Poisson distributed.
+     *
+     * @param m                The size of the bloom filter in bits.
+     * @param insertedElements number of elements inserted in the filter
+     * @return the false positive probability of the split block Bloom filter
+     */
+    public static double optimalPSplitBlock(long m, double insertedElements) {
+        int words = SplitBlockBloomFilterMemory.WORDS_PER_BLOCK;
+        double lambda = insertedElements * SplitBlockBloomFilterMemory.BLOCK_BITS / m;
+        double logPoisson = -lambda;
+        double p = 0;
+        int maxLoad = (int) Math.ceil(lambda + 20 * Math.sqrt(lambda) + 20);
+        for (int load = 0; load <= maxLoad; load++) {
+            if (load > 0) logPoisson += Math.log(lambda) - Math.log(load);
+            p += Math.exp(logPoisson) * Math.pow(1 - Math.pow(1 - 1.0 / 32, load), words);
+        }
+        return p;
+    }
+
+    /**
+     * Calculates the size of a split block Bloom filter in bits, so that its false positive probability does not
+     * exceed <i>p</i>. The starting point is the estimate of the Parquet specification, <i>-8n / ln(1 - p^(1/8))</i>,
+     * which ignores the uneven load of the blocks.
+     *
+     * @param n Expected number of elements inserted in the bloom filter
+     * @param p Tolerable false positive rate
+     * @return the size of the split block Bloom filter in bits, a multiple of the block size
+     */
+    public static int optimalMSplitBlock(long n, double p) {
+        int b = SplitBlockBloomFilterMemory.BLOCK_BITS;
+        int m = roundToBlocks((int) Math.ceil(-8 * n / Math.log(1 - Math.pow(p, 1.0 / 8))), b);
+        while (optimalPSplitBlock(m, n) > p) {
+            m = roundToBlocks(m + Math.max(b, m / 50), b);
+        }
+        return m;
+    }
+
+    private static int roundToBlocks(int m, int b) {
+        return (m + b - 1) / b * b;
+    }
+
+    private static long roundToBlocks(long m, int b) {
+        return (m + b - 1) / b * b;
+    }
+
 
 }
@@ -6,6 +6,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.zip.Adler32;
 import java.util.zip.CRC32;
@@ -17,7 +19,31 @@ import backport.java.util.function.BiFunction;
  *
  */
 public class HashProvider {
+    /**
+     * The maximum range of long hash values (see {@link LongHashFunction}), which keeps the double hashing free of
+     * overflows
+     */
+    public static final long MAX_LONG_M = 1L << 62;
     private static final int seed32 = 89478583;
+    private static final ThreadLocal<Map<String, MessageDigest>> cryptHashes = new ThreadLocal<Map<String, MessageDigest>>() {
+        @Override
+        protected Map<String, MessageDigest> initialValue() {
+            return new HashMap<>();
+        }
+    };
+    // Checksums are not thread-safe either, hashChecksum resets them before every use
+    private static final ThreadLocal<CRC32> crcChecksums = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+    private static final ThreadLocal<Adler32> adlerChecksums = new ThreadLocal<Adler32>() {
+        @Override
+        protected Adler32 initialValue() {
+            return new Adler32();
+        }
+    };
 
     /**
      * @param a the byte array to be hashed
@@ -47,7 +73,15 @@ public class HashProvider {
      * @return array with <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
      */
     public static int[] hashCarterWegman(byte[] value, int m, int k) {
-        int[] positions = new int[k];
+        return hashCarterWegman(value, m, k, new int[k]);
+    }
+
+    /**
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashCarterWegman(byte[] value, int m, int k, int[] positions) {
         BigInteger prime32 = BigInteger.valueOf(4294967279l);
         BigInteger prime64 = BigInteger.valueOf(53200200938189l);
         BigInteger prime128 = new BigInteger("21213943449988109084994671");
@@ -69,7 +103,15 @@ public class HashProvider {
      * @return array with <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
      */
     public static int[] hashRNG(byte[] value, int m, int k) {
-        int[] positions = new int[k];
+        return hashRNG(value, m, k, new int[k]);
+    }
+
+    /**
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashRNG(byte[] value, int m, int k, int[] positions) {
         Random r = new Random(hashBytes(value));
         for (int i = 0; i < k; i++) {
             positions[i] = r.nextInt(m);
@@ -82,7 +124,16 @@ public class HashProvider {
      * @return array with <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
      */
     public static int[] hashCRC(byte[] value, int m, int k) {
-        return hashChecksum(value, new CRC32(), m, k);
+        return hashChecksum(value, crcChecksums.get(), m, k);
+    }
+
+    /**
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashCRC(byte[] value, int m, int k, int[] positions) {
+        return hashChecksum(value, crcChecksums.get(), m, k, positions);
     }
 
     /**
@@ -90,11 +141,23 @@ public class HashProvider {
      * @return array with <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
      */
     public static int[] hashAdler(byte[] value, int m, int k) {
-        return hashChecksum(value, new Adler32(), m, k);
+        return hashChecksum(value, adlerChecksums.get(), m, k);
+    }
+
+    /**
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashAdler(byte[] value, int m, int k, int[] positions) {
+        return hashChecksum(value, adlerChecksums.get(), m, k, positions);
     }
 
     public static int[] hashChecksum(byte[] value, Checksum cs, int m, int k) {
-        int[] positions = new int[k];
+        return hashChecksum(value, cs, m, k, new int[k]);
+    }
+
+    public static int[] hashChecksum(byte[] value, Checksum cs, int m, int k, int[] positions) {
         int hashes = 0;
         int salt = 0;
         while (hashes < k) {
@@ -117,6 +180,15 @@ public class HashProvider {
      * @return array with <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
      */
     public static int[] hashSimpleLCG(byte[] value, int m, int k) {
+        return hashSimpleLCG(value, m, k, new int[k]);
+    }
+
+    /**
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashSimpleLCG(byte[] value, int m, int k, int[] positions) {
         // Java constants
         final long multiplier = 0x5DEECE66DL;
         final long addend = 0xBL;
@@ -131,7 +203,6 @@ public class HashProvider {
             reduced = 42;
 
         // Calculate hashes numbers iteratively
-        int[] positions = new int[k];
         long seed = reduced;
         for (int i = 0; i < k; i++) {
             // LCG formula: x_i+1 = (multiplier * x_i + addend) mod mask
@@ -142,22 +213,34 @@ public class HashProvider {
     }
 
     public static int[] hashMurmur3(byte[] value, int m, int k) {
-        return rejectionSample(new BiFunction<Integer, byte[], Integer>() {
-            @Override
-            public Integer apply(Integer seed, byte[] bytes) {
-                return HashProvider.murmur3(seed, bytes);
+        return hashMurmur3(value, m, k, new int[k]);
+    }
+
+    public static int[] hashMurmur3(byte[] value, int m, int k, int[] positions) {
+        // Same scheme as rejectionSample(BiFunction, ...) without boxing the chained seeds
+        int seed = 0;
+        int pos = 0;
+        while (pos < k) {
+            seed = murmur3(seed, value);
+            int hash = rejectionSample(seed, m);
+            if (hash != -1) {
+                positions[pos++] = hash;
             }
-        }, value, m, k);
+        }
+        return positions;
     }
 
     public static int[] hashCassandra(byte[] value, int m, int k) {
-        int[] result = new int[k];
+        return hashCassandra(value, m, k, new int[k]);
+    }
+
+    public static int[] hashCassandra(byte[] value, int m, int k, int[] positions) {
         int hash1 = murmur3(0, value);
         int hash2 = murmur3(hash1, value);
         for (int i = 0; i < k; i++) {
-            result[i] = Math.abs((hash1 + i * hash2) % m);
+            positions[i] = Math.abs((hash1 + i * hash2) % m);
         }
-        return result;
+        return positions;
     }
 
     public static int murmur3(int seed, byte[] bytes) {
@@ -220,12 +303,336 @@ public class HashProvider {
         return h1;
     }
 
+    /**
+     * Generates all hash values from a single pass of the 128 bit MurmurHash3 (x64 variant) over the input. The two 64
+     * bit halves are reduced to [0,m) by a multiply-shift of their upper 32 bits instead of a biased modulo and then
+     * combined through enhanced double hashing (Dillinger and Manolios, see:
+     * http://www.ccs.neu.edu/home/pete/pub/bloom-filters-verification.pdf), i.e. h_i = h1 + i * h2 + (i^3 - i) / 6 mod
+     * m.
+     *
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashMurmur3x64(byte[] value, int m, int k, int[] positions) {
+        murmur3x64(value, m, k, positions, null);
+        return positions;
+    }
+
+    /**
+     * Generates long hash values like {@link #hashMurmur3x64(byte[], int, int, int[])} for Bloom filters of more than
+     * {@link Integer#MAX_VALUE} bits. The two 64 bit halves are reduced to [0,m) by a 64 bit multiply-shift. For
+     * sizes of at most {@link Integer#MAX_VALUE} the positions equal the int positions.
+     *
+     * @param value     the value to be hashed
+     * @param m         the size of the filter in bits, at most {@link #MAX_LONG_M}
+     * @param k         the number of hash values
+     * @param positions buffer receiving the <i>hashes</i> long hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static long[] hashMurmur3x64(byte[] value, long m, int k, long[] positions) {
+        murmur3x64(value, m, k, null, positions);
+        return positions;
+    }
+
+    private static void murmur3x64(byte[] value, long m, int k, int[] positions, long[] longPositions) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+        int len = value.length;
+        int blocks = len >>> 4;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLE(value, i << 4);
+            long k2 = getLongLE(value, (i << 4) + 8);
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        switch (len & 15) {
+            case 15:
+                k2 ^= (long) (value[tail + 14] & 0xFF) << 48;
+            case 14:
+                k2 ^= (long) (value[tail + 13] & 0xFF) << 40;
+            case 13:
+                k2 ^= (long) (value[tail + 12] & 0xFF) << 32;
+            case 12:
+                k2 ^= (long) (value[tail + 11] & 0xFF) << 24;
+            case 11:
+                k2 ^= (long) (value[tail + 10] & 0xFF) << 16;
+            case 10:
+                k2 ^= (long) (value[tail + 9] & 0xFF) << 8;
+            case 9:
+                k2 ^= (long) (value[tail + 8] & 0xFF);
+                k2 *= c2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= c1;
+                h2 ^= k2;
+            case 8:
+                k1 ^= (long) (value[tail + 7] & 0xFF) << 56;
+            case 7:
+                k1 ^= (long) (value[tail + 6] & 0xFF) << 48;
+            case 6:
+                k1 ^= (long) (value[tail + 5] & 0xFF) << 40;
+            case 5:
+                k1 ^= (long) (value[tail + 4] & 0xFF) << 32;
+            case 4:
+                k1 ^= (long) (value[tail + 3] & 0xFF) << 24;
+            case 3:
+                k1 ^= (long) (value[tail + 2] & 0xFF) << 16;
+            case 2:
+                k1 ^= (long) (value[tail + 1] & 0xFF) << 8;
+            case 1:
+                k1 ^= (long) (value[tail] & 0xFF);
+                k1 *= c1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= c2;
+                h1 ^= k1;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        if (longPositions != null) {
+            doubleHash(reduce(h1, m), reduce(h2, m), m, k, longPositions);
+            return;
+        }
+        // Enhanced double hashing in [0,m): the increment itself grows by i in every round. Combining the hashes
+        // before the reduction would turn the positions into an arithmetic progression and lose the cubic term. The
+        // sums are computed in long, as x + y overflows an int for sizes above 2^30.
+        long x = ((h1 >>> 32) * m) >>> 32;
+        long y = ((h2 >>> 32) * m) >>> 32;
+        for (int i = 0; i < k; i++) {
+            positions[i] = (int) x;
+            x += y;
+            if (x >= m) x -= m;
+            y += i + 1;
+            while (y >= m) y -= m;
+        }
+    }
+
+    /**
+     * Enhanced double hashing in [0,m) with long positions, see {@link #hashMurmur3x64(byte[], int, int, int[])}.
+     */
+    private static void doubleHash(long x, long y, long m, int k, long[] positions) {
+        for (int i = 0; i < k; i++) {
+            positions[i] = x;
+            x += y;
+            if (x >= m) x -= m;
+            y += i + 1;
+            while (y >= m) y -= m;
+        }
+    }
+
+    /**
+     * Reduces a 64 bit hash value to [0,m) like the int hash values for sizes of at most {@link Integer#MAX_VALUE}, so
+     * that long and int positions and thus the bits of off-heap and heap Bloom filters are the same, and by {@link
+     * #multiplyHigh(long, long)} for larger sizes.
+     */
+    private static long reduce(long hash, long m) {
+        return m <= Integer.MAX_VALUE ? ((hash >>> 32) * m) >>> 32 : multiplyHigh(hash, m);
+    }
+
+    /**
+     * Reduces a 64 bit hash value to [0,m) by a multiply-shift, i.e. computes the upper 64 bits of the unsigned 128 bit
+     * product of the hash value and m.
+     *
+     * @param hash the hash value, interpreted as unsigned
+     * @param m    the size of the range, which must not be negative
+     * @return the hash value reduced to [0,m)
+     */
+    static long multiplyHigh(long hash, long m) {
+        long hashLow = hash & 0xFFFFFFFFL;
+        long hashHigh = hash >>> 32;
+        long mLow = m & 0xFFFFFFFFL;
+        long mHigh = m >>> 32;
+        long lowLow = hashLow * mLow;
+        long highLow = hashHigh * mLow;
+        long lowHigh = hashLow * mHigh;
+        long carry = ((lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + (lowHigh & 0xFFFFFFFFL)) >>> 32;
+        return hashHigh * mHigh + (highLow >>> 32) + (lowHigh >>> 32) + carry;
+    }
+
+    public static int[] hashMurmur3x64(byte[] value, int m, int k) {
+        return hashMurmur3x64(value, m, k, new int[k]);
+    }
+
+    /**
+     * Computes the 64 bit xxHash (XXH64) of the given bytes, see: https://github.com/Cyan4973/xxHash
+     *
+     * @param seed  the seed of the hash
+     * @param bytes the value to be hashed
+     * @return the 64 bit hash value
+     */
+    public static long xxHash64(long seed, byte[] bytes) {
+        final long p1 = 0x9E3779B185EBCA87L;
+        final long p2 = 0xC2B2AE3D27D4EB4FL;
+        final long p3 = 0x165667B19E3779F9L;
+        final long p4 = 0x85EBCA77C2B2AE63L;
+        final long p5 = 0x27D4EB2F165667C5L;
+        int len = bytes.length;
+        int i = 0;
+        long h;
+
+        if (len >= 32) {
+            long v1 = seed + p1 + p2;
+            long v2 = seed + p2;
+            long v3 = seed;
+            long v4 = seed - p1;
+            int limit = len - 32;
+            do {
+                v1 = Long.rotateLeft(v1 + getLongLE(bytes, i) * p2, 31) * p1;
+                v2 = Long.rotateLeft(v2 + getLongLE(bytes, i + 8) * p2, 31) * p1;
+                v3 = Long.rotateLeft(v3 + getLongLE(bytes, i + 16) * p2, 31) * p1;
+                v4 = Long.rotateLeft(v4 + getLongLE(bytes, i + 24) * p2, 31) * p1;
+                i += 32;
+            } while (i <= limit);
+
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = (h ^ Long.rotateLeft(v1 * p2, 31) * p1) * p1 + p4;
+            h = (h ^ Long.rotateLeft(v2 * p2, 31) * p1) * p1 + p4;
+            h = (h ^ Long.rotateLeft(v3 * p2, 31) * p1) * p1 + p4;
+            h = (h ^ Long.rotateLeft(v4 * p2, 31) * p1) * p1 + p4;
+        } else {
+            h = seed + p5;
+        }
+
+        h += len;
+
+        while (i + 8 <= len) {
+            h ^= Long.rotateLeft(getLongLE(bytes, i) * p2, 31) * p1;
+            h = Long.rotateLeft(h, 27) * p1 + p4;
+            i += 8;
+        }
+        if (i + 4 <= len) {
+            h ^= (getIntLE(bytes, i) & 0xFFFFFFFFL) * p1;
+            h = Long.rotateLeft(h, 23) * p2 + p3;
+            i += 4;
+        }
+        while (i < len) {
+            h ^= (bytes[i] & 0xFF) * p5;
+            h = Long.rotateLeft(h, 11) * p1;
+            i++;
+        }
+
+        h ^= h >>> 33;
+        h *= p2;
+        h ^= h >>> 29;
+        h *= p3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * Generates hash values from the 64 bit xxHash of the input: its two 32 bit halves are reduced to [0,m) by a
+     * multiply-shift and combined through enhanced double hashing like in {@link #hashMurmur3x64(byte[], int, int,
+     * int[])}.
+     *
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashXXHash64(byte[] value, int m, int k, int[] positions) {
+        long hash = xxHash64(0, value);
+        long x = ((hash >>> 32) * m) >>> 32;
+        long y = ((hash & 0xFFFFFFFFL) * m) >>> 32;
+        for (int i = 0; i < k; i++) {
+            positions[i] = (int) x;
+            x += y;
+            if (x >= m) x -= m;
+            y += i + 1;
+            while (y >= m) y -= m;
+        }
+        return positions;
+    }
+
+    public static int[] hashXXHash64(byte[] value, int m, int k) {
+        return hashXXHash64(value, m, k, new int[k]);
+    }
+
+    /**
+     * Generates long hash values from the 64 bit xxHash of the input for Bloom filters of more than {@link
+     * Integer#MAX_VALUE} bits. The hash and its {@link #fmix64(long) finalization mix} are reduced to [0,m) by a 64 bit
+     * multiply-shift and combined through enhanced double hashing. For sizes of at most {@link Integer#MAX_VALUE} the
+     * positions equal the int positions.
+     *
+     * @param value     the value to be hashed
+     * @param m         the size of the filter in bits, at most {@link #MAX_LONG_M}
+     * @param k         the number of hash values
+     * @param positions buffer receiving the <i>hashes</i> long hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static long[] hashXXHash64(byte[] value, long m, int k, long[] positions) {
+        long hash = xxHash64(0, value);
+        if (m <= Integer.MAX_VALUE)
+            doubleHash(reduce(hash, m), reduce(hash << 32, m), m, k, positions);
+        else
+            doubleHash(multiplyHigh(hash, m), multiplyHigh(fmix64(hash), m), m, k, positions);
+        return positions;
+    }
+
+    private static int getIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static long getLongLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL)
+                | (bytes[offset + 1] & 0xFFL) << 8
+                | (bytes[offset + 2] & 0xFFL) << 16
+                | (bytes[offset + 3] & 0xFFL) << 24
+                | (bytes[offset + 4] & 0xFFL) << 32
+                | (bytes[offset + 5] & 0xFFL) << 40
+                | (bytes[offset + 6] & 0xFFL) << 48
+                | (bytes[offset + 7] & 0xFFL) << 56;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
     // Code taken from:
     // http://dmy999.com/article/50/murmurhash-2-java-port by Derekt
     // Young (Public Domain)
     // as the Hadoop implementation by Andrzej Bialecki is buggy
     public static int[] hashMurmur2(byte[] value, int em, int ka) {
-        int[] positions = new int[ka];
+        return hashMurmur2(value, em, ka, new int[ka]);
+    }
+
+    public static int[] hashMurmur2(byte[] value, int em, int ka, int[] positions) {
 
         int hashes = 0;
         int lastHash = 0;
@@ -325,15 +732,28 @@ public class HashProvider {
      * @return array with <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
      */
     public static int[] hashCrypt(byte[] value, int m, int k, String method) {
-        // MessageDigest is not thread-safe --> use new instance
-        MessageDigest cryptHash = null;
-        try {
-            cryptHash = MessageDigest.getInstance(method);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        return hashCrypt(value, m, k, method, new int[k]);
+    }
+
+    /**
+     * @param value     the value to be hashed
+     * @param positions buffer receiving the <i>hashes</i> integer hash positions in the range <i>[0,size)</i>
+     * @return the passed buffer
+     */
+    public static int[] hashCrypt(byte[] value, int m, int k, String method, int[] positions) {
+        // MessageDigest is not thread-safe --> use one instance per thread, looking it up is expensive
+        Map<String, MessageDigest> digests = cryptHashes.get();
+        MessageDigest cryptHash = digests.get(method);
+        if (cryptHash == null) {
+            try {
+                cryptHash = MessageDigest.getInstance(method);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            digests.put(method, cryptHash);
         }
+        cryptHash.reset();
 
-        int[] positions = new int[k];
 
         int computedHashes = 0;
         // Add salt to the hash deterministically in order to generate different
@@ -388,6 +808,60 @@ public class HashProvider {
         public int[] hash(byte[] value, int m, int k);
     }
 
+    /**
+     * A hash function that writes its hash values into a caller-supplied buffer instead of allocating a new array for
+     * each call. Bloom filters reuse such a buffer per thread so that hashing on the hot path of add and contains
+     * operations does not produce garbage.
+     */
+    public static interface BufferedHashFunction extends HashFunction {
+
+        /**
+         * Computes hash values into the given buffer.
+         * 
+         * @param value     the byte[] representation of the element to be hashed
+         * @param m         integer output range [1,size]
+         * @param k         number of hashes to be computed
+         * @param positions buffer of at least length k receiving the hash values
+         */
+        public void hash(byte[] value, int m, int k, int[] positions);
+    }
+
+    /**
+     * A hash function that can also generate long hash values for Bloom filters of more than {@link Integer#MAX_VALUE}
+     * bits (see {@link orestes.bloomfilter.memory.BloomFilterOffHeap}).
+     */
+    public static interface LongHashFunction extends BufferedHashFunction {
+
+        /**
+         * Computes long hash values into the given buffer.
+         *
+         * @param value     the byte[] representation of the element to be hashed
+         * @param m         long output range [1,size], at most {@link #MAX_LONG_M}
+         * @param k         number of hashes to be computed
+         * @param positions buffer of at least length k receiving the hash values
+         */
+        public void hash(byte[] value, long m, int k, long[] positions);
+    }
+
+    /**
+     * Base class for buffered hash functions, which implements the allocating variant by hashing into a new array.
+     */
+    public static abstract class AbstractBufferedHashFunction implements BufferedHashFunction {
+
+        @Override
+        public int[] hash(byte[] value, int m, int k) {
+            int[] positions = new int[k];
+            hash(value, m, k, positions);
+            return positions;
+        }
+    }
+
+    /**
+     * Base class for hash functions generating both int and long hash values.
+     */
+    public static abstract class LongBufferedHashFunction extends AbstractBufferedHashFunction implements LongHashFunction {
+    }
+
     /**
      * Different types of hash functions that can be used.
      */
@@ -397,10 +871,10 @@ public class HashProvider {
          * (LCG), implementing the following formula: <br> <code>number_i+1 = (a * number_i + countingBits) mod
          * size</code><br> <br> The RNG is initialized using the value to be hashed.
          */
-        RNG(new HashFunction() {
+        RNG(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashRNG(value, m, k);
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashRNG(value, m, k, positions);
             }
         }),
         /**
@@ -409,30 +883,30 @@ public class HashProvider {
          * values. On the downside, the performance is not optimal, as arithmetic operations on large numbers have to be
          * performed.
          */
-        CarterWegman(new HashFunction() {
+        CarterWegman(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCarterWegman(value, m, k);
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCarterWegman(value, m, k, positions);
             }
         }),
         /**
          * Generates hash values using a Cyclic Redundancy Check (CRC32). CRC is designed as a checksum for data
          * integrity not as hash function but exhibits very good uniformity and is relatively fast.
          */
-        CRC32(new HashFunction() {
+        CRC32(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCRC(value, m, k);
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCRC(value, m, k, positions);
             }
         }),
         /**
          * Generates hash values using the Adler32 Checksum algorithm. Adler32 is comparable to CRC32 but is faster at
          * the cost of a less uniform distribution of hash values.
          */
-        Adler32(new HashFunction() {
+        Adler32(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashAdler(value, m, k);
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashAdler(value, m, k, positions);
             }
         }),
         /**
@@ -441,10 +915,10 @@ public class HashProvider {
          * Murmur 2 is very fast. However, there is a flaw that affects the uniformity of some input values (for
          * instance increasing integers as strings).
          */
-        Murmur2(new HashFunction() {
+        Murmur2(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashMurmur2(value, m, k);
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashMurmur2(value, m, k, positions);
             }
         }),
         /**
@@ -452,10 +926,10 @@ public class HashProvider {
          * <p>
          * Its uniformity is comparable to that of cryptographic hash functions but considerably faster.
          */
-        Murmur3(new HashFunction() {
+        Murmur3(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashMurmur3(value, m, k);
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashMurmur3(value, m, k, positions);
             }
         }),
         /**
@@ -465,10 +939,49 @@ public class HashProvider {
          * real-world performance is not as good as pure Murmur 3 hashes or cryptographic hash functions, in particular
          * for random words.</p>
          */
-        Murmur3KirschMitzenmacher(new HashFunction() {
+        Murmur3KirschMitzenmacher(new AbstractBufferedHashFunction() {
+            @Override
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCassandra(value, m, k, positions);
+            }
+        }),
+        /**
+         * Uses the 128 bit x64 variant of the Murmur 3 hash, see: https://code.google.com/p/smhasher/wiki/MurmurHash3
+         * <p>
+         * All hash values are derived from a single pass over the input through enhanced double hashing of the two 64
+         * bit halves of the hash and are reduced to the filter size by a multiply-shift instead of a modulo. In
+         * contrast to {@link #Murmur3} the input is hashed once instead of at least k times and in contrast to {@link
+         * #Murmur3KirschMitzenmacher} the positions are not skewed by the modulo of negative values. It also generates
+         * long hash values (see {@link LongHashFunction}).</p>
+         */
+        Murmur3x64(new LongBufferedHashFunction() {
+            @Override
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashMurmur3x64(value, m, k, positions);
+            }
+
+            @Override
+            public void hash(byte[] value, long m, int k, long[] positions) {
+                HashProvider.hashMurmur3x64(value, m, k, positions);
+            }
+        }),
+        /**
+         * Uses the 64 bit xxHash, see: https://github.com/Cyan4973/xxHash
+         * <p>
+         * xxHash is one of the fastest non-cryptographic hash functions with excellent uniformity. Like {@link
+         * #Murmur3x64} all hash values are derived from a single pass over the input. It is also the hash function of
+         * split block Bloom filters (see {@link orestes.bloomfilter.memory.SplitBlockBloomFilterMemory}) and generates
+         * long hash values (see {@link LongHashFunction}).</p>
+         */
+        XXHash64(new LongBufferedHashFunction() {
+            @Override
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashXXHash64(value, m, k, positions);
+            }
+
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCassandra(value, m, k);
+            public void hash(byte[] value, long m, int k, long[] positions) {
+                HashProvider.hashXXHash64(value, m, k, positions);
             }
         }),
         /**
@@ -478,70 +991,70 @@ public class HashProvider {
          * be employed if the bloom filter has to be used in a language which doesn't support any of the other hash
          * functions. This hash function can then easily be implemented.
          */
-        FNVWithLCG(new HashFunction() {
+        FNVWithLCG(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashSimpleLCG(value, m, k);
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashSimpleLCG(value, m, k, positions);
             }
         }),
         /**
          * Generates a hash value using MD2. MD2 is rather slow an not as evenely distributed as other cryptographic
          * hash functions
          */
-        MD2(new HashFunction() {
+        MD2(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCrypt(value, m, k, "MD2");
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCrypt(value, m, k, "MD2", positions);
             }
         }),
         /**
          * Generates a hash value using the cryptographic MD5 hash function. It is fast and has good guarantees for the
          * uniformity of generated hash values, as the hash functions are designed for cryptographic use.
          */
-        MD5(new HashFunction() {
+        MD5(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCrypt(value, m, k, "MD5");
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCrypt(value, m, k, "MD5", positions);
             }
         }),
         /**
          * Generates a hash value using the cryptographic SHA1 hash function. It is fast but uniformity of hash values
          * is better for the second generation of SHA (256,384,512).
          */
-        SHA1(new HashFunction() {
+        SHA1(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCrypt(value, m, k, "SHA-1");
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCrypt(value, m, k, "SHA-1", positions);
             }
         }),
         /**
          * Generates a hash value using the cryptographic SHA-256 hash function. It is fast and has good guarantees for
          * the uniformity of generated hash values, as the hash functions are designed for cryptographic use.
          */
-        SHA256(new HashFunction() {
+        SHA256(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCrypt(value, m, k, "SHA-256");
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCrypt(value, m, k, "SHA-256", positions);
             }
         }),
         /**
          * Generates a hash value using the cryptographic SHA-384 hash function. It is fast and has good guarantees for
          * the uniformity of generated hash values, as the hash functions are designed for cryptographic use.
          */
-        SHA384(new HashFunction() {
+        SHA384(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCrypt(value, m, k, "SHA-384");
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCrypt(value, m, k, "SHA-384", positions);
             }
         }),
         /**
          * Generates a hash value using the cryptographic SHA-512 hash function. It is fast and has good guarantees for
          * the uniformity of generated hash values, as the hash functions are designed for cryptographic use.
          */
-        SHA512(new HashFunction() {
+        SHA512(new AbstractBufferedHashFunction() {
             @Override
-            public int[] hash(byte[] value, int m, int k) {
-                return HashProvider.hashCrypt(value, m, k, "SHA-512");
+            public void hash(byte[] value, int m, int k, int[] positions) {
+                HashProvider.hashCrypt(value, m, k, "SHA-512", positions);
             }
         });
 
@@ -0,0 +1,506 @@
+package orestes.bloomfilter.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.memory.BlockedBloomFilterMemory;
+import orestes.bloomfilter.memory.BloomFilterMemory;
+import orestes.bloomfilter.memory.BloomFilterOffHeap;
+import orestes.bloomfilter.memory.CountingBloomFilterMemory;
+import orestes.bloomfilter.memory.SplitBlockBloomFilterMemory;
+
+/**
+ * A compact binary format for exchanging Bloom filters, which stores the bits as raw words instead of re-encoding them
+ * like Java serialization or the JSON format (see {@link orestes.bloomfilter.json.BloomFilterConverter}). All values
+ * are little-endian:
+ * <pre>
+ * offset  size  content
+ *      0     4  magic number, the bytes "OBBF"
+ *      4     1  version of the format, currently 1
+ *      5     1  flags, bit 0 is set if the bits are compressed, bit 1 if the filter is blocked, bit 2 if it is
+ *               split block, the other bits are reserved and 0
+ *      6     1  counting bits c, 0 if the filter is not counting
+ *      7     1  hash method, its ID (see below)
+ *      8     8  size m in bits
+ *     16     4  number of hashes k
+ *     20     4  CRC-32 of the payload
+ *     24     8  length of the payload in bytes
+ *     32        payload: the bits as ceil(m / 64) 64 bit words, bit i in bit i % 64 of word i / 64, followed by
+ *               the counters as ceil(m / floor(64 / c)) 64 bit words of floor(64 / c) counters each if c &gt; 0
+ * </pre>
+ * The IDs of the hash methods are fixed: RNG 0, CarterWegman 1, CRC32 2, Adler32 3, Murmur2 4, Murmur3 5,
+ * Murmur3KirschMitzenmacher 6, Murmur3x64 7, XXHash64 8, FNVWithLCG 9, MD2 10, MD5 11, SHA1 12, SHA256 13, SHA384 14
+ * and SHA512 15.
+ * <p>
+ * Compressed bits are coded as described in {@link GolombRice} and replace the words of the bits in the payload. They
+ * are only written if they are smaller than the words, i.e. if the filter is sparse.
+ * The counters of {@link CountingBloomFilterMemory} are stored, other counting Bloom filters are stored with their bits
+ * only. Filters of more than {@link Integer#MAX_VALUE} bits are read into off-heap Bloom filters and filters using
+ * {@link HashMethod#Murmur3x64} or {@link HashMethod#XXHash64} can be loaded without copying their bits by {@link
+ * #wrap(ByteBuffer)}. Blocked and split block Bloom filters (see {@link BlockedBloomFilterMemory} and {@link
+ * SplitBlockBloomFilterMemory}) place their bits differently and are read into filters of the same layout, the bits of
+ * a split block filter are its 32 bit words in little-endian order.
+ */
+public class BinaryFormat {
+    /**
+     * The number of bytes of the header preceding the payload
+     */
+    public static final int HEADER_BYTES = 32;
+    /**
+     * The current version of the format
+     */
+    public static final int VERSION = 1;
+    private static final int MAGIC = 0x4642424F;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_BLOCKED = 2;
+    private static final int FLAG_SPLIT_BLOCK = 4;
+    private static final int BUFFER_BYTES = 1 << 16;
+    /**
+     * The hash methods indexed by their ID, which must never change: new hash methods are appended
+     */
+    private static final HashMethod[] HASH_METHODS = {HashMethod.RNG, HashMethod.CarterWegman, HashMethod.CRC32,
+            HashMethod.Adler32, HashMethod.Murmur2, HashMethod.Murmur3, HashMethod.Murmur3KirschMitzenmacher,
+            HashMethod.Murmur3x64, HashMethod.XXHash64, HashMethod.FNVWithLCG, HashMethod.MD2, HashMethod.MD5,
+            HashMethod.SHA1, HashMethod.SHA256, HashMethod.SHA384, HashMethod.SHA512};
+
+    /**
+     * Writes a Bloom filter in the binary format.
+     *
+     * @param filter the filter to write
+     * @param out    the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(BloomFilter<?> filter, OutputStream out) throws IOException {
+        write(filter, Channels.newChannel(out), false);
+    }
+
+    /**
+     * Writes a Bloom filter in the binary format, optionally compressing its bits.
+     *
+     * @param filter   the filter to write
+     * @param out      the stream to write to
+     * @param compress whether to compress the bits if that makes them smaller
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(BloomFilter<?> filter, OutputStream out, boolean compress) throws IOException {
+        write(filter, Channels.newChannel(out), compress);
+    }
+
+    /**
+     * Writes a Bloom filter in the binary format.
+     *
+     * @param filter the filter to write
+     * @param out    the channel to write to
+     * @throws IOException if the channel cannot be written
+     */
+    public static void write(BloomFilter<?> filter, WritableByteChannel out) throws IOException {
+        write(filter, out, false);
+    }
+
+    /**
+     * Writes a Bloom filter in the binary format, optionally compressing its bits.
+     *
+     * @param filter   the filter to write
+     * @param out      the channel to write to
+     * @param compress whether to compress the bits if that makes them smaller
+     * @throws IOException if the channel cannot be written
+     */
+    public static void write(BloomFilter<?> filter, WritableByteChannel out, boolean compress) throws IOException {
+        FilterBuilder config = filter.config();
+        // The checksum and the payload have to be computed from the same bits
+        if (filter instanceof BloomFilterOffHeap) {
+            synchronized (filter) {
+                write(config, 0, offHeapPayload((BloomFilterOffHeap<?>) filter), compress, out);
+            }
+            return;
+        }
+        long[] bits;
+        long[] counters = new long[0];
+        int countingBits = 0;
+        synchronized (filter) {
+            bits = filter.getBitSet().toLongArray();
+            if (filter instanceof CountingBloomFilterMemory) {
+                counters = ((CountingBloomFilterMemory<?>) filter).getCounterWords();
+                countingBits = config.countingBits();
+            }
+        }
+        write(config, countingBits, arrayPayload(bitWords(config.longSize()), bits, counters), compress, out);
+    }
+
+    private static void write(FilterBuilder config, int countingBits, Payload payload, boolean compress,
+                              WritableByteChannel out) throws IOException {
+        long bitWords = bitWords(config.longSize());
+        byte[] coded = null;
+        if (compress) {
+            // Compressed payloads are read into an array
+            long maxBytes = Math.min(bitWords * 8 - 1, Integer.MAX_VALUE - 8 - (payload.words() - bitWords) * 8);
+            coded = GolombRice.encode(payload, bitWords, config.longSize(), maxBytes);
+        }
+        long first = coded == null ? 0 : bitWords;
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        if (coded != null)
+            crc.update(coded, 0, coded.length);
+        for (long i = first; i < payload.words(); ) {
+            buffer.clear();
+            i += payload.get(i, buffer);
+            crc.update(buffer.array(), 0, buffer.position());
+        }
+
+        buffer.clear();
+        int flags = (coded == null ? 0 : FLAG_COMPRESSED) | (config.blocked() ? FLAG_BLOCKED : 0)
+                | (config.splitBlock() ? FLAG_SPLIT_BLOCK : 0);
+        buffer.putInt(MAGIC).put((byte) VERSION).put((byte) flags)
+                .put((byte) countingBits).put((byte) hashMethodId(config.hashMethod())).putLong(config.longSize())
+                .putInt(config.hashes()).putInt((int) crc.getValue())
+                .putLong((coded == null ? 0 : coded.length) + (payload.words() - first) * 8);
+        buffer.flip();
+        writeFully(out, buffer);
+
+        if (coded != null)
+            writeFully(out, ByteBuffer.wrap(coded));
+        for (long i = first; i < payload.words(); ) {
+            buffer.clear();
+            i += payload.get(i, buffer);
+            buffer.flip();
+            writeFully(out, buffer);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a Bloom filter in the binary format. Filters of at most {@link Integer#MAX_VALUE} bits are read into
+     * regular, blocked, split block or counting in-memory Bloom filters, larger ones into off-heap Bloom filters.
+     *
+     * @param in  the stream to read from
+     * @param <T> the type of the elements
+     * @return the Bloom filter
+     * @throws IOException if the stream cannot be read or does not contain a valid Bloom filter
+     */
+    public static <T> BloomFilter<T> read(InputStream in) throws IOException {
+        return read(Channels.newChannel(in));
+    }
+
+    /**
+     * Reads a Bloom filter in the binary format, see {@link #read(InputStream)}.
+     *
+     * @param in  the channel to read from
+     * @param <T> the type of the elements
+     * @return the Bloom filter
+     * @throws IOException if the channel cannot be read or does not contain a valid Bloom filter
+     */
+    public static <T> BloomFilter<T> read(ReadableByteChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(HEADER_BYTES);
+        readFully(in, buffer);
+        buffer.flip();
+        Header header = readHeader(buffer);
+        FilterBuilder config = header.config();
+
+        if (header.size > Integer.MAX_VALUE) {
+            if (header.countingBits > 0 || header.blocked || header.splitBlock)
+                throw new IOException("Counting, blocked and split block Bloom filters of more than "
+                        + Integer.MAX_VALUE + " bits are not supported.");
+            final BloomFilterOffHeap<T> filter = new BloomFilterOffHeap<>(config.offHeap(true));
+            readPayload(in, buffer, header, new Sink() {
+                @Override
+                int put(long from, ByteBuffer source) {
+                    return filter.setWords(from, source);
+                }
+            });
+            return filter;
+        }
+
+        final long[] bits = new long[(int) bitWords(header.size)];
+        final long[] counters = new long[(int) counterWords(header.size, header.countingBits)];
+        readPayload(in, buffer, header, new Sink() {
+            @Override
+            int put(long from, ByteBuffer source) {
+                int count = source.remaining() / 8;
+                for (int i = 0; i < count; i++) {
+                    long index = from + i;
+                    if (index < bits.length)
+                        bits[(int) index] = source.getLong();
+                    else
+                        counters[(int) (index - bits.length)] = source.getLong();
+                }
+                return count;
+            }
+        });
+        BloomFilter<T> filter;
+        if (header.splitBlock) {
+            ByteBuffer bitset = ByteBuffer.allocate(bits.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            bitset.asLongBuffer().put(bits);
+            return SplitBlockBloomFilterMemory.fromParquetBitset(bitset.array());
+        } else if (header.blocked) {
+            filter = new BlockedBloomFilterMemory<>(config);
+        } else if (header.countingBits > 0) {
+            CountingBloomFilterMemory<T> counting = new CountingBloomFilterMemory<>(config);
+            counting.setCounterWords(counters);
+            filter = counting;
+        } else {
+            filter = new BloomFilterMemory<>(config);
+        }
+        filter.getBitSet().or(BitSet.valueOf(bits));
+        return filter;
+    }
+
+    private static void readPayload(ReadableByteChannel in, ByteBuffer buffer, Header header, Sink sink)
+            throws IOException {
+        if (header.compressed) {
+            byte[] payload = new byte[(int) header.payloadBytes];
+            readFully(in, ByteBuffer.wrap(payload));
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            header.verify(crc);
+            int offset = GolombRice.decode(payload, 0, header.size, sink);
+            long counterBytes = counterWords(header.size, header.countingBits) * 8;
+            if (payload.length - offset != counterBytes)
+                throw new IOException("The compressed bits are followed by " + (payload.length - offset)
+                        + " instead of " + counterBytes + " bytes.");
+            sink.put(bitWords(header.size), ByteBuffer.wrap(payload, offset, (int) counterBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN));
+            return;
+        }
+        long words = header.payloadBytes / 8;
+        CRC32 crc = new CRC32();
+        for (long i = 0; i < words; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_BYTES, (words - i) * 8));
+            readFully(in, buffer);
+            crc.update(buffer.array(), 0, buffer.limit());
+            buffer.flip();
+            i += sink.put(i, buffer);
+        }
+        header.verify(crc);
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0)
+                throw new IOException("The Bloom filter is truncated.");
+        }
+    }
+
+    /**
+     * Loads a Bloom filter in the binary format without copying its bits, see {@link #wrap(ByteBuffer, boolean)}. The
+     * checksum is verified.
+     *
+     * @param buffer the buffer holding the Bloom filter from its position on
+     * @param <T>    the type of the elements
+     * @return an off-heap Bloom filter backed by the buffer
+     * @throws IOException if the buffer does not contain a valid Bloom filter
+     */
+    public static <T> BloomFilterOffHeap<T> wrap(ByteBuffer buffer) throws IOException {
+        return wrap(buffer, true);
+    }
+
+    /**
+     * Loads a Bloom filter in the binary format without copying its bits: the returned filter reads and writes the
+     * bits in the buffer, e.g. a buffer received from the network or a memory-mapped file. The filter has to use
+     * {@link HashMethod#Murmur3x64} or {@link HashMethod#XXHash64}, whose positions are the same for in-memory and
+     * off-heap Bloom filters, and must neither be compressed, blocked nor split block. The counters of a counting Bloom
+     * filter are ignored.
+     *
+     * @param buffer the buffer holding the Bloom filter from its position on, which is not modified
+     * @param verify whether to verify the checksum, which reads the whole payload once
+     * @param <T>    the type of the elements
+     * @return an off-heap Bloom filter backed by the buffer
+     * @throws IOException              if the buffer does not contain a valid Bloom filter
+     * @throws IllegalArgumentException if the filter is compressed, blocked or split block or does not use a hash
+     *                                  method generating long positions
+     */
+    public static <T> BloomFilterOffHeap<T> wrap(ByteBuffer buffer, boolean verify) throws IOException {
+        ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_BYTES)
+            throw new IOException("The Bloom filter is truncated.");
+        Header header = readHeader(data);
+        if (header.compressed)
+            throw new IllegalArgumentException("Compressed Bloom filters cannot be wrapped, they have to be read.");
+        if (header.blocked || header.splitBlock)
+            throw new IllegalArgumentException("Blocked and split block Bloom filters cannot be wrapped, they have to "
+                    + "be read.");
+        if (data.remaining() < header.payloadBytes)
+            throw new IOException("The Bloom filter is truncated.");
+        data.limit(data.position() + (int) header.payloadBytes);
+        if (verify) {
+            CRC32 crc = new CRC32();
+            if (data.hasArray()) {
+                crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                ByteBuffer payload = data.duplicate();
+                byte[] chunk = new byte[Math.min(BUFFER_BYTES, payload.remaining())];
+                while (payload.hasRemaining()) {
+                    int length = Math.min(chunk.length, payload.remaining());
+                    payload.get(chunk, 0, length);
+                    crc.update(chunk, 0, length);
+                }
+            }
+            header.verify(crc);
+        }
+        return BloomFilterOffHeap.wrap(header.config(), data);
+    }
+
+    private static Header readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC)
+            throw new IOException("The data is not a Bloom filter in the binary format.");
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION)
+            throw new IOException("Unsupported version " + version + " of the binary format.");
+        int flags = buffer.get() & 0xFF;
+        if ((flags & ~(FLAG_COMPRESSED | FLAG_BLOCKED | FLAG_SPLIT_BLOCK)) != 0
+                || (flags & FLAG_BLOCKED) != 0 && (flags & FLAG_SPLIT_BLOCK) != 0)
+            throw new IOException("Unsupported flags " + flags + " of the binary format.");
+        Header header = new Header();
+        header.compressed = (flags & FLAG_COMPRESSED) != 0;
+        header.blocked = (flags & FLAG_BLOCKED) != 0;
+        header.splitBlock = (flags & FLAG_SPLIT_BLOCK) != 0;
+        header.countingBits = buffer.get() & 0xFF;
+        int hashMethod = buffer.get() & 0xFF;
+        if (hashMethod >= HASH_METHODS.length)
+            throw new IOException("Unknown hash method " + hashMethod + ".");
+        header.hashMethod = HASH_METHODS[hashMethod];
+        header.size = buffer.getLong();
+        header.hashes = buffer.getInt();
+        header.crc = buffer.getInt();
+        header.payloadBytes = buffer.getLong();
+        if (header.size <= 0 || header.hashes <= 0 || header.countingBits > 64)
+            throw new IOException("Invalid size, hashes or counting bits in the Bloom filter header.");
+        if (header.blocked && (header.size % BlockedBloomFilterMemory.BLOCK_BITS != 0 || header.countingBits > 0)
+                || header.splitBlock && (header.size % SplitBlockBloomFilterMemory.BLOCK_BITS != 0
+                || header.countingBits > 0 || header.hashes != SplitBlockBloomFilterMemory.WORDS_PER_BLOCK
+                || header.hashMethod != HashMethod.XXHash64))
+            throw new IOException("Invalid blocked or split block Bloom filter header.");
+        long expected = (bitWords(header.size) + counterWords(header.size, header.countingBits)) * 8;
+        if (header.compressed && (header.payloadBytes >= expected || header.payloadBytes > Integer.MAX_VALUE - 8))
+            throw new IOException("The compressed payload has " + header.payloadBytes + " bytes.");
+        if (!header.compressed && header.payloadBytes != expected)
+            throw new IOException("The payload has " + header.payloadBytes + " instead of " + expected + " bytes.");
+        return header;
+    }
+
+    private static int hashMethodId(HashMethod hashMethod) {
+        for (int id = 0; id < HASH_METHODS.length; id++) {
+            if (HASH_METHODS[id] == hashMethod)
+                return id;
+        }
+        throw new IllegalArgumentException("The hash method " + hashMethod + " cannot be stored in the binary format.");
+    }
+
+    private static long bitWords(long size) {
+        return (size + 63) >>> 6;
+    }
+
+    private static long counterWords(long size, int countingBits) {
+        if (countingBits == 0)
+            return 0;
+        int countersPerWord = 64 / countingBits;
+        return (size + countersPerWord - 1) / countersPerWord;
+    }
+
+    private static class Header {
+        boolean compressed;
+        boolean blocked;
+        boolean splitBlock;
+        int countingBits;
+        HashMethod hashMethod;
+        long size;
+        int hashes;
+        int crc;
+        long payloadBytes;
+
+        FilterBuilder config() {
+            FilterBuilder config = new FilterBuilder(size, hashes).hashFunction(hashMethod).blocked(blocked)
+                    .splitBlock(splitBlock);
+            if (countingBits > 0)
+                config.countingBits(countingBits);
+            return config;
+        }
+
+        void verify(CRC32 crc) throws IOException {
+            if ((int) crc.getValue() != this.crc)
+                throw new IOException("The checksum of the Bloom filter does not match.");
+        }
+    }
+
+    /**
+     * The words of a payload to write.
+     */
+    static abstract class Payload {
+        abstract long words();
+
+        /**
+         * Puts as many words as fit into the target, starting with the given word.
+         *
+         * @return the number of words put
+         */
+        abstract int get(long from, ByteBuffer target);
+    }
+
+    /**
+     * Receives the words of a payload that is read.
+     */
+    static abstract class Sink {
+        /**
+         * Takes all remaining words of the source, which start with the given word.
+         *
+         * @return the number of words taken
+         */
+        abstract int put(long from, ByteBuffer source);
+    }
+
+    private static Payload arrayPayload(final long bitWords, final long[] bits, final long[] counters) {
+        return new Payload() {
+            @Override
+            long words() {
+                return bitWords + counters.length;
+            }
+
+            @Override
+            int get(long from, ByteBuffer target) {
+                int count = (int) Math.min(target.remaining() / 8, words() - from);
+                for (int i = 0; i < count; i++) {
+                    long index = from + i;
+                    if (index >= bitWords)
+                        target.putLong(counters[(int) (index - bitWords)]);
+                    else
+                        // BitSet.toLongArray() omits trailing zero words
+                        target.putLong(index < bits.length ? bits[(int) index] : 0);
+                }
+                return count;
+            }
+        };
+    }
+
+    private static Payload offHeapPayload(final BloomFilterOffHeap<?> filter) {
+        final long words = bitWords(filter.config().longSize());
+        return new Payload() {
+            @Override
+            long words() {
+                return words;
+            }
+
+            @Override
+            int get(long from, ByteBuffer target) {
+                return filter.getWords(from, target);
+            }
+        };
+    }
+}
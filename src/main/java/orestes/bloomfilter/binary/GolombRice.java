@@ -0,0 +1,321 @@
+package orestes.bloomfilter.binary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Compresses the bits of a Bloom filter by Golomb-Rice coding the gaps between its set bits. A sparse filter, e.g. a
+ * cache sketch that holds few elements or a filter configured for compression (see {@link
+ * orestes.bloomfilter.FilterBuilder#optimizeCompressedSize(long)}), shrinks to about the entropy of its bits, whereas
+ * a filter filled to its capacity does not compress.
+ * <p>
+ * The coded bits consist of the number of set bits <i>n</i> as little-endian 64 bit integer, the Rice parameter
+ * <i>r</i> as one byte and a bit stream holding for every set bit, in ascending order, the number of unset bits
+ * preceding it: the quotient of this gap and 2^r in unary (as many ones, then a zero) followed by its r lowest bits.
+ * The bit stream fills every byte starting at its lowest bit and is padded to whole bytes.
+ */
+public class GolombRice {
+    private static final int HEADER_BYTES = 9;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    /**
+     * Encodes the bits of a Bloom filter.
+     *
+     * @param words the bits as 64 bit words like {@link java.util.BitSet#toLongArray()}
+     * @param size  the size of the filter in bits
+     * @return the coded bits
+     */
+    public static byte[] encode(final long[] words, long size) {
+        return encode(new BinaryFormat.Payload() {
+            @Override
+            long words() {
+                return words.length;
+            }
+
+            @Override
+            int get(long from, ByteBuffer target) {
+                int count = (int) Math.min(target.remaining() / 8, words.length - from);
+                for (int i = 0; i < count; i++) {
+                    target.putLong(words[(int) from + i]);
+                }
+                return count;
+            }
+        }, words.length, size, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decodes the bits of a Bloom filter.
+     *
+     * @param coded the coded bits
+     * @param size  the size of the filter in bits
+     * @return the bits as (size + 63) / 64 words
+     * @throws IOException if the coded bits are malformed
+     */
+    public static long[] decode(byte[] coded, long size) throws IOException {
+        final long[] words = new long[(int) ((size + 63) >>> 6)];
+        decode(coded, 0, size, new BinaryFormat.Sink() {
+            @Override
+            int put(long from, ByteBuffer source) {
+                int count = source.remaining() / 8;
+                for (int i = 0; i < count; i++) {
+                    words[(int) from + i] = source.getLong();
+                }
+                return count;
+            }
+        });
+        return words;
+    }
+
+    /**
+     * @param payload  the words of the filter, of which the first bitWords are encoded
+     * @param bitWords the number of words holding the bits of the filter
+     * @param size     the size of the filter in bits
+     * @param maxBytes the size the coded bits must not exceed
+     * @return the coded bits or {@code null} if they would exceed maxBytes
+     */
+    static byte[] encode(BinaryFormat.Payload payload, long bitWords, long size, long maxBytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long ones = 0;
+        for (long i = 0; i < bitWords; ) {
+            i += fill(payload, i, bitWords, buffer);
+            while (buffer.hasRemaining()) {
+                ones += Long.bitCount(buffer.getLong());
+            }
+        }
+        int r = riceParameter(size, ones);
+        long mask = (1L << r) - 1;
+
+        long estimate = Math.min(maxBytes, ones * (r + 2) / 8 + HEADER_BYTES);
+        BitWriter out = new BitWriter((int) Math.max(16, Math.min(Integer.MAX_VALUE - 8, estimate)));
+        out.write(ones, 32);
+        out.write(ones >>> 32, 32);
+        out.write(r, 8);
+        long previous = -1;
+        for (long i = 0; i < bitWords; ) {
+            long index = i;
+            i += fill(payload, i, bitWords, buffer);
+            for (; buffer.hasRemaining(); index++) {
+                long word = buffer.getLong();
+                while (word != 0) {
+                    long position = index * 64 + Long.numberOfTrailingZeros(word);
+                    long gap = position - previous - 1;
+                    out.unary(gap >>> r);
+                    out.writeLong(gap & mask, r);
+                    previous = position;
+                    word &= word - 1;
+                }
+                if (out.length() > maxBytes)
+                    return null;
+            }
+        }
+        byte[] coded = out.toByteArray();
+        return coded.length > maxBytes ? null : coded;
+    }
+
+    private static int fill(BinaryFormat.Payload payload, long from, long bitWords, ByteBuffer buffer) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), (bitWords - from) * 8));
+        int count = payload.get(from, buffer);
+        buffer.flip();
+        return count;
+    }
+
+    /**
+     * Chooses the Rice parameter for gaps that are geometrically distributed with the mean implied by the fraction of
+     * set bits, i.e. the logarithm of the optimal Golomb parameter <i>ln(2) * mean</i>.
+     */
+    static int riceParameter(long size, long ones) {
+        if (ones == 0)
+            return 0;
+        double golomb = Math.log(2) * (size - ones) / ones;
+        return golomb < 1 ? 0 : Math.min(62, 63 - Long.numberOfLeadingZeros((long) golomb));
+    }
+
+    /**
+     * Decodes coded bits into words, which are passed to the sink in order.
+     *
+     * @param coded  the array holding the coded bits
+     * @param offset the offset of the coded bits in the array
+     * @param size   the size of the filter in bits
+     * @param sink   receives the (size + 63) / 64 words of the filter
+     * @return the offset following the coded bits
+     * @throws IOException if the coded bits are malformed
+     */
+    static int decode(byte[] coded, int offset, long size, BinaryFormat.Sink sink) throws IOException {
+        if (coded.length - offset < HEADER_BYTES)
+            throw new IOException("The compressed bits are truncated.");
+        ByteBuffer header = ByteBuffer.wrap(coded, offset, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long ones = header.getLong();
+        int r = header.get() & 0xFF;
+        if (ones < 0 || ones > size || r > 62)
+            throw new IOException("Malformed header of the compressed bits.");
+
+        BitReader in = new BitReader(coded, offset + HEADER_BYTES);
+        WordWriter out = new WordWriter(sink);
+        long word = 0;
+        long wordIndex = 0;
+        long position = -1;
+        for (long i = 0; i < ones; i++) {
+            long quotient = in.unary();
+            if (quotient > (size >>> r))
+                throw new IOException("Malformed compressed bits.");
+            position += (quotient << r | in.readLong(r)) + 1;
+            if (position >= size)
+                throw new IOException("Malformed compressed bits.");
+            for (long index = position >>> 6; wordIndex < index; wordIndex++) {
+                out.put(word);
+                word = 0;
+            }
+            word |= 1L << position;
+        }
+        for (long words = (size + 63) >>> 6; wordIndex < words; wordIndex++) {
+            out.put(word);
+            word = 0;
+        }
+        out.flush();
+        return in.offset();
+    }
+
+    /**
+     * Collects decoded words into a buffer that is passed to the sink when it is full.
+     */
+    private static class WordWriter {
+        private final BinaryFormat.Sink sink;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private long from = 0;
+
+        WordWriter(BinaryFormat.Sink sink) {
+            this.sink = sink;
+        }
+
+        void put(long word) {
+            buffer.putLong(word);
+            if (!buffer.hasRemaining())
+                flush();
+        }
+
+        void flush() {
+            buffer.flip();
+            if (buffer.hasRemaining())
+                from += sink.put(from, buffer);
+            buffer.clear();
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] bytes;
+        private int length = 0;
+        private long pending = 0;
+        private int pendingBits = 0;
+
+        BitWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        /**
+         * Writes the lowest bits of a value, at most 32.
+         */
+        void write(long value, int bits) {
+            pending |= (value & ((1L << bits) - 1)) << pendingBits;
+            pendingBits += bits;
+            while (pendingBits >= 8) {
+                if (length == bytes.length)
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, 2L * bytes.length));
+                bytes[length++] = (byte) pending;
+                pending >>>= 8;
+                pendingBits -= 8;
+            }
+        }
+
+        void writeLong(long value, int bits) {
+            if (bits > 32) {
+                write(value, 32);
+                write(value >>> 32, bits - 32);
+            } else {
+                write(value, bits);
+            }
+        }
+
+        void unary(long value) {
+            for (; value >= 32; value -= 32) {
+                write(0xFFFFFFFFL, 32);
+            }
+            write((1L << value) - 1, (int) value + 1);
+        }
+
+        long length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            if (pendingBits > 0)
+                write(0, 8 - pendingBits);
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] bytes;
+        private int offset;
+        private long pending = 0;
+        private int pendingBits = 0;
+
+        BitReader(byte[] bytes, int offset) {
+            this.bytes = bytes;
+            this.offset = offset;
+        }
+
+        private void refill() throws IOException {
+            if (offset == bytes.length)
+                throw new IOException("The compressed bits are truncated.");
+            pending |= (bytes[offset++] & 0xFFL) << pendingBits;
+            pendingBits += 8;
+        }
+
+        /**
+         * Reads a value of at most 32 bits.
+         */
+        long read(int bits) throws IOException {
+            while (pendingBits < bits) {
+                refill();
+            }
+            long value = pending & ((1L << bits) - 1);
+            pending >>>= bits;
+            pendingBits -= bits;
+            return value;
+        }
+
+        long readLong(int bits) throws IOException {
+            if (bits > 32)
+                return read(32) | read(bits - 32) << 32;
+            return read(bits);
+        }
+
+        long unary() throws IOException {
+            long value = 0;
+            while (true) {
+                if (pendingBits == 0)
+                    refill();
+                int ones = Math.min(Long.numberOfTrailingZeros(~pending), pendingBits);
+                if (ones < pendingBits) {
+                    value += ones;
+                    pending >>>= ones + 1;
+                    pendingBits -= ones + 1;
+                    return value;
+                }
+                value += ones;
+                pending = 0;
+                pendingBits = 0;
+            }
+        }
+
+        /**
+         * @return the offset of the first byte that was not read
+         */
+        int offset() {
+            return offset;
+        }
+    }
+}
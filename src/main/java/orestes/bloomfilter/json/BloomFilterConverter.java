@@ -1,5 +1,7 @@
 package orestes.bloomfilter.json;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.BitSet;
 
 import javax.xml.bind.DatatypeConverter;
@@ -7,11 +9,14 @@ import javax.xml.bind.DatatypeConverter;
 import orestes.bloomfilter.BloomFilter;
 import orestes.bloomfilter.FilterBuilder;
 import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.binary.GolombRice;
+import orestes.bloomfilter.memory.SplitBlockBloomFilterMemory;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 public class BloomFilterConverter {
+    private static final String COMPRESSION = "GolombRice";
 
     /**
      * Converts a normal or Counting Bloom filter to a JSON representation of a non-counting Bloom filter.
@@ -20,11 +25,37 @@ public class BloomFilterConverter {
      * @return the JSON representation of the Bloom filter
      */
     public static JsonElement toJson(BloomFilter<?> source) {
+        return toJson(source, false);
+    }
+
+    /**
+     * Converts a normal or Counting Bloom filter to a JSON representation of a non-counting Bloom filter. If
+     * compression is requested and the filter is sparse, the bits are Golomb-Rice coded (see {@link GolombRice}) and
+     * the property "compression" is set to "GolombRice". The properties "blocked" and "splitBlock" mark blocked and
+     * split block Bloom filters, whose bits are only meaningful with their layout.
+     *
+     * @param source   the Bloom filter to convert
+     * @param compress whether to compress the bits if that makes them smaller
+     * @return the JSON representation of the Bloom filter
+     */
+    public static JsonElement toJson(BloomFilter<?> source, boolean compress) {
         JsonObject root = new JsonObject();
         root.addProperty("size", source.getSize());
         root.addProperty("hashes", source.getHashes());
         root.addProperty("HashMethod", source.config().hashMethod().name());
-        byte[] bits = source.getBitSet().toByteArray();
+        if (source.config().blocked())
+            root.addProperty("blocked", true);
+        if (source.config().splitBlock())
+            root.addProperty("splitBlock", true);
+        BitSet bitSet = source.getBitSet();
+        byte[] bits = bitSet.toByteArray();
+        if (compress) {
+            byte[] coded = GolombRice.encode(bitSet.toLongArray(), source.getSize());
+            if (coded.length < bits.length) {
+                root.addProperty("compression", COMPRESSION);
+                bits = coded;
+            }
+        }
 
         // Encode using Arrays.toString -> [0,16,0,0,32].
         // root.addProperty("bits", Arrays.toString(bits));
@@ -56,14 +87,30 @@ public class BloomFilterConverter {
         JsonObject root = source.getAsJsonObject();
         int m = root.get("size").getAsInt();
         int k = root.get("hashes").getAsInt();
-        String hashMethod = root.get("HashMethod").getAsString();
+        // Filters without a recorded hash method were created with the former default
+        String hashMethod = root.has("HashMethod") ? root.get("HashMethod").getAsString() : HashMethod.MD5.name();
         byte[] bits = DatatypeConverter.parseBase64Binary(root.get("bits").getAsString());
+        if (root.has("compression")) {
+            if (!COMPRESSION.equals(root.get("compression").getAsString()))
+                throw new IllegalArgumentException("Unsupported compression " + root.get("compression") + ".");
+            try {
+                bits = BitSet.valueOf(GolombRice.decode(bits, m)).toByteArray();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Malformed compressed bits.", e);
+            }
+        }
+
+        // The bits of a split block filter are its 32 bit words in little-endian order like Parquet's bitset
+        if (root.has("splitBlock") && root.get("splitBlock").getAsBoolean())
+            return SplitBlockBloomFilterMemory.fromParquetBitset(Arrays.copyOf(bits, m / 8));
+        boolean blocked = root.has("blocked") && root.get("blocked").getAsBoolean();
 
         FilterBuilder builder = new FilterBuilder(m, k)
-                .hashFunction(HashMethod.valueOf(hashMethod));
+                .hashFunction(HashMethod.valueOf(hashMethod))
+                .blocked(blocked);
 
         BloomFilter<T> filter = builder.buildBloomFilter();
-        filter.getBitSet().and(BitSet.valueOf(bits));
+        filter.getBitSet().or(BitSet.valueOf(bits));
 
         return filter;
     }
@@ -0,0 +1,57 @@
+package orestes.bloomfilter.memory;
+
+import orestes.bloomfilter.FilterBuilder;
+
+/**
+ * A blocked Bloom filter (see Putze, Sanders and Singler: "Cache-, Hash- and Space-Efficient Bloom Filters",
+ * http://algo2.iti.kit.edu/documents/cacheefficientbloomfilters-jea.pdf). The bit vector is divided into blocks of
+ * {@link #BLOCK_BITS} bits, i.e. 64 bytes, and all k bits of an element are placed in the same block. Hence each add and
+ * contains touches a single cache line (or two adjacent ones, depending on the alignment of the array) instead of k
+ * random cache lines, which matters for filters that are much larger than the CPU caches.
+ * <p>
+ * The first hash value selects the block and its position inside the block, the remaining k-1 hash values are mapped
+ * to positions inside that block. The size of the filter is therefore always a multiple of {@link #BLOCK_BITS}. Since
+ * elements are not spread evenly over the blocks, the false positive probability is slightly higher than that of a
+ * regular Bloom filter of the same size, see {@link FilterBuilder#optimalPBlocked(long, long, double)}.
+ *
+ * @param <T>
+ */
+public class BlockedBloomFilterMemory<T> extends BloomFilterMemory<T> {
+    /**
+     * The number of bits in one block, which matches the size of a cache line on common CPUs.
+     */
+    public static final int BLOCK_BITS = 512;
+
+    public BlockedBloomFilterMemory(FilterBuilder config) {
+        super(blockedConfig(config));
+    }
+
+    private static FilterBuilder blockedConfig(FilterBuilder config) {
+        config.blocked(true).complete();
+        if (config.size() % BLOCK_BITS != 0)
+            throw new IllegalArgumentException("The size of a blocked Bloom filter has to be a multiple of " + BLOCK_BITS
+                    + " bits. Set blocked(true) before completing the FilterBuilder.");
+        return config;
+    }
+
+    @Override
+    public int[] hash(byte[] bytes) {
+        return hash(bytes, new int[config().hashes()]);
+    }
+
+    @Override
+    public int[] hash(byte[] bytes, int[] positions) {
+        super.hash(bytes, positions);
+        int block = positions[0] & -BLOCK_BITS;
+        for (int i = 1; i < config().hashes(); i++) {
+            positions[i] = block | (positions[i] & (BLOCK_BITS - 1));
+        }
+        return positions;
+    }
+
+    @Override
+    public double getFalsePositiveProbability(double insertedElements) {
+        return FilterBuilder.optimalPBlocked(config().hashes(), config().size(), insertedElements);
+    }
+
+}
@@ -0,0 +1,219 @@
+package orestes.bloomfilter.memory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+
+/**
+ * A persistent Bloom filter whose bits live in a memory-mapped file. Opening an existing file does not read or rebuild
+ * the filter: the operating system pages the bits in on demand, so a filter of several gigabytes is available
+ * immediately after a restart. Added elements are written through the page cache and reach the disk eventually or
+ * when {@link #force()} is called, e.g. at regular checkpoints or before shutting down.
+ * <p>
+ * The file starts with a header of {@link #HEADER_BYTES} bytes storing the size, the number of hashes and the hash
+ * method of the filter, followed by the bits as little-endian 64 bit words. When a filter is opened, the header has to
+ * match the configuration, except that the size and hashes are taken from the header if the configuration specifies
+ * neither them nor the expected elements. Use {@link FilterBuilder#mappedFile(String)} to build mapped Bloom filters.
+ * A file must not be opened by more than one filter at a time.
+ *
+ * @param <T>
+ */
+public class BloomFilterMapped<T> extends BloomFilterOffHeap<T> implements Closeable {
+    /**
+     * The number of bytes of the file header, a page so that the bits are page aligned
+     */
+    public static final int HEADER_BYTES = 4096;
+    private static final int MAGIC = 0x4F424D46;
+    private static final int VERSION = 1;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final transient FileChannel channel;
+    private final transient MappedByteBuffer[] mapped;
+
+    public BloomFilterMapped(FilterBuilder config) {
+        this(config, CHUNK_BYTES);
+    }
+
+    /**
+     * Opens or creates a mapped Bloom filter, mapping the file in chunks of the given size.
+     *
+     * @param config     the configuration of the filter including the file (see {@link FilterBuilder#mappedFile(String)})
+     * @param chunkBytes the maximum number of bytes of one chunk, a power of two between 8 and {@link #CHUNK_BYTES}
+     */
+    public BloomFilterMapped(FilterBuilder config, int chunkBytes) {
+        this(config, chunkBytes, open(config, chunkBytes));
+    }
+
+    private BloomFilterMapped(FilterBuilder config, int chunkBytes, FileChannel channel) {
+        this(config, chunkBytes, channel, map(channel, config, chunkBytes));
+    }
+
+    private BloomFilterMapped(FilterBuilder config, int chunkBytes, FileChannel channel, MappedByteBuffer[] mapped) {
+        super(config, chunkBytes, mapped);
+        this.channel = channel;
+        this.mapped = mapped;
+    }
+
+    private static FileChannel open(FilterBuilder config, int chunkBytes) {
+        if (config.mappedFile() == null)
+            throw new IllegalArgumentException("No file was specified for the mapped Bloom filter.");
+        validate(config, chunkBytes);
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(config.mappedFile(), "rw").getChannel();
+            long length = HEADER_BYTES + ((config.longSize() + 63) >>> 6) * 8;
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(config.longSize()).putInt(config.hashes());
+                byte[] hashMethod = config.hashMethod().name().getBytes(ASCII);
+                header.putShort((short) hashMethod.length).put(hashMethod);
+                header.clear();
+                channel.write(header, 0);
+                // Extends the file without writing the bits, which are zero
+                channel.write(ByteBuffer.allocate(1), length - 1);
+                channel.force(true);
+            } else {
+                Header header = readHeader(channel);
+                if (header.size != config.longSize() || header.hashes != config.hashes()
+                        || !header.hashMethod.equals(config.hashMethod().name()))
+                    throw new IllegalArgumentException("The Bloom filter in " + config.mappedFile() + " has size "
+                            + header.size + ", " + header.hashes + " hashes and hash method " + header.hashMethod
+                            + " instead of size " + config.longSize() + ", " + config.hashes()
+                            + " hashes and hash method " + config.hashMethod() + ".");
+                if (channel.size() < length)
+                    throw new IllegalArgumentException("The file " + config.mappedFile() + " is truncated, it has "
+                            + channel.size() + " instead of " + length + " bytes.");
+            }
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            close(channel);
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            throw new RuntimeException("Could not open the mapped Bloom filter " + config.mappedFile() + ".", e);
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, FilterBuilder config, int chunkBytes) {
+        int[] lengths = chunkLengths(config.longSize(), chunkBytes);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[lengths.length];
+        try {
+            for (int i = 0; i < mapped.length; i++) {
+                mapped[i] = channel.map(MapMode.READ_WRITE, HEADER_BYTES + (long) i * chunkBytes, lengths[i]);
+                mapped[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return mapped;
+        } catch (IOException e) {
+            close(channel);
+            throw new RuntimeException("Could not map the Bloom filter " + config.mappedFile() + ".", e);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The original failure is more relevant
+        }
+    }
+
+    /**
+     * Reads the configuration stored in the header of a mapped Bloom filter file.
+     *
+     * @param file the file of the filter
+     * @return a builder with the size, hashes and hash method of the stored filter or {@code null} if the file does not
+     * exist or is empty
+     * @throws IllegalArgumentException if the file is not a mapped Bloom filter
+     */
+    public static FilterBuilder readHeader(File file) {
+        if (file.length() == 0)
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            Header header = readHeader(raf.getChannel());
+            return new FilterBuilder(header.size, header.hashes).hashFunction(HashMethod.valueOf(header.hashMethod))
+                    .mappedFile(file.getPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the header of the mapped Bloom filter " + file + ".", e);
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt() != MAGIC)
+            throw new IllegalArgumentException("The file is not a mapped Bloom filter.");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported version " + version + " of the mapped Bloom filter.");
+        Header header = new Header();
+        header.size = buffer.getLong();
+        header.hashes = buffer.getInt();
+        byte[] hashMethod = new byte[buffer.getShort()];
+        buffer.get(hashMethod);
+        header.hashMethod = new String(hashMethod, ASCII);
+        return header;
+    }
+
+    private static class Header {
+        long size;
+        int hashes;
+        String hashMethod;
+    }
+
+    /**
+     * Writes all changes of the filter to the file, i.e. creates a checkpoint that survives a crash of the operating
+     * system. Without calling this method, changes are persisted by the operating system at its own discretion, which
+     * suffices if only the process may fail.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer chunk : mapped) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * Forces all changes to the file and closes it. The mapping itself is released when the filter is garbage
+     * collected, the filter must not be used after closing it.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * Returns an off-heap copy of this filter, which is not backed by the file.
+     *
+     * @return a copy of the filter
+     */
+    @Override
+    public synchronized BloomFilterOffHeap<T> clone() {
+        BloomFilterOffHeap<T> copy = new BloomFilterOffHeap<>(config().clone().mappedFile(null), chunkBytes());
+        copy.union(this);
+        return copy;
+    }
+
+    /**
+     * Mapped filters are serialized as off-heap copies, the file itself stays with the process that owns it.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return clone();
+    }
+}
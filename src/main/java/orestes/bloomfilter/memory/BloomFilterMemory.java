@@ -23,7 +23,7 @@ public class BloomFilterMemory<T> extends BloomFilter<T> {
     @Override
     public synchronized boolean add(byte[] element) {
         boolean added = false;
-        for (int position : hash(element)) {
+        for (int position : hashBuffered(element)) {
             if (!getBit(position)) {
                 added = true;
                 setBit(position, true);
@@ -39,7 +39,7 @@ public class BloomFilterMemory<T> extends BloomFilter<T> {
 
     @Override
     public synchronized boolean contains(byte[] element) {
-        for (int position : hash(element))
+        for (int position : hashBuffered(element))
             if (!getBit(position))
                 return false;
         return true;
@@ -0,0 +1,402 @@
+package orestes.bloomfilter.memory;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.HashProvider.LongHashFunction;
+
+/**
+ * A Bloom filter whose bits are stored outside of the Java heap in direct {@link ByteBuffer}s. The bits are addressed
+ * by long indexes and the bit vector is split into chunks of at most {@link #CHUNK_BYTES} bytes, so the filter can
+ * have more than {@link Integer#MAX_VALUE} bits, e.g. 16 GB for billions of elements. As the bits are not part of the
+ * heap, they are never copied or scanned by the garbage collector. The direct memory is released when the filter is
+ * garbage collected and is limited by the JVM option -XX:MaxDirectMemorySize.
+ * <p>
+ * The positions of an element are generated as longs by a {@link LongHashFunction}, i.e. {@link
+ * HashMethod#Murmur3x64} or {@link HashMethod#XXHash64}. Use {@link FilterBuilder#offHeap(boolean)} to build off-heap
+ * Bloom filters. {@link #getBitSet()} is only available for filters of at most {@link Integer#MAX_VALUE} bits.
+ *
+ * @param <T>
+ */
+public class BloomFilterOffHeap<T> extends BloomFilter<T> {
+    /**
+     * The maximum number of bytes of one chunk of the bit vector
+     */
+    public static final int CHUNK_BYTES = 1 << 30;
+
+    private final FilterBuilder config;
+    private final LongHashFunction hashFunction;
+    private final long size;
+    private final int chunkShift;
+    private final long chunkMask;
+    private transient ByteBuffer[] chunks;
+    private transient volatile ThreadLocal<long[]> positionBuffer;
+
+    public BloomFilterOffHeap(FilterBuilder config) {
+        this(config, CHUNK_BYTES);
+    }
+
+    /**
+     * Creates an off-heap Bloom filter with a custom chunk size, e.g. to keep each chunk within a memory page size.
+     *
+     * @param config     the configuration of the filter
+     * @param chunkBytes the maximum number of bytes of one chunk, a power of two between 8 and {@link #CHUNK_BYTES}
+     */
+    public BloomFilterOffHeap(FilterBuilder config, int chunkBytes) {
+        this(config, chunkBytes, null);
+    }
+
+    /**
+     * Creates an off-heap Bloom filter on existing chunks, e.g. regions of a memory-mapped file.
+     *
+     * @param config     the configuration of the filter
+     * @param chunkBytes the maximum number of bytes of one chunk, a power of two between 8 and {@link #CHUNK_BYTES}
+     * @param chunks     the chunks of the bit vector with the lengths given by {@link #chunkLengths(long, int)} or
+     *                   {@code null} to allocate direct buffers
+     */
+    protected BloomFilterOffHeap(FilterBuilder config, int chunkBytes, ByteBuffer[] chunks) {
+        validate(config, chunkBytes);
+        this.config = config;
+        this.hashFunction = (LongHashFunction) config.hashFunction();
+        this.size = config.longSize();
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkBytes / 8);
+        this.chunkMask = (chunkBytes / 8) - 1;
+        if (chunks == null)
+            allocate();
+        else
+            this.chunks = chunks;
+    }
+
+    static void validate(FilterBuilder config, int chunkBytes) {
+        config.complete();
+        if (!(config.hashFunction() instanceof LongHashFunction))
+            throw new IllegalArgumentException("Off-heap Bloom filters need a hash function generating long positions, "
+                    + "e.g. " + HashMethod.Murmur3x64 + " or " + HashMethod.XXHash64 + ".");
+        if (chunkBytes < 8 || chunkBytes > CHUNK_BYTES || Integer.bitCount(chunkBytes) != 1)
+            throw new IllegalArgumentException("The chunk size has to be a power of two between 8 and " + CHUNK_BYTES
+                    + " bytes.");
+        if (config.longSize() <= 0 || config.longSize() > HashProvider.MAX_LONG_M)
+            throw new IllegalArgumentException("The size of an off-heap Bloom filter has to be between 1 and "
+                    + HashProvider.MAX_LONG_M + " bits.");
+    }
+
+    /**
+     * @param size       the size of the filter in bits
+     * @param chunkBytes the maximum number of bytes of one chunk
+     * @return the number of bytes of each chunk of the bit vector, which is stored in whole 64 bit words
+     */
+    static int[] chunkLengths(long size, int chunkBytes) {
+        long bytes = ((size + 63) >>> 6) * 8;
+        int[] lengths = new int[(int) ((bytes + chunkBytes - 1) / chunkBytes)];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = (int) Math.min(chunkBytes, bytes - (long) i * chunkBytes);
+        }
+        return lengths;
+    }
+
+    /**
+     * Creates an off-heap Bloom filter on the bits in the given buffer without copying them, i.e. the filter reads and
+     * writes the buffer.
+     *
+     * @param config the configuration of the filter
+     * @param words  a buffer holding the bits as little-endian 64 bit words from its position on
+     * @param <T>    the type of the elements
+     * @return a Bloom filter backed by the buffer
+     */
+    public static <T> BloomFilterOffHeap<T> wrap(FilterBuilder config, ByteBuffer words) {
+        validate(config, CHUNK_BYTES);
+        int[] lengths = chunkLengths(config.longSize(), CHUNK_BYTES);
+        ByteBuffer source = words.slice();
+        ByteBuffer[] chunks = new ByteBuffer[lengths.length];
+        for (int i = 0; i < chunks.length; i++) {
+            int start = i * CHUNK_BYTES;
+            if (source.capacity() - start < lengths[i])
+                throw new IllegalArgumentException("The buffer holds less than the " + ((config.longSize() + 63) >>> 6)
+                        + " words of the filter.");
+            source.limit(start + lengths[i]).position(start);
+            chunks[i] = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new BloomFilterOffHeap<>(config, CHUNK_BYTES, chunks);
+    }
+
+    private void allocate() {
+        int[] lengths = chunkLengths(size, chunkBytes());
+        chunks = new ByteBuffer[lengths.length];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(lengths[i]).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * @return the maximum number of bytes of one chunk
+     */
+    protected int chunkBytes() {
+        return (int) (chunkMask + 1) * 8;
+    }
+
+    @Override
+    public FilterBuilder config() {
+        return config;
+    }
+
+    /**
+     * Returns the k long hash values of an element.
+     *
+     * @param bytes input element
+     * @return hash values in the range [0, size)
+     */
+    public long[] longHash(byte[] bytes) {
+        long[] positions = new long[config.hashes()];
+        hashFunction.hash(bytes, size, config.hashes(), positions);
+        return positions;
+    }
+
+    /**
+     * Like {@link #longHash(byte[])} but writes into a buffer owned by the calling thread, see {@link
+     * #hashBuffered(byte[])}.
+     */
+    private long[] longHashBuffered(byte[] bytes) {
+        ThreadLocal<long[]> buffer = positionBuffer;
+        if (buffer == null) {
+            buffer = new ThreadLocal<long[]>();
+            positionBuffer = buffer;
+        }
+        long[] positions = buffer.get();
+        if (positions == null || positions.length != config.hashes()) {
+            positions = new long[config.hashes()];
+            buffer.set(positions);
+        }
+        hashFunction.hash(bytes, size, config.hashes(), positions);
+        return positions;
+    }
+
+    private long word(long index) {
+        return chunks[(int) (index >>> chunkShift)].getLong((int) (index & chunkMask) << 3);
+    }
+
+    private void setWord(long index, long word) {
+        chunks[(int) (index >>> chunkShift)].putLong((int) (index & chunkMask) << 3, word);
+    }
+
+    private long words() {
+        return (size + 63) >>> 6;
+    }
+
+    @Override
+    public synchronized boolean add(byte[] element) {
+        boolean added = false;
+        for (long position : longHashBuffered(element)) {
+            long index = position >>> 6;
+            long word = word(index);
+            long mask = 1L << position;
+            if ((word & mask) == 0) {
+                added = true;
+                setWord(index, word | mask);
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public synchronized boolean contains(byte[] element) {
+        for (long position : longHashBuffered(element)) {
+            if ((word(position >>> 6) & (1L << position)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param index a bit index in [0, size)
+     * @return the value of the bit
+     */
+    public synchronized boolean getBit(long index) {
+        return (word(index >>> 6) & (1L << index)) != 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (ByteBuffer chunk : chunks) {
+            for (int i = 0; i < chunk.capacity(); i += 8) {
+                chunk.putLong(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the bits of this filter, i.e. modifying the returned BitSet does not modify the filter.
+     *
+     * @return the bits of this filter
+     * @throws UnsupportedOperationException if the filter has more than {@link Integer#MAX_VALUE} bits
+     */
+    @Override
+    public synchronized BitSet getBitSet() {
+        if (size > Integer.MAX_VALUE)
+            throw new UnsupportedOperationException("A BitSet cannot hold the " + size + " bits of this filter.");
+        long[] words = new long[(int) words()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = word(i);
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Copies 64 bit words of the bit vector into the given buffer, as many as fit into it.
+     *
+     * @param from   the index of the first word
+     * @param target the buffer to fill in its byte order
+     * @return the number of copied words
+     */
+    public synchronized int getWords(long from, ByteBuffer target) {
+        int count = (int) Math.min(target.remaining() / 8, words() - from);
+        for (int i = 0; i < count; i++) {
+            target.putLong(word(from + i));
+        }
+        return count;
+    }
+
+    /**
+     * Overwrites 64 bit words of the bit vector with the remaining words of the given buffer.
+     *
+     * @param from   the index of the first word to overwrite
+     * @param source the buffer holding the words in its byte order
+     * @return the number of overwritten words
+     */
+    public synchronized int setWords(long from, ByteBuffer source) {
+        int count = (int) Math.min(source.remaining() / 8, words() - from);
+        for (int i = 0; i < count; i++) {
+            setWord(from + i, source.getLong());
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized boolean union(BloomFilter<T> other) {
+        if (compatible(this, other)) {
+            Words others = words(other);
+            for (long i = 0; i < words(); i++) {
+                setWord(i, word(i) | others.get(i));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean intersect(BloomFilter<T> other) {
+        if (compatible(this, other)) {
+            Words others = words(other);
+            for (long i = 0; i < words(); i++) {
+                setWord(i, word(i) & others.get(i));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private Words words(BloomFilter<T> other) {
+        if (other instanceof BloomFilterOffHeap) {
+            // Like the in-memory filters, the bits of the other filter are read without copying them
+            final BloomFilterOffHeap<T> that = (BloomFilterOffHeap<T>) other;
+            return new Words() {
+                @Override
+                long get(long index) {
+                    return that.word(index);
+                }
+            };
+        }
+        final long[] longs = other.getBitSet().toLongArray();
+        return new Words() {
+            @Override
+            long get(long index) {
+                return index < longs.length ? longs[(int) index] : 0;
+            }
+        };
+    }
+
+    private static abstract class Words {
+        abstract long get(long index);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        for (long i = 0; i < words(); i++) {
+            if (word(i) != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bits set to one
+     */
+    public synchronized long cardinality() {
+        long oneBits = 0;
+        for (long i = 0; i < words(); i++) {
+            oneBits += Long.bitCount(word(i));
+        }
+        return oneBits;
+    }
+
+    @Override
+    public Double getEstimatedPopulation() {
+        return BloomFilter.population(cardinality(), config());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized BloomFilterOffHeap<T> clone() {
+        BloomFilterOffHeap<T> o = (BloomFilterOffHeap<T>) super.clone();
+        o.positionBuffer = null;
+        o.chunks = new ByteBuffer[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            ByteBuffer source = chunks[i].duplicate();
+            source.clear();
+            o.chunks[i] = ByteBuffer.allocateDirect(source.capacity()).order(ByteOrder.nativeOrder());
+            o.chunks[i].put(source);
+        }
+        return o;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Bloom Filter Parameters: size = " + size + ", hashes = " + config.hashes() + ", Bits set: "
+                + cardinality();
+    }
+
+    @Override
+    public synchronized boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BloomFilterOffHeap)) return false;
+
+        BloomFilterOffHeap that = (BloomFilterOffHeap) o;
+
+        if (config != null ? !config.isCompatibleTo(that.config) : that.config != null) return false;
+        for (long i = 0; i < words(); i++) {
+            if (word(i) != that.word(i)) return false;
+        }
+        return true;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        for (long i = 0; i < words(); i++) {
+            out.writeLong(word(i));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        allocate();
+        for (long i = 0; i < words(); i++) {
+            setWord(i, in.readLong());
+        }
+    }
+}
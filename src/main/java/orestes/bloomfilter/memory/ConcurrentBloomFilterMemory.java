@@ -0,0 +1,174 @@
+package orestes.bloomfilter.memory;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+
+/**
+ * An in-memory Bloom filter that can be accessed by many threads without locking. In contrast to
+ * {@link BloomFilterMemory}, which guards a {@link BitSet} by a single monitor, the bits are stored in an
+ * {@link AtomicLongArray}. Reads ({@link #contains(byte[])}) are wait-free and writes ({@link #add(byte[])}) are
+ * lock-free: each bit is set through a compare-and-set on the word it lives in, so concurrent writers never block
+ * readers or each other.
+ * <p>
+ * Bulk operations ({@link #clear()}, {@link #union(BloomFilter)} and {@link #intersect(BloomFilter)}) are applied
+ * word by word and are therefore not atomic with respect to concurrent adds. {@link #getBitSet()} returns a snapshot
+ * copy of the bits, i.e. modifying the returned BitSet does not modify the filter.
+ * 
+ * @param <T>
+ */
+public class ConcurrentBloomFilterMemory<T> extends BloomFilter<T> {
+    private final FilterBuilder config;
+    protected AtomicLongArray bloom;
+
+    public ConcurrentBloomFilterMemory(FilterBuilder config) {
+        config.complete();
+        this.config = config;
+        this.bloom = new AtomicLongArray(words(config.size()));
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    @Override
+    public FilterBuilder config() {
+        return config;
+    }
+
+    @Override
+    public boolean add(byte[] element) {
+        boolean added = false;
+        for (int position : hashBuffered(element)) {
+            if (setBit(position)) {
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public boolean contains(byte[] element) {
+        for (int position : hashBuffered(element))
+            if (!getBit(position))
+                return false;
+        return true;
+    }
+
+    protected boolean getBit(int index) {
+        return (bloom.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Atomically sets the bit at the given index.
+     * 
+     * @param index the bit to set
+     * @return {@code true} if this call changed the bit from zero to one
+     */
+    protected boolean setBit(int index) {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long old = bloom.get(word);
+            if ((old & mask) != 0) return false;
+            if (bloom.compareAndSet(word, old, old | mask)) return true;
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < bloom.length(); i++) {
+            bloom.set(i, 0L);
+        }
+    }
+
+    @Override
+    public BitSet getBitSet() {
+        return BitSet.valueOf(toLongArray());
+    }
+
+    private long[] toLongArray() {
+        long[] words = new long[bloom.length()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = bloom.get(i);
+        }
+        return words;
+    }
+
+    @Override
+    public boolean union(BloomFilter<T> other) {
+        if (compatible(this, other)) {
+            long[] others = other.getBitSet().toLongArray();
+            for (int i = 0; i < others.length && i < bloom.length(); i++) {
+                long old;
+                do {
+                    old = bloom.get(i);
+                } while ((old | others[i]) != old && !bloom.compareAndSet(i, old, old | others[i]));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean intersect(BloomFilter<T> other) {
+        if (compatible(this, other)) {
+            long[] others = other.getBitSet().toLongArray();
+            for (int i = 0; i < bloom.length(); i++) {
+                long mask = i < others.length ? others[i] : 0L;
+                long old;
+                do {
+                    old = bloom.get(i);
+                } while ((old & mask) != old && !bloom.compareAndSet(i, old, old & mask));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < bloom.length(); i++) {
+            if (bloom.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Double getEstimatedPopulation() {
+        int oneBits = 0;
+        for (int i = 0; i < bloom.length(); i++) {
+            oneBits += Long.bitCount(bloom.get(i));
+        }
+        return BloomFilter.population(oneBits, config());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ConcurrentBloomFilterMemory<T> clone() {
+        ConcurrentBloomFilterMemory<T> o = (ConcurrentBloomFilterMemory<T>) super.clone();
+        o.bloom = new AtomicLongArray(toLongArray());
+        return o;
+    }
+
+    @Override
+    public String toString() {
+        return asString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ConcurrentBloomFilterMemory)) return false;
+
+        ConcurrentBloomFilterMemory that = (ConcurrentBloomFilterMemory) o;
+
+        if (config != null ? !config.isCompatibleTo(that.config) : that.config != null) return false;
+        if (!getBitSet().equals(that.getBitSet())) return false;
+
+        return true;
+    }
+
+}
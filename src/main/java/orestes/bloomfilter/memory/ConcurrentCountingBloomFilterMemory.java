@@ -0,0 +1,298 @@
+package orestes.bloomfilter.memory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.CountingBloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+
+/**
+ * An in-memory Counting Bloom filter that can be accessed by many threads without locking. The counters are packed
+ * into an {@link AtomicLongArray} like in {@link CountingBloomFilterMemory} (64 / countingBits counters per word) and
+ * every counter is incremented and decremented through a compare-and-set on its word, so writers on different
+ * elements never block each other or the readers.
+ * <p>
+ * There is no separate membership bit vector: a bit of the Bloom filter is set if and only if its counter is greater
+ * than zero. Hence {@link #contains(byte[])} and {@link #getBitSet()} are always consistent with the counters. Each
+ * counter is updated atomically, but adding or removing an element updates its k counters one after another, so a
+ * concurrent reader may observe some of them already updated.
+ * <p>
+ * {@link #clear()}, {@link #union(BloomFilter)} and {@link #intersect(BloomFilter)} update the counters word by word
+ * and are not atomic with respect to concurrent updates. Union adds the counters of both filters, intersection takes
+ * their minimum.
+ * {@link #getBitSet()} returns a snapshot, i.e. modifying the returned BitSet does not modify the filter.
+ *
+ * @param <T>
+ */
+public class ConcurrentCountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
+    private FilterBuilder config;
+    /**
+     * The counters packed into words of {@link #countersPerWord} counters each. Counters do not span two words, so
+     * every counter is updated by a single compare-and-set.
+     */
+    private AtomicLongArray counts;
+    private final int countersPerWord;
+    private final long counterMask;
+    private final long maxCount;
+    private volatile Runnable overflowHandler = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    public ConcurrentCountingBloomFilterMemory(FilterBuilder config) {
+        config.complete();
+        this.config = config;
+        int bits = config.countingBits();
+        if (bits < 1 || bits > 64)
+            throw new IllegalArgumentException("The number of counting bits has to be between 1 and 64.");
+        this.countersPerWord = 64 / bits;
+        this.counterMask = bits == 64 ? -1L : (1L << bits) - 1;
+        this.maxCount = bits >= 63 ? Long.MAX_VALUE : counterMask;
+        this.counts = new AtomicLongArray((config.size() + countersPerWord - 1) / countersPerWord);
+    }
+
+    @Override
+    public boolean contains(byte[] element) {
+        for (int hash : hashBuffered(element)) {
+            if (count(hash) == 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public long addAndEstimateCount(byte[] element) {
+        long min = Long.MAX_VALUE;
+        for (int hash : hashBuffered(element)) {
+            long inc = increment(hash);
+            min = (min >= inc ? inc : min);
+        }
+        return min;
+    }
+
+    @Override
+    public long removeAndEstimateCount(byte[] element) {
+        if (!contains(element)) return 0;
+
+        long min = Long.MAX_VALUE;
+        for (int hash : hashBuffered(element)) {
+            long count = decrement(hash);
+            min = (min >= count ? count : min);
+        }
+        return min;
+    }
+
+    /**
+     * Atomically increments the counter at the given position. A counter that already holds the maximum value stays
+     * at the maximum and the overflow handler is called.
+     *
+     * @param index position at which to increase
+     * @return the counter after the increment
+     */
+    protected long increment(int index) {
+        int word = index / countersPerWord;
+        int shift = (index - word * countersPerWord) * config().countingBits();
+        while (true) {
+            long old = counts.get(word);
+            long count = (old >>> shift) & counterMask;
+            if (count >= maxCount) {
+                overflowHandler.run();
+                return maxCount;
+            }
+            if (counts.compareAndSet(word, old, old + (1L << shift))) return count + 1;
+        }
+    }
+
+    /**
+     * Atomically decrements the counter at the given position. A counter that is already zero stays zero.
+     *
+     * @param index position at which to decrease
+     * @return the counter after the decrement
+     */
+    protected long decrement(int index) {
+        int word = index / countersPerWord;
+        int shift = (index - word * countersPerWord) * config().countingBits();
+        while (true) {
+            long old = counts.get(word);
+            long count = (old >>> shift) & counterMask;
+            if (count == 0) return 0;
+            if (counts.compareAndSet(word, old, old - (1L << shift))) return count - 1;
+        }
+    }
+
+    protected long count(int index) {
+        int word = index / countersPerWord;
+        int shift = (index - word * countersPerWord) * config().countingBits();
+        return (counts.get(word) >>> shift) & counterMask;
+    }
+
+    @Override
+    public long getEstimatedCount(T element) {
+        long min = Long.MAX_VALUE;
+        for (int hash : hashBuffered(toBytes(element))) {
+            long count = count(hash);
+            min = (min >= count ? count : min);
+        }
+        return min;
+    }
+
+    /**
+     * Adds the counters of another in-memory Counting Bloom filter to the counters of this filter, so that the filter
+     * counts the elements of both. Counters that would exceed the maximum stay at the maximum and the overflow handler
+     * is called.
+     *
+     * @param other a {@link ConcurrentCountingBloomFilterMemory} or {@link CountingBloomFilterMemory} with the same
+     *              configuration and counting bits
+     * @return {@code true} if the other filter is compatible
+     */
+    @Override
+    public boolean union(BloomFilter<T> other) {
+        return merge(other, true);
+    }
+
+    /**
+     * Replaces every counter by the minimum of itself and the corresponding counter of another in-memory Counting
+     * Bloom filter.
+     *
+     * @param other a {@link ConcurrentCountingBloomFilterMemory} or {@link CountingBloomFilterMemory} with the same
+     *              configuration and counting bits
+     * @return {@code true} if the other filter is compatible
+     */
+    @Override
+    public boolean intersect(BloomFilter<T> other) {
+        return merge(other, false);
+    }
+
+    private boolean merge(BloomFilter<T> other, boolean union) {
+        if (!compatible(this, other) || other.config().countingBits() != config().countingBits())
+            return false;
+        long[] others;
+        if (other instanceof ConcurrentCountingBloomFilterMemory)
+            others = ((ConcurrentCountingBloomFilterMemory<T>) other).toLongArray();
+        else if (other instanceof CountingBloomFilterMemory)
+            others = ((CountingBloomFilterMemory<T>) other).getCounterWords();
+        else
+            return false;
+        for (int i = 0; i < others.length; i++) {
+            mergeWord(i, others[i], union);
+        }
+        return true;
+    }
+
+    /**
+     * Atomically merges a word of counters with the corresponding word of another filter.
+     */
+    private void mergeWord(int word, long others, boolean union) {
+        int bits = config().countingBits();
+        while (true) {
+            long old = counts.get(word);
+            long merged = 0;
+            boolean overflow = false;
+            for (int i = 0; i < countersPerWord; i++) {
+                int shift = i * bits;
+                long count = (old >>> shift) & counterMask;
+                long other = (others >>> shift) & counterMask;
+                if (!union) {
+                    count = Math.min(count, other);
+                } else if (other > maxCount - count) {
+                    count = maxCount;
+                    overflow = true;
+                } else {
+                    count += other;
+                }
+                merged |= count << shift;
+            }
+            if (counts.compareAndSet(word, old, merged)) {
+                if (overflow) overflowHandler.run();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < counts.length(); i++) {
+            if (counts.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0L);
+        }
+    }
+
+    @Override
+    public BitSet getBitSet() {
+        BitSet bits = new BitSet(config().size());
+        for (int i = 0; i < config().size(); i++) {
+            if (count(i) > 0) bits.set(i);
+        }
+        return bits;
+    }
+
+    @Override
+    public FilterBuilder config() {
+        return config;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(asString() + "\n");
+        for (int i = 0; i < config().size(); i++) {
+            long count = count(i);
+            sb.append(count > 0 ? 1 : 0);
+            sb.append(" ");
+            for (int j = config().countingBits() - 1; j >= 0; j--) {
+                sb.append((count >>> j) & 1);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ConcurrentCountingBloomFilterMemory<T> clone() {
+        ConcurrentCountingBloomFilterMemory<T> o = (ConcurrentCountingBloomFilterMemory<T>) super.clone();
+        o.counts = new AtomicLongArray(toLongArray());
+        o.config = this.config.clone();
+        return o;
+    }
+
+    /**
+     * @return a copy of the counters packed into 64 bit words like in {@link CountingBloomFilterMemory#getCounterWords()}
+     */
+    public long[] getCounterWords() {
+        return toLongArray();
+    }
+
+    private long[] toLongArray() {
+        long[] words = new long[counts.length()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = counts.get(i);
+        }
+        return words;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ConcurrentCountingBloomFilterMemory)) return false;
+
+        ConcurrentCountingBloomFilterMemory that = (ConcurrentCountingBloomFilterMemory) o;
+
+        if (config != null ? !config.isCompatibleTo(that.config) : that.config != null) return false;
+        if (!Arrays.equals(toLongArray(), that.toLongArray())) return false;
+
+        return true;
+    }
+
+    public void setOverflowHandler(Runnable callback) {
+        this.overflowHandler = callback;
+    }
+}
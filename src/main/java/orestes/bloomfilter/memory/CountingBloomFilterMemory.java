@@ -1,5 +1,6 @@
 package orestes.bloomfilter.memory;
 
+import java.util.Arrays;
 import java.util.BitSet;
 
 import orestes.bloomfilter.BloomFilter;
@@ -9,7 +10,14 @@ import orestes.bloomfilter.FilterBuilder;
 public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
     private FilterBuilder config;
     private BloomFilterMemory<T> filter;
-    private BitSet counts;
+    /**
+     * The counters packed into words of {@link #countersPerWord} counters each. Counters do not span two words, so
+     * every counter is read and updated with a single shift and mask.
+     */
+    private long[] counts;
+    private int countersPerWord;
+    private long counterMask;
+    private long maxCount;
     private Runnable overflowHandler = new Runnable() {
         @Override
         public void run() {
@@ -20,7 +28,13 @@ public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
         config.complete();
         this.config = config;
         this.filter = new BloomFilterMemory<>(config.clone());
-        this.counts = new BitSet(config.size() * config().countingBits());
+        int bits = config.countingBits();
+        if (bits < 1 || bits > 64)
+            throw new IllegalArgumentException("The number of counting bits has to be between 1 and 64.");
+        this.countersPerWord = 64 / bits;
+        this.counterMask = bits == 64 ? -1L : (1L << bits) - 1;
+        this.maxCount = bits >= 63 ? Long.MAX_VALUE : counterMask;
+        this.counts = new long[(config.size() + countersPerWord - 1) / countersPerWord];
     }
 
     @Override
@@ -30,7 +44,7 @@ public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
 
     @Override
     public synchronized long addAndEstimateCount(byte[] element) {
-        int[] hashes = hash(element);
+        int[] hashes = hashBuffered(element);
         long min = Long.MAX_VALUE;
         for (int hash : hashes) {
             filter.setBit(hash, true);
@@ -45,7 +59,7 @@ public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
         if (!contains(element)) return 0;
 
         long min = Long.MAX_VALUE;
-        for (int hash : hash(element)) {
+        for (int hash : hashBuffered(element)) {
             long count = decrement(hash);
             filter.setBit(hash, count > 0);
             min = (min >= count ? count : min);
@@ -55,101 +69,69 @@ public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
     }
 
     /**
-     * Increment the internal counter upon insertion of new elements.
+     * Increment the internal counter upon insertion of new elements. A counter that already holds the maximum value
+     * stays at the maximum and the overflow handler is called.
      * 
      * @param index position at which to increase
      */
     protected long increment(int index) {
-        int low = index * config().countingBits();
-        int high = (index + 1) * config().countingBits();
-
-        // Do a binary +1 on the slice of length countingBits
-        boolean incremented = false;
-        long count = 0;
-        int pos = 0;
-        for (int i = (high - 1); i >= low; i--) {
-            if (!counts.get(i) && !incremented) {
-                counts.set(i);
-                incremented = true;
-            } else if (!incremented) {
-                counts.set(i, false);
-            }
-
-            if (counts.get(i)) {
-                count += Math.pow(2, pos);
-            }
-            pos++;
-        }
+        int word = index / countersPerWord;
+        int shift = (index - word * countersPerWord) * config().countingBits();
+        long count = (counts[word] >>> shift) & counterMask;
 
-        // If the counter overflowed, call the handler
-        // and set the counter to the maximum value
-        if (!incremented) {
+        // If the counter overflows, call the handler and leave it at the maximum value
+        if (count >= maxCount) {
             overflowHandler.run();
-            for (int i = (high - 1); i >= low; i--) {
-                counts.set(i);
-            }
+            return maxCount;
         }
-        return count;
+        counts[word] += 1L << shift;
+        return count + 1;
     }
 
     protected long count(int index) {
-        int low = index * config().countingBits();
-        int high = (index + 1) * config().countingBits();
-
-        long count = 0;
-        int pos = 0;
-        // bit * 2^0 + bit * 2^1 ...
-        for (int i = (high - 1); i >= low; i--) {
-            if (counts.get(i)) {
-                count += Math.pow(2, pos);
-            }
-            pos++;
-        }
-        return count;
+        int word = index / countersPerWord;
+        int shift = (index - word * countersPerWord) * config().countingBits();
+        return (counts[word] >>> shift) & counterMask;
     }
 
     /**
-     * Decrements the internal counter upon deletion and unsets the Bloom filter bit if necessary.
+     * Decrements the internal counter upon deletion. A counter that is already zero stays zero.
      * 
      * @param index position at which to decrease
      */
     protected long decrement(int index) {
-        int low = index * config().countingBits();
-        int high = (index + 1) * config().countingBits();
-
-        // Do a binary -1 on the counter's slice of length countingBits
-        boolean decremented = false;
-        boolean nonZero = false;
-        long count = 0;
-        int pos = 0;
-        for (int i = (high - 1); i >= low; i--) {
-            if (!decremented) {
-                // Flip every bit until you reach the first bit that is one. Flip that and stop flipping.
-                if (counts.get(i)) {
-                    counts.set(i, false);
-                    decremented = true;
-                } else {
-                    counts.set(i, true);
-                    nonZero = true;
-                }
-            } else {
-                // While there is still one bit that is not zero the counter isn't zero
-                if (counts.get(i)) {
-                    nonZero = true;
-                }
-            }
-            if (counts.get(i)) {
-                count += Math.pow(2, pos);
-            }
-            pos++;
-        }
+        int word = index / countersPerWord;
+        int shift = (index - word * countersPerWord) * config().countingBits();
+        long count = (counts[word] >>> shift) & counterMask;
 
-        return count;
+        if (count == 0) return 0;
+        counts[word] -= 1L << shift;
+        return count - 1;
+    }
+
+    /**
+     * @return a copy of the counters packed into 64 bit words of 64 / {@link #getCountingBits()} counters each, the
+     * first counter of a word in its lowest bits
+     */
+    public synchronized long[] getCounterWords() {
+        return counts.clone();
+    }
+
+    /**
+     * Replaces the counters, e.g. when loading a stored filter. The bits of the filter are not changed.
+     *
+     * @param words the counters packed like in {@link #getCounterWords()}
+     */
+    public synchronized void setCounterWords(long[] words) {
+        if (words.length != counts.length)
+            throw new IllegalArgumentException("The filter has " + counts.length + " instead of " + words.length
+                    + " counter words.");
+        counts = words.clone();
     }
 
     @Override
     public synchronized long getEstimatedCount(T element) {
-        int[] hashes = hash(toBytes(element));
+        int[] hashes = hashBuffered(toBytes(element));
         long min = Long.MAX_VALUE;
         for (int hash : hashes) {
             long count = count(hash);
@@ -182,8 +164,9 @@ public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
             sb.append(filter.getBit(i) ? 1 : 0);
             sb.append(" ");
             if (counts != null) {
-                for (int j = 0; j < config().countingBits(); j++) {
-                    sb.append(counts.get(config().countingBits() * i + j) ? 1 : 0);
+                long count = count(i);
+                for (int j = config().countingBits() - 1; j >= 0; j--) {
+                    sb.append((count >>> j) & 1);
                 }
             }
             sb.append("\n");
@@ -196,15 +179,15 @@ public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
         CountingBloomFilterMemory<T> o = null;
         o = (CountingBloomFilterMemory<T>) super.clone();
         o.filter = (BloomFilterMemory<T>) this.filter.clone();
-        if (this.counts != null) o.counts = (BitSet) this.counts.clone();
+        if (this.counts != null) o.counts = this.counts.clone();
         o.config = this.config.clone();
         return o;
     }
 
     @Override
-    public void clear() {
+    public synchronized void clear() {
         filter.clear();
-        counts.clear();
+        Arrays.fill(counts, 0L);
     }
 
     @Override
@@ -225,7 +208,7 @@ public class CountingBloomFilterMemory<T> extends CountingBloomFilter<T> {
         CountingBloomFilterMemory that = (CountingBloomFilterMemory) o;
 
         if (config != null ? !config.isCompatibleTo(that.config) : that.config != null) return false;
-        if (counts != null ? !counts.equals(that.counts) : that.counts != null) return false;
+        if (!Arrays.equals(counts, that.counts)) return false;
         if (filter != null ? !filter.equals(that.filter) : that.filter != null) return false;
 
         return true;
@@ -0,0 +1,276 @@
+package orestes.bloomfilter.memory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+
+/**
+ * A Bloom filter that grows with its elements instead of degrading when more elements than expected are inserted
+ * (Almeida et al., "Scalable Bloom Filters"). It chains regular Bloom filters, called stages, of geometrically growing
+ * capacity and tightening false positive probability (see {@link FilterBuilder#scalable(int, double)}). Elements are
+ * inserted into the newest stage until the fraction of its set bits reaches the fill ratio of a filter holding its
+ * capacity, then a new stage is added. An element is contained if any stage contains it, so the compound false
+ * positive probability is bounded by the sum of the stage probabilities, i.e. the configured false positive
+ * probability.
+ * <p>
+ * The configuration of the filter is the one it was built with, the configurations of the stages are derived from it
+ * by {@link FilterBuilder#scalableStage(int)}. As the stages differ in size, there is no single bit vector: {@link
+ * #getBitSet()} is not supported, use {@link #getStages()} instead. Filters with the same configuration can be united
+ * stage by stage.
+ *
+ * @param <T>
+ */
+public class ScalableBloomFilter<T> extends BloomFilter<T> {
+    /**
+     * The number of times the fill ratio of a stage is checked while it is filled to its capacity
+     */
+    private static final int FILL_CHECKS = 64;
+
+    private final FilterBuilder config;
+    private List<BloomFilter<T>> stages = new ArrayList<>();
+    private double targetFill;
+    private long checkInterval;
+    private long unchecked;
+
+    public ScalableBloomFilter(FilterBuilder config) {
+        config.complete();
+        this.config = config;
+        addStage();
+    }
+
+    @Override
+    public FilterBuilder config() {
+        return config;
+    }
+
+    /**
+     * @return the stages of the filter, the newest one last
+     */
+    public synchronized List<BloomFilter<T>> getStages() {
+        return Collections.unmodifiableList(new ArrayList<>(stages));
+    }
+
+    private void addStage() {
+        FilterBuilder stageConfig = config.scalableStage(stages.size());
+        stages.add(stageConfig.<T>buildBloomFilter());
+        targetFill = 1 - Math.exp(-(double) stageConfig.hashes() * stageConfig.longExpectedElements()
+                / stageConfig.longSize());
+        checkInterval = Math.max(1, stageConfig.longExpectedElements() / FILL_CHECKS);
+        unchecked = 0;
+    }
+
+    private BloomFilter<T> current() {
+        return stages.get(stages.size() - 1);
+    }
+
+    private static long oneBits(BloomFilter<?> stage) {
+        if (stage instanceof BloomFilterOffHeap)
+            return ((BloomFilterOffHeap<?>) stage).cardinality();
+        return stage.getBitSet().cardinality();
+    }
+
+    /**
+     * Adds a new stage if the newest one reached its target fill ratio. Counting the set bits is linear in the size of
+     * the stage, so it is only done after every 1/{@link #FILL_CHECKS} of the stage capacity was inserted.
+     */
+    private void checkFill() {
+        if (++unchecked < checkInterval)
+            return;
+        unchecked = 0;
+        BloomFilter<T> current = current();
+        if (oneBits(current) >= targetFill * current.config().longSize())
+            addStage();
+    }
+
+    @Override
+    public synchronized boolean add(byte[] element) {
+        if (contains(element))
+            return false;
+        current().add(element);
+        checkFill();
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        stages.clear();
+        addStage();
+    }
+
+    @Override
+    public synchronized boolean contains(byte[] element) {
+        // The newest stages hold most elements
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (stages.get(i).contains(element))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Not supported, as the stages of a scalable Bloom filter have different sizes (see {@link #getStages()}).
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public BitSet getBitSet() {
+        throw new UnsupportedOperationException("Scalable Bloom filters have no single bit vector, use getStages().");
+    }
+
+    /**
+     * Returns the size of the Bloom filter, i.e. the sum of the sizes of all its stages.
+     *
+     * @return the size of all stages
+     * @throws UnsupportedOperationException if the size exceeds {@link Integer#MAX_VALUE}
+     */
+    @Override
+    public synchronized int getSize() {
+        long size = 0;
+        for (BloomFilter<T> stage : stages) {
+            size += stage.config().longSize();
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new UnsupportedOperationException("The size " + size + " of the stages exceeds an int.");
+        return (int) size;
+    }
+
+    /**
+     * Checks whether another scalable Bloom filter was built with the same configuration, so that its stages are
+     * compatible to the stages of this filter.
+     */
+    private boolean compatible(ScalableBloomFilter<?> other) {
+        FilterBuilder that = other.config();
+        return config.isCompatibleTo(that) && config.longExpectedElements() == that.longExpectedElements()
+                && config.falsePositiveProbability() == that.falsePositiveProbability()
+                && config.scalableGrowth() == that.scalableGrowth()
+                && config.scalableTightening() == that.scalableTightening();
+    }
+
+    /**
+     * Unites the stages of this filter with the corresponding stages of another scalable Bloom filter with the same
+     * configuration. Stages the other filter has in excess are copied. As a united stage may hold up to twice its
+     * capacity, the false positive probability of the union can exceed the configured one (see {@link
+     * #getEstimatedFalsePositiveProbability()}).
+     *
+     * @param other the other scalable Bloom filter
+     * @return {@code true} if the filters were compatible
+     */
+    @Override
+    public synchronized boolean union(BloomFilter<T> other) {
+        if (!(other instanceof ScalableBloomFilter) || !compatible((ScalableBloomFilter<?>) other))
+            return false;
+        List<BloomFilter<T>> otherStages = ((ScalableBloomFilter<T>) other).getStages();
+        for (int i = 0; i < otherStages.size(); i++) {
+            if (i < stages.size()) {
+                stages.get(i).union(otherStages.get(i));
+            } else {
+                addStage();
+                current().union(otherStages.get(i));
+            }
+        }
+        BloomFilter<T> current = current();
+        if (oneBits(current) >= targetFill * current.config().longSize())
+            addStage();
+        return true;
+    }
+
+    /**
+     * Not supported, as an element may be contained in different stages of both filters.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public boolean intersect(BloomFilter<T> other) {
+        throw new UnsupportedOperationException("Scalable Bloom filters cannot be intersected.");
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        for (BloomFilter<T> stage : stages) {
+            if (!stage.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the compound false positive probability of all stages given the number of inserted elements, which fill
+     * the stages in order up to their capacity.
+     *
+     * @param insertedElements The number of elements already inserted into the Bloomfilter
+     * @return the probability that any stage returns a false positive
+     */
+    @Override
+    public synchronized double getFalsePositiveProbability(double insertedElements) {
+        double negative = 1;
+        for (int stage = 0; insertedElements > 0; stage++) {
+            FilterBuilder stageConfig = stage < stages.size() ? stages.get(stage).config()
+                    : config.scalableStage(stage);
+            double elements = Math.min(insertedElements, stageConfig.longExpectedElements());
+            negative *= 1 - FilterBuilder.optimalP(stageConfig.hashes(), stageConfig.longSize(), elements);
+            insertedElements -= elements;
+        }
+        return 1 - negative;
+    }
+
+    @Override
+    public synchronized double getEstimatedFalsePositiveProbability() {
+        double negative = 1;
+        for (BloomFilter<T> stage : stages) {
+            FilterBuilder stageConfig = stage.config();
+            negative *= 1 - FilterBuilder.optimalP(stageConfig.hashes(), stageConfig.longSize(),
+                    population(oneBits(stage), stageConfig));
+        }
+        return 1 - negative;
+    }
+
+    @Override
+    public synchronized Double getEstimatedPopulation() {
+        double population = 0;
+        for (BloomFilter<T> stage : stages) {
+            population += population(oneBits(stage), stage.config());
+        }
+        return population;
+    }
+
+    @Override
+    public synchronized ScalableBloomFilter<T> clone() {
+        ScalableBloomFilter<T> o = (ScalableBloomFilter<T>) super.clone();
+        o.stages = new ArrayList<>();
+        for (BloomFilter<T> stage : stages) {
+            o.stages.add(stage.clone());
+        }
+        return o;
+    }
+
+    @Override
+    public synchronized String asString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Scalable Bloom Filter Parameters: ");
+        sb.append("expectedElements = " + config.longExpectedElements() + ", ");
+        sb.append("falsePositiveProbability = " + config.falsePositiveProbability() + ", ");
+        sb.append("growth = " + config.scalableGrowth() + ", ");
+        sb.append("tightening = " + config.scalableTightening() + ", ");
+        sb.append("Stages: " + stages);
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return asString();
+    }
+
+    @Override
+    public synchronized boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ScalableBloomFilter)) return false;
+
+        ScalableBloomFilter<?> that = (ScalableBloomFilter<?>) o;
+
+        return compatible(that) && stages.equals(that.getStages());
+    }
+}
@@ -0,0 +1,451 @@
+package orestes.bloomfilter.memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider;
+import orestes.bloomfilter.HashProvider.HashMethod;
+
+/**
+ * A split block Bloom filter as used by Apache Parquet and Impala (see the Parquet specification:
+ * https://github.com/apache/parquet-format/blob/master/BloomFilter.md). The bit vector is divided into blocks of 256
+ * bits, each consisting of {@link #WORDS_PER_BLOCK} 32 bit words. An element is hashed once with the 64 bit xxHash:
+ * the upper 32 bits select the block, the lower 32 bits are multiplied with one fixed odd constant (salt) per word
+ * and the upper 5 bits of each product select one bit in every word of the block. Thus each element sets exactly
+ * {@link #WORDS_PER_BLOCK} bits, all in one 32 byte block, and testing an element reads a single cache line.
+ * <p>
+ * The eight word operations of a block are independent of each other and are written as a branch-free loop over
+ * the block, so that the JIT can unroll and vectorize them. The memory layout is identical to the one of Parquet
+ * (little endian 32 bit words, see {@link #toParquetBitset()}), so filters can be exchanged with Parquet files in both
+ * directions, see {@link #readParquet(InputStream)} and {@link #writeParquet(OutputStream)}.
+ * <p>
+ * The number of hashes is always {@link #WORDS_PER_BLOCK} and the hash method is always {@link HashMethod#XXHash64},
+ * the size is a multiple of {@link #BLOCK_BITS}. Use {@link FilterBuilder#splitBlock(boolean)} to build split block
+ * Bloom filters, which also chooses a suitable size for the expected elements and false positive probability, see
+ * {@link FilterBuilder#optimalMSplitBlock(long, double)}.
+ *
+ * @param <T>
+ */
+public class SplitBlockBloomFilterMemory<T> extends BloomFilter<T> {
+    /**
+     * The number of 32 bit words in a block, i.e. the number of bits set per element.
+     */
+    public static final int WORDS_PER_BLOCK = 8;
+    /**
+     * The number of bits in one block.
+     */
+    public static final int BLOCK_BITS = WORDS_PER_BLOCK * 32;
+    private static final int[] SALT = {0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d, 0x705495c7, 0x2df1424b,
+            0x9efc4947, 0x5c6bfb31};
+
+    private final FilterBuilder config;
+    private final int blocks;
+    protected int[] bloom;
+
+    public SplitBlockBloomFilterMemory(FilterBuilder config) {
+        config.splitBlock(true).complete();
+        if (config.size() % BLOCK_BITS != 0)
+            throw new IllegalArgumentException("The size of a split block Bloom filter has to be a multiple of "
+                    + BLOCK_BITS + " bits. Set splitBlock(true) before completing the FilterBuilder.");
+        this.config = config;
+        this.blocks = config.size() / BLOCK_BITS;
+        this.bloom = new int[config.size() / 32];
+    }
+
+    /**
+     * Creates a split block Bloom filter from the bitset of a Parquet Bloom filter.
+     *
+     * @param bitset the bitset in Parquet's layout, its length has to be a multiple of 32 bytes
+     * @param <T>    the type of the elements
+     * @return a Bloom filter containing the same elements as the Parquet Bloom filter
+     */
+    public static <T> SplitBlockBloomFilterMemory<T> fromParquetBitset(byte[] bitset) {
+        if (bitset.length == 0 || bitset.length % (BLOCK_BITS / 8) != 0)
+            throw new IllegalArgumentException("The length of the bitset has to be a positive multiple of "
+                    + BLOCK_BITS / 8 + " bytes.");
+        SplitBlockBloomFilterMemory<T> filter = new SplitBlockBloomFilterMemory<T>(new FilterBuilder()
+                .size(bitset.length * 8).splitBlock(true));
+        for (int i = 0; i < filter.bloom.length; i++) {
+            int o = i * 4;
+            filter.bloom[i] = (bitset[o] & 0xFF) | (bitset[o + 1] & 0xFF) << 8 | (bitset[o + 2] & 0xFF) << 16
+                    | (bitset[o + 3] & 0xFF) << 24;
+        }
+        return filter;
+    }
+
+    /**
+     * Reads a Parquet Bloom filter, i.e. its Thrift header (BloomFilterHeader in compact protocol) followed by the
+     * bitset, as stored at the bloom_filter_offset of a column chunk.
+     *
+     * @param in the stream positioned at the start of the header
+     * @param <T> the type of the elements
+     * @return a Bloom filter containing the same elements as the Parquet Bloom filter
+     * @throws IOException if the stream cannot be read or contains an unsupported Bloom filter
+     */
+    public static <T> SplitBlockBloomFilterMemory<T> readParquet(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int numBytes = -1;
+        short fieldId = 0;
+        while (true) {
+            int header = data.readUnsignedByte();
+            if (header == 0) break;
+            int type = header & 0x0F;
+            fieldId = (short) ((header >>> 4) == 0 ? zigzag((int) readVarint(data)) : fieldId + (header >>> 4));
+            if (fieldId == 1 && type == 5) {
+                numBytes = zigzag((int) readVarint(data));
+            } else if (fieldId >= 2 && fieldId <= 4 && type == 12) {
+                // BloomFilterAlgorithm, BloomFilterHash and BloomFilterCompression are unions of which only
+                // BLOCK, XXHASH and UNCOMPRESSED (each field 1) are defined
+                if (readUnion(data) != 1)
+                    throw new IOException("Unsupported Parquet Bloom filter algorithm, hash or compression.");
+            } else {
+                skip(data, type);
+            }
+        }
+        if (numBytes <= 0)
+            throw new IOException("The Parquet Bloom filter header does not specify the number of bytes.");
+        byte[] bitset = new byte[numBytes];
+        data.readFully(bitset);
+        return fromParquetBitset(bitset);
+    }
+
+    /**
+     * Writes this filter as Parquet Bloom filter, i.e. a Thrift header (BloomFilterHeader in compact protocol)
+     * followed by the bitset.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeParquet(OutputStream out) throws IOException {
+        byte[] bitset = toParquetBitset();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        // field 1: i32 numBytes
+        header.write(0x15);
+        writeVarint(header, (bitset.length << 1) ^ (bitset.length >> 31));
+        // fields 2 to 4: the unions algorithm, hash and compression, each holding the empty struct in field 1
+        for (int i = 0; i < 3; i++) {
+            header.write(0x1C);
+            header.write(0x1C);
+            header.write(0x00);
+            header.write(0x00);
+        }
+        header.write(0x00);
+        header.writeTo(out);
+        out.write(bitset);
+        out.flush();
+    }
+
+    /**
+     * Returns the bits of this filter in Parquet's layout: the 32 bit words in little endian byte order.
+     *
+     * @return the bitset of this filter
+     */
+    public synchronized byte[] toParquetBitset() {
+        byte[] bytes = new byte[bloom.length * 4];
+        for (int i = 0; i < bloom.length; i++) {
+            int word = bloom[i];
+            bytes[i * 4] = (byte) word;
+            bytes[i * 4 + 1] = (byte) (word >>> 8);
+            bytes[i * 4 + 2] = (byte) (word >>> 16);
+            bytes[i * 4 + 3] = (byte) (word >>> 24);
+        }
+        return bytes;
+    }
+
+    @Override
+    public FilterBuilder config() {
+        return config;
+    }
+
+    @Override
+    public boolean add(byte[] element) {
+        return addHash(HashProvider.xxHash64(0, element));
+    }
+
+    @Override
+    public boolean contains(byte[] element) {
+        return containsHash(HashProvider.xxHash64(0, element));
+    }
+
+    /**
+     * Adds an element given by its 64 bit xxHash. This allows to add values hashed like Parquet does for physical
+     * types other than byte arrays (e.g. the little endian bytes of an INT64).
+     *
+     * @param hash the 64 bit xxHash of the element
+     * @return {@code true} if the element was not previously contained in the filter
+     */
+    public synchronized boolean addHash(long hash) {
+        int offset = block(hash);
+        int key = (int) hash;
+        int added = 0;
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            int mask = 1 << ((key * SALT[i]) >>> 27);
+            added |= ~bloom[offset + i] & mask;
+            bloom[offset + i] |= mask;
+        }
+        return added != 0;
+    }
+
+    /**
+     * Tests whether an element given by its 64 bit xxHash is contained in the filter.
+     *
+     * @param hash the 64 bit xxHash of the element
+     * @return {@code true} if the element is contained
+     */
+    public synchronized boolean containsHash(long hash) {
+        int offset = block(hash);
+        int key = (int) hash;
+        int missing = 0;
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            missing |= ~bloom[offset + i] & (1 << ((key * SALT[i]) >>> 27));
+        }
+        return missing == 0;
+    }
+
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32) * WORDS_PER_BLOCK;
+    }
+
+    /**
+     * Returns the positions of the {@link #WORDS_PER_BLOCK} bits of an element, i.e. the indexes of the bits in
+     * {@link #getBitSet()}.
+     *
+     * @param bytes input element
+     * @return hash values
+     */
+    @Override
+    public int[] hash(byte[] bytes) {
+        return hash(bytes, new int[WORDS_PER_BLOCK]);
+    }
+
+    @Override
+    public int[] hash(byte[] bytes, int[] positions) {
+        long hash = HashProvider.xxHash64(0, bytes);
+        int offset = block(hash);
+        int key = (int) hash;
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            positions[i] = (offset + i) * 32 + ((key * SALT[i]) >>> 27);
+        }
+        return positions;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (int i = 0; i < bloom.length; i++) {
+            bloom[i] = 0;
+        }
+    }
+
+    /**
+     * Returns a copy of the bits of this filter, i.e. modifying the returned BitSet does not modify the filter.
+     *
+     * @return the bits of this filter
+     */
+    @Override
+    public synchronized BitSet getBitSet() {
+        long[] words = new long[bloom.length / 2];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = (bloom[2 * i] & 0xFFFFFFFFL) | ((long) bloom[2 * i + 1] << 32);
+        }
+        return BitSet.valueOf(words);
+    }
+
+    @Override
+    public synchronized boolean union(BloomFilter<T> other) {
+        if (compatible(this, other)) {
+            int[] others = words(other);
+            for (int i = 0; i < bloom.length; i++) {
+                bloom[i] |= others[i];
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean intersect(BloomFilter<T> other) {
+        if (compatible(this, other)) {
+            int[] others = words(other);
+            for (int i = 0; i < bloom.length; i++) {
+                bloom[i] &= others[i];
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int[] words(BloomFilter<T> other) {
+        if (other instanceof SplitBlockBloomFilterMemory) {
+            SplitBlockBloomFilterMemory<T> that = (SplitBlockBloomFilterMemory<T>) other;
+            synchronized (that) {
+                return that.bloom.clone();
+            }
+        }
+        long[] longs = other.getBitSet().toLongArray();
+        int[] words = new int[bloom.length];
+        for (int i = 0; i < longs.length && 2 * i < words.length; i++) {
+            words[2 * i] = (int) longs[i];
+            words[2 * i + 1] = (int) (longs[i] >>> 32);
+        }
+        return words;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        for (int word : bloom) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Double getEstimatedPopulation() {
+        int oneBits = 0;
+        for (int word : bloom) {
+            oneBits += Integer.bitCount(word);
+        }
+        return BloomFilter.population(oneBits, config());
+    }
+
+    @Override
+    public double getFalsePositiveProbability(double insertedElements) {
+        return FilterBuilder.optimalPSplitBlock(config().size(), insertedElements);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized SplitBlockBloomFilterMemory<T> clone() {
+        SplitBlockBloomFilterMemory<T> o = (SplitBlockBloomFilterMemory<T>) super.clone();
+        o.bloom = bloom.clone();
+        return o;
+    }
+
+    @Override
+    public String toString() {
+        return asString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SplitBlockBloomFilterMemory)) return false;
+
+        SplitBlockBloomFilterMemory that = (SplitBlockBloomFilterMemory) o;
+
+        if (config != null ? !config.isCompatibleTo(that.config) : that.config != null) return false;
+        if (!getBitSet().equals(that.getBitSet())) return false;
+
+        return true;
+    }
+
+    private static int zigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Malformed varint in Parquet Bloom filter header.");
+    }
+
+    private static void writeVarint(OutputStream out, int n) throws IOException {
+        while ((n & ~0x7F) != 0) {
+            out.write((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    /**
+     * Reads a union of empty structs and returns the id of the field that is set.
+     */
+    private static int readUnion(DataInputStream in) throws IOException {
+        int set = 0;
+        short fieldId = 0;
+        while (true) {
+            int header = in.readUnsignedByte();
+            if (header == 0) return set;
+            int type = header & 0x0F;
+            fieldId = (short) ((header >>> 4) == 0 ? zigzag((int) readVarint(in)) : fieldId + (header >>> 4));
+            set = fieldId;
+            skip(in, type);
+        }
+    }
+
+    /**
+     * Skips a value of the given Thrift compact protocol type.
+     */
+    private static void skip(DataInputStream in, int type) throws IOException {
+        switch (type) {
+            case 1:
+            case 2:
+                // booleans are encoded in the field header
+                break;
+            case 3:
+                in.readUnsignedByte();
+                break;
+            case 4:
+            case 5:
+            case 6:
+                readVarint(in);
+                break;
+            case 7:
+                in.readLong();
+                break;
+            case 8:
+                int length = (int) readVarint(in);
+                for (int i = 0; i < length; i++) {
+                    in.readUnsignedByte();
+                }
+                break;
+            case 9:
+            case 10:
+                int header = in.readUnsignedByte();
+                long size = (header >>> 4) == 15 ? readVarint(in) : header >>> 4;
+                for (long i = 0; i < size; i++) {
+                    skipElement(in, header & 0x0F);
+                }
+                break;
+            case 11:
+                long entries = readVarint(in);
+                if (entries > 0) {
+                    int types = in.readUnsignedByte();
+                    for (long i = 0; i < entries; i++) {
+                        skipElement(in, types >>> 4);
+                        skipElement(in, types & 0x0F);
+                    }
+                }
+                break;
+            case 12:
+                while (true) {
+                    int fieldHeader = in.readUnsignedByte();
+                    if (fieldHeader == 0) break;
+                    if ((fieldHeader >>> 4) == 0) readVarint(in);
+                    skip(in, fieldHeader & 0x0F);
+                }
+                break;
+            default:
+                throw new IOException("Unknown Thrift type " + type + " in Parquet Bloom filter header.");
+        }
+    }
+
+    private static void skipElement(DataInputStream in, int type) throws IOException {
+        // inside collections booleans take a byte of their own
+        if (type == 1 || type == 2) {
+            in.readUnsignedByte();
+        } else {
+            skip(in, type);
+        }
+    }
+
+}
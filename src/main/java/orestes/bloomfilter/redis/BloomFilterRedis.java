@@ -1,18 +1,25 @@
 package orestes.bloomfilter.redis;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import orestes.bloomfilter.BloomFilter;
 import orestes.bloomfilter.FilterBuilder;
 import orestes.bloomfilter.memory.BloomFilterMemory;
+import orestes.bloomfilter.redis.helper.RedisDispatcher;
 import orestes.bloomfilter.redis.helper.RedisKeys;
 import orestes.bloomfilter.redis.helper.RedisPool;
+import orestes.bloomfilter.redis.helper.RedisScript;
+import redis.clients.jedis.BitOP;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import backport.java.util.concurrent.CompletableFuture;
 import backport.java.util.function.Consumer;
+import backport.java.util.function.Function;
 
 /**
  * A persistent bloom filter backed by the Redis key value store. Internally it operates on the <i>setbit</i> and
@@ -20,23 +27,126 @@ import backport.java.util.function.Consumer;
  * filter, e.g. {@link CountingBloomFilterRedis}. The performance of this data structure is very good, as operations are
  * grouped into fast transactions, minimizing the network overhead of all bloom filter operations to one round trip to
  * Redis.
+ * <p>
+ * With {@link FilterBuilder#redisScripts(boolean)} add and contains (including their bulk variants) are instead executed
+ * by Lua scripts on the Redis server: a single EVALSHA command carries the positions of all elements and the reply is
+ * one integer per element, instead of a MULTI/EXEC transaction with k commands and k replies per element.
+ * <p>
+ * With {@link FilterBuilder#redisNearCache(long)} the filter keeps a local copy of the bit array (see {@link
+ * RedisNearCache}), which answers contains locally. Adds are written to Redis, applied to the local copy and published
+ * to the near caches of other clients.
+ * <p>
+ * With {@link FilterBuilder#redisBatching(int, long)} the single-element add and contains calls of concurrent threads
+ * are coalesced into shared transactions by a {@link RedisBatcher}, which takes precedence over Lua scripts for these
+ * calls.
+ * <p>
+ * Union and intersection are executed inside Redis through BITOP. Filters on other Redis instances and in-memory
+ * filters are uploaded in chunks, so the bit array of this filter never has to be transferred.
+ * <p>
+ * The *Async methods (e.g. {@link #containsAsync(Object)}) do not block the calling thread. They return a {@link
+ * CompletableFuture} and are executed as Lua scripts, which are pipelined onto a few connections by a {@link
+ * RedisDispatcher}.
+ * <p>
+ * The near cache, the batcher and the dispatcher run their own threads. {@link #close()} stops them and releases the
+ * connections while the filter stays in Redis, {@link #remove()} additionally deletes it.
  * 
  * @param <T>
  */
 public class BloomFilterRedis<T> extends BloomFilter<T> {
+    /**
+     * Sets the bits at the positions ARGV[3..] of KEYS[1] and returns for every group of ARGV[1] positions whether any
+     * bit was previously unset. ARGV[2] is the expireAt timestamp of the key or 0.
+     */
+    private static final RedisScript ADD_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[1])\n" +
+            "local result = {}\n" +
+            "local added = 0\n" +
+            "for i = 3, #ARGV do\n" +
+            "  if redis.call('SETBIT', KEYS[1], ARGV[i], 1) == 0 then added = 1 end\n" +
+            "  if (i - 2) % k == 0 then\n" +
+            "    result[#result + 1] = added\n" +
+            "    added = 0\n" +
+            "  end\n" +
+            "end\n" +
+            "if ARGV[2] ~= '0' then redis.call('EXPIREAT', KEYS[1], ARGV[2]) end\n" +
+            "return result\n");
+    /**
+     * Returns for every group of ARGV[1] positions in ARGV[2..] whether all bits of KEYS[1] at these positions are
+     * set. Stops reading the bits of an element at its first unset bit.
+     */
+    static final RedisScript CONTAINS_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[1])\n" +
+            "local result = {}\n" +
+            "for i = 2, #ARGV, k do\n" +
+            "  local present = 1\n" +
+            "  for j = i, i + k - 1 do\n" +
+            "    if redis.call('GETBIT', KEYS[1], ARGV[j]) == 0 then\n" +
+            "      present = 0\n" +
+            "      break\n" +
+            "    end\n" +
+            "  end\n" +
+            "  result[#result + 1] = present\n" +
+            "end\n" +
+            "return result\n");
+    /**
+     * Publishes the message ARGV[2] on the channel ARGV[1].
+     */
+    private static final RedisScript PUBLISH_SCRIPT = new RedisScript(
+            "return redis.call('PUBLISH', ARGV[1], ARGV[2])\n");
+    /**
+     * Converts the reply of {@link #ADD_SCRIPT} or {@link #CONTAINS_SCRIPT} into one boolean per element.
+     */
+    static final Function<Object, List<Boolean>> PER_ELEMENT = new Function<Object, List<Boolean>>() {
+        @Override
+        public List<Boolean> apply(Object reply) {
+            List<?> replies = (List<?>) reply;
+            List<Boolean> results = new ArrayList<>(replies.size());
+            for (Object element : replies) {
+                results.add(((Long) element) == 1L);
+            }
+            return results;
+        }
+    };
+    static final Function<List<Boolean>, Boolean> FIRST = new Function<List<Boolean>, Boolean>() {
+        @Override
+        public Boolean apply(List<Boolean> results) {
+            return results.get(0);
+        }
+    };
+    private static final Function<Object, Object> IGNORE = new Function<Object, Object>() {
+        @Override
+        public Object apply(Object reply) {
+            return reply;
+        }
+    };
+
     private final RedisKeys keys;
     private final RedisPool pool;
     private final RedisBitSet bloom;
     private final FilterBuilder config;
+    private final boolean scripted;
+    private final Long expireAt;
+    private final RedisNearCache nearCache;
+    private final RedisBatcher batcher;
+    private final int asyncConnections;
+    private volatile RedisDispatcher dispatcher;
+    private volatile boolean closed = false;
 
     public BloomFilterRedis(FilterBuilder builder) {
         builder.complete();
         this.keys = new RedisKeys(builder.name());
-        this.pool = builder.redisPool() == null ? new RedisPool(builder.redisHost(), builder.redisPort(), builder.redisConnections(), builder.getReadSlaves()) : builder.redisPool();
+        this.pool = builder.redisPool() == null ? new RedisPool(builder.redisHost(), builder.redisPort(), builder.redisConnections(), builder.getReadSlaves(), builder.redisHedgedReads()) : builder.redisPool();
         this.bloom = new RedisBitSet(pool, keys.BITS_KEY, builder.size(), builder.redisExpireAt());
         this.config = keys.persistConfig(pool, builder);
+        this.scripted = builder.redisScripts();
+        this.expireAt = builder.redisExpireAt();
+        this.asyncConnections = builder.redisAsyncConnections();
         if (builder.overwriteIfExists())
             this.clear();
+        this.nearCache = builder.redisNearCache() == null ? null
+                : new RedisNearCache(pool, keys.BITS_KEY, keys.CHANGES_CHANNEL, config.size(), builder.redisNearCache());
+        this.batcher = builder.redisBatchOps() == 0 ? null : new RedisBatcher(pool, bloom, builder.redisBatchOps(),
+                builder.redisBatchDelayMicros(), "BloomFilterRedis-batcher-" + config.name());
     }
 
     @Override
@@ -46,17 +156,69 @@ public class BloomFilterRedis<T> extends BloomFilter<T> {
 
     @Override
     public boolean add(byte[] element) {
-        return bloom.setAll(hash(element));
+        boolean added;
+        if (batcher != null) {
+            added = batcher.setAll(hashBuffered(element));
+        } else if (scripted) {
+            List<String> args = scriptArgs(true);
+            appendPositions(args, element);
+            added = evalPerElement(ADD_SCRIPT, false, args).get(0);
+        } else {
+            added = bloom.setAll(hashBuffered(element));
+        }
+        if (nearCache != null) {
+            int[] positions = hashBuffered(element);
+            nearCache.setAll(positions);
+            if (added) publish(RedisNearCache.message(positions));
+        }
+        return added;
     }
 
     @Override
     public List<Boolean> addAll(final Collection<T> elements) {
+        List<Boolean> added = addAllToRedis(elements);
+        if (nearCache != null) {
+            String message = applyToNearCache(elements, added);
+            if (!message.isEmpty()) publish(message);
+        }
+        return added;
+    }
+
+    /**
+     * Sets the bits of the given elements in the near cache.
+     *
+     * @param elements the elements that were written to Redis
+     * @param added    for every element whether it changed any bit in Redis
+     * @return the change message for the elements that changed bits, which is empty if there are none
+     */
+    private String applyToNearCache(Collection<T> elements, List<Boolean> added) {
+        StringBuilder message = new StringBuilder();
+        int i = 0;
+        for (T value : elements) {
+            int[] positions = hashBuffered(toBytes(value));
+            nearCache.setAll(positions);
+            if (added.get(i++)) {
+                if (message.length() > 0) message.append(',');
+                message.append(RedisNearCache.message(positions));
+            }
+        }
+        return message.toString();
+    }
+
+    private List<Boolean> addAllToRedis(final Collection<T> elements) {
+        if (scripted) {
+            List<String> args = scriptArgs(true);
+            for (T value : elements) {
+                appendPositions(args, toBytes(value));
+            }
+            return evalPerElement(ADD_SCRIPT, false, args);
+        }
         List<Boolean> added = new ArrayList<>();
         List<Boolean> results = pool.transactionallyDo(new Consumer<Pipeline>() {
             @Override
             public void accept(Pipeline p) {
                 for (T value : elements) {
-                    for (int position : hash(toBytes(value))) {
+                    for (int position : hashBuffered(toBytes(value))) {
                         bloom.set(p, position, true);
                     }
                 }
@@ -79,12 +241,26 @@ public class BloomFilterRedis<T> extends BloomFilter<T> {
 
     @Override
     public List<Boolean> contains(final Collection<T> elements) {
+        if (nearCache != null) {
+            List<Boolean> contains = new ArrayList<>(elements.size());
+            for (T value : elements) {
+                contains.add(nearCache.isAllSet(hashBuffered(toBytes(value))));
+            }
+            return contains;
+        }
+        if (scripted) {
+            List<String> args = scriptArgs(false);
+            for (T value : elements) {
+                appendPositions(args, toBytes(value));
+            }
+            return evalPerElement(CONTAINS_SCRIPT, true, args);
+        }
         List<Boolean> contains = new ArrayList<>();
         List<Boolean> results = pool.transactionallyDo(new Consumer<Pipeline>() {
             @Override
             public void accept(Pipeline p) {
                 for (T value : elements) {
-                    for (int position : hash(toBytes(value))) {
+                    for (int position : hashBuffered(toBytes(value))) {
                         bloom.get(p, position);
                     }
                 }
@@ -107,16 +283,164 @@ public class BloomFilterRedis<T> extends BloomFilter<T> {
 
     @Override
     public boolean contains(byte[] element) {
-        return bloom.isAllSet(hash(element));
+        if (nearCache != null) {
+            return nearCache.isAllSet(hashBuffered(element));
+        }
+        if (batcher != null) {
+            return batcher.isAllSet(hashBuffered(element));
+        }
+        if (scripted) {
+            List<String> args = scriptArgs(false);
+            appendPositions(args, element);
+            return evalPerElement(CONTAINS_SCRIPT, true, args).get(0);
+        }
+        return bloom.isAllSet(hashBuffered(element));
+    }
+
+    private List<String> scriptArgs(boolean writing) {
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(config().hashes()));
+        if (writing) args.add(expireAt == null ? "0" : String.valueOf(expireAt));
+        return args;
+    }
+
+    private void appendPositions(List<String> args, byte[] element) {
+        for (int position : hashBuffered(element)) {
+            args.add(String.valueOf(position));
+        }
+    }
+
+    private List<Boolean> evalPerElement(final RedisScript script, boolean read, final List<String> args) {
+        Function<Jedis, Object> eval = new Function<Jedis, Object>() {
+            @Override
+            public Object apply(Jedis jedis) {
+                return script.eval(jedis, Collections.singletonList(keys.BITS_KEY), args);
+            }
+        };
+        return PER_ELEMENT.apply(read ? pool.readSafelyReturn(eval) : pool.safelyReturn(eval));
+    }
+
+    /**
+     * Asynchronously adds an element to the Bloom filter (see {@link #add(Object)}). The calling thread does not block;
+     * the operation is executed as a Lua script on one of the connections set by {@link
+     * FilterBuilder#redisAsyncConnections(int)}, pipelined with all other asynchronous operations in flight.
+     *
+     * @param element the element to add
+     * @return a future that is completed with {@code true} if the element changed any bit of the Bloom filter
+     */
+    public CompletableFuture<Boolean> addAsync(T element) {
+        return addAllAsync(Collections.singletonList(element)).thenApply(FIRST);
+    }
+
+    /**
+     * Asynchronously adds all elements to the Bloom filter (see {@link #addAll(Collection)} and {@link
+     * #addAsync(Object)}).
+     *
+     * @param elements the elements to add
+     * @return a future that is completed with a list indicating for each element whether it changed any bit
+     */
+    public CompletableFuture<List<Boolean>> addAllAsync(Collection<T> elements) {
+        List<String> args = scriptArgs(true);
+        for (T value : elements) {
+            appendPositions(args, toBytes(value));
+        }
+        CompletableFuture<List<Boolean>> added = dispatcher().eval(ADD_SCRIPT, Collections.singletonList(keys.BITS_KEY),
+                args, PER_ELEMENT);
+        if (nearCache == null) return added;
+
+        final List<T> written = new ArrayList<>(elements);
+        return added.thenApply(new Function<List<Boolean>, List<Boolean>>() {
+            @Override
+            public List<Boolean> apply(List<Boolean> results) {
+                String message = applyToNearCache(written, results);
+                if (!message.isEmpty()) {
+                    dispatcher().eval(PUBLISH_SCRIPT, Collections.<String>emptyList(),
+                            Arrays.asList(keys.CHANGES_CHANNEL, message), IGNORE);
+                }
+                return results;
+            }
+        });
+    }
+
+    /**
+     * Asynchronously tests whether an element is present in the Bloom filter (see {@link #contains(Object)} and {@link
+     * #addAsync(Object)}). With a near cache the returned future is already completed.
+     *
+     * @param element the element to test
+     * @return a future that is completed with {@code true} if the element is contained
+     */
+    public CompletableFuture<Boolean> containsAsync(T element) {
+        if (nearCache != null) {
+            return CompletableFuture.completedFuture(contains(element));
+        }
+        return containsAsync(Collections.singletonList(element)).thenApply(FIRST);
+    }
+
+    /**
+     * Asynchronously tests whether the elements are present in the Bloom filter (see {@link #contains(Collection)} and
+     * {@link #addAsync(Object)}).
+     *
+     * @param elements the elements to test
+     * @return a future that is completed with a list indicating for each element whether it is contained
+     */
+    public CompletableFuture<List<Boolean>> containsAsync(Collection<T> elements) {
+        if (nearCache != null) {
+            return CompletableFuture.completedFuture(contains(elements));
+        }
+        List<String> args = scriptArgs(false);
+        for (T value : elements) {
+            appendPositions(args, toBytes(value));
+        }
+        return dispatcher().eval(CONTAINS_SCRIPT, Collections.singletonList(keys.BITS_KEY), args, PER_ELEMENT);
+    }
+
+    /**
+     * @return the dispatcher of the asynchronous operations, which is started on first use
+     */
+    private RedisDispatcher dispatcher() {
+        RedisDispatcher d = dispatcher;
+        if (d == null) {
+            synchronized (this) {
+                d = dispatcher;
+                if (d == null) {
+                    d = new RedisDispatcher(pool, asyncConnections, "BloomFilterRedis-" + config().name());
+                    // Operations on a closed filter fail like the ones queued while it was closed
+                    if (closed) d.close();
+                    dispatcher = d;
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Publishes a change to the near caches of all clients.
+     *
+     * @param message the change message
+     */
+    private void publish(final String message) {
+        pool.safelyDo(new Consumer<Jedis>() {
+            @Override
+            public void accept(Jedis jedis) {
+                jedis.publish(keys.CHANGES_CHANNEL, message);
+            }
+        });
     }
 
     @Override
     public void clear() {
         bloom.clear();
+        if (nearCache != null) {
+            nearCache.clear();
+            publish(RedisNearCache.CLEAR_MESSAGE);
+        }
     }
 
     @Override
     public void remove() {
+        // Queued adds must not set bits after the clear
+        if (batcher != null)
+            batcher.close();
         clear();
         pool.safelyDo(new Consumer<Jedis>() {
             @Override
@@ -124,6 +448,24 @@ public class BloomFilterRedis<T> extends BloomFilter<T> {
                 jedis.del(config().name());
             }
         });
+        close();
+    }
+
+    /**
+     * Stops the threads of the near cache, the batcher and the dispatcher and releases the connections to Redis. In
+     * contrast to {@link #remove()}, the filter is not deleted from Redis and can be opened again by building it with
+     * the same name. The filter must not be used after closing it.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (batcher != null)
+            batcher.close();
+        if (nearCache != null)
+            nearCache.close();
+        if (dispatcher != null)
+            dispatcher.close();
         pool.destroy();
     }
 
@@ -138,21 +480,70 @@ public class BloomFilterRedis<T> extends BloomFilter<T> {
         return filter;
     }
 
+    /**
+     * Opens the same Redis-backed filter a second time. The copy has its own near cache, batcher and dispatcher, and
+     * has to be closed independently (see {@link #close()}).
+     *
+     * @return another client of the filter
+     */
     @Override
     public BloomFilter<T> clone() {
         return new BloomFilterRedis<>(config.clone());
     }
 
+    /**
+     * Performs the union with another Bloom filter inside Redis (see {@link #merge(BitOP, BloomFilter)}).
+     *
+     * @param other the other bloom filter
+     * @return <tt>true</tt> if this bloom filter could successfully be updated through the union with the provided
+     * bloom filter
+     */
     @Override
     public boolean union(BloomFilter<T> other) {
-        // TODO
-        throw new UnsupportedOperationException();
+        return merge(BitOP.OR, other);
     }
 
+    /**
+     * Performs the intersection with another Bloom filter inside Redis (see {@link #merge(BitOP, BloomFilter)}).
+     *
+     * @param other the other bloom filter
+     * @return <tt>true</tt> if this bloom filter could successfully be updated through the intersection with the
+     * provided bloom filter
+     */
     @Override
     public boolean intersect(BloomFilter<T> other) {
-        // TODO
-        throw new UnsupportedOperationException();
+        return merge(BitOP.AND, other);
+    }
+
+    /**
+     * Combines the bit array with the one of another Bloom filter without reading it into the JVM. If the other filter
+     * is a Redis-backed Bloom filter on the same Redis instance, the bit arrays are combined by a single BITOP command.
+     * Otherwise the bits of the other filter are uploaded in chunks (see {@link RedisBitSet#merge(BitOP, BitSet)}). A
+     * near cache is reloaded and the near caches of other clients are notified to reload.
+     *
+     * @param op    the bitwise operation
+     * @param other the other Bloom filter
+     * @return <tt>true</tt> if the filters are compatible and this filter was updated
+     */
+    private boolean merge(BitOP op, BloomFilter<T> other) {
+        if (!compatible(this, other))
+            return false;
+        if (other instanceof BloomFilterRedis && pool.sharesInstance(((BloomFilterRedis<T>) other).pool)) {
+            bloom.merge(op, ((BloomFilterRedis<T>) other).bloom);
+        } else {
+            bloom.merge(op, other.getBitSet());
+        }
+        if (nearCache != null) {
+            // Only an intersection removes bits, which a refresh would keep in the near caches
+            if (op == BitOP.AND) {
+                nearCache.reload();
+                publish(RedisNearCache.RELOAD_MESSAGE);
+            } else {
+                nearCache.refresh();
+                publish(RedisNearCache.REFRESH_MESSAGE);
+            }
+        }
+        return true;
     }
 
     @Override
@@ -165,6 +556,14 @@ public class BloomFilterRedis<T> extends BloomFilter<T> {
         return BloomFilter.population(bloom, config());
     }
 
+    /**
+     * @return the connection pool of the filter, e.g. to inspect the latencies of its replicas through {@link
+     * RedisPool#getReplicaStats()}
+     */
+    public RedisPool getRedisPool() {
+        return pool;
+    }
+
     private RedisBitSet getRedisBitSet() {
         return bloom;
     }
@@ -1,20 +1,30 @@
 package orestes.bloomfilter.redis;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import orestes.bloomfilter.BloomFilter;
 import orestes.bloomfilter.CountingBloomFilter;
 import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.memory.ConcurrentCountingBloomFilterMemory;
 import orestes.bloomfilter.memory.CountingBloomFilterMemory;
+import orestes.bloomfilter.redis.helper.RedisDispatcher;
 import orestes.bloomfilter.redis.helper.RedisKeys;
 import orestes.bloomfilter.redis.helper.RedisPool;
+import orestes.bloomfilter.redis.helper.RedisScript;
+import orestes.bloomfilter.redis.helper.ScriptingPipeline;
+import redis.clients.jedis.BitOP;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
 import redis.clients.util.SafeEncoder;
+import backport.java.util.concurrent.CompletableFuture;
 import backport.java.util.function.Consumer;
 import backport.java.util.function.Function;
 
@@ -22,56 +32,394 @@ import backport.java.util.function.Function;
  * Uses regular key-value pairs for counting instead of a bitarray. This introduces a space overhead but allows
  * distribution of keys, thus increasing throughput. Pipelining can also be leveraged in this approach to minimize
  * network latency.
+ * <p>
+ * With {@link FilterBuilder#redisScripts(boolean)} adding and removing an element is a single Lua script that updates
+ * the counters and the bits atomically on the Redis server. Unlike the optimistic WATCH/MULTI transactions this never
+ * has to be retried when other clients concurrently update the same counters.
+ * <p>
+ * With {@link FilterBuilder#redisPackedCounters(boolean)} the counters are not stored as fields of a Redis hash but
+ * packed into a single string as unsigned integers of {@link FilterBuilder#countingBits()} bits, which are updated
+ * through BITFIELD with saturating overflow (Redis 3.2 or later). This needs only countingBits bits of Redis memory
+ * per counter instead of a hash entry. Counters saturate at their maximum value and at zero. Since the Redis client
+ * does not offer BITFIELD, this layout always executes its operations as Lua scripts.
+ * <p>
+ * The *Async methods (e.g. {@link #addAndEstimateCountAsync(Object)}) do not block the calling thread. They return a
+ * {@link CompletableFuture} and are executed as Lua scripts of the counter layout of the filter, which are pipelined
+ * onto a few connections by a {@link RedisDispatcher}.
+ * <p>
+ * The bulk operations {@link #addAll(Collection)}, {@link #removeAll(Collection)} and {@link
+ * #getEstimatedCounts(Collection)} process the elements in batches of {@link #BULK_BATCH} per script invocation or
+ * transaction and pipeline {@link #BULK_PIPELINE} script invocations per round trip, so thousands of elements need only
+ * a few round trips.
+ * <p>
+ * Union and intersection add the counters or keep their minimum through Lua scripts of the counter layout and combine
+ * the bits through BITOP (see {@link #union(BloomFilter)}). The other filter may be Redis-backed or in memory.
  * 
  * @param <T>
  */
 public class CountingBloomFilterRedis<T> extends CountingBloomFilter<T> {
+    /**
+     * Sets the bits (KEYS[1]) and increments the counters (KEYS[2]) of the pairs of position and counter field in
+     * ARGV[3..] and returns for every group of ARGV[2] pairs (i.e. every element) the minimum of its incremented
+     * counters. ARGV[1] is the expireAt timestamp or 0.
+     */
+    private static final RedisScript ADD_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[2])\n" +
+            "local result = {}\n" +
+            "local min\n" +
+            "for i = 3, #ARGV, 2 do\n" +
+            "  redis.call('SETBIT', KEYS[1], ARGV[i], 1)\n" +
+            "  local count = redis.call('HINCRBY', KEYS[2], ARGV[i + 1], 1)\n" +
+            "  if min == nil or count < min then min = count end\n" +
+            "  if (i - 1) / 2 % k == 0 then\n" +
+            "    result[#result + 1] = min\n" +
+            "    min = nil\n" +
+            "  end\n" +
+            "end\n" +
+            "if ARGV[1] ~= '0' then\n" +
+            "  redis.call('EXPIREAT', KEYS[1], ARGV[1])\n" +
+            "  redis.call('EXPIREAT', KEYS[2], ARGV[1])\n" +
+            "end\n" +
+            "return result\n");
+    /**
+     * Decrements the counters (KEYS[2]) of the pairs of position and counter field in ARGV[3..], clears the bits
+     * (KEYS[1]) of counters that dropped to zero or below and returns for every group of ARGV[2] pairs the minimum of
+     * its decremented counters.
+     */
+    private static final RedisScript REMOVE_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[2])\n" +
+            "local result = {}\n" +
+            "local min\n" +
+            "for i = 3, #ARGV, 2 do\n" +
+            "  local count = redis.call('HINCRBY', KEYS[2], ARGV[i + 1], -1)\n" +
+            "  if count <= 0 then redis.call('SETBIT', KEYS[1], ARGV[i], 0) end\n" +
+            "  if min == nil or count < min then min = count end\n" +
+            "  if (i - 1) / 2 % k == 0 then\n" +
+            "    result[#result + 1] = min\n" +
+            "    min = nil\n" +
+            "  end\n" +
+            "end\n" +
+            "if ARGV[1] ~= '0' then\n" +
+            "  redis.call('EXPIREAT', KEYS[1], ARGV[1])\n" +
+            "  redis.call('EXPIREAT', KEYS[2], ARGV[1])\n" +
+            "end\n" +
+            "return result\n");
+
+    /**
+     * Sets the bits (KEYS[1]) and increments the packed counters (KEYS[2]) of type ARGV[2] at the positions ARGV[4..]
+     * and returns for every group of ARGV[3] positions the minimum of its incremented counters. ARGV[1] is the
+     * expireAt timestamp or 0.
+     */
+    private static final RedisScript PACKED_ADD_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[3])\n" +
+            "local result = {}\n" +
+            "for i = 4, #ARGV, k do\n" +
+            "  local args = {'OVERFLOW', 'SAT'}\n" +
+            "  for j = i, i + k - 1 do\n" +
+            "    redis.call('SETBIT', KEYS[1], ARGV[j], 1)\n" +
+            "    args[#args + 1] = 'INCRBY'\n" +
+            "    args[#args + 1] = ARGV[2]\n" +
+            "    args[#args + 1] = '#' .. ARGV[j]\n" +
+            "    args[#args + 1] = 1\n" +
+            "  end\n" +
+            "  local counts = redis.call('BITFIELD', KEYS[2], unpack(args))\n" +
+            "  local min\n" +
+            "  for c = 1, #counts do\n" +
+            "    if min == nil or counts[c] < min then min = counts[c] end\n" +
+            "  end\n" +
+            "  result[#result + 1] = min\n" +
+            "end\n" +
+            "if ARGV[1] ~= '0' then\n" +
+            "  redis.call('EXPIREAT', KEYS[1], ARGV[1])\n" +
+            "  redis.call('EXPIREAT', KEYS[2], ARGV[1])\n" +
+            "end\n" +
+            "return result\n");
+    /**
+     * Decrements the packed counters (KEYS[2]) of type ARGV[2] at the positions ARGV[4..], clears the bits (KEYS[1])
+     * of counters that are zero afterwards and returns for every group of ARGV[3] positions the minimum of its
+     * decremented counters.
+     */
+    private static final RedisScript PACKED_REMOVE_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[3])\n" +
+            "local result = {}\n" +
+            "for i = 4, #ARGV, k do\n" +
+            "  local args = {'OVERFLOW', 'SAT'}\n" +
+            "  for j = i, i + k - 1 do\n" +
+            "    args[#args + 1] = 'INCRBY'\n" +
+            "    args[#args + 1] = ARGV[2]\n" +
+            "    args[#args + 1] = '#' .. ARGV[j]\n" +
+            "    args[#args + 1] = -1\n" +
+            "  end\n" +
+            "  local counts = redis.call('BITFIELD', KEYS[2], unpack(args))\n" +
+            "  local min\n" +
+            "  for c = 1, #counts do\n" +
+            "    if counts[c] == 0 then redis.call('SETBIT', KEYS[1], ARGV[i + c - 1], 0) end\n" +
+            "    if min == nil or counts[c] < min then min = counts[c] end\n" +
+            "  end\n" +
+            "  result[#result + 1] = min\n" +
+            "end\n" +
+            "if ARGV[1] ~= '0' then\n" +
+            "  redis.call('EXPIREAT', KEYS[1], ARGV[1])\n" +
+            "  redis.call('EXPIREAT', KEYS[2], ARGV[1])\n" +
+            "end\n" +
+            "return result\n");
+    /**
+     * Returns for every group of ARGV[2] positions in ARGV[3..] the minimum of the packed counters (KEYS[1]) of type
+     * ARGV[1] at these positions.
+     */
+    private static final RedisScript PACKED_COUNT_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[2])\n" +
+            "local result = {}\n" +
+            "for i = 3, #ARGV, k do\n" +
+            "  local args = {}\n" +
+            "  for j = i, i + k - 1 do\n" +
+            "    args[#args + 1] = 'GET'\n" +
+            "    args[#args + 1] = ARGV[1]\n" +
+            "    args[#args + 1] = '#' .. ARGV[j]\n" +
+            "  end\n" +
+            "  local counts = redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "  local min\n" +
+            "  for c = 1, #counts do\n" +
+            "    if min == nil or counts[c] < min then min = counts[c] end\n" +
+            "  end\n" +
+            "  result[#result + 1] = min\n" +
+            "end\n" +
+            "return result\n");
+
+    /**
+     * Returns for every group of ARGV[1] counter fields in ARGV[2..] the minimum of the counters (KEYS[1]) in these
+     * fields, ignoring missing fields.
+     */
+    private static final RedisScript COUNT_SCRIPT = new RedisScript(
+            "local k = tonumber(ARGV[1])\n" +
+            "local result = {}\n" +
+            "for i = 2, #ARGV, k do\n" +
+            "  local counts = redis.call('HMGET', KEYS[1], unpack(ARGV, i, i + k - 1))\n" +
+            "  local min\n" +
+            "  for c = 1, #counts do\n" +
+            "    if counts[c] then\n" +
+            "      local count = tonumber(counts[c])\n" +
+            "      if min == nil or count < min then min = count end\n" +
+            "    end\n" +
+            "  end\n" +
+            "  result[#result + 1] = min or 0\n" +
+            "end\n" +
+            "return result\n");
+    /**
+     * Merges the counters (KEYS[1]) at the counter fields in ARGV[3..] with the counters of another filter: for ARGV[2]
+     * 'union' their sum, for 'intersect' their minimum, deleting counters that drop to zero. The other counters are
+     * read from KEYS[2] or, without a second key, given as pairs of counter field and count in ARGV[3..]. ARGV[1] is
+     * the expireAt timestamp or 0.
+     */
+    private static final RedisScript MERGE_SCRIPT = new RedisScript(
+            "local union = ARGV[2] == 'union'\n" +
+            "local fields = {}\n" +
+            "local others = {}\n" +
+            "if #KEYS == 2 then\n" +
+            "  for i = 3, #ARGV do fields[#fields + 1] = ARGV[i] end\n" +
+            "  others = redis.call('HMGET', KEYS[2], unpack(fields))\n" +
+            "else\n" +
+            "  for i = 3, #ARGV, 2 do\n" +
+            "    fields[#fields + 1] = ARGV[i]\n" +
+            "    others[#others + 1] = ARGV[i + 1]\n" +
+            "  end\n" +
+            "end\n" +
+            "local counts = union and {} or redis.call('HMGET', KEYS[1], unpack(fields))\n" +
+            "for i = 1, #fields do\n" +
+            "  local other = tonumber(others[i]) or 0\n" +
+            "  if union then\n" +
+            "    if other > 0 then redis.call('HINCRBY', KEYS[1], fields[i], other) end\n" +
+            "  else\n" +
+            "    local count = math.min(tonumber(counts[i]) or 0, other)\n" +
+            "    if count > 0 then\n" +
+            "      redis.call('HSET', KEYS[1], fields[i], count)\n" +
+            "    else\n" +
+            "      redis.call('HDEL', KEYS[1], fields[i])\n" +
+            "    end\n" +
+            "  end\n" +
+            "end\n" +
+            "if ARGV[1] ~= '0' then redis.call('EXPIREAT', KEYS[1], ARGV[1]) end\n" +
+            "return {}\n");
+    /**
+     * Merges the packed counters (KEYS[1]) of type ARGV[3] at the positions ARGV[4..] with the counters of another
+     * filter like {@link #MERGE_SCRIPT}, saturating sums at the maximum of the type. The other counters are read from
+     * KEYS[2], which has to use the same type, or given as pairs of position and count in ARGV[4..].
+     */
+    private static final RedisScript PACKED_MERGE_SCRIPT = new RedisScript(
+            "local union = ARGV[2] == 'union'\n" +
+            "local positions = {}\n" +
+            "local others = {}\n" +
+            "if #KEYS == 2 then\n" +
+            "  local args = {}\n" +
+            "  for i = 4, #ARGV do\n" +
+            "    positions[#positions + 1] = ARGV[i]\n" +
+            "    args[#args + 1] = 'GET'\n" +
+            "    args[#args + 1] = ARGV[3]\n" +
+            "    args[#args + 1] = '#' .. ARGV[i]\n" +
+            "  end\n" +
+            "  others = redis.call('BITFIELD', KEYS[2], unpack(args))\n" +
+            "else\n" +
+            "  for i = 4, #ARGV, 2 do\n" +
+            "    positions[#positions + 1] = ARGV[i]\n" +
+            "    others[#others + 1] = tonumber(ARGV[i + 1])\n" +
+            "  end\n" +
+            "end\n" +
+            "local counts = {}\n" +
+            "if not union then\n" +
+            "  local args = {}\n" +
+            "  for i = 1, #positions do\n" +
+            "    args[#args + 1] = 'GET'\n" +
+            "    args[#args + 1] = ARGV[3]\n" +
+            "    args[#args + 1] = '#' .. positions[i]\n" +
+            "  end\n" +
+            "  counts = redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "end\n" +
+            "local args = {'OVERFLOW', 'SAT'}\n" +
+            "for i = 1, #positions do\n" +
+            "  if union and others[i] > 0 then\n" +
+            "    args[#args + 1] = 'INCRBY'\n" +
+            "    args[#args + 1] = ARGV[3]\n" +
+            "    args[#args + 1] = '#' .. positions[i]\n" +
+            "    args[#args + 1] = others[i]\n" +
+            "  elseif not union and others[i] < counts[i] then\n" +
+            "    args[#args + 1] = 'SET'\n" +
+            "    args[#args + 1] = ARGV[3]\n" +
+            "    args[#args + 1] = '#' .. positions[i]\n" +
+            "    args[#args + 1] = others[i]\n" +
+            "  end\n" +
+            "end\n" +
+            "if #args > 2 then redis.call('BITFIELD', KEYS[1], unpack(args)) end\n" +
+            "if ARGV[1] ~= '0' then redis.call('EXPIREAT', KEYS[1], ARGV[1]) end\n" +
+            "return {}\n");
+    /**
+     * Converts the reply of the scripts into one count per element.
+     */
+    private static final Function<Object, List<Long>> PER_ELEMENT = new Function<Object, List<Long>>() {
+        @Override
+        public List<Long> apply(Object reply) {
+            List<Long> counts = new ArrayList<>();
+            for (Object count : (List<?>) reply) {
+                counts.add((Long) count);
+            }
+            return counts;
+        }
+    };
+    private static final Function<Object, Long> FIRST = new Function<Object, Long>() {
+        @Override
+        public Long apply(Object reply) {
+            return (Long) ((List<?>) reply).get(0);
+        }
+    };
+    /**
+     * The number of elements processed by one script invocation or transaction of the bulk operations
+     */
+    public static final int BULK_BATCH = 256;
+    /**
+     * The number of script invocations of the bulk operations sent in one round trip
+     */
+    public static final int BULK_PIPELINE = 64;
+    /**
+     * The number of counters merged by one script invocation of {@link #union(BloomFilter)} and {@link
+     * #intersect(BloomFilter)}
+     */
+    public static final int MERGE_CHUNK = 1024;
+
     private final RedisKeys keys;
     private final RedisPool pool;
     private final RedisBitSet bloom;
     private final FilterBuilder config;
     private final Long expireAt;
+    private final boolean scripted;
+    private final boolean packed;
+    private final String counterType;
+    private final int asyncConnections;
+    private volatile RedisDispatcher dispatcher;
+    private volatile boolean closed = false;
 
     public CountingBloomFilterRedis(FilterBuilder builder) {
         builder.complete();
         this.keys = new RedisKeys(builder.name());
-        this.pool = builder.redisPool() == null ? new RedisPool(builder.redisHost(), builder.redisPort(), builder.redisConnections(), builder.getReadSlaves()) : builder.redisPool();
+        this.pool = builder.redisPool() == null ? new RedisPool(builder.redisHost(), builder.redisPort(), builder.redisConnections(), builder.getReadSlaves(), builder.redisHedgedReads()) : builder.redisPool();
         this.bloom = new RedisBitSet(pool, keys.BITS_KEY, builder.size(), builder.redisExpireAt());
         this.config = keys.persistConfig(pool, builder);
         this.expireAt = builder.redisExpireAt();
+        this.scripted = builder.redisScripts();
+        // The layout of an existing filter is the one recorded in Redis
+        this.packed = config.redisPackedCounters();
+        if (packed && (config.countingBits() < 1 || config.countingBits() > 63))
+            throw new IllegalArgumentException("Packed Redis counters need between 1 and 63 counting bits.");
+        this.counterType = "u" + config.countingBits();
+        this.asyncConnections = builder.redisAsyncConnections();
         if(builder.overwriteIfExists())
             this.clear();
     }
 
     @Override
-    public long addAndEstimateCount(final byte[] element) {
-        List<Response<Long>> results = pool.transactionallyRetryAndReturn(new Function<Pipeline, List<Response<Long>>>() {
-            @Override
-            public List<Response<Long>> apply(Pipeline p) {
-                int[] hashes = hash(element);
-                for (int position : hashes) {
-                    bloom.set(p, position, true);
-                }
-                List<Response<Long>> results = new ArrayList<Response<Long>>(hashes.length);
-                for (int position : hashes) {
-                    results.add(p.hincrBy(keys.COUNTS_KEY, encode(position), 1));
-                }
-
-                setExpireAt(p);
-                return results;
-            }
-        }, keys.BITS_KEY, keys.COUNTS_KEY);
+    public long addAndEstimateCount(byte[] element) {
+        return addAndEstimateCounts(Collections.singletonList(hashBuffered(element))).get(0);
+    }
 
-        long min = Long.MAX_VALUE;
-        for (Response<Long> response : results) {
-            Long l = response.get();
-            min = (min >= l ? l : min);
+    @Override
+    public List<Boolean> addAll(Collection<T> elements) {
+        List<Boolean> added = new ArrayList<>(elements.size());
+        for (long count : addAndEstimateCounts(elements)) {
+            added.add(count == 1);
         }
+        return added;
+    }
 
-        return min;
+    /**
+     * Adds the elements and returns their estimated counts after the insertion (see {@link
+     * #addAndEstimateCount(Object)}). The elements are sent in batches of {@link #BULK_BATCH}: as Lua scripts, {@link
+     * #BULK_PIPELINE} batches share a round trip, otherwise every batch is one transaction. Each batch is applied
+     * atomically, the whole collection is not.
+     *
+     * @param elements the elements to add
+     * @return a list of the estimated counts in the order of the elements
+     */
+    public List<Long> addAndEstimateCounts(Collection<T> elements) {
+        return addAndEstimateCounts(hashAll(elements));
     }
 
-    // TODO removeALL addAll
+    private List<Long> addAndEstimateCounts(List<int[]> hashes) {
+        if (packed) {
+            return evalCounts(PACKED_ADD_SCRIPT, Arrays.asList(keys.BITS_KEY, keys.COUNTS_KEY), writeArgs(hashes),
+                    false);
+        } else if (scripted) {
+            return evalCounts(ADD_SCRIPT, Arrays.asList(keys.BITS_KEY, keys.COUNTS_KEY), writeArgs(hashes), false);
+        }
+        List<Long> counts = new ArrayList<>(hashes.size());
+        for (final List<int[]> batch : batches(hashes)) {
+            List<Response<Long>> results = pool.transactionallyRetryAndReturn(new Function<Pipeline, List<Response<Long>>>() {
+                @Override
+                public List<Response<Long>> apply(Pipeline p) {
+                    List<Response<Long>> results = new ArrayList<Response<Long>>(batch.size() * config().hashes());
+                    for (int[] elementHashes : batch) {
+                        for (int position : elementHashes) {
+                            bloom.set(p, position, true);
+                        }
+                        for (int position : elementHashes) {
+                            results.add(p.hincrBy(keys.COUNTS_KEY, encode(position), 1));
+                        }
+                    }
+
+                    setExpireAt(p);
+                    return results;
+                }
+            }, keys.BITS_KEY, keys.COUNTS_KEY);
+
+            int i = 0;
+            for (int[] elementHashes : batch) {
+                long min = Long.MAX_VALUE;
+                for (int j = 0; j < elementHashes.length; j++) {
+                    Long l = results.get(i++).get();
+                    min = (min >= l ? l : min);
+                }
+                counts.add(min);
+            }
+        }
+        return counts;
+    }
 
     @Override
     public boolean remove(byte[] value) {
@@ -79,18 +427,65 @@ public class CountingBloomFilterRedis<T> extends CountingBloomFilter<T> {
     }
 
     @Override
-    public long removeAndEstimateCount(final byte[] value) {
-        return pool.safelyReturn(new Function<Jedis, Long>() {
+    public long removeAndEstimateCount(byte[] value) {
+        return removeAndEstimateCounts(Collections.singletonList(hashBuffered(value))).get(0);
+    }
+
+    @Override
+    public List<Boolean> removeAll(Collection<T> elements) {
+        List<Boolean> removed = new ArrayList<>(elements.size());
+        for (long count : removeAndEstimateCounts(elements)) {
+            removed.add(count <= 0);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the elements and returns their estimated counts after the removal (see {@link
+     * #removeAndEstimateCount(Object)}). The elements are sent in batches like in {@link
+     * #addAndEstimateCounts(Collection)}.
+     *
+     * @param elements the elements to remove
+     * @return a list of the estimated counts in the order of the elements
+     */
+    public List<Long> removeAndEstimateCounts(Collection<T> elements) {
+        return removeAndEstimateCounts(hashAll(elements));
+    }
+
+    private List<Long> removeAndEstimateCounts(List<int[]> hashes) {
+        if (packed) {
+            return evalCounts(PACKED_REMOVE_SCRIPT, Arrays.asList(keys.BITS_KEY, keys.COUNTS_KEY), writeArgs(hashes),
+                    false);
+        } else if (scripted) {
+            return evalCounts(REMOVE_SCRIPT, Arrays.asList(keys.BITS_KEY, keys.COUNTS_KEY), writeArgs(hashes), false);
+        }
+        List<Long> counts = new ArrayList<>(hashes.size());
+        for (List<int[]> batch : batches(hashes)) {
+            counts.addAll(removeBatch(batch));
+        }
+        return counts;
+    }
+
+    private List<Long> removeBatch(final List<int[]> batch) {
+        return pool.safelyReturn(new Function<Jedis, List<Long>>() {
             @Override
-            public Long apply(Jedis jedis) {
-                int[] hashes = hash(value);
-                String[] hashesString = encode(hashes);
+            public List<Long> apply(Jedis jedis) {
+                List<Integer> hashes = new ArrayList<>(batch.size() * config().hashes());
+                for (int[] elementHashes : batch) {
+                    for (int position : elementHashes) {
+                        hashes.add(position);
+                    }
+                }
+                String[] hashesString = new String[hashes.size()];
+                for (int i = 0; i < hashesString.length; i++) {
+                    hashesString[i] = encode(hashes.get(i));
+                }
 
                 Pipeline p = jedis.pipelined();
                 p.watch(keys.COUNTS_KEY, keys.BITS_KEY);
 
                 List<Long> counts;
-                List<Response<Long>> responses = new ArrayList<>(config().hashes());
+                List<Response<Long>> responses = new ArrayList<>(hashesString.length);
                 for (String position : hashesString) {
                     responses.add(p.hincrBy(keys.COUNTS_KEY, position, -1));
                 }
@@ -101,12 +496,14 @@ public class CountingBloomFilterRedis<T> extends CountingBloomFilter<T> {
                 for (Response<Long> r : responses) {
                     counts.add(r.get());
                 }
+                // The estimates of the elements are the counters right after their own decrements
+                List<Long> decremented = counts;
 
                 while (true) {
                     p = jedis.pipelined();
                     p.multi();
-                    for (int i = 0; i < config().hashes(); i++) {
-                        if (counts.get(i) <= 0) bloom.set(p, hashes[i], false);
+                    for (int i = 0; i < hashes.size(); i++) {
+                        if (counts.get(i) <= 0) bloom.set(p, hashes.get(i), false);
                     }
                     Response<List<Object>> exec = p.exec();
                     p.sync();
@@ -117,16 +514,244 @@ public class CountingBloomFilterRedis<T> extends CountingBloomFilter<T> {
                         p.sync();
                         counts = new ArrayList<Long>(responses.size());
                         for (String s : hmget.get()) {
-                            counts.add(Long.valueOf(s));
+                            counts.add(s == null ? 0 : Long.valueOf(s));
                         }
                     } else {
-                        return Collections.min(counts);
+                        return minima(batch, decremented);
                     }
                 }
             }
         });
     }
-    
+
+    /**
+     * Invokes a script of the counter layout for all batches of elements, {@link #BULK_PIPELINE} invocations per round
+     * trip.
+     *
+     * @param script     the script to invoke
+     * @param scriptKeys the keys of the script
+     * @param args       the arguments of the invocations, one per batch
+     * @param read       whether the script only reads and may hence be executed by a read slave
+     * @return the counts the script returned for the elements
+     */
+    private List<Long> evalCounts(final RedisScript script, final List<String> scriptKeys,
+                                  final List<List<String>> args, boolean read) {
+        Function<Jedis, List<Long>> f = new Function<Jedis, List<Long>>() {
+            @Override
+            public List<Long> apply(Jedis jedis) {
+                if (args.size() == 1)
+                    return PER_ELEMENT.apply(script.eval(jedis, scriptKeys, args.get(0)));
+                List<Long> counts = new ArrayList<>();
+                for (int from = 0; from < args.size(); from += BULK_PIPELINE) {
+                    List<List<String>> round = args.subList(from, Math.min(args.size(), from + BULK_PIPELINE));
+                    for (Object reply : ScriptingPipeline.evalAll(jedis, script, scriptKeys, round)) {
+                        counts.addAll(PER_ELEMENT.apply(reply));
+                    }
+                }
+                return counts;
+            }
+        };
+        return read ? pool.readSafelyReturn(f) : pool.safelyReturn(f);
+    }
+
+    /**
+     * Builds the arguments of the add and remove scripts of the counter layout of this filter.
+     *
+     * @param hashes the hash values of the elements to add or remove
+     * @return the arguments of one script invocation per batch of elements
+     */
+    private List<List<String>> writeArgs(List<int[]> hashes) {
+        List<List<String>> invocations = new ArrayList<>();
+        for (List<int[]> batch : batches(hashes)) {
+            List<String> args = new ArrayList<>();
+            args.add(expireAt == null ? "0" : String.valueOf(expireAt));
+            if (packed) args.add(counterType);
+            args.add(String.valueOf(config().hashes()));
+            for (int[] elementHashes : batch) {
+                for (int position : elementHashes) {
+                    args.add(String.valueOf(position));
+                    if (!packed) args.add(encode(position));
+                }
+            }
+            invocations.add(args);
+        }
+        return invocations;
+    }
+
+    /**
+     * Builds the arguments of the count script of the counter layout of this filter.
+     *
+     * @param hashes the hash values of the elements to count
+     * @return the arguments of one script invocation per batch of elements
+     */
+    private List<List<String>> countArgs(List<int[]> hashes) {
+        List<List<String>> invocations = new ArrayList<>();
+        for (List<int[]> batch : batches(hashes)) {
+            List<String> args = new ArrayList<>();
+            if (packed) args.add(counterType);
+            args.add(String.valueOf(config().hashes()));
+            for (int[] elementHashes : batch) {
+                for (int position : elementHashes) {
+                    args.add(packed ? String.valueOf(position) : encode(position));
+                }
+            }
+            invocations.add(args);
+        }
+        return invocations;
+    }
+
+    private List<int[]> hashAll(Collection<T> elements) {
+        List<int[]> hashes = new ArrayList<>(elements.size());
+        for (T element : elements) {
+            hashes.add(hashBuffered(toBytes(element)).clone());
+        }
+        return hashes;
+    }
+
+    private static List<List<int[]>> batches(List<int[]> hashes) {
+        List<List<int[]>> batches = new ArrayList<>();
+        for (int from = 0; from < hashes.size(); from += BULK_BATCH) {
+            batches.add(hashes.subList(from, Math.min(hashes.size(), from + BULK_BATCH)));
+        }
+        return batches;
+    }
+
+    /**
+     * @param batch  the hash values of the elements
+     * @param counts the counters of all hash values of the elements in the same order
+     * @return the minimum counter of each element
+     */
+    private static List<Long> minima(List<int[]> batch, List<Long> counts) {
+        List<Long> minima = new ArrayList<>(batch.size());
+        int i = 0;
+        for (int[] elementHashes : batch) {
+            long min = Long.MAX_VALUE;
+            for (int j = 0; j < elementHashes.length; j++) {
+                min = Math.min(min, counts.get(i++));
+            }
+            minima.add(min);
+        }
+        return minima;
+    }
+
+    /**
+     * Asynchronously adds an element and estimates its count (see {@link #addAndEstimateCount(Object)}). The calling
+     * thread does not block; the operation is executed as a Lua script on one of the connections set by {@link
+     * FilterBuilder#redisAsyncConnections(int)}, pipelined with all other asynchronous operations in flight.
+     *
+     * @param element the element to add
+     * @return a future that is completed with the estimated count of the element after adding it
+     */
+    public CompletableFuture<Long> addAndEstimateCountAsync(T element) {
+        return dispatcher().eval(packed ? PACKED_ADD_SCRIPT : ADD_SCRIPT, Arrays.asList(keys.BITS_KEY, keys.COUNTS_KEY),
+                writeArgs(Collections.singletonList(hashBuffered(toBytes(element)))).get(0), FIRST);
+    }
+
+    /**
+     * Asynchronously adds an element (see {@link #add(Object)} and {@link #addAndEstimateCountAsync(Object)}).
+     *
+     * @param element the element to add
+     * @return a future that is completed with {@code true} if the element was not contained before
+     */
+    public CompletableFuture<Boolean> addAsync(T element) {
+        return addAndEstimateCountAsync(element).thenApply(new Function<Long, Boolean>() {
+            @Override
+            public Boolean apply(Long count) {
+                return count == 1;
+            }
+        });
+    }
+
+    /**
+     * Asynchronously removes an element and estimates its remaining count (see {@link
+     * #removeAndEstimateCount(Object)} and {@link #addAndEstimateCountAsync(Object)}).
+     *
+     * @param element the element to remove
+     * @return a future that is completed with the estimated count of the element after removing it
+     */
+    public CompletableFuture<Long> removeAndEstimateCountAsync(T element) {
+        return dispatcher().eval(packed ? PACKED_REMOVE_SCRIPT : REMOVE_SCRIPT,
+                Arrays.asList(keys.BITS_KEY, keys.COUNTS_KEY),
+                writeArgs(Collections.singletonList(hashBuffered(toBytes(element)))).get(0), FIRST);
+    }
+
+    /**
+     * Asynchronously removes an element (see {@link #remove(Object)} and {@link #addAndEstimateCountAsync(Object)}).
+     *
+     * @param element the element to remove
+     * @return a future that is completed with {@code true} if the element is no longer contained
+     */
+    public CompletableFuture<Boolean> removeAsync(T element) {
+        return removeAndEstimateCountAsync(element).thenApply(new Function<Long, Boolean>() {
+            @Override
+            public Boolean apply(Long count) {
+                return count <= 0;
+            }
+        });
+    }
+
+    /**
+     * Asynchronously tests whether an element is present (see {@link #contains(Object)} and {@link
+     * #addAndEstimateCountAsync(Object)}).
+     *
+     * @param element the element to test
+     * @return a future that is completed with {@code true} if the element is contained
+     */
+    public CompletableFuture<Boolean> containsAsync(T element) {
+        return containsAsync(Collections.singletonList(element)).thenApply(BloomFilterRedis.FIRST);
+    }
+
+    /**
+     * Asynchronously tests whether the elements are present (see {@link #contains(Collection)} and {@link
+     * #addAndEstimateCountAsync(Object)}).
+     *
+     * @param elements the elements to test
+     * @return a future that is completed with a list indicating for each element whether it is contained
+     */
+    public CompletableFuture<List<Boolean>> containsAsync(Collection<T> elements) {
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(config().hashes()));
+        for (T value : elements) {
+            for (int position : hashBuffered(toBytes(value))) {
+                args.add(String.valueOf(position));
+            }
+        }
+        return dispatcher().eval(BloomFilterRedis.CONTAINS_SCRIPT, Collections.singletonList(keys.BITS_KEY), args,
+                BloomFilterRedis.PER_ELEMENT);
+    }
+
+    /**
+     * Asynchronously estimates the count of an element (see {@link #getEstimatedCount(Object)} and {@link
+     * #addAndEstimateCountAsync(Object)}).
+     *
+     * @param element the element to estimate the count of
+     * @return a future that is completed with the estimated count of the element
+     */
+    public CompletableFuture<Long> getEstimatedCountAsync(T element) {
+        return dispatcher().eval(packed ? PACKED_COUNT_SCRIPT : COUNT_SCRIPT,
+                Collections.singletonList(keys.COUNTS_KEY),
+                countArgs(Collections.singletonList(hashBuffered(toBytes(element)))).get(0), FIRST);
+    }
+
+    /**
+     * @return the dispatcher of the asynchronous operations, which is started on first use
+     */
+    private RedisDispatcher dispatcher() {
+        RedisDispatcher d = dispatcher;
+        if (d == null) {
+            synchronized (this) {
+                d = dispatcher;
+                if (d == null) {
+                    d = new RedisDispatcher(pool, asyncConnections, "CountingBloomFilterRedis-" + config().name());
+                    // Operations on a closed filter fail like the ones queued while it was closed
+                    if (closed) d.close();
+                    dispatcher = d;
+                }
+            }
+        }
+        return d;
+    }
+
     public void setExpireAt(Pipeline p) {
         if(expireAt != null) {
             p.expireAt(keys.COUNTS_KEY, expireAt);
@@ -134,21 +759,54 @@ public class CountingBloomFilterRedis<T> extends CountingBloomFilter<T> {
     }
 
     @Override
-    public long getEstimatedCount(final T element) {
-        return pool.allowingSlaves().safelyReturn(new Function<Jedis, Long>() {
+    public long getEstimatedCount(T element) {
+        return getEstimatedCounts(Collections.singletonList(hashBuffered(toBytes(element)))).get(0);
+    }
+
+    /**
+     * Estimates the counts of the elements (see {@link #getEstimatedCount(Object)}). The elements are queried in
+     * batches of {@link #BULK_BATCH}, {@link #BULK_PIPELINE} batches per round trip.
+     *
+     * @param elements elements to query
+     * @return a list of the estimated counts in the order of the elements
+     */
+    @Override
+    public List<Long> getEstimatedCounts(Collection<T> elements) {
+        return getEstimatedCounts(hashAll(elements));
+    }
+
+    private List<Long> getEstimatedCounts(List<int[]> hashes) {
+        if (packed) {
+            // BITFIELD is a write command for Redis and hence not allowed on read slaves
+            return evalCounts(PACKED_COUNT_SCRIPT, Collections.singletonList(keys.COUNTS_KEY), countArgs(hashes),
+                    false);
+        }
+        final List<List<int[]>> batches = batches(hashes);
+        return pool.readSafelyReturn(new Function<Jedis, List<Long>>() {
             @Override
-            public Long apply(Jedis jedis) {
-                String[] hashesString = encode(hash(toBytes(element)));
-                List<String> hmget = jedis.hmget(keys.COUNTS_KEY, hashesString);
-
-                Long min = null;
-                for (String s : hmget) {
-                    if(s == null) continue;
-                    Long l = Long.valueOf(s);
-                    if (min == null || l < min) min = l;
-                }
+            public List<Long> apply(Jedis jedis) {
+                List<Long> counts = new ArrayList<>();
+                for (int from = 0; from < batches.size(); from += BULK_PIPELINE) {
+                    Pipeline p = jedis.pipelined();
+                    List<Response<List<String>>> responses = new ArrayList<>();
+                    for (List<int[]> batch : batches.subList(from, Math.min(batches.size(), from + BULK_PIPELINE))) {
+                        for (int[] elementHashes : batch) {
+                            responses.add(p.hmget(keys.COUNTS_KEY, encode(elementHashes)));
+                        }
+                    }
+                    p.sync();
 
-                return min == null ? 0 : min;
+                    for (Response<List<String>> hmget : responses) {
+                        Long min = null;
+                        for (String s : hmget.get()) {
+                            if(s == null) continue;
+                            Long l = Long.valueOf(s);
+                            if (min == null || l < min) min = l;
+                        }
+                        counts.add(min == null ? 0 : min);
+                    }
+                }
+                return counts;
             }
         });
     }
@@ -172,12 +830,48 @@ public class CountingBloomFilterRedis<T> extends CountingBloomFilter<T> {
                 jedis.del(config().name());
             }
         });
+        close();
+    }
+
+    /**
+     * Stops the threads of the dispatcher and releases the connections to Redis. In contrast to {@link #remove()}, the
+     * filter is not deleted from Redis. The filter must not be used after closing it.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (dispatcher != null)
+            dispatcher.close();
         pool.destroy();
     }
 
     @Override
     public boolean contains(byte[] element) {
-        return bloom.isAllSet(hash(element));
+        if (scripted) {
+            final List<String> args = new ArrayList<>();
+            args.add(String.valueOf(config().hashes()));
+            for (int position : hashBuffered(element)) {
+                args.add(String.valueOf(position));
+            }
+            Object reply = pool.readSafelyReturn(new Function<Jedis, Object>() {
+                @Override
+                public Object apply(Jedis jedis) {
+                    return BloomFilterRedis.CONTAINS_SCRIPT.eval(jedis, Collections.singletonList(keys.BITS_KEY),
+                            args);
+                }
+            });
+            return BloomFilterRedis.PER_ELEMENT.apply(reply).get(0);
+        }
+        return bloom.isAllSet(hashBuffered(element));
+    }
+
+    /**
+     * @return the connection pool of the filter, e.g. to inspect the latencies of its replicas through {@link
+     * RedisPool#getReplicaStats()}
+     */
+    public RedisPool getRedisPool() {
+        return pool;
     }
 
     protected RedisBitSet getRedisBitSet() {
@@ -205,16 +899,166 @@ public class CountingBloomFilterRedis<T> extends CountingBloomFilter<T> {
         return new CountingBloomFilterRedis<>(config().clone());
     }
 
+    /**
+     * Adds the counters of another Counting Bloom filter to the counters of this filter and unites the bits (see
+     * {@link #merge(BloomFilter, boolean)}).
+     *
+     * @param other a Redis-backed or in-memory Counting Bloom filter with a compatible configuration
+     * @return {@code true} if the other filter is compatible and this filter was updated
+     */
     @Override
     public boolean union(BloomFilter<T> other) {
-        // TODO
-        throw new UnsupportedOperationException();
+        return merge(other, true);
     }
 
+    /**
+     * Replaces every counter by the minimum of itself and the corresponding counter of another Counting Bloom filter
+     * and intersects the bits (see {@link #merge(BloomFilter, boolean)}).
+     *
+     * @param other a Redis-backed or in-memory Counting Bloom filter with a compatible configuration
+     * @return {@code true} if the other filter is compatible and this filter was updated
+     */
     @Override
     public boolean intersect(BloomFilter<T> other) {
-        // TODO
-        throw new UnsupportedOperationException();
+        return merge(other, false);
+    }
+
+    /**
+     * Merges another Counting Bloom filter into this filter without reading the counters of this filter into the JVM.
+     * Only the counters at set bits can be non-zero, so a union merges the counters at the set bits of the other filter
+     * and an intersection the counters at the set bits of this filter. They are sent in chunks of {@link #MERGE_CHUNK}
+     * positions to a Lua script of the counter layout. If the other filter is a Redis-backed Counting Bloom filter with
+     * the same counter layout on the same Redis instance, the script reads its counters inside Redis. Otherwise the
+     * counters of the other filter are read and uploaded along with the positions. The bits are combined like in {@link
+     * BloomFilterRedis}: through a single BITOP command on the same Redis instance, otherwise by uploading the set
+     * chunks of the other bit array.
+     *
+     * @param other the other Counting Bloom filter
+     * @param union whether to add the counters or to keep their minimum
+     * @return {@code true} if the filters are compatible and this filter was updated
+     */
+    private boolean merge(BloomFilter<T> other, boolean union) {
+        if (!compatible(this, other))
+            return false;
+        long[] otherWords = null;
+        CountingBloomFilterRedis<T> otherRedis = null;
+        if (other instanceof CountingBloomFilterRedis)
+            otherRedis = (CountingBloomFilterRedis<T>) other;
+        else if (other instanceof CountingBloomFilterMemory)
+            otherWords = ((CountingBloomFilterMemory<T>) other).getCounterWords();
+        else if (other instanceof ConcurrentCountingBloomFilterMemory)
+            otherWords = ((ConcurrentCountingBloomFilterMemory<T>) other).getCounterWords();
+        else
+            return false;
+        boolean sameInstance = otherRedis != null && pool.sharesInstance(otherRedis.pool);
+        boolean serverSide = sameInstance && otherRedis.packed == packed && otherRedis.counterType.equals(counterType);
+
+        BitSet otherBits = union || !sameInstance ? other.getBitSet() : null;
+        mergeCounters(union ? otherBits : bloom.asBitSet(), union, otherRedis, serverSide, otherWords,
+                other.config().countingBits());
+        BitOP op = union ? BitOP.OR : BitOP.AND;
+        if (sameInstance) {
+            bloom.merge(op, otherRedis.bloom);
+        } else {
+            bloom.merge(op, otherBits);
+        }
+        return true;
+    }
+
+    /**
+     * Merges the counters at the given positions with the counters of another filter, {@link #BULK_PIPELINE} script
+     * invocations per round trip.
+     *
+     * @param positions    the positions of the counters to merge
+     * @param union        whether to add the counters or to keep their minimum
+     * @param otherRedis   the other filter if it is Redis-backed, else {@code null}
+     * @param serverSide   whether the script reads the counters of the other Redis-backed filter inside Redis
+     * @param otherWords   the counter words of the other filter if it is an in-memory filter, else {@code null}
+     * @param countingBits the counting bits of the other filter
+     */
+    private void mergeCounters(BitSet positions, boolean union, CountingBloomFilterRedis<T> otherRedis,
+                               boolean serverSide, long[] otherWords, int countingBits) {
+        RedisScript script = packed ? PACKED_MERGE_SCRIPT : MERGE_SCRIPT;
+        List<String> scriptKeys = serverSide ? Arrays.asList(keys.COUNTS_KEY, otherRedis.keys.COUNTS_KEY)
+                : Collections.singletonList(keys.COUNTS_KEY);
+        // A counter field of the hash layout can be shared by several positions, its count must be added only once
+        Set<String> fields = union && !packed && otherRedis != null && !otherRedis.packed ? new HashSet<String>()
+                : null;
+        List<List<String>> invocations = new ArrayList<>();
+        int[] chunk = new int[MERGE_CHUNK];
+        int length = 0;
+        for (int position = positions.nextSetBit(0); position >= 0; ) {
+            if (fields == null || fields.add(encode(position)))
+                chunk[length++] = position;
+            position = positions.nextSetBit(position + 1);
+            if (length == 0 || length < MERGE_CHUNK && position >= 0)
+                continue;
+            int[] chunkPositions = Arrays.copyOf(chunk, length);
+            length = 0;
+            long[] counts = null;
+            if (!serverSide)
+                counts = otherRedis != null ? otherRedis.counters(chunkPositions)
+                        : counters(otherWords, countingBits, chunkPositions);
+            List<String> args = new ArrayList<>();
+            args.add(expireAt == null ? "0" : String.valueOf(expireAt));
+            args.add(union ? "union" : "intersect");
+            if (packed) args.add(counterType);
+            for (int i = 0; i < chunkPositions.length; i++) {
+                args.add(packed ? String.valueOf(chunkPositions[i]) : encode(chunkPositions[i]));
+                if (counts != null) args.add(String.valueOf(counts[i]));
+            }
+            invocations.add(args);
+            if (invocations.size() == BULK_PIPELINE) {
+                evalCounts(script, scriptKeys, invocations, false);
+                invocations.clear();
+            }
+        }
+        if (!invocations.isEmpty())
+            evalCounts(script, scriptKeys, invocations, false);
+    }
+
+    /**
+     * Reads the counters at the given positions.
+     *
+     * @param positions the positions of the counters
+     * @return the counters in the order of the positions
+     */
+    private long[] counters(int[] positions) {
+        List<String> args = new ArrayList<>();
+        if (packed) args.add(counterType);
+        // Every position is an element of its own
+        args.add("1");
+        for (int position : positions) {
+            args.add(packed ? String.valueOf(position) : encode(position));
+        }
+        List<Long> counts = evalCounts(packed ? PACKED_COUNT_SCRIPT : COUNT_SCRIPT,
+                Collections.singletonList(keys.COUNTS_KEY), Collections.singletonList(args), true);
+        long[] result = new long[counts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Extracts counters from the counter words of an in-memory Counting Bloom filter (see {@link
+     * CountingBloomFilterMemory#getCounterWords()}).
+     *
+     * @param words        the counter words
+     * @param countingBits the number of bits of a counter
+     * @param positions    the positions of the counters
+     * @return the counters in the order of the positions
+     */
+    private static long[] counters(long[] words, int countingBits, int[] positions) {
+        int countersPerWord = 64 / countingBits;
+        long counterMask = countingBits == 64 ? -1L : (1L << countingBits) - 1;
+        long[] counts = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            int word = positions[i] / countersPerWord;
+            int shift = (positions[i] - word * countersPerWord) * countingBits;
+            counts[i] = (words[word] >>> shift) & counterMask;
+        }
+        return counts;
     }
 
     @Override
@@ -0,0 +1,194 @@
+package orestes.bloomfilter.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import orestes.bloomfilter.redis.helper.RedisPool;
+import redis.clients.jedis.Pipeline;
+import backport.java.util.concurrent.CompletableFuture;
+import backport.java.util.function.Consumer;
+
+/**
+ * Coalesces the single-element adds and membership queries of concurrent threads into shared transactions. Every
+ * operation is queued and the calling thread waits for its result. A flusher thread sends all operations queued within
+ * a short delay after the first one (or up to a maximum number of operations) as one MULTI/EXEC pipeline through
+ * {@link RedisPool#transactionallyDo(Consumer, String...)} and hands each caller the result of its own commands.
+ * <p>
+ * This trades latency for throughput: an operation waits at most the configured delay plus one round trip, while
+ * Redis executes one transaction per batch instead of one per operation. As reads and writes share the transaction,
+ * batched membership queries are answered by the master, never by read slaves.
+ */
+public class RedisBatcher {
+    private final RedisPool pool;
+    private final RedisBitSet bits;
+    private final int maxOps;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the flusher thread.
+     *
+     * @param pool           the pool of the Redis instance holding the bit array
+     * @param bits           the bit array
+     * @param maxOps         the maximum number of operations in one batch
+     * @param maxDelayMicros the maximum time in microseconds a batch waits for further operations after its first
+     * @param name           the name of the flusher thread
+     */
+    public RedisBatcher(RedisPool pool, RedisBitSet bits, int maxOps, long maxDelayMicros, String name) {
+        this.pool = pool;
+        this.bits = bits;
+        this.maxOps = maxOps;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Sets all bits as part of the next batch (see {@link RedisBitSet#setAll(int...)}).
+     *
+     * @param positions the positions to set
+     * @return {@code true} if any of the bits was previously unset
+     */
+    public boolean setAll(int... positions) {
+        return await(submit(positions, true));
+    }
+
+    /**
+     * Tests whether all bits are set as part of the next batch (see {@link RedisBitSet#isAllSet(int...)}).
+     *
+     * @param positions the positions to test
+     * @return {@code true} if all positions are set
+     */
+    public boolean isAllSet(int... positions) {
+        return await(submit(positions, false));
+    }
+
+    private CompletableFuture<Boolean> submit(int[] positions, boolean write) {
+        Operation operation = new Operation(positions, write);
+        queue.add(operation);
+        if (closed && queue.remove(operation))
+            operation.future.completeExceptionally(new IllegalStateException("The batcher was closed."));
+        return operation.future;
+    }
+
+    private static boolean await(CompletableFuture<Boolean> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the batch.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void work() {
+        List<Operation> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            long deadline = System.nanoTime() + maxDelayNanos;
+            try {
+                while (batch.size() < maxOps) {
+                    queue.drainTo(batch, maxOps - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxOps || remaining <= 0)
+                        break;
+                    Operation next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Closed while collecting: the operations taken so far are still executed
+            }
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(final List<Operation> batch) {
+        List<Object> results;
+        try {
+            results = pool.transactionallyDo(new Consumer<Pipeline>() {
+                @Override
+                public void accept(Pipeline p) {
+                    boolean written = false;
+                    for (Operation operation : batch) {
+                        for (int position : operation.positions) {
+                            if (operation.write) {
+                                p.setbit(bits.getRedisKey(), position, true);
+                                written = true;
+                            } else {
+                                bits.get(p, position);
+                            }
+                        }
+                    }
+                    if (written) bits.setExpireAt(p);
+                }
+            });
+        } catch (RuntimeException e) {
+            for (Operation operation : batch) {
+                operation.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        int i = 0;
+        for (Operation operation : batch) {
+            // Adds report whether any bit was unset, queries whether all bits were set
+            boolean result = !operation.write;
+            for (int j = 0; j < operation.positions.length; j++) {
+                boolean bit = (Boolean) results.get(i++);
+                result = operation.write ? result || !bit : result && bit;
+            }
+            operation.future.complete(result);
+        }
+    }
+
+    /**
+     * Stops the flusher thread after its current batch. Queued operations fail with an {@link IllegalStateException}.
+     */
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Operation operation;
+        while ((operation = queue.poll()) != null) {
+            operation.future.completeExceptionally(new IllegalStateException("The batcher was closed."));
+        }
+    }
+
+    private static class Operation {
+        private final int[] positions;
+        private final boolean write;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private Operation(int[] positions, boolean write) {
+            // Callers pass their reusable hash buffers, which they may refill while the operation is still queued
+            this.positions = positions.clone();
+            this.write = write;
+        }
+    }
+}
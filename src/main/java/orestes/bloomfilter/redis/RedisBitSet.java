@@ -1,9 +1,20 @@
 package orestes.bloomfilter.redis;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import orestes.bloomfilter.redis.helper.RedisPool;
+import redis.clients.jedis.BitOP;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import redis.clients.util.SafeEncoder;
@@ -14,8 +25,33 @@ import backport.java.util.function.Function;
  * A persistent BitSet backed by Redis. Not all methods of the superclass are implemented. If needed they can be used
  * converting the RedisBitSet to a regular BitSet by calling {@link #asBitSet()}. <br> <br> External transactions or
  * pipeline can be propagated for use by modifying methods (e.g. {@link #set(int)}).
+ * <p>
+ * Large bit arrays are transferred in chunks of {@link #TRANSFER_CHUNK_BYTES} bytes through GETRANGE and SETRANGE on up
+ * to {@link #TRANSFER_PARALLELISM} connections in parallel (see {@link #toByteArray()} and {@link
+ * #overwriteBitSet(BitSet)}), so no single reply blocks Redis or the connection for long.
  */
 public class RedisBitSet extends BitSet {
+    /**
+     * The number of bytes written by one SETRANGE command in {@link #merge(BitOP, BitSet)}
+     */
+    public static final int UPLOAD_CHUNK_BYTES = 1 << 16;
+    /**
+     * The number of bytes read by one GETRANGE or written by one SETRANGE command when transferring the whole bit array
+     */
+    public static final int TRANSFER_CHUNK_BYTES = 1 << 20;
+    /**
+     * The maximum number of connections used in parallel to transfer the chunks of a bit array
+     */
+    public static final int TRANSFER_PARALLELISM = 4;
+    private static final ExecutorService TRANSFER_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RedisBitSet-transfer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private final RedisPool pool;
     private String name;
     private int size;
@@ -40,7 +76,7 @@ public class RedisBitSet extends BitSet {
 
     @Override
     public boolean get(final int bitIndex) {
-        return pool.allowingSlaves().safelyReturn(new Function<Jedis, Boolean>() {
+        return pool.readSafelyReturn(new Function<Jedis, Boolean>() {
             @Override
             public Boolean apply(Jedis jedis) {
                 return jedis.getbit(name, bitIndex);
@@ -55,7 +91,7 @@ public class RedisBitSet extends BitSet {
      * @return an array containing the values at the given index positions
      */
     public Boolean[] getBulk(final int... indexes) {
-        List<Boolean> results = pool.allowingSlaves().transactionallyDo(new Consumer<Pipeline>() {
+        List<Boolean> results = pool.readTransactionallyDo(new Consumer<Pipeline>() {
             @Override
             public void accept(Pipeline p) {
                 for (int index : indexes) {
@@ -134,21 +170,105 @@ public class RedisBitSet extends BitSet {
         return size;
     }
 
+    /**
+     * Downloads the bit array in the byte and bit order of Redis. A bit array of more than {@link
+     * #TRANSFER_CHUNK_BYTES} bytes is read in chunks on up to {@link #TRANSFER_PARALLELISM} connections to the same
+     * replica. The chunks are not read atomically: bits written concurrently may be reflected in some chunks only.
+     *
+     * @return the bytes of the bit array
+     */
     @Override
     public byte[] toByteArray() {
-        return pool.allowingSlaves().safelyReturn(new Function<Jedis, byte[]>() {
+        final RedisPool replica = pool.allowingSlaves();
+        final byte[] key = SafeEncoder.encode(name);
+        byte[] first = getRange(replica, key, 0);
+        if (first.length < TRANSFER_CHUNK_BYTES) {
+            if (first.length == 0) {
+                // prevent null values
+                return new byte[(int) Math.ceil(size / 8)];
+            }
+            return first;
+        }
+
+        long length = replica.safelyReturn(new Function<Jedis, Long>() {
+            @Override
+            public Long apply(Jedis jedis) {
+                return jedis.strlen(key);
+            }
+        });
+        final byte[] bytes = Arrays.copyOf(first, (int) Math.max(length, first.length));
+        forEachChunk(chunks(bytes.length), new Consumer<Integer>() {
+            @Override
+            public void accept(Integer chunk) {
+                if (chunk == 0) return;
+                int start = chunk * TRANSFER_CHUNK_BYTES;
+                byte[] range = getRange(replica, key, start);
+                System.arraycopy(range, 0, bytes, start, Math.min(range.length, bytes.length - start));
+            }
+        });
+        return bytes;
+    }
+
+    private static byte[] getRange(RedisPool replica, final byte[] key, final long start) {
+        return replica.safelyReturn(new Function<Jedis, byte[]>() {
             @Override
             public byte[] apply(Jedis jedis) {
-                byte[] bytes = jedis.get(SafeEncoder.encode(name));
-                if (bytes == null) {
-                    // prevent null values
-                    bytes = new byte[(int) Math.ceil(size / 8)];
-                }
-                return bytes;
+                byte[] range = jedis.getrange(key, start, start + TRANSFER_CHUNK_BYTES - 1);
+                return range == null ? new byte[0] : range;
             }
         });
     }
 
+    private static int chunks(int bytes) {
+        return (bytes + TRANSFER_CHUNK_BYTES - 1) / TRANSFER_CHUNK_BYTES;
+    }
+
+    /**
+     * Transfers all chunks on up to {@link #TRANSFER_PARALLELISM} threads, the calling thread being one of them. If a
+     * chunk fails, the remaining chunks are skipped and the failure is thrown.
+     *
+     * @param chunks the number of chunks
+     * @param task   transfers the chunk with the given index
+     */
+    private static void forEachChunk(final int chunks, final Consumer<Integer> task) {
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int chunk = next.getAndIncrement(); chunk < chunks; chunk = next.getAndIncrement()) {
+                        task.accept(chunk);
+                    }
+                } catch (RuntimeException e) {
+                    next.set(chunks);
+                    throw e;
+                }
+            }
+        };
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 1; i < Math.min(chunks, TRANSFER_PARALLELISM); i++) {
+            workers.add(TRANSFER_EXECUTOR.submit(worker));
+        }
+        RuntimeException failure = null;
+        try {
+            worker.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (Future<?> future : workers) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e
+                        .getCause() : new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) failure = new RuntimeException(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
     /**
      * Returns the RedisBitSet as a regular BitSet.
      * 
@@ -159,20 +279,143 @@ public class RedisBitSet extends BitSet {
     }
 
     /**
-     * Overwrite the contents of this RedisBitSet by the given BitSet.
+     * Overwrite the contents of this RedisBitSet by the given BitSet. A BitSet of more than {@link
+     * #TRANSFER_CHUNK_BYTES} bytes is uploaded into a temporary key in chunks on up to {@link #TRANSFER_PARALLELISM}
+     * connections, skipping chunks without set bits, and then renamed to this RedisBitSet. Readers hence see either
+     * the old or the new contents.
      * 
      * @param bits a regular BitSet used to overwrite this RedisBitSet
      */
     public void overwriteBitSet(final BitSet bits) {
+        final byte[] bytes = toByteArrayReverse(bits);
+        if (bytes.length <= TRANSFER_CHUNK_BYTES) {
+            pool.transactionallyDo(new Consumer<Pipeline>() {
+                @Override
+                public void accept(Pipeline p) {
+                    p.set(SafeEncoder.encode(name), bytes);
+                    setExpireAt(p);
+                }
+            });
+            return;
+        }
+
+        final String temp = name + ":upload:" + UUID.randomUUID();
+        final byte[] tempKey = SafeEncoder.encode(temp);
+        final int chunks = chunks(bytes.length);
+        try {
+            forEachChunk(chunks, new Consumer<Integer>() {
+                @Override
+                public void accept(Integer chunk) {
+                    final int start = chunk * TRANSFER_CHUNK_BYTES;
+                    int end = Math.min(start + TRANSFER_CHUNK_BYTES, bytes.length);
+                    // The last chunk is always written, as it determines the length of the value
+                    if (chunk != chunks - 1 && isZero(bytes, start, end)) return;
+                    final byte[] range = Arrays.copyOfRange(bytes, start, end);
+                    pool.safelyDo(new Consumer<Jedis>() {
+                        @Override
+                        public void accept(Jedis jedis) {
+                            jedis.setrange(tempKey, start, range);
+                        }
+                    });
+                }
+            });
+            pool.transactionallyDo(new Consumer<Pipeline>() {
+                @Override
+                public void accept(Pipeline p) {
+                    p.rename(temp, name);
+                    setExpireAt(p);
+                }
+            });
+        } catch (RuntimeException e) {
+            try {
+                pool.safelyDo(new Consumer<Jedis>() {
+                    @Override
+                    public void accept(Jedis jedis) {
+                        jedis.del(tempKey);
+                    }
+                });
+            } catch (RuntimeException ignored) {
+                // The original failure is more relevant
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isZero(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Combines this RedisBitSet with another RedisBitSet through BITOP, i.e. entirely inside Redis. Both have to be
+     * stored on the same Redis instance (see {@link RedisPool#sharesInstance(RedisPool)}).
+     *
+     * @param op    the bitwise operation, e.g. {@link BitOP#OR} for a union
+     * @param other the other RedisBitSet
+     */
+    public void merge(final BitOP op, final RedisBitSet other) {
         pool.transactionallyDo(new Consumer<Pipeline>() {
             @Override
             public void accept(Pipeline p) {
-                p.set(SafeEncoder.encode(name), toByteArrayReverse(bits));
+                p.bitop(op, name, name, other.name);
+                // BITOP replaces the key and thereby drops its expiration
                 setExpireAt(p);
             }
         });
     }
 
+    /**
+     * Combines this RedisBitSet with a regular BitSet. The BitSet is uploaded into a temporary key in chunks of {@link
+     * #UPLOAD_CHUNK_BYTES} bytes, skipping chunks without set bits, and combined through BITOP inside Redis. Hence only
+     * the set regions of the BitSet are transferred and the bits of this RedisBitSet never leave Redis.
+     *
+     * @param op   the bitwise operation, e.g. {@link BitOP#OR} for a union
+     * @param bits the BitSet to combine this RedisBitSet with
+     */
+    public void merge(final BitOP op, final BitSet bits) {
+        final String temp = name + ":merge:" + UUID.randomUUID();
+        final byte[] tempKey = SafeEncoder.encode(temp);
+        try {
+            pool.safelyDo(new Consumer<Jedis>() {
+                @Override
+                public void accept(Jedis jedis) {
+                    Pipeline p = jedis.pipelined();
+                    int chunkBits = UPLOAD_CHUNK_BYTES * 8;
+                    // A missing or shorter temporary key counts as zero bits for BITOP
+                    for (int start = 0; start < size; start += chunkBits) {
+                        BitSet chunk = bits.get(start, Math.min(start + chunkBits, size));
+                        if (chunk.isEmpty()) continue;
+                        byte[] bytes = Arrays.copyOf(toByteArrayReverse(chunk), (chunk.length() + 7) / 8);
+                        p.setrange(tempKey, start / 8, bytes);
+                    }
+                    p.sync();
+                }
+            });
+            pool.transactionallyDo(new Consumer<Pipeline>() {
+                @Override
+                public void accept(Pipeline p) {
+                    p.bitop(op, name, name, temp);
+                    p.del(temp);
+                    setExpireAt(p);
+                }
+            });
+        } catch (RuntimeException e) {
+            try {
+                pool.safelyDo(new Consumer<Jedis>() {
+                    @Override
+                    public void accept(Jedis jedis) {
+                        jedis.del(tempKey);
+                    }
+                });
+            } catch (RuntimeException ignored) {
+                // The original failure is more relevant
+            }
+            throw e;
+        }
+    }
+
     @Override
     public String toString() {
         return asBitSet().toString();
@@ -218,24 +461,50 @@ public class RedisBitSet extends BitSet {
         return false;
     }
 
-    // Copied from: https://github.com/xetorthio/jedis/issues/301
+    /**
+     * Converts bytes in the bit order of Redis, where bit 0 is the most significant bit of the first byte, into a
+     * BitSet. Eight bytes at a time are read as a big-endian word and bit-reversed, so that bit 0 becomes the least
+     * significant bit of the word like in {@link BitSet#valueOf(long[])}.
+     *
+     * @param bytes the bytes in the bit order of Redis
+     * @return the BitSet
+     */
     public static BitSet fromByteArrayReverse(final byte[] bytes) {
-        final BitSet bits = new BitSet();
-        for (int i = 0; i < bytes.length * 8; i++) {
-            if ((bytes[i / 8] & (1 << (7 - (i % 8)))) != 0) {
-                bits.set(i);
+        final long[] words = new long[(bytes.length + 7) / 8];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int full = bytes.length / 8;
+        for (int i = 0; i < full; i++) {
+            words[i] = Long.reverse(buffer.getLong());
+        }
+        if (full < words.length) {
+            long last = 0;
+            for (int i = full * 8, shift = 56; i < bytes.length; i++, shift -= 8) {
+                last |= (bytes[i] & 0xFFL) << shift;
             }
+            words[full] = Long.reverse(last);
         }
-        return bits;
+        return BitSet.valueOf(words);
     }
 
-    // Copied from: https://github.com/xetorthio/jedis/issues/301
+    /**
+     * Converts a BitSet into bytes in the bit order of Redis (see {@link #fromByteArrayReverse(byte[])}), one word at
+     * a time.
+     *
+     * @param bits the BitSet
+     * @return the bytes in the bit order of Redis, with at least one byte beyond the highest set bit
+     */
     public static byte[] toByteArrayReverse(final BitSet bits) {
+        final long[] words = bits.toLongArray();
         final byte[] bytes = new byte[bits.length() / 8 + 1];
-        for (int i = 0; i < bits.length(); i++) {
-            if (bits.get(i)) {
-                final int value = bytes[i / 8] | (1 << (7 - (i % 8)));
-                bytes[i / 8] = (byte) value;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int full = Math.min(words.length, bytes.length / 8);
+        for (int i = 0; i < full; i++) {
+            buffer.putLong(Long.reverse(words[i]));
+        }
+        if (full < words.length) {
+            long last = Long.reverse(words[full]);
+            for (int i = full * 8, shift = 56; i < bytes.length; i++, shift -= 8) {
+                bytes[i] = (byte) (last >>> shift);
             }
         }
         return bytes;
@@ -0,0 +1,306 @@
+package orestes.bloomfilter.redis;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import orestes.bloomfilter.redis.helper.RedisPool;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.util.SafeEncoder;
+import backport.java.util.function.Consumer;
+import backport.java.util.function.Function;
+
+/**
+ * A local copy of the bit array of a Redis-backed Bloom filter, which answers membership queries without a round trip
+ * to Redis. The copy is kept up to date in two ways:
+ * <ul>
+ * <li>Clients with a near cache publish the positions they set (as well as clears and merges) on a Redis channel.
+ * Every near cache subscribes to this channel and applies the published changes, usually within a millisecond.</li>
+ * <li>Pub/sub delivery is not guaranteed, e.g. during reconnects, and clients without a near cache do not publish.
+ * Therefore the whole bit array is reloaded periodically from the master through chunked GETRANGE commands, which
+ * bounds the staleness of the copy by the refresh interval. The reloaded bits are added to the copy, so a refresh never
+ * removes bits that were set meanwhile. Only clears and intersections remove bits: a clear discards refreshes that
+ * were in progress, an intersection replaces the copy through {@link #reload()}.</li>
+ * </ul>
+ * A stale copy lacks bits that were recently set by other clients, i.e. it may report false negatives for elements
+ * that were added less than one refresh interval ago.
+ */
+public class RedisNearCache {
+    /**
+     * The number of bytes read by one GETRANGE command during a refresh
+     */
+    public static final int CHUNK_BYTES = 1 << 16;
+    static final String CLEAR_MESSAGE = "clear";
+    static final String REFRESH_MESSAGE = "refresh";
+    static final String RELOAD_MESSAGE = "reload";
+
+    private final RedisPool pool;
+    private final String key;
+    private final String channel;
+    private final int size;
+    private final AtomicLongArray words;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed = false;
+    /**
+     * Incremented by every clear and reload, guarded by this near cache. A load that started in an earlier generation
+     * is discarded, as it may contain bits that were removed meanwhile.
+     */
+    private long generation = 0;
+    private final CountDownLatch subscribed = new CountDownLatch(1);
+    private final JedisPubSub subscriber = new JedisPubSub() {
+        @Override
+        public void onMessage(String channel, String message) {
+            apply(message);
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            if (closed) unsubscribe();
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+        }
+    };
+
+    /**
+     * Creates the near cache, loads the bit array and starts listening for changes.
+     *
+     * @param pool           the pool of the Redis instance holding the bit array
+     * @param key            the key of the bit array
+     * @param channel        the channel on which changes are published
+     * @param size           the size of the bit array in bits
+     * @param refreshMillis  the interval in milliseconds in which the bit array is reloaded or 0 to rely on published
+     *                       changes only
+     */
+    public RedisNearCache(RedisPool pool, String key, String channel, int size, long refreshMillis) {
+        this.pool = pool;
+        this.key = key;
+        this.channel = channel;
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+        this.scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RedisNearCache-" + RedisNearCache.this.key);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        });
+        // Changes published before the subscription are contained in the initial load
+        try {
+            subscribed.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        refresh();
+        if (refreshMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        // Retried in the next interval
+                    }
+                }
+            }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void listen() {
+        while (!closed) {
+            try {
+                pool.safelyDo(new Consumer<Jedis>() {
+                    @Override
+                    public void accept(Jedis jedis) {
+                        jedis.subscribe(subscriber, channel);
+                        // The reply to an unsubscribe from another thread may still be pending on the connection,
+                        // which is therefore reconnected before it is used again
+                        jedis.disconnect();
+                    }
+                });
+            } catch (RuntimeException e) {
+                if (closed) return;
+                // Changes published while disconnected are picked up by the next refresh
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reloads the bit array from the master and adds its bits to the copy. Bits that are only set in the copy are kept,
+     * so that a refresh cannot remove bits that were set after it started. A refresh that overlaps with a clear or
+     * reload is discarded.
+     */
+    public void refresh() {
+        load(false);
+    }
+
+    /**
+     * Reloads the bit array from the master and replaces the copy with it, e.g. after bits were removed by an
+     * intersection. Bits set in the copy while the reload is in progress are kept. Refreshes in progress are discarded.
+     */
+    public void reload() {
+        load(true);
+    }
+
+    private void load(boolean replace) {
+        long loadGeneration;
+        long[] before = new long[replace ? words.length() : 0];
+        synchronized (this) {
+            loadGeneration = generation;
+            for (int word = 0; word < before.length; word++) {
+                before[word] = words.get(word);
+            }
+        }
+        // Read slaves may lag behind and lack recently set bits
+        final byte[] bytes = pool.safelyReturn(new Function<Jedis, byte[]>() {
+            @Override
+            public byte[] apply(Jedis jedis) {
+                byte[] bytes = new byte[(size + 7) >>> 3];
+                byte[] binaryKey = SafeEncoder.encode(key);
+                for (int start = 0; start < bytes.length; start += CHUNK_BYTES) {
+                    int end = Math.min(start + CHUNK_BYTES, bytes.length) - 1;
+                    byte[] chunk = jedis.getrange(binaryKey, start, end);
+                    // Missing or shorter keys are zero-padded
+                    System.arraycopy(chunk, 0, bytes, start, chunk.length);
+                    if (chunk.length < end - start + 1) break;
+                }
+                return bytes;
+            }
+        });
+        synchronized (this) {
+            if (generation != loadGeneration) return;
+            if (replace) generation++;
+            // Redis stores the most significant bit of a byte first
+            for (int word = 0; word < words.length(); word++) {
+                long value = 0;
+                for (int i = 0; i < 8 && word * 8 + i < bytes.length; i++) {
+                    value |= (Integer.reverse(bytes[word * 8 + i] & 0xFF) >>> 24 & 0xFFL) << (i * 8);
+                }
+                while (true) {
+                    long current = words.get(word);
+                    long updated = replace ? value | (current & ~before[word]) : value | current;
+                    if (words.compareAndSet(word, current, updated)) break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a published change.
+     *
+     * @param message comma-separated positions that were set, {@link #CLEAR_MESSAGE}, {@link #REFRESH_MESSAGE} or
+     *                {@link #RELOAD_MESSAGE}
+     */
+    void apply(String message) {
+        if (CLEAR_MESSAGE.equals(message)) {
+            clear();
+            return;
+        }
+        if (REFRESH_MESSAGE.equals(message) || RELOAD_MESSAGE.equals(message)) {
+            if (closed) return;
+            final boolean replace = RELOAD_MESSAGE.equals(message);
+            // Reloads outside of the subscriber thread, which keeps receiving changes meanwhile
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(replace);
+                }
+            });
+            return;
+        }
+        int start = 0;
+        while (start < message.length()) {
+            int end = message.indexOf(',', start);
+            if (end < 0) end = message.length();
+            set(Integer.parseInt(message.substring(start, end)));
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Encodes positions as a change message for {@link #apply(String)}.
+     *
+     * @param positions the positions that were set
+     * @return the change message
+     */
+    static String message(int... positions) {
+        StringBuilder sb = new StringBuilder(positions.length * 8);
+        for (int position : positions) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(position);
+        }
+        return sb.toString();
+    }
+
+    public boolean get(int position) {
+        return (words.get(position >>> 6) & (1L << position)) != 0;
+    }
+
+    public boolean isAllSet(int... positions) {
+        for (int position : positions) {
+            if (!get(position)) return false;
+        }
+        return true;
+    }
+
+    public void set(int position) {
+        int word = position >>> 6;
+        long mask = 1L << position;
+        while (true) {
+            long old = words.get(word);
+            if ((old & mask) != 0 || words.compareAndSet(word, old, old | mask)) return;
+        }
+    }
+
+    public void setAll(int... positions) {
+        for (int position : positions) {
+            set(position);
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0L);
+        }
+    }
+
+    /**
+     * Stops listening for changes and refreshing the bit array.
+     */
+    public void close() {
+        closed = true;
+        if (subscriber.isSubscribed()) subscriber.unsubscribe();
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,399 @@
+package orestes.bloomfilter.redis;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.memory.BloomFilterMemory;
+import orestes.bloomfilter.redis.helper.RedisKeys;
+import orestes.bloomfilter.redis.helper.RedisPool;
+import redis.clients.jedis.BitOP;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import backport.java.util.function.Consumer;
+
+/**
+ * A persistent Bloom filter backed by several Redis keys and Redis instances. The bit vector is split into {@link
+ * FilterBuilder#redisShards()} contiguous segments of equal size, each stored in its own Redis string. The segment keys
+ * carry a cluster hash tag (see {@link RedisKeys#segmentKey(int)}), so in a Redis Cluster they are distributed over
+ * different slots. Segments are assigned round-robin to the main Redis instance and the nodes added through {@link
+ * FilterBuilder#addRedisShardNode(String, int)}, i.e. segment <i>i</i> lives on node <i>i mod nodes</i>. This spreads
+ * the memory and traffic of one filter over several Redis instances. The positions are still ints, so the size of the
+ * whole filter is limited to {@link Integer#MAX_VALUE} bits like that of a regular Redis-backed filter.
+ * <p>
+ * Every operation groups the positions by the node holding their segment. Each node processes its positions in one
+ * pipelined transaction and the nodes are accessed in parallel. Hence the operations of an element are atomic on each
+ * node, but not across nodes. The configuration of the filter (including the number of segments) is stored on the
+ * main Redis instance; all clients have to use the same shard nodes in the same order.
+ *
+ * @param <T>
+ */
+public class ShardedBloomFilterRedis<T> extends BloomFilter<T> {
+    private final RedisKeys keys;
+    private final FilterBuilder config;
+    /**
+     * The main Redis instance followed by the shard nodes
+     */
+    private final RedisPool[] pools;
+    private final RedisBitSet[] segments;
+    private final int segmentSize;
+    private final ExecutorService executor;
+
+    public ShardedBloomFilterRedis(FilterBuilder builder) {
+        builder.complete();
+        this.keys = new RedisKeys(builder.name());
+        List<Entry<String, Integer>> nodes = builder.getRedisShardNodes();
+        this.pools = new RedisPool[nodes.size() + 1];
+        pools[0] = builder.redisPool() == null ? new RedisPool(builder.redisHost(), builder.redisPort(), builder.redisConnections(), builder.getReadSlaves(), builder.redisHedgedReads()) : builder.redisPool();
+        for (int i = 0; i < nodes.size(); i++) {
+            pools[i + 1] = new RedisPool(nodes.get(i).getKey(), nodes.get(i).getValue(), builder.redisConnections());
+        }
+        this.config = keys.persistConfig(pools[0], builder);
+        if (config != builder) {
+            // The persisted configuration does not contain the connection settings
+            config.redisHost(builder.redisHost()).redisPort(builder.redisPort()).redisConnections(builder.redisConnections());
+            for (Entry<String, Integer> node : nodes) {
+                config.addRedisShardNode(node.getKey(), node.getValue());
+            }
+        }
+
+        int shards = config.redisShards();
+        if (shards > config.size())
+            throw new IllegalArgumentException("A Bloom filter of " + config.size() + " bits cannot have " + shards + " segments.");
+        this.segmentSize = (config.size() + shards - 1) / shards;
+        this.segments = new RedisBitSet[shards];
+        for (int i = 0; i < shards; i++) {
+            int size = Math.min(segmentSize, config.size() - i * segmentSize);
+            segments[i] = new RedisBitSet(pools[i % pools.length], keys.segmentKey(i), size, builder.redisExpireAt());
+        }
+        this.executor = pools.length > 1 ? Executors.newFixedThreadPool(pools.length, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ShardedBloomFilterRedis-" + keys.BITS_KEY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+        if (builder.overwriteIfExists())
+            this.clear();
+    }
+
+    @Override
+    public FilterBuilder config() {
+        return config;
+    }
+
+    @Override
+    public boolean add(byte[] element) {
+        for (boolean wasSet : access(hashBuffered(element), true)) {
+            if (!wasSet) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public List<Boolean> addAll(Collection<T> elements) {
+        boolean[] results = access(positions(elements), true);
+        List<Boolean> added = new ArrayList<>(elements.size());
+        int k = config().hashes();
+        for (int i = 0; i < results.length; i += k) {
+            boolean wasAdded = false;
+            for (int j = i; j < i + k; j++) {
+                if (!results[j]) wasAdded = true;
+            }
+            added.add(wasAdded);
+        }
+        return added;
+    }
+
+    @Override
+    public boolean contains(byte[] element) {
+        for (boolean isSet : access(hashBuffered(element), false)) {
+            if (!isSet) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<Boolean> contains(Collection<T> elements) {
+        boolean[] results = access(positions(elements), false);
+        List<Boolean> contains = new ArrayList<>(elements.size());
+        int k = config().hashes();
+        for (int i = 0; i < results.length; i += k) {
+            boolean isPresent = true;
+            for (int j = i; j < i + k; j++) {
+                if (!results[j]) isPresent = false;
+            }
+            contains.add(isPresent);
+        }
+        return contains;
+    }
+
+    private int[] positions(Collection<T> elements) {
+        int k = config().hashes();
+        int[] positions = new int[elements.size() * k];
+        int i = 0;
+        for (T element : elements) {
+            System.arraycopy(hashBuffered(toBytes(element)), 0, positions, i, k);
+            i += k;
+        }
+        return positions;
+    }
+
+    /**
+     * Sets or reads the bits at the given positions. The positions are grouped by the node holding their segment,
+     * every node processes its positions in one pipelined transaction and the nodes are accessed in parallel.
+     *
+     * @param positions the positions of the bits
+     * @param write     whether the bits should be set
+     * @return for every position the value of its bit before the operation
+     */
+    private boolean[] access(final int[] positions, final boolean write) {
+        final boolean[] results = new boolean[positions.length];
+        List<List<Integer>> byNode = new ArrayList<>(pools.length);
+        for (int i = 0; i < pools.length; i++) {
+            byNode.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < positions.length; i++) {
+            byNode.get((positions[i] / segmentSize) % pools.length).add(i);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int node = 0; node < pools.length; node++) {
+            final List<Integer> indexes = byNode.get(node);
+            if (indexes.isEmpty()) continue;
+            final RedisPool pool = pools[node];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Consumer<Pipeline> operations = new Consumer<Pipeline>() {
+                        @Override
+                        public void accept(Pipeline p) {
+                            boolean[] touched = new boolean[segments.length];
+                            for (int index : indexes) {
+                                int segment = positions[index] / segmentSize;
+                                int offset = positions[index] - segment * segmentSize;
+                                if (write) {
+                                    p.setbit(segments[segment].getRedisKey(), offset, true);
+                                    touched[segment] = true;
+                                } else {
+                                    segments[segment].get(p, offset);
+                                }
+                            }
+                            // Expirations are appended after the bit operations, so their replies come last
+                            for (int segment = 0; segment < touched.length; segment++) {
+                                if (touched[segment]) segments[segment].setExpireAt(p);
+                            }
+                        }
+                    };
+                    List<Object> replies = write ? pool.transactionallyDo(operations)
+                            : pool.<Object>readTransactionallyDo(operations);
+                    for (int i = 0; i < indexes.size(); i++) {
+                        results[indexes.get(i)] = (Boolean) replies.get(i);
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+        return results;
+    }
+
+    /**
+     * Runs the given tasks in parallel and waits for all of them. With a single node or a single task the tasks are
+     * run by the calling thread.
+     *
+     * @param tasks the tasks to run
+     */
+    private void runAll(List<? extends Callable<Void>> tasks) {
+        try {
+            if (executor == null || tasks.size() == 1) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (RedisBitSet segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public void remove() {
+        clear();
+        pools[0].safelyDo(new Consumer<Jedis>() {
+            @Override
+            public void accept(Jedis jedis) {
+                jedis.del(config().name());
+            }
+        });
+        close();
+    }
+
+    /**
+     * Stops the threads accessing the nodes in parallel and releases the connections to all nodes. In contrast to
+     * {@link #remove()}, the filter is not deleted from Redis. The filter must not be used after closing it.
+     */
+    public void close() {
+        if (executor != null)
+            executor.shutdown();
+        for (RedisPool pool : pools) {
+            pool.destroy();
+        }
+    }
+
+    @Override
+    public BitSet getBitSet() {
+        final BitSet[] parts = new BitSet[segments.length];
+        List<Callable<Void>> tasks = new ArrayList<>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            final int segment = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    parts[segment] = segments[segment].asBitSet();
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        BitSet bits = new BitSet(config().size());
+        for (int i = 0; i < parts.length; i++) {
+            BitSet part = parts[i];
+            for (int j = part.nextSetBit(0); j >= 0; j = part.nextSetBit(j + 1)) {
+                bits.set(i * segmentSize + j);
+            }
+        }
+        return bits;
+    }
+
+    public BloomFilterMemory<T> toMemoryFilter() {
+        BloomFilterMemory<T> filter = new BloomFilterMemory<>(config().clone());
+        filter.getBitSet().or(getBitSet());
+        return filter;
+    }
+
+    @Override
+    public BloomFilter<T> clone() {
+        return new ShardedBloomFilterRedis<>(config.clone());
+    }
+
+    @Override
+    public boolean union(BloomFilter<T> other) {
+        return merge(BitOP.OR, other);
+    }
+
+    @Override
+    public boolean intersect(BloomFilter<T> other) {
+        return merge(BitOP.AND, other);
+    }
+
+    /**
+     * Combines every segment with the corresponding bits of another Bloom filter inside Redis, with the segments
+     * processed in parallel. If the other filter is a sharded Redis Bloom filter with its segments on the same
+     * instances, the segments are combined by BITOP. Otherwise the bits of the other filter are uploaded in chunks
+     * (see {@link RedisBitSet#merge(BitOP, BitSet)}).
+     *
+     * @param op    the bitwise operation
+     * @param other the other Bloom filter
+     * @return <tt>true</tt> if the filters are compatible and this filter was updated
+     */
+    private boolean merge(final BitOP op, BloomFilter<T> other) {
+        if (!compatible(this, other))
+            return false;
+        final ShardedBloomFilterRedis<T> sharded = other instanceof ShardedBloomFilterRedis
+                && sharesLayout((ShardedBloomFilterRedis<T>) other) ? (ShardedBloomFilterRedis<T>) other : null;
+        final BitSet bits = sharded == null ? other.getBitSet() : null;
+        List<Callable<Void>> tasks = new ArrayList<>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            final int segment = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (sharded != null) {
+                        segments[segment].merge(op, sharded.segments[segment]);
+                    } else {
+                        int start = segment * segmentSize;
+                        segments[segment].merge(op, bits.get(start, start + segments[segment].size()));
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+        return true;
+    }
+
+    /**
+     * @param other another sharded Redis Bloom filter
+     * @return {@code true} if every segment of the other filter is stored on the same instance as the corresponding
+     * segment of this filter
+     */
+    private boolean sharesLayout(ShardedBloomFilterRedis<T> other) {
+        if (other.segments.length != segments.length || other.pools.length != pools.length)
+            return false;
+        for (int i = 0; i < pools.length; i++) {
+            if (!pools[i].sharesInstance(other.pools[i])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (RedisBitSet segment : segments) {
+            if (segment.cardinality() != 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Double getEstimatedPopulation() {
+        int oneBits = 0;
+        for (RedisBitSet segment : segments) {
+            oneBits += segment.cardinality();
+        }
+        return BloomFilter.population(oneBits, config());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ShardedBloomFilterRedis)) return false;
+
+        ShardedBloomFilterRedis that = (ShardedBloomFilterRedis) o;
+
+        if (config != null ? !config.isCompatibleTo(that.config) : that.config != null) return false;
+        if (!getBitSet().equals(that.getBitSet())) return false;
+
+        return true;
+    }
+}
@@ -0,0 +1,186 @@
+package orestes.bloomfilter.redis.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import backport.java.util.concurrent.CompletableFuture;
+import backport.java.util.function.Consumer;
+import backport.java.util.function.Function;
+
+/**
+ * Executes {@link RedisScript}s asynchronously. Invocations are queued and a few worker threads, each using one
+ * connection of the {@link RedisPool} at a time, send all queued invocations in one pipeline and complete their
+ * futures from the replies. The calling thread never blocks, and any number of invocations in flight share the
+ * connections of the workers.
+ * <p>
+ * The futures are completed by the worker threads after the connection was returned to the pool, so dependent
+ * actions run on a worker thread and should not block.
+ */
+public class RedisDispatcher {
+    /**
+     * The maximum number of invocations sent in one pipeline
+     */
+    public static final int MAX_BATCH = 1024;
+
+    private final RedisPool pool;
+    private final BlockingQueue<Invocation<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread[] workers;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the worker threads.
+     *
+     * @param pool        the pool to take connections from
+     * @param connections the number of worker threads, i.e. the number of connections used at most
+     * @param name        the name of the worker threads
+     */
+    public RedisDispatcher(RedisPool pool, int connections, String name) {
+        if (connections < 1)
+            throw new IllegalArgumentException("At least one connection is required.");
+        this.pool = pool;
+        this.workers = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues the invocation of a script.
+     *
+     * @param script the script to invoke
+     * @param keys   the keys accessed by the script (KEYS in Lua)
+     * @param args   the arguments of the script (ARGV in Lua)
+     * @param reply  converts the reply of the script into the result of the future
+     * @param <R>    the type of the result
+     * @return a future that is completed with the converted reply or exceptionally if the invocation failed
+     */
+    public <R> CompletableFuture<R> eval(RedisScript script, List<String> keys, List<String> args,
+                                         Function<Object, R> reply) {
+        Invocation<R> invocation = new Invocation<>(script, keys, args, reply);
+        queue.add(invocation);
+        if (closed && queue.remove(invocation))
+            invocation.future.completeExceptionally(new IllegalStateException("The dispatcher was closed."));
+        return invocation.future;
+    }
+
+    private void work() {
+        List<Invocation<?>> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            execute(batch);
+            batch.clear();
+        }
+    }
+
+    private void execute(final List<Invocation<?>> batch) {
+        final Object[] replies = new Object[batch.size()];
+        try {
+            pool.safelyDo(new Consumer<Jedis>() {
+                @Override
+                public void accept(Jedis jedis) {
+                    ScriptingPipeline p = new ScriptingPipeline(jedis);
+                    List<Response<Object>> responses = new ArrayList<>(batch.size());
+                    for (Invocation<?> invocation : batch) {
+                        responses.add(p.evalsha(invocation.script, invocation.keys, invocation.args));
+                    }
+                    p.sync();
+                    for (int i = 0; i < replies.length; i++) {
+                        Invocation<?> invocation = batch.get(i);
+                        try {
+                            replies[i] = responses.get(i).get();
+                        } catch (JedisDataException e) {
+                            if (e.getMessage() == null || !e.getMessage().contains("NOSCRIPT")) {
+                                replies[i] = e;
+                                continue;
+                            }
+                            // Sends the script, so the remaining invocations find it in the script cache
+                            try {
+                                replies[i] = invocation.script.eval(jedis, invocation.keys, invocation.args);
+                            } catch (JedisDataException ex) {
+                                replies[i] = ex;
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            for (Invocation<?> invocation : batch) {
+                invocation.future.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < replies.length; i++) {
+            batch.get(i).complete(replies[i]);
+        }
+    }
+
+    /**
+     * Stops the worker threads after their current pipelines. Queued invocations fail with an {@link
+     * IllegalStateException}.
+     */
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        try {
+            for (Thread worker : workers) {
+                // Dependent actions of a future may close the dispatcher from a worker
+                if (worker != Thread.currentThread()) worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Invocation<?> invocation;
+        while ((invocation = queue.poll()) != null) {
+            invocation.future.completeExceptionally(new IllegalStateException("The dispatcher was closed."));
+        }
+    }
+
+    private static class Invocation<R> {
+        private final RedisScript script;
+        private final List<String> keys;
+        private final List<String> args;
+        private final Function<Object, R> reply;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        private Invocation(RedisScript script, List<String> keys, List<String> args, Function<Object, R> reply) {
+            this.script = script;
+            this.keys = keys;
+            this.args = args;
+            this.reply = reply;
+        }
+
+        private void complete(Object data) {
+            if (data instanceof Throwable) {
+                future.completeExceptionally((Throwable) data);
+                return;
+            }
+            R result;
+            try {
+                result = reply.apply(data);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            future.complete(result);
+        }
+    }
+}
@@ -22,12 +22,30 @@ public class RedisKeys {
     public static final String C_KEY = "c";
     public static final String P_KEY = "p";
     public static final String HASH_METHOD_KEY = "hashmethod";
+    public static final String COUNTER_LAYOUT_KEY = "counterlayout";
+    public static final String PACKED_COUNTER_LAYOUT = "bitfield";
+    public static final String SHARDS_KEY = "shards";
     public final String BITS_KEY;
     public final String COUNTS_KEY;
+    public final String CHANGES_CHANNEL;
+    private final String instanceName;
 
     public RedisKeys(String instanceName) {
+        this.instanceName = instanceName;
         this.BITS_KEY = instanceName + ":bits";
         this.COUNTS_KEY = instanceName + ":counts";
+        this.CHANGES_CHANNEL = instanceName + ":changes";
+    }
+
+    /**
+     * Returns the key of a segment of a sharded Bloom filter. The key contains a cluster hash tag made of the instance
+     * name and the segment number, so different segments are mapped to different slots of a Redis Cluster.
+     *
+     * @param segment the number of the segment
+     * @return the key of the segment
+     */
+    public String segmentKey(int segment) {
+        return "{" + instanceName + ":" + segment + "}:bits";
     }
 
     public FilterBuilder persistConfig(RedisPool pool, final FilterBuilder builder) {
@@ -67,6 +85,12 @@ public class RedisKeys {
         map.put(N_KEY, String.valueOf(config.expectedElements()));
         map.put(C_KEY, String.valueOf(config.countingBits()));
         map.put(HASH_METHOD_KEY, config.hashMethod().name());
+        if (config.redisPackedCounters()) {
+            map.put(COUNTER_LAYOUT_KEY, PACKED_COUNTER_LAYOUT);
+        }
+        if (config.redisShards() > 1) {
+            map.put(SHARDS_KEY, String.valueOf(config.redisShards()));
+        }
         return map;
     }
 
@@ -79,7 +103,14 @@ public class RedisKeys {
         config.hashes(Integer.valueOf(map.get(K_KEY)));
         config.expectedElements(Integer.valueOf(map.get(N_KEY)));
         config.countingBits(Integer.valueOf(map.get(C_KEY)));
-        config.hashFunction(HashMethod.valueOf(map.get(HASH_METHOD_KEY)));
+        // Filters without a recorded hash method were created with the former default
+        String hashMethod = map.get(HASH_METHOD_KEY);
+        config.hashFunction(hashMethod != null ? HashMethod.valueOf(hashMethod) : HashMethod.MD5);
+        // Counters are stored in a hash unless the packed layout is recorded
+        config.redisPackedCounters(PACKED_COUNTER_LAYOUT.equals(map.get(COUNTER_LAYOUT_KEY)));
+        if (map.containsKey(SHARDS_KEY)) {
+            config.redisShards(Integer.valueOf(map.get(SHARDS_KEY)));
+        }
         config.complete();
         return config;
     }
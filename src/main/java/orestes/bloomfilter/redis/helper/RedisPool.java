@@ -5,6 +5,16 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -17,34 +27,87 @@ import backport.java.util.function.Function;
 
 /**
  * Encapsulates a Connection Pool and offers convenience methods for safe access through Java 8 Lambdas.
+ * <p>
+ * Every pool records the latency and health of its Redis instance (see {@link ReplicaStats}). With read slaves, reads
+ * are routed to the slave with the lowest latency weighted by its requests in flight (see {@link #allowingSlaves()}),
+ * slaves with recent connection failures are avoided and the master serves reads if no slave is healthy. Reads
+ * through {@link #readSafelyReturn(Function)} can additionally be hedged: if the chosen replica does not answer within
+ * a percentile of its recent latencies, the read is also sent to the next best replica and the first answer is used.
  */
 public class RedisPool {
+    /**
+     * The maximum number of threads performing hedged reads
+     */
+    private static final int HEDGING_THREADS = 64;
+    /**
+     * Runs hedged reads. If all threads are busy, a read is run on the calling thread instead, i.e. it is not hedged.
+     */
+    private static final ExecutorService HEDGING_EXECUTOR = new ThreadPoolExecutor(0, HEDGING_THREADS, 60,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RedisPool-hedging");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
 
     private final JedisPool pool;
+    private final String address;
+    private final ReplicaStats stats;
     private List<RedisPool> slavePools;
     private Random random;
+    private Double hedgePercentile;
 
     public RedisPool(JedisPool pool) {
+        this(pool, null);
+    }
+
+    private RedisPool(JedisPool pool, String address) {
         this.pool = pool;
+        this.address = address;
+        this.stats = new ReplicaStats(address == null ? "unknown" : address);
     }
 
     public RedisPool(JedisPool pool, int redisConnections, Set<Entry<String, Integer>> readSlaves) {
-        this(pool);
+        this(pool, null, redisConnections, readSlaves, null);
+    }
+
+    private RedisPool(JedisPool pool, String address, int redisConnections, Set<Entry<String, Integer>> readSlaves,
+                      Double hedgePercentile) {
+        this(pool, address);
         if (readSlaves != null && !readSlaves.isEmpty()) {
             slavePools = new ArrayList<>();
             random = new Random();
             for (Entry<String, Integer> slave : readSlaves) {
                 slavePools.add(new RedisPool(slave.getKey(), slave.getValue(), redisConnections));
             }
+            this.hedgePercentile = hedgePercentile;
         }
     }
 
     public RedisPool(String host, int port, int redisConnections) {
-        this(createJedisPool(host, port, redisConnections));
+        this(createJedisPool(host, port, redisConnections), host + ":" + port);
     }
 
     public RedisPool(String host, int port, int redisConnections, Set<Entry<String, Integer>> readSlaves) {
-        this(createJedisPool(host, port, redisConnections), redisConnections, readSlaves);
+        this(host, port, redisConnections, readSlaves, null);
+    }
+
+    /**
+     * Creates a pool for a master with read slaves.
+     *
+     * @param host             the host of the master
+     * @param port             the port of the master
+     * @param redisConnections the maximum number of connections to each instance
+     * @param readSlaves       the hosts and ports of the read slaves
+     * @param hedgePercentile  the percentile of the recent latencies of a replica after which its reads are hedged or
+     *                         {@code null} to never hedge reads
+     */
+    public RedisPool(String host, int port, int redisConnections, Set<Entry<String, Integer>> readSlaves,
+                     Double hedgePercentile) {
+        this(createJedisPool(host, port, redisConnections), host + ":" + port, redisConnections, readSlaves,
+                hedgePercentile);
     }
 
     private static JedisPool createJedisPool(String host, int port, int redisConnections) {
@@ -54,11 +117,145 @@ public class RedisPool {
         return new JedisPool(config, host, port);
     }
 
+    /**
+     * Tests whether this pool and the given pool connect to the same Redis instance, i.e. whether commands of one pool
+     * can access the keys written through the other. Pools created from a {@link JedisPool} are only known to share an
+     * instance with themselves.
+     *
+     * @param other the other pool
+     * @return {@code true} if both pools connect to the same host and port
+     */
+    public boolean sharesInstance(RedisPool other) {
+        return this == other || (address != null && address.equals(other.address));
+    }
+
+    /**
+     * Chooses the pool for a read that may be answered by a read slave. Of two randomly chosen healthy slaves the one
+     * with the lower expected latency, i.e. its average latency weighted by its requests in flight, is returned. The
+     * random choice avoids that all clients pile onto the same slave. Without slaves or if no slave is healthy, this
+     * pool of the master is returned.
+     *
+     * @return the pool of the chosen replica
+     */
     public RedisPool allowingSlaves() {
-        if(slavePools == null)
+        return chooseReplica(null);
+    }
+
+    /**
+     * @param excluded a replica that must not be chosen or {@code null}
+     * @return the pool of the best of two random healthy slaves besides the excluded one or the master
+     */
+    private RedisPool chooseReplica(RedisPool excluded) {
+        if (slavePools == null)
             return this;
-        int index = random.nextInt(slavePools.size());
-        return slavePools.get(index);
+        List<RedisPool> healthy = new ArrayList<>(slavePools.size());
+        for (RedisPool slave : slavePools) {
+            if (slave != excluded && slave.stats.isHealthy()) healthy.add(slave);
+        }
+        if (healthy.isEmpty())
+            return this;
+        if (healthy.size() == 1)
+            return healthy.get(0);
+        int first = random.nextInt(healthy.size());
+        int second = random.nextInt(healthy.size() - 1);
+        if (second >= first) second++;
+        RedisPool a = healthy.get(first);
+        RedisPool b = healthy.get(second);
+        return a.stats.score() <= b.stats.score() ? a : b;
+    }
+
+    /**
+     * Executes a read on a replica chosen by {@link #allowingSlaves()}. If a slave fails with a connection error, the
+     * read is repeated on the master. With hedging enabled, the read is additionally sent to the next best replica (or
+     * the master) if the chosen slave has not answered within the configured percentile of its recent latencies; the
+     * first successful answer is returned.
+     *
+     * @param f   the read operation, which must not have side effects
+     * @param <T> the type of the result
+     * @return the result of the read operation
+     */
+    public <T> T readSafelyReturn(final Function<Jedis, T> f) {
+        final RedisPool primary = allowingSlaves();
+        if (primary == this)
+            return safelyReturn(f);
+        long budget = hedgePercentile == null ? -1 : primary.stats.getLatencyPercentileNanos(hedgePercentile);
+        if (budget < 0)
+            return readFallingBack(primary, f);
+
+        CompletionService<T> reads = new ExecutorCompletionService<>(HEDGING_EXECUTOR);
+        reads.submit(readTask(primary, f));
+        RedisPool secondary = null;
+        try {
+            Future<T> done = reads.poll(budget, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                primary.stats.hedged();
+                secondary = chooseReplica(primary);
+                reads.submit(readTask(secondary, f));
+                done = reads.take();
+            }
+            RuntimeException failure;
+            try {
+                return done.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                        : new RuntimeException(e.getCause());
+            }
+            if (secondary != null) {
+                try {
+                    return reads.take().get();
+                } catch (ExecutionException e) {
+                    // The master is the last resort
+                }
+            }
+            if (secondary == this)
+                throw failure;
+            return safelyReturn(f);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static <T> Callable<T> readTask(final RedisPool replica, final Function<Jedis, T> f) {
+        return new Callable<T>() {
+            @Override
+            public T call() {
+                return replica.safelyReturn(f);
+            }
+        };
+    }
+
+    private <T> T readFallingBack(RedisPool replica, Function<Jedis, T> f) {
+        try {
+            return replica.safelyReturn(f);
+        } catch (JedisConnectionException e) {
+            return safelyReturn(f);
+        }
+    }
+
+    /**
+     * Executes a read-only transaction on a replica chosen like in {@link #readSafelyReturn(Function)}.
+     *
+     * @param f   queues the read commands of the transaction
+     * @param <T> the type of the replies
+     * @return the replies of the commands
+     */
+    public <T> List<T> readTransactionallyDo(final Consumer<Pipeline> f) {
+        return readSafelyReturn(RedisPool.<T>transaction(f));
+    }
+
+    /**
+     * @return the statistics of the master followed by the statistics of the read slaves
+     */
+    public List<ReplicaStats> getReplicaStats() {
+        List<ReplicaStats> replicas = new ArrayList<>();
+        replicas.add(stats);
+        if (slavePools != null) {
+            for (RedisPool slave : slavePools) {
+                replicas.add(slave.stats);
+            }
+        }
+        return replicas;
     }
 
     public void safelyDo(final Consumer<Jedis> f) {
@@ -73,15 +270,24 @@ public class RedisPool {
 
     public <T> T safelyReturn(Function<Jedis, T> f) {
         T result;
-        Jedis jedis = pool.getResource();
+        stats.begin();
+        long start = System.nanoTime();
+        Jedis jedis = null;
         try {
+            jedis = pool.getResource();
             result = f.apply(jedis);
+            stats.success(System.nanoTime() - start);
             return result;
         } catch (JedisConnectionException e) {
             if (jedis != null) {
                 pool.returnBrokenResource(jedis);
                 jedis = null;
             }
+            stats.failure();
+            throw e;
+        } catch (RuntimeException e) {
+            // Redis answered, albeit with an error
+            stats.success(System.nanoTime() - start);
             throw e;
         } finally {
             if (jedis != null)
@@ -89,20 +295,24 @@ public class RedisPool {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public <T> List<T> transactionallyDo(final Consumer<Pipeline> f, final String... watch) {
-        return (List<T>) safelyReturn(new Function<Jedis, Object>() {
+        return safelyReturn(RedisPool.<T>transaction(f, watch));
+    }
+
+    private static <T> Function<Jedis, List<T>> transaction(final Consumer<Pipeline> f, final String... watch) {
+        return new Function<Jedis, List<T>>() {
             @Override
-            public Object apply(Jedis jedis) {
+            @SuppressWarnings("unchecked")
+            public List<T> apply(Jedis jedis) {
                 Pipeline p = jedis.pipelined();
                 if (watch.length != 0) p.watch(watch);
                 p.multi();
                 f.accept(p);
                 Response<List<Object>> exec = p.exec();
                 p.sync();
-                return exec.get();
+                return (List<T>) exec.get();
             }
-        });
+        };
     }
 
     public <T> List<T> transactionallyRetry(Consumer<Pipeline> f, String... watch) {
@@ -143,5 +353,10 @@ public class RedisPool {
 
     public void destroy() {
         pool.destroy();
+        if (slavePools != null) {
+            for (RedisPool slave : slavePools) {
+                slave.destroy();
+            }
+        }
     }
 }
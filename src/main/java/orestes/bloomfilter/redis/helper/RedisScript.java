@@ -0,0 +1,61 @@
+package orestes.bloomfilter.redis.helper;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * A Lua script executed on the Redis server. Scripts are invoked through EVALSHA with the SHA1 digest of their source,
+ * so only the digest and the arguments are transferred. If the server does not know the script yet (e.g. after a
+ * restart or on a read slave), it is sent once through EVAL, which also adds it to the script cache of the server.
+ */
+public class RedisScript {
+    private final String source;
+    private final String sha;
+
+    public RedisScript(String source) {
+        this.source = source;
+        this.sha = sha1(source);
+    }
+
+    /**
+     * Executes the script.
+     *
+     * @param jedis the connection to use
+     * @param keys  the keys accessed by the script (KEYS in Lua)
+     * @param args  the arguments of the script (ARGV in Lua)
+     * @return the reply of the script
+     */
+    public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) throw e;
+            return jedis.eval(source, keys, args);
+        }
+    }
+
+    /**
+     * @return the SHA1 digest of the script, which identifies it in the script cache of Redis
+     */
+    public String getSha() {
+        return sha;
+    }
+
+    private static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package orestes.bloomfilter.redis.helper;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and health statistics of one Redis instance (the master or a read slave) of a {@link RedisPool}. The
+ * statistics are used to route reads to the fastest healthy replica and to decide when a read is hedged, and can be
+ * inspected to observe the effect of the routing (see {@link RedisPool#getReplicaStats()}).
+ * <p>
+ * The average latency is an exponentially weighted moving average. Percentiles are computed from the last {@link
+ * #SAMPLES} latencies.
+ */
+public class ReplicaStats {
+    /**
+     * The number of recent latencies percentiles are computed from
+     */
+    public static final int SAMPLES = 256;
+    /**
+     * The time in milliseconds a replica is avoided after a connection failure
+     */
+    public static final long DOWN_MILLIS = 1000;
+    private static final double ALPHA = 0.1;
+
+    private final String address;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount = 0;
+    private long[] sorted = null;
+    private volatile double averageNanos = 0;
+    private volatile long downUntil = 0;
+
+    public ReplicaStats(String address) {
+        this.address = address;
+    }
+
+    void begin() {
+        inFlight.incrementAndGet();
+    }
+
+    synchronized void success(long nanos) {
+        inFlight.decrementAndGet();
+        requests.incrementAndGet();
+        averageNanos = sampleCount == 0 ? nanos : averageNanos + ALPHA * (nanos - averageNanos);
+        samples[sampleCount++ % SAMPLES] = nanos;
+        sorted = null;
+    }
+
+    void failure() {
+        inFlight.decrementAndGet();
+        requests.incrementAndGet();
+        failures.incrementAndGet();
+        downUntil = System.currentTimeMillis() + DOWN_MILLIS;
+    }
+
+    void hedged() {
+        hedges.incrementAndGet();
+    }
+
+    /**
+     * @return {@code true} if the replica had no connection failure within the last {@link #DOWN_MILLIS}
+     * milliseconds
+     */
+    public boolean isHealthy() {
+        return System.currentTimeMillis() >= downUntil;
+    }
+
+    /**
+     * The routing score of the replica, i.e. the expected time until a new request is answered. Lower is better.
+     *
+     * @return the average latency weighted by the requests in flight
+     */
+    double score() {
+        return (averageNanos + 1) * (inFlight.get() + 1);
+    }
+
+    /**
+     * @param percentile a percentile between 0 and 1, e.g. 0.95
+     * @return the given percentile of the recent latencies in nanoseconds or -1 if fewer than {@link #SAMPLES} / 8
+     * latencies were recorded
+     */
+    public synchronized long getLatencyPercentileNanos(double percentile) {
+        int count = Math.min(sampleCount, SAMPLES);
+        if (count < SAMPLES / 8) return -1;
+        if (sorted == null) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+        }
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * @return the host and port of the replica
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the moving average of the latency in microseconds
+     */
+    public double getAverageLatencyMicros() {
+        return averageNanos / 1000;
+    }
+
+    /**
+     * @return the number of requests currently executed by the replica
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of completed requests, including failed ones
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests that failed with a connection error
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of reads of this replica that were hedged because it did not answer within the budget
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    @Override
+    public String toString() {
+        long p99 = getLatencyPercentileNanos(0.99);
+        return address + " [avg=" + String.format("%.1f", getAverageLatencyMicros()) + "us, p99="
+                + (p99 < 0 ? "n/a" : TimeUnit.NANOSECONDS.toMicros(p99) + "us") + ", inFlight=" + getInFlight()
+                + ", requests=" + getRequests() + ", failures=" + getFailures() + ", hedges=" + getHedges()
+                + (isHealthy() ? "" : ", down") + "]";
+    }
+}
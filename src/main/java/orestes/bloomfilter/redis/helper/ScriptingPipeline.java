@@ -0,0 +1,116 @@
+package orestes.bloomfilter.redis.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A pipeline that can invoke {@link RedisScript}s. The pipelined EVAL and EVALSHA of the Redis client decode every
+ * reply as a string, which fails for the integer and array replies of the scripts of the Bloom filters. This pipeline
+ * decodes script replies like the non-pipelined EVALSHA: integers as {@link Long}, bulk strings as {@link String} and
+ * arrays as {@link List}.
+ */
+public class ScriptingPipeline extends Pipeline {
+    private static final Builder<Object> EVAL_RESULT = new Builder<Object>() {
+        @Override
+        public Object build(Object data) {
+            return evalResult(data);
+        }
+    };
+
+    public ScriptingPipeline(Jedis jedis) {
+        setClient(jedis.getClient());
+    }
+
+    /**
+     * Queues the invocation of a script through EVALSHA. If the server does not know the script, the reply is a
+     * NOSCRIPT error and the script has to be sent through {@link RedisScript#eval(Jedis, List, List)}.
+     *
+     * @param script the script to invoke
+     * @param keys   the keys accessed by the script (KEYS in Lua)
+     * @param args   the arguments of the script (ARGV in Lua)
+     * @return the response of the script
+     */
+    public Response<Object> evalsha(RedisScript script, List<String> keys, List<String> args) {
+        String[] params = new String[keys.size() + args.size()];
+        int i = 0;
+        for (String key : keys) {
+            params[i++] = key;
+        }
+        for (String arg : args) {
+            params[i++] = arg;
+        }
+        client.evalsha(script.getSha(), keys.size(), params);
+        return getResponse(EVAL_RESULT);
+    }
+
+    /**
+     * Invokes a script once for each list of arguments, pipelined in a single round trip. If the server does not know
+     * the script, it is sent once through {@link RedisScript#eval(Jedis, List, List)} and the remaining invocations
+     * are pipelined again. The invocations are not atomic as a whole: if one fails, the preceding ones have been
+     * executed.
+     *
+     * @param jedis the connection to use
+     * @param script the script to invoke
+     * @param keys  the keys accessed by the script (KEYS in Lua)
+     * @param args  the arguments of each invocation (ARGV in Lua)
+     * @return the replies of the invocations in the order of their arguments
+     */
+    public static List<Object> evalAll(Jedis jedis, RedisScript script, List<String> keys, List<List<String>> args) {
+        List<Object> replies = new ArrayList<>(args.size());
+        List<Integer> missing = new ArrayList<>();
+        List<Response<Object>> responses = pipeline(jedis, script, keys, args);
+        for (int i = 0; i < args.size(); i++) {
+            try {
+                replies.add(responses.get(i).get());
+            } catch (JedisDataException e) {
+                if (e.getMessage() == null || !e.getMessage().contains("NOSCRIPT")) throw e;
+                replies.add(null);
+                missing.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            int first = missing.get(0);
+            replies.set(first, script.eval(jedis, keys, args.get(first)));
+            List<List<String>> retried = new ArrayList<>(missing.size() - 1);
+            for (int i : missing.subList(1, missing.size())) {
+                retried.add(args.get(i));
+            }
+            responses = pipeline(jedis, script, keys, retried);
+            for (int i = 1; i < missing.size(); i++) {
+                replies.set(missing.get(i), responses.get(i - 1).get());
+            }
+        }
+        return replies;
+    }
+
+    private static List<Response<Object>> pipeline(Jedis jedis, RedisScript script, List<String> keys,
+                                                   List<List<String>> args) {
+        List<Response<Object>> responses = new ArrayList<>(args.size());
+        if (args.isEmpty()) return responses;
+        ScriptingPipeline p = new ScriptingPipeline(jedis);
+        for (List<String> invocation : args) {
+            responses.add(p.evalsha(script, keys, invocation));
+        }
+        p.sync();
+        return responses;
+    }
+
+    private static Object evalResult(Object data) {
+        if (data instanceof byte[]) return SafeEncoder.encode((byte[]) data);
+        if (data instanceof List<?>) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (List<?>) data) {
+                list.add(evalResult(element));
+            }
+            return list;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,144 @@
+package orestes.bloomfilter.test;
+
+import static orestes.bloomfilter.test.helper.Helper.cleanupRedis;
+import static orestes.bloomfilter.test.helper.Helper.createRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.getJedis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.redis.BloomFilterRedis;
+import orestes.bloomfilter.redis.CountingBloomFilterRedis;
+import orestes.bloomfilter.test.helper.Helper;
+
+import org.junit.Test;
+
+import backport.java.util.concurrent.CompletableFuture;
+import backport.java.util.concurrent.CompletionException;
+import backport.java.util.function.Consumer;
+
+public class AsyncRedisBFTest {
+
+    @Test
+    public void asyncMatchesSync() throws Exception {
+        cleanupRedis();
+        BloomFilterRedis<String> filter = createRedisFilter("async", 10_000, 0.01, HashMethod.Murmur3x64);
+        BloomFilterRedis<String> sync = createRedisFilter("sync", 10_000, 0.01, HashMethod.Murmur3x64);
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            elements.add("element" + i);
+        }
+
+        assertTrue(filter.addAsync("first").get());
+        assertFalse(filter.addAsync("first").get());
+        sync.add("first");
+        assertEquals(sync.addAll(elements), filter.addAllAsync(elements).get());
+        assertEquals(sync.getBitSet(), filter.getBitSet());
+
+        elements.add("missing");
+        assertEquals(sync.contains(elements), filter.containsAsync(elements).get());
+        assertTrue(filter.containsAsync("first").get());
+        assertFalse(filter.containsAsync("missing").get());
+        filter.remove();
+    }
+
+    @Test
+    public void manyOperationsInFlight() throws Exception {
+        cleanupRedis();
+        BloomFilterRedis<String> filter = createRedisFilter("inflight", 10_000, 0.01, HashMethod.Murmur3x64);
+        int operations = 5_000;
+        final CountDownLatch done = new CountDownLatch(operations);
+        final AtomicInteger contained = new AtomicInteger();
+        List<CompletableFuture<Boolean>> adds = new ArrayList<>();
+        for (int i = 0; i < operations; i++) {
+            adds.add(filter.addAsync("element" + i));
+        }
+        for (CompletableFuture<Boolean> add : adds) {
+            add.get();
+        }
+        for (int i = 0; i < operations; i++) {
+            filter.containsAsync("element" + i).thenAccept(new Consumer<Boolean>() {
+                @Override
+                public void accept(Boolean present) {
+                    if (present) contained.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(operations, contained.get());
+
+        // Scripts evicted from the server cache are sent again
+        getJedis().scriptFlush();
+        assertTrue(filter.containsAsync("element1").get());
+
+        filter.remove();
+        try {
+            filter.containsAsync("element1").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void asyncCounting() throws Exception {
+        cleanupRedis();
+        List<CountingBloomFilterRedis<String>> filters = new ArrayList<>();
+        filters.add(Helper.<String>createCountingRedisFilter("asynccounting", 1000, 0.01, HashMethod.Murmur3x64));
+        filters.add(Helper.<String>createPackedCountingRedisFilter("asyncpacked", 1000, 0.01, HashMethod.Murmur3x64));
+        for (CountingBloomFilterRedis<String> filter : filters) {
+            assertTrue(filter.addAsync("element").get());
+            assertEquals(2, (long) filter.addAndEstimateCountAsync("element").get());
+            assertEquals(3, filter.addAndEstimateCount("element"));
+            assertEquals(3, (long) filter.getEstimatedCountAsync("element").get());
+            assertEquals(0, (long) filter.getEstimatedCountAsync("missing").get());
+            assertTrue(filter.containsAsync("element").get());
+            assertFalse(filter.containsAsync("missing").get());
+
+            assertEquals(2, (long) filter.removeAndEstimateCountAsync("element").get());
+            assertFalse(filter.removeAsync("element").get());
+            assertTrue(filter.removeAsync("element").get());
+            assertFalse(filter.contains("element"));
+            assertTrue(filter.isEmpty());
+            filter.remove();
+        }
+    }
+
+    @Test
+    public void closeStopsDispatcher() throws Exception {
+        cleanupRedis();
+        CountingBloomFilterRedis<String> filter = Helper.createCountingRedisFilter("asyncclose", 1000, 0.01,
+                HashMethod.Murmur3x64);
+        assertTrue(filter.addAsync("element").get());
+        filter.close();
+        assertTrue(Helper.awaitThreadsEnded("asyncclose"));
+        try {
+            filter.containsAsync("element").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            filter.containsAsync("element").getNow(false);
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        CountingBloomFilterRedis<String> reopened = new CountingBloomFilterRedis<>(new FilterBuilder(1000, 0.01)
+                .name("asyncclose").redisHost(Helper.host).redisPort(Helper.port));
+        assertEquals(1, reopened.getEstimatedCount("element"));
+        reopened.remove();
+    }
+}
@@ -0,0 +1,332 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.CountingBloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.binary.BinaryFormat;
+import orestes.bloomfilter.binary.GolombRice;
+import orestes.bloomfilter.memory.BloomFilterOffHeap;
+
+import org.junit.Test;
+
+public class BinaryFormatTest {
+
+    private static BloomFilter<String> filter(HashMethod hashMethod) {
+        BloomFilter<String> bf = new FilterBuilder(10_000, 0.01).hashFunction(hashMethod).buildBloomFilter();
+        for (int i = 0; i < 10_000; i++) {
+            bf.add("obj" + i);
+        }
+        return bf;
+    }
+
+    private static byte[] toBytes(BloomFilter<?> bf) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryFormat.write(bf, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] toCompressedBytes(BloomFilter<?> bf) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryFormat.write(bf, out, true);
+        return out.toByteArray();
+    }
+
+    private static <T> BloomFilter<T> fromBytes(byte[] bytes) throws IOException {
+        return BinaryFormat.read(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (HashMethod hashMethod : new HashMethod[]{HashMethod.MD5, HashMethod.Murmur3, HashMethod.Murmur3x64,
+                HashMethod.XXHash64}) {
+            BloomFilter<String> bf = filter(hashMethod);
+            byte[] bytes = toBytes(bf);
+            assertEquals(BinaryFormat.HEADER_BYTES + (bf.getSize() + 63) / 64 * 8, bytes.length);
+            BloomFilter<String> read = fromBytes(bytes);
+            assertEquals(bf, read);
+            assertEquals(hashMethod, read.config().hashMethod());
+            for (int i = 0; i < 10_000; i++) {
+                assertTrue(read.contains("obj" + i));
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryFormat.write(bf, Channels.newChannel(out));
+            assertEquals(bf, BinaryFormat.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray()))));
+        }
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        BloomFilter<String> bf = new FilterBuilder(1000, 7).hashFunction(HashMethod.XXHash64).buildBloomFilter();
+        bf.add("element");
+        ByteBuffer bytes = ByteBuffer.wrap(toBytes(bf)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("OBBF", new String(toBytes(bf), 0, 4, "US-ASCII"));
+        assertEquals(BinaryFormat.VERSION, bytes.get(4));
+        assertEquals(0, bytes.get(6));
+        assertEquals(8, bytes.get(7));
+        assertEquals(1000, bytes.getLong(8));
+        assertEquals(7, bytes.getInt(16));
+        assertEquals(16 * 8, bytes.getLong(24));
+        for (int position : bf.hash("element")) {
+            long word = bytes.getLong(BinaryFormat.HEADER_BYTES + position / 64 * 8);
+            assertTrue((word & (1L << position)) != 0);
+        }
+    }
+
+    @Test
+    public void testCounting() throws IOException {
+        CountingBloomFilter<String> cbf = new FilterBuilder(1000, 0.01).countingBits(4).buildCountingBloomFilter();
+        for (int i = 0; i < 5; i++) {
+            cbf.add("element");
+        }
+        cbf.add("other");
+        BloomFilter<String> read = fromBytes(toBytes(cbf));
+        assertTrue(read instanceof CountingBloomFilter);
+        CountingBloomFilter<String> counting = (CountingBloomFilter<String>) read;
+        assertEquals(cbf, counting);
+        assertEquals(4, counting.getCountingBits());
+        assertEquals(5, counting.getEstimatedCount("element"));
+        counting.remove("other");
+        assertFalse(counting.contains("other"));
+        assertTrue(counting.contains("element"));
+    }
+
+    @Test
+    public void testHashMethodIds() throws IOException {
+        // The IDs are part of the format and must not follow the order of the enum
+        String[] ids = {"RNG", "CarterWegman", "CRC32", "Adler32", "Murmur2", "Murmur3", "Murmur3KirschMitzenmacher",
+                "Murmur3x64", "XXHash64", "FNVWithLCG", "MD2", "MD5", "SHA1", "SHA256", "SHA384", "SHA512"};
+        for (int id = 0; id < ids.length; id++) {
+            BloomFilter<String> bf = new FilterBuilder(1000, 3).hashFunction(HashMethod.valueOf(ids[id]))
+                    .buildBloomFilter();
+            bf.add("element");
+            byte[] bytes = toBytes(bf);
+            assertEquals(id, bytes[7]);
+            BloomFilter<String> read = fromBytes(bytes);
+            assertEquals(HashMethod.valueOf(ids[id]), read.config().hashMethod());
+            assertTrue(read.contains("element"));
+        }
+        // Every hash method has an ID
+        assertEquals(HashMethod.values().length, ids.length);
+    }
+
+    @Test
+    public void testOffHeap() throws IOException {
+        BloomFilter<String> offHeap = new FilterBuilder(10_000, 0.01).offHeap(true).buildBloomFilter();
+        BloomFilter<String> memory = filter(HashMethod.Murmur3x64);
+        for (int i = 0; i < 10_000; i++) {
+            offHeap.add("obj" + i);
+        }
+        byte[] bytes = toBytes(offHeap);
+        // Heap and off-heap filters with the same configuration have the same bits
+        assertEquals(memory, fromBytes(bytes));
+        assertEquals(offHeap, BinaryFormat.wrap(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    public void testWrap() throws IOException {
+        for (HashMethod hashMethod : new HashMethod[]{HashMethod.Murmur3x64, HashMethod.XXHash64}) {
+            BloomFilter<String> bf = filter(hashMethod);
+            byte[] bytes = toBytes(bf);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+            direct.put(new byte[3]).put(bytes).position(3);
+
+            for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.wrap(bytes), direct}) {
+                BloomFilterOffHeap<String> wrapped = BinaryFormat.wrap(buffer);
+                assertEquals(bf.getBitSet(), wrapped.getBitSet());
+                for (int i = 0; i < 10_000; i++) {
+                    assertTrue(wrapped.contains("obj" + i));
+                }
+                // The filter is backed by the buffer
+                assertTrue(wrapped.add("another"));
+                assertTrue(BinaryFormat.wrap(buffer, false).contains("another"));
+            }
+            assertEquals(3, direct.position());
+        }
+    }
+
+    @Test
+    public void testBlockedAndSplitBlock() throws IOException {
+        FilterBuilder[] configs = {new FilterBuilder(10_000, 0.01).blocked(true),
+                new FilterBuilder(10_000, 0.01).splitBlock(true)};
+        int[] flags = {2, 4};
+        for (int c = 0; c < configs.length; c++) {
+            for (int elements : new int[]{10, 10_000}) {
+                BloomFilter<String> bf = configs[c].clone().buildBloomFilter();
+                for (int i = 0; i < elements; i++) {
+                    bf.add("obj" + i);
+                }
+                for (byte[] bytes : new byte[][]{toBytes(bf), toCompressedBytes(bf)}) {
+                    assertEquals(flags[c], bytes[5] & ~1);
+                    BloomFilter<String> read = fromBytes(bytes);
+                    assertEquals(bf.getClass(), read.getClass());
+                    assertEquals(bf, read);
+                    for (int i = 0; i < elements; i++) {
+                        assertTrue(read.contains("obj" + i));
+                    }
+                    try {
+                        BinaryFormat.wrap(ByteBuffer.wrap(bytes));
+                        assertTrue(false);
+                    } catch (IllegalArgumentException e) {
+                        // expected
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrapIntHashMethod() throws IOException {
+        BinaryFormat.wrap(ByteBuffer.wrap(toBytes(filter(HashMethod.MD5))));
+    }
+
+    @Test
+    public void testCorruption() throws IOException {
+        byte[] bytes = toBytes(filter(HashMethod.Murmur3x64));
+        byte[] flipped = bytes.clone();
+        flipped[BinaryFormat.HEADER_BYTES + 100] ^= 1;
+        assertInvalid(flipped);
+        byte[] truncated = new byte[bytes.length - 8];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertInvalid(truncated);
+        byte[] magic = bytes.clone();
+        magic[0] = 'X';
+        assertInvalid(magic);
+        byte[] version = bytes.clone();
+        version[4] = 2;
+        assertInvalid(version);
+    }
+
+    private static void assertInvalid(byte[] bytes) {
+        try {
+            fromBytes(bytes);
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            BinaryFormat.wrap(ByteBuffer.wrap(bytes));
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        for (int elements : new int[]{0, 1, 10, 1000}) {
+            BloomFilter<String> bf = new FilterBuilder(10_000, 0.01).buildBloomFilter();
+            for (int i = 0; i < elements; i++) {
+                bf.add("obj" + i);
+            }
+            byte[] compressed = toCompressedBytes(bf);
+            assertEquals(1, compressed[5]);
+            assertTrue(compressed.length < toBytes(bf).length / 2);
+            assertEquals(bf, fromBytes(compressed));
+        }
+
+        // Full filters are written uncompressed
+        BloomFilter<String> full = filter(HashMethod.Murmur3x64);
+        byte[] bytes = toCompressedBytes(full);
+        assertEquals(0, bytes[5]);
+        assertEquals(full, fromBytes(bytes));
+    }
+
+    @Test
+    public void testCompressedCountingAndOffHeap() throws IOException {
+        CountingBloomFilter<String> cbf = new FilterBuilder(10_000, 0.01).countingBits(8).buildCountingBloomFilter();
+        cbf.add("element");
+        cbf.add("element");
+        byte[] compressed = toCompressedBytes(cbf);
+        assertEquals(1, compressed[5]);
+        CountingBloomFilter<String> read = (CountingBloomFilter<String>) BinaryFormat.<String>read(
+                new ByteArrayInputStream(compressed));
+        assertEquals(cbf, read);
+        assertEquals(2, read.getEstimatedCount("element"));
+
+        BloomFilter<String> offHeap = new FilterBuilder(100_000, 0.01).offHeap(true).buildBloomFilter();
+        offHeap.add("element");
+        compressed = toCompressedBytes(offHeap);
+        assertTrue(compressed.length < 100);
+        assertEquals(offHeap.getBitSet(), fromBytes(compressed).getBitSet());
+        try {
+            BinaryFormat.wrap(ByteBuffer.wrap(compressed));
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompressedCorruption() throws IOException {
+        BloomFilter<String> bf = new FilterBuilder(10_000, 0.01).buildBloomFilter();
+        bf.add("element");
+        byte[] compressed = toCompressedBytes(bf);
+        byte[] flipped = compressed.clone();
+        flipped[compressed.length - 1] ^= 1;
+        try {
+            fromBytes(flipped);
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            GolombRice.decode(new byte[]{5, 0, 0, 0, 0, 0, 0, 0, 3, 0}, 1000);
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGolombRice() throws IOException {
+        java.util.Random random = new java.util.Random(42);
+        for (int size : new int[]{1, 63, 64, 65, 1000, 100_000}) {
+            for (double fill : new double[]{0, 0.001, 0.05, 0.5, 1}) {
+                java.util.BitSet bits = new java.util.BitSet(size);
+                for (int i = 0; i < size; i++) {
+                    if (random.nextDouble() < fill) bits.set(i);
+                }
+                byte[] coded = GolombRice.encode(bits.toLongArray(), size);
+                assertEquals(bits, java.util.BitSet.valueOf(GolombRice.decode(coded, size)));
+            }
+        }
+    }
+
+    @Test
+    public void testOptimizeCompressedSize() throws IOException {
+        FilterBuilder regular = new FilterBuilder(10_000, 0.01).complete();
+        FilterBuilder optimized = new FilterBuilder(10_000, 0.01).optimizeCompressedSize(1_000_000).complete();
+        assertTrue(optimized.hashes() < regular.hashes());
+        assertTrue(optimized.longSize() > regular.longSize());
+        assertTrue(optimized.longSize() <= 1_000_000);
+        assertTrue(optimized.falsePositiveProbability() <= 0.01);
+
+        BloomFilter<String> regularFilter = regular.buildBloomFilter();
+        BloomFilter<String> optimizedFilter = optimized.buildBloomFilter();
+        for (int i = 0; i < 10_000; i++) {
+            regularFilter.add("obj" + i);
+            optimizedFilter.add("obj" + i);
+        }
+        int regularBytes = toCompressedBytes(regularFilter).length;
+        int optimizedBytes = toCompressedBytes(optimizedFilter).length;
+        assertTrue(optimizedBytes < regularBytes * 0.9);
+        assertEquals(FilterBuilder.optimalCompressedBits(optimized.hashes(), optimized.longSize(), 10_000) / 8,
+                optimizedBytes, optimizedBytes * 0.1);
+
+        assertEquals(regular.longSize(), new FilterBuilder(10_000, 0.01).optimizeCompressedSize(regular.longSize())
+                .complete().longSize());
+    }
+}
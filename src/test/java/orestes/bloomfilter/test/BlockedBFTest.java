@@ -0,0 +1,76 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.memory.BlockedBloomFilterMemory;
+
+import org.junit.Test;
+
+public class BlockedBFTest {
+
+    @Test
+    public void testPositionsInOneBlock() {
+        BloomFilter<String> bf = new FilterBuilder(100_000, 0.01).blocked(true).buildBloomFilter();
+        assertTrue(bf instanceof BlockedBloomFilterMemory);
+        assertEquals(0, bf.getSize() % BlockedBloomFilterMemory.BLOCK_BITS);
+        for (int i = 0; i < 1000; i++) {
+            int[] positions = bf.hash("obj" + i);
+            int block = positions[0] / BlockedBloomFilterMemory.BLOCK_BITS;
+            for (int position : positions) {
+                assertEquals(block, position / BlockedBloomFilterMemory.BLOCK_BITS);
+                assertTrue(position < bf.getSize());
+            }
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        int n = 100_000;
+        double p = 0.01;
+        BloomFilter<String> bf = new FilterBuilder(n, p).blocked(true).buildBloomFilter();
+        assertTrue(bf.getSize() > FilterBuilder.optimalM(n, p));
+        assertTrue(bf.getFalsePositiveProbability(n) <= p);
+
+        for (int i = 0; i < n; i++) {
+            bf.add("obj" + i);
+        }
+        for (int i = 0; i < n; i++) {
+            assertTrue(bf.contains("obj" + i));
+        }
+        int falsePositives = 0;
+        int tests = 100_000;
+        for (int i = 0; i < tests; i++) {
+            if (bf.contains("other" + i)) falsePositives++;
+        }
+        assertTrue(falsePositives / (double) tests < 1.5 * p);
+    }
+
+    @Test
+    public void testBlockedMath() {
+        // With very large blocks the blocked filter behaves like a regular one
+        int m = 10 * BlockedBloomFilterMemory.BLOCK_BITS;
+        assertTrue(FilterBuilder.optimalPBlocked(7, m, 500) > FilterBuilder.optimalP(7, m, 500));
+        assertEquals(0, FilterBuilder.optimalMBlocked(1000, 0.01) % BlockedBloomFilterMemory.BLOCK_BITS);
+    }
+
+    @Test
+    public void testCompatibility() {
+        FilterBuilder fb = new FilterBuilder(BlockedBloomFilterMemory.BLOCK_BITS * 4, 5);
+        BloomFilter<String> regular = fb.clone().buildBloomFilter();
+        BloomFilter<String> blocked = fb.clone().blocked(true).buildBloomFilter();
+        BloomFilter<String> other = fb.clone().blocked(true).buildBloomFilter();
+        other.add("element");
+        assertFalse(blocked.union(regular));
+        assertTrue(blocked.union(other));
+        assertTrue(blocked.contains("element"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompletedWithoutBlocks() {
+        new BlockedBloomFilterMemory<String>(new FilterBuilder(1000, 5).complete());
+    }
+}
@@ -0,0 +1,110 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.json.BloomFilterConverter;
+
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class BloomFilterConverterTest {
+
+    @Test
+    public void testRoundTrip() {
+        BloomFilter<String> bf = new FilterBuilder(50, 0.1).buildBloomFilter();
+        bf.add("Ululu");
+        JsonElement json = BloomFilterConverter.toJson(bf);
+        assertEquals(HashMethod.Murmur3x64.name(), json.getAsJsonObject().get("HashMethod").getAsString());
+
+        BloomFilter<String> otherBf = BloomFilterConverter.fromJson(json);
+        assertEquals(bf.config().hashMethod(), otherBf.config().hashMethod());
+        assertEquals(bf.getBitSet(), otherBf.getBitSet());
+        assertTrue(otherBf.contains("Ululu"));
+    }
+
+    @Test
+    public void testBlockedRoundTrip() {
+        BloomFilter<String> bf = new FilterBuilder(1000, 0.01).blocked(true).buildBloomFilter();
+        for (int i = 0; i < 1000; i++) {
+            bf.add("obj" + i);
+        }
+        JsonObject json = BloomFilterConverter.toJson(bf).getAsJsonObject();
+        assertTrue(json.get("blocked").getAsBoolean());
+
+        BloomFilter<String> otherBf = BloomFilterConverter.fromJson(json);
+        assertTrue(otherBf.config().blocked());
+        assertEquals(bf, otherBf);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(otherBf.contains("obj" + i));
+        }
+        assertFalse(BloomFilterConverter.toJson(new FilterBuilder(1000, 0.01).buildBloomFilter()).getAsJsonObject()
+                .has("blocked"));
+    }
+
+    @Test
+    public void testSplitBlockRoundTrip() {
+        for (boolean compress : new boolean[]{false, true}) {
+            BloomFilter<String> bf = new FilterBuilder(1000, 0.01).splitBlock(true).buildBloomFilter();
+            for (int i = 0; i < (compress ? 10 : 1000); i++) {
+                bf.add("obj" + i);
+            }
+            JsonObject json = BloomFilterConverter.toJson(bf, compress).getAsJsonObject();
+            assertTrue(json.get("splitBlock").getAsBoolean());
+            assertEquals(compress, json.has("compression"));
+
+            BloomFilter<String> otherBf = BloomFilterConverter.fromJson(json);
+            assertTrue(otherBf.config().splitBlock());
+            assertEquals(bf, otherBf);
+            for (int i = 0; i < (compress ? 10 : 1000); i++) {
+                assertTrue(otherBf.contains("obj" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testRecordedHashMethod() {
+        BloomFilter<String> bf = new FilterBuilder(50, 0.1).hashFunction(HashMethod.MD5).buildBloomFilter();
+        bf.add("Ululu");
+        JsonObject json = BloomFilterConverter.toJson(bf).getAsJsonObject();
+
+        assertEquals(HashMethod.MD5, BloomFilterConverter.fromJson(json).config().hashMethod());
+        assertTrue(BloomFilterConverter.fromJson(json).contains("Ululu"));
+
+        // JSON written by older versions may lack the hash method and always used MD5
+        json.remove("HashMethod");
+        BloomFilter<String> legacy = BloomFilterConverter.fromJson(json);
+        assertEquals(HashMethod.MD5, legacy.config().hashMethod());
+        assertTrue(legacy.contains("Ululu"));
+    }
+
+    @Test
+    public void testCompressed() {
+        BloomFilter<String> sparse = new FilterBuilder(10_000, 0.01).buildBloomFilter();
+        for (int i = 0; i < 100; i++) {
+            sparse.add("obj" + i);
+        }
+        JsonObject plain = BloomFilterConverter.toJson(sparse).getAsJsonObject();
+        JsonObject compressed = BloomFilterConverter.toJson(sparse, true).getAsJsonObject();
+        assertEquals("GolombRice", compressed.get("compression").getAsString());
+        assertTrue(compressed.get("bits").getAsString().length() * 5 < plain.get("bits").getAsString().length());
+        BloomFilter<String> read = BloomFilterConverter.fromJson(compressed);
+        assertEquals(sparse.getBitSet(), read.getBitSet());
+        assertTrue(read.contains("obj99"));
+
+        // A full filter is not compressed
+        BloomFilter<String> full = new FilterBuilder(1000, 0.01).buildBloomFilter();
+        for (int i = 0; i < 1000; i++) {
+            full.add("obj" + i);
+        }
+        JsonObject uncompressed = BloomFilterConverter.toJson(full, true).getAsJsonObject();
+        assertFalse(uncompressed.has("compression"));
+        assertEquals(full.getBitSet(), BloomFilterConverter.fromJson(uncompressed).getBitSet());
+    }
+}
@@ -28,36 +28,49 @@ public class BloomFilterTest {
 
     private final boolean redisBacked;
     private final boolean counting;
+    private final boolean concurrent;
+    private final boolean sharded;
     private static final String name = "concurrencytests";
 
     @Parameterized.Parameters(name = "Bloom Filter test with {0}")
     public static Collection<Object[]> data() throws Exception {
         Object[][] data = {
-                {"normal memory", false, false},
-                {"counting memory", false, true},
-                {"normal redis", true, false},
-                {"counting redis", true, true}
+                {"normal memory", false, false, false, false},
+                {"counting memory", false, true, false, false},
+                {"concurrent memory", false, false, true, false},
+                {"concurrent counting memory", false, true, true, false},
+                {"normal redis", true, false, false, false},
+                {"counting redis", true, true, false, false},
+                {"sharded redis", true, false, false, true}
         };
         return Arrays.asList(data);
     }
 
     private BloomFilter<String> createFilter(String name, int n, double p, HashMethod hm) {
         if (!redisBacked) {
-            if (counting)
+            if (counting && concurrent)
+                return Helper.createConcurrentCountingFilter(n, p, hm);
+            else if (counting)
                 return createCountingFilter(n, p, hm);
+            else if (concurrent)
+                return Helper.createConcurrentFilter(n, p, hm);
             else
                 return Helper.createFilter(n, p, hm);
         } else {
             if (counting)
                 return createCountingRedisFilter(name, n, p, hm);
+            else if (sharded)
+                return Helper.createShardedRedisFilter(name, n, p, hm);
             else
                 return createRedisFilter(name, n, p, hm);
         }
     }
 
-    public BloomFilterTest(String name, boolean redisBacked, boolean counting) {
+    public BloomFilterTest(String name, boolean redisBacked, boolean counting, boolean concurrent, boolean sharded) {
         this.redisBacked = redisBacked;
         this.counting = counting;
+        this.concurrent = concurrent;
+        this.sharded = sharded;
     }
 
     @Ignore("Need to backport to Java7")
@@ -0,0 +1,56 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.BufferedHashFunction;
+import orestes.bloomfilter.HashProvider.HashFunction;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.memory.BloomFilterMemory;
+
+import org.junit.Test;
+
+public class BufferedHashTest {
+
+    @Test
+    public void testBufferedEqualsAllocating() {
+        Random random = new Random(42);
+        int m = 1000;
+        int k = 7;
+        int[] buffer = new int[k];
+        for (HashMethod hm : HashMethod.values()) {
+            HashFunction hf = hm.getHashFunction();
+            assertTrue(hm + " is not buffered", hf instanceof BufferedHashFunction);
+            for (int i = 0; i < 100; i++) {
+                byte[] value = new byte[random.nextInt(50)];
+                random.nextBytes(value);
+                ((BufferedHashFunction) hf).hash(value, m, k, buffer);
+                assertArrayEquals(hm.toString(), hf.hash(value, m, k), buffer);
+            }
+        }
+    }
+
+    @Test
+    public void testFilterBuffer() {
+        FilterWithBuffer filter = new FilterWithBuffer();
+        byte[] value = "buffered".getBytes();
+        int[] first = filter.positions(value);
+        assertArrayEquals(filter.hash(value), first);
+        assertSame(first, filter.positions("other".getBytes()));
+        assertArrayEquals(filter.hash("other".getBytes()), first);
+    }
+
+    private static class FilterWithBuffer extends BloomFilterMemory<String> {
+        FilterWithBuffer() {
+            super(new FilterBuilder(1000, 0.01));
+        }
+
+        int[] positions(byte[] value) {
+            return hashBuffered(value);
+        }
+    }
+}
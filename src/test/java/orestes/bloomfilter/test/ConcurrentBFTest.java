@@ -0,0 +1,168 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.CountingBloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.memory.BloomFilterMemory;
+import orestes.bloomfilter.memory.ConcurrentBloomFilterMemory;
+import orestes.bloomfilter.memory.ConcurrentCountingBloomFilterMemory;
+
+import org.junit.Test;
+
+public class ConcurrentBFTest {
+
+    @Test
+    public void testBuilder() {
+        BloomFilter<String> bf = new FilterBuilder(1000, 0.01).concurrent(true).buildBloomFilter();
+        assertTrue(bf instanceof ConcurrentBloomFilterMemory);
+    }
+
+    @Test
+    public void testMultiThreadedAdd() throws Exception {
+        final int threads = 8;
+        final int perThread = 10_000;
+        final BloomFilter<String> bf = new FilterBuilder(threads * perThread, 0.01).concurrent(true).buildBloomFilter();
+        final BloomFilter<String> reference = new FilterBuilder(threads * perThread, 0.01).buildBloomFilter();
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * perThread;
+            futures.add(exec.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int added = 0;
+                    for (int i = offset; i < offset + perThread; i++) {
+                        if (bf.add("obj" + i)) added++;
+                        assertTrue(bf.contains("obj" + i));
+                    }
+                    return added;
+                }
+            }));
+        }
+        int added = 0;
+        for (Future<Integer> f : futures) {
+            added += f.get();
+        }
+        exec.shutdown();
+
+        int referenceAdded = 0;
+        for (int i = 0; i < threads * perThread; i++) {
+            if (reference.add("obj" + i)) referenceAdded++;
+        }
+
+        assertEquals(reference.getBitSet(), bf.getBitSet());
+        // Each bit is set by exactly one successful CAS, so the number of reported additions can only differ by
+        // reordering of colliding elements
+        assertTrue(Math.abs(added - referenceAdded) < threads * perThread / 100);
+    }
+
+    @Test
+    public void testMultiThreadedCounting() throws Exception {
+        final int threads = 8;
+        final int perThread = 10_000;
+        final CountingBloomFilter<String> cbf = new FilterBuilder(threads * perThread, 0.01).concurrent(true)
+                .buildCountingBloomFilter();
+        assertTrue(cbf instanceof ConcurrentCountingBloomFilterMemory);
+        // Keep half of the elements and repeatedly add and remove the other half from all threads
+        for (int i = 0; i < threads * perThread; i += 2) {
+            cbf.add("obj" + i);
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(exec.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int round = 0; round < 3; round++) {
+                        for (int i = 1; i < threads * perThread; i += 2) {
+                            cbf.add("obj" + i);
+                            assertTrue(cbf.contains("obj" + i));
+                            cbf.remove("obj" + i);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        exec.shutdown();
+
+        CountingBloomFilter<String> reference = new FilterBuilder(threads * perThread, 0.01).buildCountingBloomFilter();
+        for (int i = 0; i < threads * perThread; i += 2) {
+            reference.add("obj" + i);
+            assertTrue(cbf.contains("obj" + i));
+        }
+        // All concurrent additions were removed again, so the counters equal the ones of the kept elements
+        assertEquals(reference.getBitSet(), cbf.getBitSet());
+        for (int i = 0; i < threads * perThread; i++) {
+            assertEquals(reference.getEstimatedCount("obj" + i), cbf.getEstimatedCount("obj" + i));
+        }
+    }
+
+    @Test
+    public void testUnionAndIntersect() {
+        FilterBuilder fb = new FilterBuilder(1000, 0.01).hashFunction(HashMethod.Murmur3);
+        BloomFilter<String> first = new ConcurrentBloomFilterMemory<>(fb.clone());
+        BloomFilter<String> second = new BloomFilterMemory<>(fb.clone());
+        first.add("first");
+        second.add("second");
+
+        BloomFilter<String> union = first.clone();
+        assertTrue(union.union(second));
+        assertTrue(union.contains("first"));
+        assertTrue(union.contains("second"));
+
+        assertTrue(first.intersect(second));
+        assertFalse(first.contains("first"));
+        union.clear();
+        assertTrue(union.isEmpty());
+    }
+
+    @Test
+    public void testCountingUnionAndIntersect() {
+        FilterBuilder fb = new FilterBuilder(1000, 0.01).countingBits(4);
+        CountingBloomFilter<String> first = new ConcurrentCountingBloomFilterMemory<>(fb.clone());
+        CountingBloomFilter<String> second = fb.clone().buildCountingBloomFilter();
+        for (int i = 0; i < 3; i++) {
+            first.add("both");
+            first.add("first");
+        }
+        for (int i = 0; i < 10; i++) {
+            second.add("both");
+        }
+        second.add("second");
+
+        CountingBloomFilter<String> union = (CountingBloomFilter<String>) first.clone();
+        assertTrue(union.union(second));
+        // Counters saturate at 15 with 4 counting bits
+        assertEquals(13, union.getEstimatedCount("both"));
+        assertEquals(3, union.getEstimatedCount("first"));
+        assertEquals(1, union.getEstimatedCount("second"));
+        assertTrue(union.union(second));
+        assertEquals(15, union.getEstimatedCount("both"));
+
+        assertTrue(first.intersect(second));
+        assertEquals(3, first.getEstimatedCount("both"));
+        assertFalse(first.contains("first"));
+        assertFalse(first.contains("second"));
+
+        assertFalse(first.union(new FilterBuilder(1000, 0.01).countingBits(8).<String>buildCountingBloomFilter()));
+        assertFalse(first.union(new FilterBuilder(1000, 0.01).<String>buildBloomFilter()));
+    }
+}
@@ -1,7 +1,10 @@
 package orestes.bloomfilter.test;
 
+import static orestes.bloomfilter.test.helper.Helper.createConcurrentCountingFilter;
 import static orestes.bloomfilter.test.helper.Helper.createCountingFilter;
 import static orestes.bloomfilter.test.helper.Helper.createCountingRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.createPackedCountingRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.createScriptedCountingRedisFilter;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -12,6 +15,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import orestes.bloomfilter.CountingBloomFilter;
 import orestes.bloomfilter.HashProvider.HashMethod;
@@ -23,24 +30,39 @@ import org.junit.runners.Parameterized;
 @RunWith(Parameterized.class)
 public class CountingBFTest {
     private final boolean redis;
+    private final boolean concurrent;
+    private final boolean scripted;
+    private final boolean packed;
     private static final String name = "CountingTests";
 
     @Parameterized.Parameters(name = "Counting Bloom Filter test with {0}")
     public static Collection<Object[]> data() throws Exception {
         Object[][] data = {
-                {"memory", false},
-                {"redis", true}
+                {"memory", false, false, false, false},
+                {"concurrent memory", false, true, false, false},
+                {"redis", true, false, false, false},
+                {"redis scripted", true, false, true, false},
+                {"redis packed", true, false, false, true}
         };
         return Arrays.asList(data);
     }
 
-    public CountingBFTest(String name, boolean redis) {
+    public CountingBFTest(String name, boolean redis, boolean concurrent, boolean scripted, boolean packed) {
         this.redis = redis;
+        this.concurrent = concurrent;
+        this.scripted = scripted;
+        this.packed = packed;
     }
 
     private CountingBloomFilter<String> createFilter(String name, int n, double p, HashMethod hm) {
-        if (!redis) {
+        if (concurrent) {
+            return createConcurrentCountingFilter(n, p, hm);
+        } else if (!redis) {
             return createCountingFilter(n, p, hm);
+        } else if (packed) {
+            return createPackedCountingRedisFilter(name, n, p, hm);
+        } else if (scripted) {
+            return createScriptedCountingRedisFilter(name, n, p, hm);
         } else {
             return createCountingRedisFilter(name, n, p, hm);
         }
@@ -142,6 +164,39 @@ public class CountingBFTest {
         b.remove();
     }
 
+    @Test
+    public void concurrentAddAndRemove() throws Exception {
+        final CountingBloomFilter<String> b = createFilter(name + "concurrent", 1000, 0.01, HashMethod.Murmur3x64);
+        b.add("kept");
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(exec.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < 100; i++) {
+                        b.add("hot");
+                        b.add("kept");
+                        b.remove("hot");
+                        b.remove("kept");
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        exec.shutdown();
+
+        assertEquals(1, b.getEstimatedCount("kept"));
+        assertTrue(b.contains("kept"));
+        b.remove("kept");
+        assertEquals(0, b.getEstimatedCount("hot"));
+        assertTrue(b.isEmpty());
+        b.remove();
+    }
+
     @Test
     public void countingBasics() {
         int n = 2;
@@ -0,0 +1,78 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import orestes.bloomfilter.CountingBloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.memory.CountingBloomFilterMemory;
+
+import org.junit.Test;
+
+public class CountingMemoryBFTest {
+
+    @Test
+    public void testCounterWidths() {
+        // Widths that divide 64 and widths that leave unused bits in each word
+        for (int bits : new int[]{3, 4, 5, 7, 8, 16, 21, 32, 63, 64}) {
+            CountingBloomFilter<String> cbf = new FilterBuilder(200, 0.01).countingBits(bits).buildCountingBloomFilter();
+            long max = bits >= 63 ? Long.MAX_VALUE : (1L << bits) - 1;
+            int adds = (int) Math.min(max / 2, 40);
+            for (int i = 0; i < adds; i++) {
+                assertEquals(i + 1, cbf.addAndEstimateCount("element"));
+            }
+            for (int i = 0; i < 50; i++) {
+                cbf.add("other" + i);
+            }
+            assertTrue(cbf.getEstimatedCount("element") >= adds);
+            for (int i = 0; i < 50; i++) {
+                assertTrue(cbf.remove("other" + i));
+            }
+            assertEquals(adds, cbf.getEstimatedCount("element"));
+            for (int i = adds - 1; i >= 0; i--) {
+                assertEquals(i, cbf.removeAndEstimateCount("element"));
+            }
+            assertFalse(cbf.contains("element"));
+            assertTrue(cbf.isEmpty());
+        }
+    }
+
+    @Test
+    public void testOverflowSaturates() {
+        CountingBloomFilterMemory<String> cbf = new CountingBloomFilterMemory<String>(new FilterBuilder(1000, 0.01)
+                .countingBits(4));
+        final AtomicInteger overflows = new AtomicInteger();
+        cbf.setOverflowHandler(new Runnable() {
+            @Override
+            public void run() {
+                overflows.incrementAndGet();
+            }
+        });
+        for (int i = 1; i <= 15; i++) {
+            assertEquals(i, cbf.addAndEstimateCount("element"));
+        }
+        assertEquals(0, overflows.get());
+        assertEquals(15, cbf.addAndEstimateCount("element"));
+        assertEquals(cbf.getHashes(), overflows.get());
+        assertEquals(15, cbf.getEstimatedCount("element"));
+        assertEquals(14, cbf.removeAndEstimateCount("element"));
+    }
+
+    @Test
+    public void testCloneAndEquals() {
+        CountingBloomFilter<String> cbf = new FilterBuilder(1000, 0.01).countingBits(5).buildCountingBloomFilter();
+        cbf.add("element");
+        cbf.add("element");
+        CountingBloomFilter<String> clone = cbf.clone();
+        assertEquals(cbf, clone);
+        clone.remove("element");
+        assertFalse(cbf.equals(clone));
+        assertEquals(2, cbf.getEstimatedCount("element"));
+        assertEquals(1, clone.getEstimatedCount("element"));
+        cbf.clear();
+        assertEquals(0, cbf.getEstimatedCount("element"));
+    }
+}
@@ -0,0 +1,139 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.memory.BloomFilterMapped;
+import orestes.bloomfilter.memory.BloomFilterOffHeap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedBFTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path(String name) {
+        return new File(folder.getRoot(), name).getPath();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        String path = path("reopen.bf");
+        BloomFilterMapped<String> bf = (BloomFilterMapped<String>) new FilterBuilder(10_000, 0.01).mappedFile(path)
+                .<String>buildBloomFilter();
+        BloomFilter<String> memory = new FilterBuilder(10_000, 0.01).buildBloomFilter();
+        for (int i = 0; i < 10_000; i++) {
+            bf.add("obj" + i);
+            memory.add("obj" + i);
+        }
+        bf.close();
+        long size = bf.config().longSize();
+        assertEquals(BloomFilterMapped.HEADER_BYTES + (size + 63) / 64 * 8, new File(path).length());
+
+        // Size and hashes are read from the file
+        BloomFilterMapped<String> reopened = (BloomFilterMapped<String>) new FilterBuilder().mappedFile(path)
+                .<String>buildBloomFilter();
+        assertEquals(size, reopened.config().longSize());
+        assertEquals(memory.config().hashes(), reopened.config().hashes());
+        assertEquals(memory.getBitSet(), reopened.getBitSet());
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(reopened.contains("obj" + i));
+        }
+        reopened.add("another");
+        reopened.force();
+        reopened.close();
+
+        BloomFilter<String> again = new FilterBuilder(10_000, 0.01).mappedFile(path).buildBloomFilter();
+        assertTrue(again.contains("another"));
+        ((BloomFilterMapped<String>) again).close();
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        FilterBuilder config = new FilterBuilder(1000, 0.01).hashFunction(HashMethod.XXHash64).mappedFile(path(
+                "chunks.bf"));
+        BloomFilterMapped<String> bf = new BloomFilterMapped<>(config, 64);
+        BloomFilterOffHeap<String> offHeap = new BloomFilterOffHeap<>(new FilterBuilder(1000, 0.01).hashFunction(
+                HashMethod.XXHash64));
+        for (int i = 0; i < 1000; i++) {
+            bf.add("obj" + i);
+            offHeap.add("obj" + i);
+        }
+        assertEquals(offHeap, bf);
+        assertEquals(offHeap.getBitSet(), bf.getBitSet());
+
+        // Copies are not backed by the file
+        BloomFilterOffHeap<String> clone = bf.clone();
+        assertFalse(clone instanceof BloomFilterMapped);
+        clone.add("another");
+        assertFalse(bf.contains("another"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(bf);
+        out.close();
+        Object read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(BloomFilterOffHeap.class, read.getClass());
+        assertEquals(offHeap, read);
+
+        bf.clear();
+        assertTrue(bf.isEmpty());
+        bf.close();
+    }
+
+    @Test
+    public void testHeaderValidation() throws Exception {
+        String path = path("validation.bf");
+        BloomFilterMapped<String> bf = (BloomFilterMapped<String>) new FilterBuilder(1000, 5).mappedFile(path)
+                .<String>buildBloomFilter();
+        bf.add("element");
+        bf.close();
+
+        FilterBuilder stored = BloomFilterMapped.readHeader(new File(path));
+        assertEquals(1000, stored.longSize());
+        assertEquals(5, stored.hashes());
+        assertEquals(HashMethod.Murmur3x64, stored.hashMethod());
+
+        assertRejected(new FilterBuilder(1001, 5).mappedFile(path));
+        assertRejected(new FilterBuilder(1000, 4).mappedFile(path));
+        assertRejected(new FilterBuilder(1000, 5).hashFunction(HashMethod.XXHash64).mappedFile(path));
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(BloomFilterMapped.HEADER_BYTES + 8);
+        }
+        assertRejected(new FilterBuilder(1000, 5).mappedFile(path));
+
+        File other = folder.newFile("other.bf");
+        try (RandomAccessFile file = new RandomAccessFile(other, "rw")) {
+            file.write(new byte[BloomFilterMapped.HEADER_BYTES + 1024]);
+        }
+        assertRejected(new FilterBuilder(1000, 5).mappedFile(other.getPath()));
+    }
+
+    private static void assertRejected(FilterBuilder config) {
+        try {
+            config.buildBloomFilter();
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testNotCounting() {
+        new FilterBuilder(1000, 5).mappedFile(path("counting.bf")).buildCountingBloomFilter();
+    }
+}
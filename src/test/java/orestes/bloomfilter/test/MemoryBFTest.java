@@ -2,6 +2,8 @@ package orestes.bloomfilter.test;
 
 import orestes.bloomfilter.BloomFilter;
 import orestes.bloomfilter.CountingBloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider;
 import orestes.bloomfilter.memory.BloomFilterMemory;
 import orestes.bloomfilter.HashProvider.HashMethod;
 import org.apache.commons.math.stat.inference.ChiSquareTestImpl;
@@ -12,6 +14,7 @@ import java.util.ArrayList;
 
 import static orestes.bloomfilter.test.helper.Helper.createCountingFilter;
 import static orestes.bloomfilter.test.helper.Helper.createFilter;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class MemoryBFTest {
@@ -151,6 +154,22 @@ public class MemoryBFTest {
 
 
 
+    @Test
+    public void largeDefaultFilter() {
+        // The default hash method has to yield valid positions for sizes above 2^30
+        assertEquals(HashMethod.Murmur3x64, new FilterBuilder().hashMethod());
+        int k = 7;
+        int[] positions = new int[k];
+        for (int m : new int[]{1 << 30, 2_000_000_000, Integer.MAX_VALUE}) {
+            for (int i = 0; i < 10_000; i++) {
+                HashProvider.hashMurmur3x64(("obj" + i).getBytes(), m, k, positions);
+                for (int position : positions) {
+                    assertTrue(position >= 0 && position < m);
+                }
+            }
+        }
+    }
+
     @Test
     public void MD5performance() {
         int m = 100;
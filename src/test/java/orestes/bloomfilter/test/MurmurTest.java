@@ -1,5 +1,7 @@
 package orestes.bloomfilter.test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -29,4 +31,63 @@ public class MurmurTest {
             }
         }
     }
+
+    @Test
+    public void testMurmur3x64AgainstGuava() {
+        assertMurmur3x64AgainstGuava(100_003);
+    }
+
+    @Test
+    public void testLargeSize() {
+        // Positions must neither overflow nor leave [0,m) for sizes above 2^30
+        assertMurmur3x64AgainstGuava(2_000_000_000);
+        assertMurmur3x64AgainstGuava(Integer.MAX_VALUE);
+        assertXXHash64DoubleHashing(2_000_000_000);
+        assertXXHash64DoubleHashing(Integer.MAX_VALUE);
+    }
+
+    private static void assertXXHash64DoubleHashing(int m) {
+        Random random = new Random();
+        int k = 10;
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                byte[] input = new byte[i];
+                random.nextBytes(input);
+                long hash = HashProvider.xxHash64(0, input);
+                long x = ((hash >>> 32) * m) >>> 32;
+                long y = ((hash & 0xFFFFFFFFL) * m) >>> 32;
+                int[] ours = HashProvider.hashXXHash64(input, m, k);
+                for (int h = 0; h < k; h++) {
+                    TestCase.assertEquals((x + h * y + (h * h * h - h) / 6) % m, ours[h]);
+                }
+            }
+        }
+    }
+
+    private static void assertMurmur3x64AgainstGuava(int m) {
+        com.google.common.hash.HashFunction guavaHash = Hashing.murmur3_128();
+        Random random = new Random();
+        int k = 10;
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                byte[] input = new byte[i];
+                random.nextBytes(input);
+                ByteBuffer theirs = ByteBuffer.wrap(guavaHash.hashBytes(input).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+                long h1 = theirs.getLong();
+                long h2 = theirs.getLong();
+                long x = ((h1 >>> 32) * m) >>> 32;
+                long y = ((h2 >>> 32) * m) >>> 32;
+                int[] expected = new int[k];
+                for (int h = 0; h < k; h++) {
+                    expected[h] = (int) ((x + h * y + (h * h * h - h) / 6) % m);
+                }
+                int[] ours = HashProvider.hashMurmur3x64(input, m, k);
+                for (int h = 0; h < k; h++) {
+                    TestCase.assertEquals(expected[h], ours[h]);
+                }
+            }
+        }
+    }
 }
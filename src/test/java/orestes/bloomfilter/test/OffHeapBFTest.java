@@ -0,0 +1,135 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.memory.BloomFilterOffHeap;
+
+import org.junit.Test;
+
+public class OffHeapBFTest {
+
+    @Test
+    public void testLongPositions() {
+        for (HashMethod method : new HashMethod[]{HashMethod.Murmur3x64, HashMethod.XXHash64}) {
+            long m = (1L << 40) + 17;
+            long[] positions = new long[7];
+            long max = 0;
+            for (int i = 0; i < 10_000; i++) {
+                ((HashProvider.LongHashFunction) method.getHashFunction()).hash(("obj" + i).getBytes(), m, 7,
+                        positions);
+                for (long position : positions) {
+                    assertTrue(position >= 0 && position < m);
+                    max = Math.max(max, position);
+                }
+            }
+            // The positions cover the whole range, not only its first 2^32 bits
+            assertTrue(max > m / 2);
+        }
+    }
+
+    @Test
+    public void testChunkedFilter() {
+        FilterBuilder config = new FilterBuilder(10_000, 0.01).offHeap(true);
+        // Chunks of 64 bytes split the bits of many elements across chunk boundaries
+        BloomFilterOffHeap<String> bf = new BloomFilterOffHeap<>(config, 64);
+        assertTrue(bf.isEmpty());
+        for (int i = 0; i < 10_000; i++) {
+            bf.add("obj" + i);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(bf.contains("obj" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (bf.contains("other" + i)) falsePositives++;
+        }
+        assertTrue(falsePositives < 200);
+        assertEquals(bf.getBitSet().cardinality(), bf.cardinality());
+        assertEquals(10_000, bf.getEstimatedPopulation(), 300);
+
+        BloomFilterOffHeap<String> clone = bf.clone();
+        assertEquals(bf, clone);
+        clone.add("another");
+        assertNotEquals(bf, clone);
+        assertTrue(bf.union(clone));
+        assertEquals(bf, clone);
+        bf.clear();
+        assertTrue(bf.isEmpty());
+        assertTrue(clone.intersect(bf));
+        assertTrue(clone.isEmpty());
+    }
+
+    @Test
+    public void testMoreThanIntegerBits() throws Exception {
+        long size = (1L << 31) + (1L << 28);
+        BloomFilter<String> bf = new FilterBuilder(size, 3).offHeap(true).buildBloomFilter();
+        assertTrue(bf instanceof BloomFilterOffHeap);
+        assertEquals(size, bf.config().longSize());
+
+        BloomFilterOffHeap<String> offHeap = (BloomFilterOffHeap<String>) bf;
+        boolean beyondInt = false;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bf.add("obj" + i));
+            for (long position : offHeap.longHash(("obj" + i).getBytes(bf.config().defaultCharset()))) {
+                assertTrue(offHeap.getBit(position));
+                beyondInt |= position > Integer.MAX_VALUE;
+            }
+        }
+        assertTrue(beyondInt);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bf.contains("obj" + i));
+        }
+        assertFalse(bf.contains("other"));
+        assertEquals(3000, offHeap.cardinality(), 5);
+
+        try {
+            bf.getBitSet();
+            assertTrue(false);
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            bf.config().size();
+            assertTrue(false);
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        BloomFilter<String> bf = new FilterBuilder(1000, 0.01).offHeap(true).buildBloomFilter();
+        bf.add("element");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(bf);
+        out.close();
+        @SuppressWarnings("unchecked")
+        BloomFilter<String> read = (BloomFilter<String>) new ObjectInputStream(new ByteArrayInputStream(bytes
+                .toByteArray())).readObject();
+        assertEquals(bf, read);
+        assertTrue(read.contains("element"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIntHashFunctionRejected() {
+        new FilterBuilder(1000, 0.01).hashFunction(HashMethod.MD5).offHeap(true).buildBloomFilter();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testHeapFilterRejectsLongSize() {
+        new FilterBuilder((1L << 31) + 1000, 3).buildBloomFilter();
+    }
+}
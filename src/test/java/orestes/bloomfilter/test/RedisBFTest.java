@@ -2,7 +2,10 @@ package orestes.bloomfilter.test;
 
 import static orestes.bloomfilter.test.helper.Helper.cleanupRedis;
 import static orestes.bloomfilter.test.helper.Helper.createCountingRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.createPackedCountingRedisFilter;
 import static orestes.bloomfilter.test.helper.Helper.createRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.createScriptedCountingRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.createScriptedRedisFilter;
 import static orestes.bloomfilter.test.helper.Helper.getJedis;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -21,6 +24,7 @@ import orestes.bloomfilter.FilterBuilder;
 import orestes.bloomfilter.HashProvider.HashMethod;
 import orestes.bloomfilter.redis.BloomFilterRedis;
 import orestes.bloomfilter.redis.CountingBloomFilterRedis;
+import orestes.bloomfilter.redis.helper.RedisKeys;
 import orestes.bloomfilter.test.helper.Helper;
 
 import org.junit.Test;
@@ -31,23 +35,36 @@ import org.junit.runners.Parameterized;
 public class RedisBFTest {
 
     private final boolean counts;
+    private final boolean scripted;
+    private final boolean packed;
 
     @Parameterized.Parameters(name = "Redis Bloom Filter test with {0}")
     public static Collection<Object[]> data() throws Exception {
         Object[][] data = {
-                {"normal", false},
-                {"counting", true}
+                {"normal", false, false, false},
+                {"normal scripted", false, true, false},
+                {"counting", true, false, false},
+                {"counting scripted", true, true, false},
+                {"counting packed", true, false, true}
         };
         return Arrays.asList(data);
     }
 
-    public RedisBFTest(String type, boolean counts) {
+    public RedisBFTest(String type, boolean counts, boolean scripted, boolean packed) {
         this.counts = counts;
+        this.scripted = scripted;
+        this.packed = packed;
     }
 
     private BloomFilter<String> createFilter(String name, int n, double p) {
-        if(counts)
+        if(packed)
+            return createPackedCountingRedisFilter(name, n, p, HashMethod.MD5);
+        else if(counts && scripted)
+            return createScriptedCountingRedisFilter(name, n, p, HashMethod.MD5);
+        else if(counts)
             return createCountingRedisFilter(name, n, p, HashMethod.MD5);
+        else if(scripted)
+            return createScriptedRedisFilter(name, n, p, HashMethod.MD5);
         else
             return createRedisFilter(name, n, p, HashMethod.MD5);
     }
@@ -167,6 +184,32 @@ public class RedisBFTest {
         cleanupRedis();
     }
 
+    @Test
+    public void loadLegacyFilter() {
+        int n = 1000;
+        double p = 0.01;
+
+        String name = "loadLegacyTest";
+        String testString = "simpletest";
+
+        cleanupRedis();
+        BloomFilter<String> first = createFilter(name, n, p);
+        first.add(testString);
+        // Filters created by older versions may lack the hash method and always used MD5
+        getJedis().hdel(name, RedisKeys.HASH_METHOD_KEY);
+
+        BloomFilter<String> loaded;
+        if(counts)
+            loaded = new FilterBuilder(n, p).name(name).redisBacked(true).buildCountingBloomFilter();
+        else
+            loaded = new FilterBuilder(n, p).name(name).redisBacked(true).buildBloomFilter();
+
+        assertEquals(HashMethod.MD5, loaded.config().hashMethod());
+        assertTrue(loaded.contains(testString));
+
+        cleanupRedis();
+    }
+
     @Test
     public void removeExistingFilter() {
         int n = 1000;
@@ -232,6 +275,35 @@ public class RedisBFTest {
         assertFalse(first.containsAll(testNegative));
     }
 
+    @Test
+    public void scriptedMatchesPipelined() {
+        cleanupRedis();
+        BloomFilter<String> scripted = createScriptedRedisFilter("scripted", 1000, 0.01, HashMethod.Murmur3x64);
+        BloomFilter<String> pipelined = createRedisFilter("pipelined", 1000, 0.01, HashMethod.Murmur3x64);
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            elements.add("element" + i);
+        }
+
+        assertTrue(scripted.add("first"));
+        assertFalse(scripted.add("first"));
+        pipelined.add("first");
+        assertEquals(pipelined.addAll(elements), scripted.addAll(elements));
+        assertEquals(pipelined.getBitSet(), scripted.getBitSet());
+
+        elements.add("missing");
+        List<Boolean> contained = scripted.contains(elements);
+        assertEquals(pipelined.contains(elements), contained);
+        assertFalse(contained.get(contained.size() - 1));
+        assertTrue(scripted.contains("first"));
+        assertTrue(scripted.addAll(new ArrayList<String>()).isEmpty());
+
+        // Scripts evicted from the server cache are sent again
+        getJedis().scriptFlush();
+        assertTrue(scripted.contains("element1"));
+        assertTrue(scripted.add("second"));
+    }
+
     @Test
     public void testAsNormalFilter() {
         BloomFilter<String> first = createFilter("I_m_in_Redis", 10_000, 0.01);
@@ -0,0 +1,111 @@
+package orestes.bloomfilter.test;
+
+import static orestes.bloomfilter.test.helper.Helper.cleanupRedis;
+import static orestes.bloomfilter.test.helper.Helper.getJedis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.test.helper.Helper;
+
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+
+public class RedisBatchingTest {
+
+    private static FilterBuilder builder(String name) {
+        return new FilterBuilder(100_000, 0.01).name(name).redisHost(Helper.host).redisPort(Helper.port)
+                .redisBacked(true);
+    }
+
+    private static long execCalls(Jedis jedis) {
+        for (String line : jedis.info("commandstats").split("\r\n")) {
+            if (line.startsWith("cmdstat_exec:")) {
+                return Long.parseLong(line.substring(line.indexOf("calls=") + 6, line.indexOf(',')));
+            }
+        }
+        return 0;
+    }
+
+    @Test
+    public void singleThreadedResults() {
+        cleanupRedis();
+        BloomFilter<String> batched = builder("batchsingle").redisBatching(64, 100).overwriteIfExists(true)
+                .buildBloomFilter();
+        assertFalse(batched.contains("element"));
+        assertTrue(batched.add("element"));
+        assertFalse(batched.add("element"));
+        assertTrue(batched.contains("element"));
+        assertFalse(batched.contains("missing"));
+        batched.remove();
+    }
+
+    @Test
+    public void concurrentOperationsShareTransactions() throws Exception {
+        cleanupRedis();
+        final BloomFilter<String> batched = builder("batchconcurrent").redisBatching(256, 2_000)
+                .overwriteIfExists(true).buildBloomFilter();
+        BloomFilter<String> reference = builder("batchreference").overwriteIfExists(true).buildBloomFilter();
+        final int threads = 8;
+        final int perThread = 500;
+        Jedis jedis = getJedis();
+        jedis.configResetStat();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int i = 0; i < perThread; i++) {
+                        String element = thread + "-" + i;
+                        batched.add(element);
+                        if (!batched.contains(element)) return false;
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+
+        // 8000 adds and 8000 queries from 8 threads must have been coalesced into far fewer transactions
+        long transactions = execCalls(jedis);
+        assertTrue("Transactions: " + transactions, transactions <= threads * perThread / 2);
+
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                reference.add(t + "-" + i);
+            }
+        }
+        assertEquals(reference.getBitSet(), batched.getBitSet());
+
+        batched.remove();
+        reference.remove();
+        try {
+            batched.add("closed");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void countingFiltersCannotBatch() {
+        builder("batchcounting").redisBatching(64, 100).buildCountingBloomFilter();
+    }
+}
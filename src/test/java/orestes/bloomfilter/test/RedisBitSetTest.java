@@ -4,7 +4,9 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Random;
 
@@ -14,6 +16,8 @@ import orestes.bloomfilter.test.helper.Helper;
 
 import org.junit.Test;
 
+import redis.clients.jedis.Jedis;
+
 public class RedisBitSetTest {
 
     @Test
@@ -78,4 +82,58 @@ public class RedisBitSetTest {
         assertEquals(b1.cardinality(), b2.cardinality());
     }
 
+    @Test
+    public void testBitOrderConversion() {
+        Random r = new Random(42);
+        for (int length = 0; length < 200; length++) {
+            byte[] bytes = new byte[length];
+            r.nextBytes(bytes);
+            BitSet expected = new BitSet();
+            for (int i = 0; i < length * 8; i++) {
+                if ((bytes[i / 8] & (1 << (7 - (i % 8)))) != 0) expected.set(i);
+            }
+            BitSet bits = RedisBitSet.fromByteArrayReverse(bytes);
+            assertEquals(expected, bits);
+
+            byte[] back = RedisBitSet.toByteArrayReverse(bits);
+            assertEquals(bits.length() / 8 + 1, back.length);
+            assertTrue(Arrays.equals(Arrays.copyOf(bytes, back.length), back));
+        }
+    }
+
+    @Test
+    public void testChunkedTransfer() {
+        int size = 5 * RedisBitSet.TRANSFER_CHUNK_BYTES * 8 + 12345;
+        BitSet bits = new BitSet(size);
+        Random r = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            bits.set(r.nextInt(size));
+        }
+        // A chunk without set bits is not uploaded
+        bits.clear(RedisBitSet.TRANSFER_CHUNK_BYTES * 8, 2 * RedisBitSet.TRANSFER_CHUNK_BYTES * 8);
+        bits.set(size - 1);
+
+        RedisBitSet redis = new RedisBitSet(Helper.getPool(), "chunked", size);
+        Jedis jedis = Helper.getJedis();
+        jedis.configResetStat();
+        redis.overwriteBitSet(bits);
+        assertEquals(5, calls(jedis, "setrange"));
+        assertEquals(1, calls(jedis, "rename"));
+        assertEquals(0, jedis.keys("chunked:*").size());
+        assertEquals((size + 7) / 8, (long) jedis.strlen("chunked"));
+
+        assertEquals(bits, redis.asBitSet());
+        assertEquals(6, calls(jedis, "getrange"));
+        assertTrue(Arrays.equals(RedisBitSet.toByteArrayReverse(bits), redis.toByteArray()));
+        redis.clear();
+    }
+
+    private static long calls(Jedis jedis, String command) {
+        for (String line : jedis.info("commandstats").split("\r\n")) {
+            if (line.startsWith("cmdstat_" + command + ":")) {
+                return Long.parseLong(line.substring(line.indexOf("calls=") + 6, line.indexOf(',')));
+            }
+        }
+        return 0;
+    }
 }
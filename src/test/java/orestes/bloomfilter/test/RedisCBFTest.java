@@ -1,5 +1,7 @@
 package orestes.bloomfilter.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -10,6 +12,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import orestes.bloomfilter.CountingBloomFilter;
 import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.redis.CountingBloomFilterRedis;
+import orestes.bloomfilter.redis.helper.RedisKeys;
+import orestes.bloomfilter.test.helper.Helper;
 
 import org.junit.Test;
 
@@ -67,4 +72,128 @@ public class RedisCBFTest {
         }
         assertTrue(!false_negative.get());
     }
+
+    @Test
+    public void packedCounters() {
+        FilterBuilder fb = new FilterBuilder(1000, 5).name(name + "packed").redisPackedCounters(true).countingBits(4)
+                .overwriteIfExists(true);
+        CountingBloomFilter<String> filter = fb.buildCountingBloomFilter();
+        for (int i = 1; i <= 15; i++) {
+            assertEquals(i, filter.addAndEstimateCount("element"));
+        }
+        // Counters saturate at 2^4 - 1
+        assertEquals(15, filter.addAndEstimateCount("element"));
+        assertEquals(15, filter.getEstimatedCount("element"));
+        assertEquals(14, filter.removeAndEstimateCount("element"));
+
+        // 1000 counters of 4 bits need at most 500 bytes
+        assertTrue(Helper.getJedis().strlen(new RedisKeys(name + "packed").COUNTS_KEY) <= 500);
+
+        // The layout of the existing filter is used regardless of the builder
+        CountingBloomFilter<String> loaded = new FilterBuilder(1000, 5).name(name + "packed").redisBacked(true)
+                .buildCountingBloomFilter();
+        assertTrue(loaded.config().redisPackedCounters());
+        assertEquals(4, loaded.config().countingBits());
+        assertEquals(14, loaded.getEstimatedCount("element"));
+        for (int i = 13; i >= 0; i--) {
+            assertEquals(i, loaded.removeAndEstimateCount("element"));
+        }
+        assertFalse(filter.contains("element"));
+        assertTrue(filter.isEmpty());
+        // Counters do not drop below zero
+        assertEquals(0, filter.removeAndEstimateCount("element"));
+        assertEquals(0, filter.getEstimatedCount("element"));
+        filter.remove();
+    }
+
+    @Test
+    public void bulkOperations() {
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            elements.add("element" + (i % 2000));
+        }
+        List<String> removed = elements.subList(0, 2500);
+        for (boolean scripted : Arrays.asList(false, true)) {
+            for (boolean packed : Arrays.asList(false, true)) {
+                // Bulk operations must behave exactly like the single-element operations on the same layout
+                CountingBloomFilter<String> single = bulkBuilder("single", scripted, packed).buildCountingBloomFilter();
+                CountingBloomFilter<String> filter = bulkBuilder("bulk", scripted, packed).buildCountingBloomFilter();
+                List<Boolean> added = new ArrayList<>();
+                for (String element : elements) {
+                    added.add(single.add(element));
+                }
+                List<Long> counts = new ArrayList<>();
+                for (String element : elements) {
+                    counts.add(single.getEstimatedCount(element));
+                }
+                Helper.getJedis().configResetStat();
+
+                assertEquals(added, filter.addAll(elements));
+                assertEquals(counts, filter.getEstimatedCounts(elements));
+                if (scripted || packed) {
+                    // One script invocation per batch of elements instead of one per element
+                    long batches = (elements.size() - 1) / CountingBloomFilterRedis.BULK_BATCH + 1;
+                    assertTrue(calls("evalsha") <= 2 * batches);
+                }
+                assertEquals(2, filter.getEstimatedCount("element1"));
+
+                List<Boolean> removedSingle = new ArrayList<>();
+                for (String element : removed) {
+                    removedSingle.add(single.remove(element));
+                }
+                assertEquals(removedSingle, filter.removeAll(removed));
+                counts.clear();
+                for (String element : elements) {
+                    counts.add(single.getEstimatedCount(element));
+                }
+                assertEquals(counts, filter.getEstimatedCounts(elements));
+                if (scripted || packed) {
+                    assertEquals(single.getBitSet(), filter.getBitSet());
+                } else {
+                    // Without scripts, the bits are cleared according to the counters after the whole batch
+                    for (int i = 0; i < elements.size(); i++) {
+                        if (counts.get(i) > 0) assertTrue(filter.contains(elements.get(i)));
+                    }
+                }
+                assertTrue(filter.contains("element999"));
+                single.remove();
+                filter.remove();
+            }
+        }
+    }
+
+    @Test
+    public void bulkOperationsReloadEvictedScripts() {
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            elements.add("element" + i);
+        }
+        for (boolean packed : Arrays.asList(false, true)) {
+            CountingBloomFilter<String> loaded = bulkBuilder("loaded", true, packed).buildCountingBloomFilter();
+            CountingBloomFilter<String> filter = bulkBuilder("evicted", true, packed).buildCountingBloomFilter();
+            List<Boolean> added = loaded.addAll(elements);
+            List<Long> counts = loaded.getEstimatedCounts(elements);
+            // Every pipelined invocation of a batch fails with NOSCRIPT
+            Helper.getJedis().scriptFlush();
+            assertEquals(added, filter.addAll(elements));
+            Helper.getJedis().scriptFlush();
+            assertEquals(counts, filter.getEstimatedCounts(elements));
+            loaded.remove();
+            filter.remove();
+        }
+    }
+
+    private static FilterBuilder bulkBuilder(String suffix, boolean scripted, boolean packed) {
+        return new FilterBuilder(100_000, 5).name(name + suffix).redisBacked(true).redisScripts(scripted)
+                .redisPackedCounters(packed).countingBits(8).overwriteIfExists(true);
+    }
+
+    private static long calls(String command) {
+        for (String line : Helper.getJedis().info("commandstats").split("\r\n")) {
+            if (line.startsWith("cmdstat_" + command + ":")) {
+                return Long.parseLong(line.substring(line.indexOf("calls=") + 6, line.indexOf(',')));
+            }
+        }
+        return 0;
+    }
 }
@@ -0,0 +1,301 @@
+package orestes.bloomfilter.test;
+
+import static orestes.bloomfilter.test.helper.Helper.cleanupRedis;
+import static orestes.bloomfilter.test.helper.Helper.getJedis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.CountingBloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.redis.RedisBitSet;
+import orestes.bloomfilter.test.helper.Helper;
+
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+
+public class RedisMergeTest {
+    private static final int SIZE = 1 << 22;
+
+    private static FilterBuilder builder(String name) {
+        return new FilterBuilder(SIZE, 5).hashFunction(HashMethod.Murmur3x64).name(name).redisHost(Helper.host)
+                .redisPort(Helper.port).overwriteIfExists(true);
+    }
+
+    private static <T> BloomFilter<T> memoryFilter() {
+        return new FilterBuilder(SIZE, 5).hashFunction(HashMethod.Murmur3x64).buildBloomFilter();
+    }
+
+    private static void fill(BloomFilter<String> filter, String prefix, int elements) {
+        for (int i = 0; i < elements; i++) {
+            filter.add(prefix + i);
+        }
+    }
+
+    private static long calls(Jedis jedis, String command) {
+        for (String line : jedis.info("commandstats").split("\r\n")) {
+            if (line.startsWith("cmdstat_" + command + ":")) {
+                return Long.parseLong(line.substring(line.indexOf("calls=") + 6, line.indexOf(',')));
+            }
+        }
+        return 0;
+    }
+
+    private static BitSet or(BitSet first, BitSet second) {
+        BitSet result = (BitSet) first.clone();
+        result.or(second);
+        return result;
+    }
+
+    private static BitSet and(BitSet first, BitSet second) {
+        BitSet result = (BitSet) first.clone();
+        result.and(second);
+        return result;
+    }
+
+    @Test
+    public void mergeOnSameInstanceUsesBitop() {
+        cleanupRedis();
+        BloomFilter<String> first = builder("mergefirst").redisBacked(true).buildBloomFilter();
+        BloomFilter<String> second = builder("mergesecond").redisBacked(true).buildBloomFilter();
+        fill(first, "first", 500);
+        fill(second, "second", 500);
+        first.add("both");
+        second.add("both");
+        BitSet firstBits = first.getBitSet();
+        BitSet secondBits = second.getBitSet();
+        Jedis jedis = getJedis();
+        jedis.configResetStat();
+
+        assertTrue(first.union(second));
+        assertEquals(or(firstBits, secondBits), first.getBitSet());
+        assertEquals(secondBits, second.getBitSet());
+        assertTrue(first.contains("first1"));
+        assertTrue(first.contains("second1"));
+
+        assertTrue(second.intersect(first));
+        assertEquals(secondBits, second.getBitSet());
+        BloomFilter<String> empty = builder("mergeempty").redisBacked(true).buildBloomFilter();
+        assertTrue(first.intersect(empty));
+        assertTrue(first.getBitSet().isEmpty());
+
+        // The bit arrays never left Redis
+        assertEquals(3, calls(jedis, "bitop"));
+        assertEquals(0, calls(jedis, "setrange"));
+        first.remove();
+        second.remove();
+        empty.remove();
+    }
+
+    @Test
+    public void mergeWithMemoryFilterUploadsSetChunks() {
+        cleanupRedis();
+        BloomFilter<String> redis = builder("mergememory").redisBacked(true).buildBloomFilter();
+        BloomFilter<String> memory = memoryFilter();
+        fill(redis, "redis", 100);
+        memory.add("both");
+        redis.add("both");
+        BitSet redisBits = redis.getBitSet();
+        BitSet memoryBits = memory.getBitSet();
+        Jedis jedis = getJedis();
+        jedis.configResetStat();
+
+        assertTrue(redis.union(memory));
+        assertEquals(or(redisBits, memoryBits), redis.getBitSet());
+        // At most one chunk per set bit is uploaded, instead of all chunks of the bit array
+        assertTrue(calls(jedis, "setrange") <= memoryBits.cardinality());
+        assertTrue(calls(jedis, "setrange") < SIZE / 8 / RedisBitSet.UPLOAD_CHUNK_BYTES);
+        assertEquals(0, jedis.keys("mergememory:*merge*").size());
+
+        assertTrue(redis.intersect(memory));
+        assertEquals(memoryBits, redis.getBitSet());
+        assertTrue(redis.contains("both"));
+        assertFalse(redis.contains("redis1"));
+        redis.remove();
+    }
+
+    @Test
+    public void mergeKeepsExpiration() {
+        cleanupRedis();
+        long expireAt = System.currentTimeMillis() / 1000 + 3600;
+        BloomFilter<String> expiring = builder("mergeexpiring").redisExpireAt(expireAt).redisBacked(true)
+                .buildBloomFilter();
+        BloomFilter<String> memory = memoryFilter();
+        expiring.add("element");
+        memory.add("other");
+        assertTrue(expiring.union(memory));
+        assertTrue(getJedis().ttl("mergeexpiring:bits") > 0);
+        expiring.remove();
+    }
+
+    @Test
+    public void incompatibleFiltersAreNotMerged() {
+        cleanupRedis();
+        BloomFilter<String> redis = builder("mergeincompatible").redisBacked(true).buildBloomFilter();
+        BloomFilter<String> memory = new FilterBuilder(SIZE, 3).hashFunction(HashMethod.Murmur3x64).buildBloomFilter();
+        memory.add("element");
+        assertFalse(redis.union(memory));
+        assertFalse(redis.intersect(memory));
+        assertFalse(redis.contains("element"));
+        redis.remove();
+    }
+
+    @Test
+    public void shardedMerge() {
+        cleanupRedis();
+        BloomFilter<String> first = builder("mergeshardedfirst").redisShards(4).addRedisShardNode(Helper.host,
+                Helper.port).redisBacked(true).buildBloomFilter();
+        BloomFilter<String> second = builder("mergeshardedsecond").redisShards(4).addRedisShardNode(Helper.host,
+                Helper.port).redisBacked(true).buildBloomFilter();
+        BloomFilter<String> memory = memoryFilter();
+        fill(first, "first", 200);
+        fill(second, "second", 200);
+        fill(memory, "memory", 200);
+        BitSet firstBits = first.getBitSet();
+        BitSet secondBits = second.getBitSet();
+        BitSet memoryBits = memory.getBitSet();
+        Jedis jedis = getJedis();
+        jedis.configResetStat();
+
+        assertTrue(first.union(second));
+        assertEquals(or(firstBits, secondBits), first.getBitSet());
+        assertEquals(4, calls(jedis, "bitop"));
+        assertEquals(0, calls(jedis, "setrange"));
+
+        assertTrue(first.union(memory));
+        assertEquals(or(or(firstBits, secondBits), memoryBits), first.getBitSet());
+        assertTrue(first.intersect(memory));
+        assertEquals(memoryBits, first.getBitSet());
+        assertEquals(and(secondBits, memoryBits), and(secondBits, first.getBitSet()));
+        first.remove();
+        second.remove();
+    }
+
+    @Test
+    public void nearCachesReloadAfterMerge() throws InterruptedException {
+        cleanupRedis();
+        BloomFilter<String> cached = builder("mergenear").redisNearCache(0).buildBloomFilter();
+        BloomFilter<String> other = new FilterBuilder(SIZE, 5).hashFunction(HashMethod.Murmur3x64).name("mergenear")
+                .redisHost(Helper.host).redisPort(Helper.port).redisNearCache(0).buildBloomFilter();
+        BloomFilter<String> memory = memoryFilter();
+        memory.add("element");
+
+        assertTrue(cached.union(memory));
+        assertTrue(cached.contains("element"));
+        for (int i = 0; i < 200 && !other.contains("element"); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(other.contains("element"));
+        other.remove();
+        cached.remove();
+    }
+
+    private static CountingBloomFilter<String> countingFilter(String name, boolean packed) {
+        return new FilterBuilder(100_000, 5).hashFunction(HashMethod.Murmur3x64).name(name).redisHost(Helper.host)
+                .redisPort(Helper.port).overwriteIfExists(true).redisBacked(true).countingBits(4)
+                .redisPackedCounters(packed).buildCountingBloomFilter();
+    }
+
+    @Test
+    public void countingMerge() {
+        cleanupRedis();
+        for (boolean packed : new boolean[]{false, true}) {
+            List<CountingBloomFilter<String>> others = new ArrayList<>();
+            // Server-side on the same instance, then read from another layout, then uploaded from memory
+            others.add(countingFilter("countingmergesame", packed));
+            others.add(countingFilter("countingmergelayout", !packed));
+            others.add(new FilterBuilder(100_000, 5).hashFunction(HashMethod.Murmur3x64).countingBits(4)
+                    .<String>buildCountingBloomFilter());
+            others.add(new FilterBuilder(100_000, 5).hashFunction(HashMethod.Murmur3x64).countingBits(4)
+                    .concurrent(true).<String>buildCountingBloomFilter());
+            for (CountingBloomFilter<String> other : others) {
+                CountingBloomFilter<String> filter = countingFilter("countingmerge", packed);
+                for (int i = 0; i < 2; i++) {
+                    filter.add("both");
+                    other.add("both");
+                }
+                filter.add("first");
+                other.add("second");
+
+                assertTrue(filter.union(other));
+                assertEquals(4, filter.getEstimatedCount("both"));
+                assertEquals(1, filter.getEstimatedCount("first"));
+                assertEquals(1, filter.getEstimatedCount("second"));
+                assertTrue(filter.contains("second"));
+
+                other.remove("both");
+                assertTrue(filter.intersect(other));
+                assertEquals(1, filter.getEstimatedCount("both"));
+                assertEquals(0, filter.getEstimatedCount("first"));
+                assertEquals(1, filter.getEstimatedCount("second"));
+                assertFalse(filter.contains("first"));
+                assertTrue(filter.contains("both"));
+                filter.remove();
+                other.clear();
+            }
+            for (CountingBloomFilter<String> other : others) {
+                other.remove();
+            }
+        }
+    }
+
+    @Test
+    public void countingUnionMatchesAddingAllElements() {
+        cleanupRedis();
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        for (int i = 0; i < 700; i++) {
+            first.add("first" + i);
+            second.add("second" + (i % 500));
+        }
+        List<String> all = new ArrayList<>(first);
+        all.addAll(second);
+        for (boolean packed : new boolean[]{false, true}) {
+            CountingBloomFilter<String> expected = countingFilter("countingall", packed);
+            expected.addAll(all);
+            // More counters than one script invocation merges
+            List<CountingBloomFilter<String>> others = new ArrayList<>();
+            others.add(countingFilter("countingsecond", packed));
+            others.add(new FilterBuilder(100_000, 5).hashFunction(HashMethod.Murmur3x64).countingBits(4)
+                    .<String>buildCountingBloomFilter());
+            for (CountingBloomFilter<String> other : others) {
+                CountingBloomFilter<String> filter = countingFilter("countingfirst", packed);
+                filter.addAll(first);
+                other.addAll(second);
+                assertTrue(filter.union(other));
+                assertEquals(expected.getBitSet(), filter.getBitSet());
+                assertEquals(expected.getEstimatedCounts(all), filter.getEstimatedCounts(all));
+                filter.remove();
+                other.remove();
+            }
+            expected.remove();
+        }
+    }
+
+    @Test
+    public void countingUnionSaturatesPackedCounters() {
+        cleanupRedis();
+        CountingBloomFilter<String> filter = countingFilter("countingsaturated", true);
+        CountingBloomFilter<String> other = countingFilter("countingsaturatedother", true);
+        for (int i = 0; i < 10; i++) {
+            filter.add("element");
+            other.add("element");
+        }
+        assertTrue(filter.union(other));
+        assertEquals(15, filter.getEstimatedCount("element"));
+
+        BloomFilter<String> plain = builder("countingplain").redisBacked(true).buildBloomFilter();
+        assertFalse(filter.union(RedisMergeTest.<String>memoryFilter()));
+        assertFalse(filter.intersect(plain));
+        plain.remove();
+        other.remove();
+        filter.remove();
+    }
+}
@@ -0,0 +1,162 @@
+package orestes.bloomfilter.test;
+
+import static orestes.bloomfilter.test.helper.Helper.cleanupRedis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.redis.BloomFilterRedis;
+import orestes.bloomfilter.redis.RedisNearCache;
+import orestes.bloomfilter.redis.helper.RedisPool;
+import orestes.bloomfilter.test.helper.Helper;
+import redis.clients.jedis.Jedis;
+
+import org.junit.Test;
+
+public class RedisNearCacheTest {
+
+    private static FilterBuilder builder(String name) {
+        return new FilterBuilder(100_000, 0.01).name(name).redisHost(Helper.host).redisPort(Helper.port);
+    }
+
+    private static void awaitContains(BloomFilter<String> filter, String element) throws InterruptedException {
+        for (int i = 0; i < 200 && !filter.contains(element); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void initialLoadMatchesRedis() {
+        cleanupRedis();
+        // More than one chunk of the bit array has to be read
+        BloomFilter<String> writer = new FilterBuilder(1 << 20, 5).name("nearload").redisBacked(true)
+                .overwriteIfExists(true).buildBloomFilter();
+        for (int i = 0; i < 2_000; i++) {
+            writer.add("element" + i);
+        }
+
+        BloomFilter<String> cached = new FilterBuilder(1 << 20, 5).name("nearload").redisNearCache(0)
+                .buildBloomFilter();
+        for (int i = 0; i < 4_000; i++) {
+            assertEquals(writer.contains("element" + i), cached.contains("element" + i));
+        }
+        assertEquals(writer.getBitSet(), cached.getBitSet());
+        cached.remove();
+    }
+
+    @Test
+    public void publishedChangesAreApplied() throws InterruptedException {
+        cleanupRedis();
+        BloomFilter<String> first = builder("nearpubsub").redisNearCache(0).overwriteIfExists(true).buildBloomFilter();
+        BloomFilter<String> second = builder("nearpubsub").redisNearCache(0).buildBloomFilter();
+
+        // Own adds are visible immediately
+        assertTrue(first.add("element"));
+        assertTrue(first.contains("element"));
+        awaitContains(second, "element");
+        assertTrue(second.contains("element"));
+
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            elements.add("bulk" + i);
+        }
+        second.addAll(elements);
+        awaitContains(first, "bulk99");
+        for (String element : elements) {
+            assertTrue(first.contains(element));
+        }
+
+        first.clear();
+        for (int i = 0; i < 200 && second.contains("element"); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(second.contains("element"));
+        assertFalse(first.contains("bulk1"));
+        second.remove();
+        first.remove();
+    }
+
+    @Test
+    public void refreshPicksUpUnpublishedChanges() throws InterruptedException {
+        cleanupRedis();
+        BloomFilter<String> cached = builder("nearrefresh").redisNearCache(20).overwriteIfExists(true)
+                .buildBloomFilter();
+        // A client without near cache does not publish its changes
+        BloomFilter<String> writer = builder("nearrefresh").buildBloomFilter();
+        writer.add("element");
+        awaitContains(cached, "element");
+        assertTrue(cached.contains("element"));
+        assertFalse(cached.contains("missing"));
+        cached.remove();
+    }
+
+    @Test
+    public void refreshAddsBitsAndReloadReplaces() {
+        cleanupRedis();
+        RedisPool pool = Helper.getPool();
+        RedisNearCache cache = new RedisNearCache(pool, "nearmerge", "nearmerge-changes", 1024, 0);
+        // Set locally, but not (yet) in Redis, e.g. published by another client before its write replicated
+        cache.set(5);
+        Jedis jedis = Helper.getJedis();
+        jedis.setbit("nearmerge", 7, true);
+        cache.refresh();
+        assertTrue(cache.get(5));
+        assertTrue(cache.get(7));
+        cache.reload();
+        assertFalse(cache.get(5));
+        assertTrue(cache.get(7));
+        cache.clear();
+        assertFalse(cache.get(7));
+        jedis.close();
+        cache.close();
+        pool.destroy();
+    }
+
+    @Test
+    public void intersectionRemovesBitsFromNearCaches() throws InterruptedException {
+        cleanupRedis();
+        BloomFilter<String> first = builder("nearintersect").redisNearCache(0).overwriteIfExists(true)
+                .buildBloomFilter();
+        BloomFilter<String> second = builder("nearintersect").redisNearCache(0).buildBloomFilter();
+        first.add("kept");
+        first.add("removed");
+        awaitContains(second, "removed");
+        assertTrue(second.contains("removed"));
+
+        BloomFilter<String> memory = new FilterBuilder(100_000, 0.01).buildBloomFilter();
+        memory.add("kept");
+        assertTrue(first.intersect(memory));
+        assertTrue(first.contains("kept"));
+        assertFalse(first.contains("removed"));
+        for (int i = 0; i < 200 && second.contains("removed"); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(second.contains("removed"));
+        assertTrue(second.contains("kept"));
+        second.remove();
+        first.remove();
+    }
+
+    @Test
+    public void closeStopsThreadsAndKeepsFilter() throws Exception {
+        cleanupRedis();
+        BloomFilterRedis<String> filter = (BloomFilterRedis<String>) builder("nearclose").redisNearCache(20)
+                .redisBatching(16, 100).<String>buildBloomFilter();
+        filter.add("element");
+        assertTrue(filter.containsAsync("element").get());
+        BloomFilter<String> clone = filter.clone();
+        assertTrue(clone.contains("element"));
+        ((BloomFilterRedis<String>) clone).close();
+        filter.close();
+        assertTrue(Helper.awaitThreadsEnded("nearclose"));
+
+        BloomFilter<String> reopened = builder("nearclose").buildBloomFilter();
+        assertTrue(reopened.contains("element"));
+        reopened.remove();
+    }
+}
@@ -0,0 +1,177 @@
+package orestes.bloomfilter.test;
+
+import static orestes.bloomfilter.test.helper.Helper.cleanupRedis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.redis.BloomFilterRedis;
+import orestes.bloomfilter.redis.helper.ReplicaStats;
+import orestes.bloomfilter.test.helper.Helper;
+
+import org.junit.Test;
+
+public class RedisReplicaRoutingTest {
+    /**
+     * A port on which no Redis instance listens
+     */
+    private static final int DEAD_PORT = 6399;
+
+    private static FilterBuilder builder(String name) {
+        return new FilterBuilder(10_000, 0.01).name(name).redisHost(Helper.host).redisPort(Helper.port)
+                .redisBacked(true).overwriteIfExists(true);
+    }
+
+    private static ReplicaStats stats(BloomFilterRedis<String> filter, int port) {
+        for (ReplicaStats stats : filter.getRedisPool().getReplicaStats().subList(1,
+                filter.getRedisPool().getReplicaStats().size())) {
+            if (stats.getAddress().endsWith(":" + port)) return stats;
+        }
+        throw new IllegalArgumentException();
+    }
+
+    @Test
+    public void readsAreRecordedPerReplica() {
+        cleanupRedis();
+        BloomFilterRedis<String> filter = new BloomFilterRedis<>(builder("routingstats")
+                .addReadSlave(Helper.host, Helper.port));
+        filter.add("element");
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.contains("element"));
+        }
+        List<ReplicaStats> replicas = filter.getRedisPool().getReplicaStats();
+        assertEquals(2, replicas.size());
+        ReplicaStats slave = replicas.get(1);
+        assertEquals(100, slave.getRequests());
+        assertEquals(0, slave.getFailures());
+        assertTrue(slave.getAverageLatencyMicros() > 0);
+        assertTrue(slave.getLatencyPercentileNanos(0.5) > 0);
+        assertTrue(slave.getLatencyPercentileNanos(0.5) <= slave.getLatencyPercentileNanos(0.99));
+        assertTrue(replicas.get(0).getRequests() > 0);
+        filter.remove();
+    }
+
+    @Test
+    public void failedSlavesAreAvoided() {
+        cleanupRedis();
+        BloomFilterRedis<String> filter = new BloomFilterRedis<>(builder("routingdead")
+                .addReadSlave(Helper.host, Helper.port).addReadSlave(Helper.host, DEAD_PORT));
+        filter.add("element");
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.contains("element"));
+            assertFalse(filter.contains("missing"));
+        }
+        ReplicaStats dead = stats(filter, DEAD_PORT);
+        assertFalse(dead.isHealthy());
+        // The failed slave is skipped until it may have recovered, the failed read is repeated on the master
+        assertEquals(1, dead.getFailures());
+        assertEquals(199, stats(filter, Helper.port).getRequests());
+        filter.remove();
+    }
+
+    @Test
+    public void masterServesReadsWithoutHealthySlaves() {
+        cleanupRedis();
+        BloomFilterRedis<String> filter = new BloomFilterRedis<>(builder("routingmaster")
+                .addReadSlave(Helper.host, DEAD_PORT));
+        filter.add("element");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(filter.contains("element"));
+        }
+        assertEquals(1, stats(filter, DEAD_PORT).getFailures());
+        filter.remove();
+    }
+
+    @Test
+    public void slowReadsAreHedged() throws Exception {
+        cleanupRedis();
+        DelayingProxy proxy = new DelayingProxy(Helper.host, Helper.port);
+        BloomFilterRedis<String> filter = new BloomFilterRedis<>(builder("routinghedged")
+                .addReadSlave("localhost", proxy.getPort()).redisHedgedReads(0.9));
+        filter.add("element");
+        for (int i = 0; i < ReplicaStats.SAMPLES; i++) {
+            assertTrue(filter.contains("element"));
+        }
+
+        proxy.delayMillis = 1_000;
+        ReplicaStats slow = stats(filter, proxy.getPort());
+        // About one in ten regular reads exceeds the 90th percentile and is hedged as well
+        long hedges = slow.getHedges();
+        long start = System.currentTimeMillis();
+        assertTrue(filter.contains("element"));
+        assertFalse(filter.contains("missing"));
+        // Answered by the master long before the slave
+        assertTrue(System.currentTimeMillis() - start < 1_000);
+        assertEquals(hedges + 2, slow.getHedges());
+
+        proxy.delayMillis = 0;
+        proxy.close();
+        filter.remove();
+    }
+
+    /**
+     * Forwards connections to a Redis instance and delays its replies on demand.
+     */
+    private static class DelayingProxy {
+        private final ServerSocket server;
+        private volatile long delayMillis = 0;
+
+        private DelayingProxy(final String host, final int port) throws IOException {
+            server = new ServerSocket(0);
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Socket client = server.accept();
+                            Socket redis = new Socket(host, port);
+                            pump(client.getInputStream(), redis.getOutputStream(), false);
+                            pump(redis.getInputStream(), client.getOutputStream(), true);
+                        }
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void pump(final InputStream in, final OutputStream out, final boolean delayed) {
+            Thread pump = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) >= 0) {
+                            if (delayed && delayMillis > 0) Thread.sleep(delayMillis);
+                            out.write(buffer, 0, read);
+                            out.flush();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        // Connection closed
+                    }
+                }
+            });
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        private int getPort() {
+            return server.getLocalPort();
+        }
+
+        private void close() throws IOException {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.memory.BloomFilterOffHeap;
+import orestes.bloomfilter.memory.ScalableBloomFilter;
+
+import org.junit.Test;
+
+public class ScalableBFTest {
+
+    private static double falsePositiveRate(BloomFilter<String> bf, int trials) {
+        int falsePositives = 0;
+        for (int i = 0; i < trials; i++) {
+            if (bf.contains("other" + i))
+                falsePositives++;
+        }
+        return falsePositives / (double) trials;
+    }
+
+    @Test
+    public void testGrowsWithoutFalsePositiveBlowup() {
+        BloomFilter<String> plain = new FilterBuilder(10_000, 0.01).buildBloomFilter();
+        ScalableBloomFilter<String> scalable = (ScalableBloomFilter<String>) new FilterBuilder(10_000, 0.01)
+                .scalable(true).<String>buildBloomFilter();
+        for (int i = 0; i < 100_000; i++) {
+            plain.add("obj" + i);
+            scalable.add("obj" + i);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(scalable.contains("obj" + i));
+        }
+        // Capacities 10k, 20k, 40k, 80k
+        assertEquals(4, scalable.getStages().size());
+        double rate = falsePositiveRate(scalable, 100_000);
+        assertTrue(rate < 0.01);
+        assertTrue(falsePositiveRate(plain, 100_000) > 0.5);
+        assertEquals(rate, scalable.getEstimatedFalsePositiveProbability(), 0.003);
+        assertTrue(scalable.getFalsePositiveProbability(1_000_000) < 0.01);
+        assertEquals(100_000, scalable.getEstimatedPopulation(), 2000);
+    }
+
+    @Test
+    public void testStages() {
+        FilterBuilder config = new FilterBuilder(1000, 0.01).scalable(4, 0.5);
+        for (int stage = 0; stage < 3; stage++) {
+            FilterBuilder stageConfig = config.scalableStage(stage);
+            assertFalse(stageConfig.scalable());
+            assertEquals(1000 * (long) Math.pow(4, stage), stageConfig.longExpectedElements());
+            assertEquals(0.005 * Math.pow(0.5, stage), stageConfig.falsePositiveProbability(), 1e-12);
+            assertEquals(FilterBuilder.optimalLongM(stageConfig.longExpectedElements(),
+                    stageConfig.falsePositiveProbability()), stageConfig.longSize());
+        }
+
+        ScalableBloomFilter<String> bf = (ScalableBloomFilter<String>) config.<String>buildBloomFilter();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bf.add("obj" + i));
+        }
+        assertFalse(bf.add("obj0"));
+        assertEquals(2, bf.getStages().size());
+        assertEquals(bf.getStages().get(0).getSize() + bf.getStages().get(1).getSize(), bf.getSize());
+
+        bf.clear();
+        assertTrue(bf.isEmpty());
+        assertEquals(1, bf.getStages().size());
+    }
+
+    @Test
+    public void testOffHeapStages() {
+        ScalableBloomFilter<String> bf = (ScalableBloomFilter<String>) new FilterBuilder(1000, 0.01).scalable(true)
+                .offHeap(true).<String>buildBloomFilter();
+        for (int i = 0; i < 5000; i++) {
+            bf.add("obj" + i);
+        }
+        for (BloomFilter<String> stage : bf.getStages()) {
+            assertTrue(stage instanceof BloomFilterOffHeap);
+        }
+        assertTrue(bf.getStages().size() > 2);
+        assertTrue(bf.contains("obj4999"));
+    }
+
+    @Test
+    public void testUnion() {
+        FilterBuilder config = new FilterBuilder(1000, 0.01).scalable(true);
+        BloomFilter<String> small = config.buildBloomFilter();
+        BloomFilter<String> large = config.buildBloomFilter();
+        BloomFilter<String> all = config.buildBloomFilter();
+        for (int i = 0; i < 500; i++) {
+            small.add("small" + i);
+            all.add("small" + i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            large.add("large" + i);
+        }
+        assertTrue(small.union(large));
+        assertTrue(all.union(large));
+        assertEquals(small, all);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(small.contains("small" + i));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(small.contains("large" + i));
+        }
+        // The united first stages hold more elements than their capacity, which the estimation reflects
+        assertEquals(falsePositiveRate(small, 10_000), small.getEstimatedFalsePositiveProbability(), 0.005);
+
+        assertFalse(small.union(new FilterBuilder(1000, 0.01).<String>buildBloomFilter()));
+        assertFalse(small.union(new FilterBuilder(1000, 0.01).scalable(4, 0.8).<String>buildBloomFilter()));
+        assertFalse(small.union(new FilterBuilder(2000, 0.01).scalable(true).<String>buildBloomFilter()));
+    }
+
+    @Test
+    public void testCloneAndSerialization() throws Exception {
+        ScalableBloomFilter<String> bf = (ScalableBloomFilter<String>) new FilterBuilder(100, 0.01).scalable(true)
+                .<String>buildBloomFilter();
+        for (int i = 0; i < 1000; i++) {
+            bf.add("obj" + i);
+        }
+        ScalableBloomFilter<String> clone = bf.clone();
+        assertEquals(bf, clone);
+        clone.add("another");
+        assertNotEquals(bf, clone);
+        assertFalse(bf.contains("another"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(bf);
+        out.close();
+        Object read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(bf, read);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testNotRedis() {
+        new FilterBuilder(1000, 0.01).scalable(true).redisBacked(true).buildBloomFilter();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testNotCounting() {
+        new FilterBuilder(1000, 0.01).scalable(true).buildCountingBloomFilter();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTightening() {
+        new FilterBuilder(1000, 0.01).scalable(2, 1);
+    }
+}
@@ -0,0 +1,89 @@
+package orestes.bloomfilter.test;
+
+import static orestes.bloomfilter.test.helper.Helper.cleanupRedis;
+import static orestes.bloomfilter.test.helper.Helper.createRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.createShardedRedisFilter;
+import static orestes.bloomfilter.test.helper.Helper.getJedis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.redis.ShardedBloomFilterRedis;
+import orestes.bloomfilter.redis.helper.RedisKeys;
+import orestes.bloomfilter.test.helper.Helper;
+
+import org.junit.Test;
+
+public class ShardedRedisBFTest {
+
+    @Test
+    public void matchesUnshardedFilter() {
+        cleanupRedis();
+        BloomFilter<String> sharded = createShardedRedisFilter("sharded", 1000, 0.01, HashMethod.Murmur3x64);
+        BloomFilter<String> single = createRedisFilter("single", 1000, 0.01, HashMethod.Murmur3x64);
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            elements.add("element" + i);
+        }
+
+        assertTrue(sharded.add("first"));
+        assertFalse(sharded.add("first"));
+        single.add("first");
+        assertEquals(single.addAll(elements), sharded.addAll(elements));
+        assertEquals(single.getBitSet(), sharded.getBitSet());
+
+        elements.add("missing");
+        assertEquals(single.contains(elements), sharded.contains(elements));
+        assertEquals(single.getEstimatedPopulation(), sharded.getEstimatedPopulation());
+        assertEquals(single.getFalsePositiveProbability(200), sharded.getFalsePositiveProbability(200), 0.0);
+
+        // Every segment holds a part of the bits in its own key
+        RedisKeys keys = new RedisKeys("sharded");
+        for (int i = 0; i < 4; i++) {
+            assertTrue(getJedis().bitcount(keys.segmentKey(i)) > 0);
+        }
+        assertFalse(getJedis().exists(keys.BITS_KEY));
+
+        sharded.clear();
+        assertTrue(sharded.isEmpty());
+        assertFalse(sharded.contains("first"));
+        sharded.remove();
+    }
+
+    @Test
+    public void loadsRecordedSegments() {
+        BloomFilter<String> created = new FilterBuilder(1000, 0.01).name("shardedconfig").redisShards(3)
+                .overwriteIfExists(true).buildBloomFilter();
+        assertTrue(created instanceof ShardedBloomFilterRedis);
+        created.add("element");
+
+        // The number of segments is taken from Redis
+        BloomFilter<String> loaded = new FilterBuilder(1000, 0.01).name("shardedconfig").redisShards(7)
+                .buildBloomFilter();
+        assertEquals(3, loaded.config().redisShards());
+        assertTrue(loaded.contains("element"));
+        assertEquals(created.getBitSet(), loaded.getBitSet());
+        created.remove();
+    }
+
+    @Test
+    public void closeStopsThreadsAndKeepsFilter() throws InterruptedException {
+        cleanupRedis();
+        ShardedBloomFilterRedis<String> sharded = createShardedRedisFilter("shardedclose", 1000, 0.01,
+                HashMethod.Murmur3x64);
+        sharded.add("element");
+        sharded.close();
+        assertTrue(Helper.awaitThreadsEnded("shardedclose"));
+
+        BloomFilter<String> loaded = new FilterBuilder(1000, 0.01).name("shardedclose")
+                .addRedisShardNode(Helper.host, Helper.port).buildBloomFilter();
+        assertTrue(loaded.contains("element"));
+        loaded.remove();
+    }
+}
@@ -0,0 +1,155 @@
+package orestes.bloomfilter.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import orestes.bloomfilter.memory.SplitBlockBloomFilterMemory;
+
+import org.junit.Test;
+
+public class SplitBlockBFTest {
+
+    @Test
+    public void testXXHash64() throws Exception {
+        // Reference values of XXH64 with seed 0
+        assertEquals(0xEF46DB3751D8E999L, HashProvider.xxHash64(0, new byte[0]));
+        assertEquals(0x44BC2CF5AD770999L, HashProvider.xxHash64(0, "abc".getBytes("UTF-8")));
+        assertEquals(0x26C7827D889F6DA3L, HashProvider.xxHash64(0, "hello".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testOneBitPerWord() {
+        BloomFilter<String> bf = new FilterBuilder(100_000, 0.01).splitBlock(true).buildBloomFilter();
+        assertTrue(bf instanceof SplitBlockBloomFilterMemory);
+        assertEquals(SplitBlockBloomFilterMemory.WORDS_PER_BLOCK, bf.getHashes());
+        assertEquals(HashMethod.XXHash64, bf.config().hashMethod());
+        assertEquals(0, bf.getSize() % SplitBlockBloomFilterMemory.BLOCK_BITS);
+        for (int i = 0; i < 1000; i++) {
+            int[] positions = bf.hash("obj" + i);
+            int block = positions[0] / SplitBlockBloomFilterMemory.BLOCK_BITS;
+            for (int word = 0; word < positions.length; word++) {
+                assertEquals(block * SplitBlockBloomFilterMemory.WORDS_PER_BLOCK + word, positions[word] / 32);
+            }
+        }
+
+        bf.add("element");
+        for (int position : bf.hash("element")) {
+            assertTrue(bf.getBitSet().get(position));
+        }
+        assertEquals(SplitBlockBloomFilterMemory.WORDS_PER_BLOCK, bf.getBitSet().cardinality());
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        int n = 100_000;
+        double p = 0.01;
+        BloomFilter<String> bf = new FilterBuilder(n, p).splitBlock(true).buildBloomFilter();
+        assertTrue(bf.getFalsePositiveProbability(n) <= p);
+
+        for (int i = 0; i < n; i++) {
+            assertTrue(bf.add("obj" + i) || bf.contains("obj" + i));
+        }
+        for (int i = 0; i < n; i++) {
+            assertTrue(bf.contains("obj" + i));
+        }
+        int falsePositives = 0;
+        int tests = 100_000;
+        for (int i = 0; i < tests; i++) {
+            if (bf.contains("other" + i)) falsePositives++;
+        }
+        assertTrue(falsePositives / (double) tests < 1.5 * p);
+        assertEquals(n, bf.getEstimatedPopulation(), n * 0.1);
+    }
+
+    @Test
+    public void testParquetBitset() throws Exception {
+        // Written by parquet-mr's BlockSplitBloomFilter after inserting "hello" and "world"
+        byte[] parquet = hex("00001000000200000004000080000000000200000000008000000010000000080000200000000002"
+                + "100000002000000020000000000080000000200000000100");
+        SplitBlockBloomFilterMemory<String> bf = new SplitBlockBloomFilterMemory<String>(new FilterBuilder()
+                .size(parquet.length * 8));
+        bf.add("hello");
+        bf.add("world");
+        assertArrayEquals(parquet, bf.toParquetBitset());
+
+        SplitBlockBloomFilterMemory<String> imported = SplitBlockBloomFilterMemory.fromParquetBitset(parquet);
+        assertEquals(bf, imported);
+        assertTrue(imported.contains("hello"));
+        assertTrue(imported.containsHash(HashProvider.xxHash64(0, "world".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void testParquetStream() throws IOException {
+        SplitBlockBloomFilterMemory<String> bf = (SplitBlockBloomFilterMemory<String>) new FilterBuilder(1000, 0.01)
+                .splitBlock(true).<String>buildBloomFilter();
+        for (int i = 0; i < 1000; i++) {
+            bf.add("obj" + i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bf.writeParquet(out);
+        byte[] written = out.toByteArray();
+        // BloomFilterHeader(numBytes, BLOCK, XXHASH, UNCOMPRESSED) in Thrift's compact protocol
+        byte[] header = new byte[]{0x15, 0, 0, 0x1C, 0x1C, 0, 0, 0x1C, 0x1C, 0, 0, 0x1C, 0x1C, 0, 0, 0};
+        int numBytes = bf.getSize() / 8;
+        header[1] = (byte) (((numBytes << 1) & 0x7F) | 0x80);
+        header[2] = (byte) ((numBytes << 1) >>> 7);
+        assertTrue(numBytes << 1 < 1 << 14);
+        assertArrayEquals(header, Arrays.copyOf(written, header.length));
+        assertEquals(header.length + numBytes, written.length);
+
+        SplitBlockBloomFilterMemory<String> read = SplitBlockBloomFilterMemory.readParquet(new ByteArrayInputStream(written));
+        assertEquals(bf, read);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(read.contains("obj" + i));
+        }
+    }
+
+    @Test
+    public void testUnionAndIntersect() {
+        FilterBuilder fb = new FilterBuilder().size(SplitBlockBloomFilterMemory.BLOCK_BITS * 16).splitBlock(true);
+        BloomFilter<String> first = fb.clone().buildBloomFilter();
+        BloomFilter<String> second = fb.clone().buildBloomFilter();
+        BloomFilter<String> regular = new FilterBuilder(fb.size(), SplitBlockBloomFilterMemory.WORDS_PER_BLOCK)
+                .hashFunction(HashMethod.XXHash64).buildBloomFilter();
+        first.add("first");
+        second.add("second");
+        assertFalse(first.union(regular));
+
+        BloomFilter<String> union = first.clone();
+        assertTrue(union.union(second));
+        assertTrue(union.contains("first"));
+        assertTrue(union.contains("second"));
+
+        assertTrue(union.intersect(first));
+        assertEquals(first, union);
+        union.clear();
+        assertTrue(union.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedHashes() {
+        new FilterBuilder(1024, 3).splitBlock(true).buildBloomFilter();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testNotCounting() {
+        new FilterBuilder(1000, 0.01).splitBlock(true).buildCountingBloomFilter();
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new BigInteger("01" + hex, 16).toByteArray();
+        return Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+}
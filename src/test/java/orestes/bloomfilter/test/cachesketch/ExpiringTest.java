@@ -3,6 +3,7 @@ package orestes.bloomfilter.test.cachesketch;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
 import orestes.bloomfilter.cachesketch.ExpiringBloomFilter;
 
 import org.junit.Test;
@@ -28,7 +29,8 @@ public class ExpiringTest {
 
     @Test
     public void exceedCapacity() {
-        FilterBuilder b = new FilterBuilder(100, 0.05);
+        // The estimation error depends on the concrete inputs, the bound below was determined for MD5
+        FilterBuilder b = new FilterBuilder(100, 0.05).hashFunction(HashMethod.MD5);
         ExpiringBloomFilter<String> filter = new ExpiringBloomFilter<>(b);
 
         for (int i = 0; i < 200; i++) {
@@ -2,11 +2,14 @@ package orestes.bloomfilter.test.helper;
 
 
 import orestes.bloomfilter.memory.BloomFilterMemory;
+import orestes.bloomfilter.memory.ConcurrentBloomFilterMemory;
+import orestes.bloomfilter.memory.ConcurrentCountingBloomFilterMemory;
 import orestes.bloomfilter.memory.CountingBloomFilterMemory;
 import orestes.bloomfilter.FilterBuilder;
 import orestes.bloomfilter.HashProvider.HashMethod;
 import orestes.bloomfilter.redis.BloomFilterRedis;
 import orestes.bloomfilter.redis.CountingBloomFilterRedis;
+import orestes.bloomfilter.redis.ShardedBloomFilterRedis;
 import orestes.bloomfilter.redis.helper.RedisPool;
 import redis.clients.jedis.Jedis;
 
@@ -31,6 +34,10 @@ public class Helper {
         return new BloomFilterMemory<>(new FilterBuilder(n, p).hashFunction(hm).complete());
     }
 
+    public static <T> ConcurrentBloomFilterMemory<T> createConcurrentFilter(int n, double p, HashMethod hm) {
+        return new ConcurrentBloomFilterMemory<>(new FilterBuilder(n, p).hashFunction(hm).complete());
+    }
+
     public static <T> CountingBloomFilterMemory<T> createCountingFilter(int m, int k, HashMethod hm) {
         return new CountingBloomFilterMemory<>(new FilterBuilder(m, k).hashFunction(hm).complete());
     }
@@ -39,6 +46,10 @@ public class Helper {
         return new CountingBloomFilterMemory<>(new FilterBuilder(n, p).hashFunction(hm).complete());
     }
 
+    public static <T> ConcurrentCountingBloomFilterMemory<T> createConcurrentCountingFilter(int n, double p, HashMethod hm) {
+        return new ConcurrentCountingBloomFilterMemory<>(new FilterBuilder(n, p).hashFunction(hm).complete());
+    }
+
     public static <T> BloomFilterRedis<T> createRedisFilter(String name, int m, int k, HashMethod hm) {
         return new BloomFilterRedis<>(new FilterBuilder(m, k).hashFunction(hm)
                 .redisBacked(true)
@@ -59,6 +70,17 @@ public class Helper {
                 .redisConnections(connections).complete());
     }
 
+    public static <T> BloomFilterRedis<T> createScriptedRedisFilter(String name, int n, double p, HashMethod hm) {
+        return new BloomFilterRedis<>(new FilterBuilder(n, p).hashFunction(hm)
+                .redisBacked(true)
+                .redisScripts(true)
+                .name(name)
+                .redisHost(host)
+                .redisPort(port)
+                .overwriteIfExists(true)
+                .redisConnections(connections).complete());
+    }
+
     public static <T> CountingBloomFilterRedis<T> createCountingRedisFilter(String name, int m, int k, HashMethod hm) {
         return new CountingBloomFilterRedis<>(new FilterBuilder(m, k).hashFunction(hm)
                 .redisBacked(true)
@@ -79,7 +101,57 @@ public class Helper {
                 .redisConnections(connections).complete());
     }
 
+    public static <T> CountingBloomFilterRedis<T> createScriptedCountingRedisFilter(String name, int n, double p, HashMethod hm) {
+        return new CountingBloomFilterRedis<>(new FilterBuilder(n, p).hashFunction(hm)
+                .redisBacked(true)
+                .redisScripts(true)
+                .name(name)
+                .redisHost(host)
+                .redisPort(port)
+                .overwriteIfExists(true)
+                .redisConnections(connections).complete());
+    }
+
+    public static <T> CountingBloomFilterRedis<T> createPackedCountingRedisFilter(String name, int n, double p, HashMethod hm) {
+        return new CountingBloomFilterRedis<>(new FilterBuilder(n, p).hashFunction(hm)
+                .redisBacked(true)
+                .redisPackedCounters(true)
+                .name(name)
+                .redisHost(host)
+                .redisPort(port)
+                .overwriteIfExists(true)
+                .redisConnections(connections).complete());
+    }
+
+    public static <T> ShardedBloomFilterRedis<T> createShardedRedisFilter(String name, int n, double p, HashMethod hm) {
+        return new ShardedBloomFilterRedis<>(new FilterBuilder(n, p).hashFunction(hm)
+                .redisShards(4)
+                .addRedisShardNode(host, port)
+                .name(name)
+                .redisHost(host)
+                .redisPort(port)
+                .overwriteIfExists(true)
+                .redisConnections(connections).complete());
+    }
+
     public static void cleanupRedis() {
         getJedis().flushAll();
     }
+
+    /**
+     * Waits up to five seconds for all threads whose name contains the given string to end.
+     *
+     * @return {@code true} if no such thread is alive anymore
+     */
+    public static boolean awaitThreadsEnded(String name) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            boolean alive = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                alive |= thread.isAlive() && thread.getName().contains(name);
+            }
+            if (!alive) return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
 }
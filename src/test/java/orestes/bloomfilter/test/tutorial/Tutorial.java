@@ -210,7 +210,7 @@ public class Tutorial {
         BloomFilter<String> bf = new FilterBuilder().expectedElements(50).falsePositiveProbability(0.1).buildBloomFilter();
         bf.add("Ululu");
         JsonElement json = BloomFilterConverter.toJson(bf);
-        print(json); //{"size":240,"hashes":4,"HashMethod":"MD5","bits":"AAAAEAAAAACAgAAAAAAAAAAAAAAQ"}
+        print(json); //{"size":240,"hashes":4,"HashMethod":"Murmur3x64","bits":"AAAAAAAAAAAAAAAAAACU"}
         BloomFilter<String> otherBf = BloomFilterConverter.fromJson(json);
         print(bf.contains("Ululu")); //true
     }
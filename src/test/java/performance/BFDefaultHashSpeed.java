@@ -0,0 +1,61 @@
+package performance;
+
+import java.util.List;
+
+import orestes.bloomfilter.BloomFilter;
+import orestes.bloomfilter.FilterBuilder;
+import orestes.bloomfilter.HashProvider.HashMethod;
+import performance.BFHashUniformity.Randoms;
+
+/**
+ * Compares the per-operation cost of the former default hash method (MD5) with the current default of the {@link
+ * FilterBuilder}.
+ */
+public class BFDefaultHashSpeed {
+
+    public static void main(String[] args) {
+        int n = 1_000_000;
+        double p = 0.01;
+        int warmupRounds = 5;
+        int rounds = 10;
+
+        List<List<byte[]>> data = Randoms.UUIDS.generate(n, 1);
+        HashMethod newDefault = new FilterBuilder().hashMethod();
+
+        for (HashMethod hm : new HashMethod[]{HashMethod.MD5, newDefault}) {
+            BloomFilter<String> bf = new FilterBuilder(n, p).hashFunction(hm).buildBloomFilter();
+            for (int i = 0; i < warmupRounds; i++) {
+                run(bf, data.get(0));
+            }
+            long[] totals = new long[2];
+            for (int i = 0; i < rounds; i++) {
+                long[] nanos = run(bf, data.get(0));
+                totals[0] += nanos[0];
+                totals[1] += nanos[1];
+            }
+            System.out.println(hm + (hm == newDefault ? " (default)" : "") + ": "
+                    + "add() " + perOp(totals[0], rounds * n) + " ns/op, "
+                    + "contains() " + perOp(totals[1], rounds * n) + " ns/op");
+        }
+    }
+
+    private static long[] run(BloomFilter<String> bf, List<byte[]> values) {
+        bf.clear();
+        long start = System.nanoTime();
+        for (byte[] value : values) {
+            bf.add(value);
+        }
+        long added = System.nanoTime();
+        int found = 0;
+        for (byte[] value : values) {
+            if (bf.contains(value)) found++;
+        }
+        long end = System.nanoTime();
+        if (found != values.size()) throw new IllegalStateException("False negative");
+        return new long[]{added - start, end - added};
+    }
+
+    private static String perOp(long nanos, long ops) {
+        return String.format("%.1f", nanos / (double) ops);
+    }
+}
@@ -34,7 +34,7 @@ public class BFHashSpeed {
 		List<List<byte[]>> hashData = mode.generate(hashesPerRound, rounds);
 
         for (HashMethod hm : HashMethod.values()) {
-            mathematica += testSpeed(hm, hashData, hashesPerRound, rounds,  m, k) + ",";
+            mathematica += testSpeed(hm, hashData, hashesPerRound, m, k, rounds) + ",";
         }
         mathematica = mathematica.substring(0, mathematica.length() - 1);
 